@@ -107,7 +107,7 @@ public class PositionXmlParser {
     public Document parse(@NonNull byte[] data)
             throws ParserConfigurationException, SAXException, IOException {
         String xml = getXmlString(data);
-        return parse(xml, new InputSource(new StringReader(xml)), true);
+        return parse(xml, new InputSource(new StringReader(xml)), true, null);
     }
 
     /**
@@ -125,18 +125,47 @@ public class PositionXmlParser {
     @Nullable
     public Document parse(@NonNull String xml)
             throws ParserConfigurationException, SAXException, IOException {
-        return parse(xml, new InputSource(new StringReader(xml)), true);
+        return parse(xml, new InputSource(new StringReader(xml)), true, null);
+    }
+
+    /**
+     * Parses the given XML content without building the full document: each
+     * element is passed to the given handler once its end tag has been parsed,
+     * and is then released. This is much cheaper than {@link #parse(String)}
+     * for clients which only look at one element at a time.
+     * <p>
+     * The elements passed to the handler have their attributes, and are
+     * attached to their enclosing elements (without children) such that the
+     * ancestors of an element can be looked at, but they have no child nodes,
+     * not even text nodes. Positions can be looked up with
+     * {@link #getPosition(Node)} for the elements and their attributes while
+     * the handler is running.
+     *
+     * @param xml the XML string to be parsed. This must be in the correct
+     *     encoding already.
+     * @param handler the handler to pass the elements to
+     * @throws ParserConfigurationException if a SAX parser is not available
+     * @throws SAXException if the document contains a parsing error. The
+     *     elements before the error have already been passed to the handler.
+     * @throws IOException if something is seriously wrong. This should not
+     *             happen since the input source is known to be constructed from
+     *             a string.
+     */
+    public void stream(@NonNull String xml, @NonNull ElementHandler handler)
+            throws ParserConfigurationException, SAXException, IOException {
+        parse(xml, new InputSource(new StringReader(xml)), true, handler);
     }
 
     @NonNull
-    private Document parse(@NonNull String xml, @NonNull InputSource input, boolean checkBom)
+    private Document parse(@NonNull String xml, @NonNull InputSource input, boolean checkBom,
+            @Nullable ElementHandler elementHandler)
             throws ParserConfigurationException, SAXException, IOException {
         try {
             SAXParserFactory factory = SAXParserFactory.newInstance();
             factory.setFeature(NAMESPACE_FEATURE, true);
             factory.setFeature(NAMESPACE_PREFIX_FEATURE, true);
             SAXParser parser = factory.newSAXParser();
-            DomBuilder handler = new DomBuilder(xml);
+            DomBuilder handler = new DomBuilder(xml, elementHandler);
             parser.parse(input, handler);
             return handler.getDocument();
         } catch (SAXException e) {
@@ -145,12 +174,24 @@ public class PositionXmlParser {
                 // (see http://en.wikipedia.org/wiki/Byte_order_mark) so here we'll
                 // just skip those up to the XML prolog beginning character, <
                 xml = xml.replaceFirst("^([\\W]+)<","<");  //$NON-NLS-1$ //$NON-NLS-2$
-                return parse(xml, new InputSource(new StringReader(xml)), false);
+                return parse(xml, new InputSource(new StringReader(xml)), false,
+                        elementHandler);
             }
             throw e;
         }
     }
 
+    /** Handler for the elements parsed by {@link #stream(String, ElementHandler)} */
+    public interface ElementHandler {
+        /**
+         * Called when the end tag of an element has been parsed
+         *
+         * @param element the element, with its attributes but without children
+         * @throws SAXException to abort the parsing
+         */
+        void handleElement(@NonNull Element element) throws SAXException;
+    }
+
     /**
      * Returns the String corresponding to the given byte array of XML data
      * (with unknown encoding). This method attempts to guess the encoding based
@@ -467,10 +508,15 @@ public class PositionXmlParser {
      * along, and updates position information along the way. Position
      * information is attached to the DOM nodes by setting user data with the
      * {@link POS_KEY} key.
+     * <p>
+     * When it has an element handler, it instead attaches the elements to their
+     * parents as soon as they start, and passes them to the handler and detaches
+     * them when they end; text nodes are not created.
      */
     private final class DomBuilder extends DefaultHandler {
         private final String mXml;
         private final Document mDocument;
+        private final ElementHandler mElementHandler;
         private Locator mLocator;
         private int mCurrentLine = 0;
         private int mCurrentOffset;
@@ -478,8 +524,10 @@ public class PositionXmlParser {
         private final List<Element> mStack = new ArrayList<Element>();
         private final StringBuilder mPendingText = new StringBuilder();
 
-        private DomBuilder(String xml) throws ParserConfigurationException {
+        private DomBuilder(String xml, ElementHandler elementHandler)
+                throws ParserConfigurationException {
             mXml = xml;
+            mElementHandler = elementHandler;
 
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             factory.setNamespaceAware(true);
@@ -559,6 +607,9 @@ public class PositionXmlParser {
                 }
 
                 element.setUserData(POS_KEY, pos, null);
+                if (mElementHandler != null) {
+                    getParent().appendChild(element);
+                }
                 mStack.add(element);
             } catch (Exception t) {
                 throw new SAXException(t);
@@ -566,7 +617,8 @@ public class PositionXmlParser {
         }
 
         @Override
-        public void endElement(String uri, String localName, String qName) {
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
             flushText();
             Element element = mStack.remove(mStack.size() - 1);
 
@@ -574,12 +626,20 @@ public class PositionXmlParser {
             assert pos != null;
             pos.setEnd(getCurrentPosition());
 
-            if (mStack.isEmpty()) {
-                mDocument.appendChild(element);
+            if (mElementHandler != null) {
+                mElementHandler.handleElement(element);
+                getParent().removeChild(element);
             } else {
-                Element parent = mStack.get(mStack.size() - 1);
-                parent.appendChild(element);
+                getParent().appendChild(element);
+            }
+        }
+
+        /** Returns the node the current element belongs to */
+        private Node getParent() {
+            if (mStack.isEmpty()) {
+                return mDocument;
             }
+            return mStack.get(mStack.size() - 1);
         }
 
         /**
@@ -625,7 +685,9 @@ public class PositionXmlParser {
 
         @Override
         public void characters(char c[], int start, int length) throws SAXException {
-            mPendingText.append(c, start, length);
+            if (mElementHandler == null) {
+                mPendingText.append(c, start, length);
+            }
         }
 
         private void flushText() {
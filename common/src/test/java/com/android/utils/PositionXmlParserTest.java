@@ -16,6 +16,7 @@
 
 package com.android.utils;
 
+import com.android.annotations.NonNull;
 import com.android.utils.PositionXmlParser.Position;
 
 import org.w3c.dom.Attr;
@@ -32,6 +33,9 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import junit.framework.TestCase;
 
@@ -111,6 +115,55 @@ public class PositionXmlParserTest extends TestCase {
         file.delete();
     }
 
+    public void testStream() throws Exception {
+        final String xml =
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\"\n" +
+                "    android:orientation=\"vertical\" >\n" +
+                "\n" +
+                "    <Button\n" +
+                "        android:id=\"@+id/button1\"\n" +
+                "        android:text=\"Button\" />\n" +
+                "    <TextView>text</TextView>\n" +
+                "\n" +
+                "</LinearLayout>\n";
+        final String ANDROID_URI = "http://schemas.android.com/apk/res/android";
+        final PositionXmlParser parser = new PositionXmlParser();
+        final Document document = parser.parse(xml);
+        assertNotNull(document);
+        final List<String> names = new ArrayList<String>();
+        parser.stream(xml, new PositionXmlParser.ElementHandler() {
+            @Override
+            public void handleElement(@NonNull Element element) {
+                names.add(element.getTagName());
+                assertFalse(element.hasChildNodes());
+                assertEquals(xml.indexOf("<LinearLayout"),
+                        parser.getPosition(element.getOwnerDocument().getDocumentElement())
+                                .getOffset());
+
+                // Same positions as in the full document
+                Element full = (Element) document.getElementsByTagName(
+                        element.getTagName()).item(0);
+                Position position = parser.getPosition(element);
+                Position expected = parser.getPosition(full);
+                assertEquals(expected.getOffset(), position.getOffset());
+                assertEquals(expected.getEnd().getOffset(), position.getEnd().getOffset());
+                Attr attribute = element.getAttributeNodeNS(ANDROID_URI, "id");
+                if (attribute != null) {
+                    assertEquals(parser.getPosition(full.getAttributeNodeNS(ANDROID_URI, "id"))
+                            .getOffset(), parser.getPosition(attribute).getOffset());
+                    assertEquals(xml.indexOf("android:id"),
+                            parser.getPosition(attribute).getOffset());
+                }
+                if (!element.getTagName().equals("LinearLayout")) {
+                    assertEquals("LinearLayout",
+                            ((Element) element.getParentNode()).getTagName());
+                }
+            }
+        });
+        assertEquals(Arrays.asList("Button", "TextView", "LinearLayout"), names);
+    }
+
     public void testText() throws Exception {
         String xml =
                 "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
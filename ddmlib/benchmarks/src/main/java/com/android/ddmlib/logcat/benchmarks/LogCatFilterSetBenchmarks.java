@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat.benchmarks;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatFilter;
+import com.android.ddmlib.logcat.LogCatFilterSet;
+import com.android.ddmlib.logcat.LogCatMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of {@link LogCatFilterSet} with calling
+ * {@link LogCatFilter#matches(LogCatMessage)} on each filter, over a synthetic log with many
+ * filters. Usage:
+ * <pre>
+ *   LogCatFilterSetBenchmarks [--messages 1000000] [--filters 10,50,200] [--iterations 5]
+ * </pre>
+ */
+public class LogCatFilterSetBenchmarks {
+    private static final long SEED = 0x5eed;
+
+    private static final String[] WORDS = {
+            "started", "stopped", "freed", "GC_CONCURRENT", "activity", "display", "bytes",
+            "paused", "window", "focus", "intent", "service", "broadcast", "timeout", "ms",
+            "com.example", "resumed", "binder", "transaction", "failed",
+    };
+
+    /** Messages of the synthetic log, and the filters to match against them. */
+    private final List<LogCatMessage> mMessages;
+    private final List<LogCatFilter> mFilters;
+
+    private LogCatFilterSetBenchmarks(int messageCount, int filterCount) {
+        Random random = new Random(SEED);
+        mMessages = createMessages(random, messageCount);
+        mFilters = createFilters(random, filterCount);
+    }
+
+    private static String tag(int i) {
+        return (i % 3 == 0 ? "Activity" : i % 3 == 1 ? "dalvikvm" : "Window") + "Tag" + i;
+    }
+
+    private static String appName(int i) {
+        return "com.example.app" + i;
+    }
+
+    private static String pid(int i) {
+        return Integer.toString(1000 + i);
+    }
+
+    private static List<LogCatMessage> createMessages(Random random, int count) {
+        LogLevel[] levels = LogLevel.values();
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>(count);
+        for (int i = 0; i < count; i++) {
+            // A few processes and tags make most of the log, like in a real device log.
+            int app = Math.min(random.nextInt(30), random.nextInt(30));
+            int tag = Math.min(random.nextInt(200), random.nextInt(200));
+            StringBuilder text = new StringBuilder();
+            for (int j = random.nextInt(12); j >= 0; j--) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                text.append(random.nextInt(10000)).append(' ');
+            }
+            messages.add(new LogCatMessage(levels[random.nextInt(levels.length)], pid(app),
+                    "1", appName(app), tag(tag), "", text.toString()));
+        }
+        return messages;
+    }
+
+    private static List<LogCatFilter> createFilters(Random random, int count) {
+        LogLevel[] levels = LogLevel.values();
+        List<LogCatFilter> filters = new ArrayList<LogCatFilter>(count);
+        for (int i = 0; i < count; i++) {
+            String tag = "";
+            String text = "";
+            String pid = "";
+            String appName = "";
+            switch (i % 6) {
+                case 0:
+                    tag = tag(random.nextInt(200));
+                    break;
+                case 1:
+                    tag = "^" + (i % 4 == 1 ? "Activity" : "Window") + "Tag[0-9]+$";
+                    break;
+                case 2:
+                    text = WORDS[random.nextInt(WORDS.length)];
+                    break;
+                case 3:
+                    text = WORDS[random.nextInt(WORDS.length)] + " [0-9]+ "
+                            + WORDS[random.nextInt(WORDS.length)];
+                    break;
+                case 4:
+                    pid = pid(random.nextInt(30));
+                    break;
+                default:
+                    appName = appName(random.nextInt(30));
+                    tag = "dalvik";
+                    break;
+            }
+            filters.add(new LogCatFilter("filter" + i, tag, text, pid, appName,
+                    levels[random.nextInt(levels.length)]));
+        }
+        return filters;
+    }
+
+    /** Returns the number of matches with {@link LogCatFilter#matches(LogCatMessage)}. */
+    private long matchEachFilter() {
+        long matches = 0;
+        for (LogCatMessage m : mMessages) {
+            for (LogCatFilter filter : mFilters) {
+                if (filter.matches(m)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /** Returns the number of matches with {@link LogCatFilterSet#getMatchingFilters}. */
+    private long matchFilterSet() {
+        // Creating the set is part of the cost.
+        LogCatFilterSet set = new LogCatFilterSet(mFilters);
+        long matches = 0;
+        for (LogCatMessage m : mMessages) {
+            matches += set.getMatchingFilters(m).size();
+        }
+        return matches;
+    }
+
+    /** Prints the throughput of both ways of matching, in messages per second. */
+    private void run(int iterations) {
+        // The first run warms up both ways of matching.
+        long expected = matchEachFilter();
+        long actual = matchFilterSet();
+        if (actual != expected) {
+            throw new IllegalStateException(String.format(
+                    "The filter set found %1$d matches instead of %2$d", actual, expected));
+        }
+
+        long filterNs = 0;
+        long setNs = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            matchEachFilter();
+            filterNs += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            matchFilterSet();
+            setNs += System.nanoTime() - start;
+        }
+
+        double messages = (double) mMessages.size() * iterations;
+        System.out.println(String.format(Locale.US, "%10d %8d %16.0f %16.0f %8.1fx",
+                mMessages.size(), mFilters.size(),
+                messages / filterNs * TimeUnit.SECONDS.toNanos(1),
+                messages / setNs * TimeUnit.SECONDS.toNanos(1),
+                (double) filterNs / setNs));
+    }
+
+    private static void printHeader() {
+        System.out.println(String.format(Locale.US, "%10s %8s %16s %16s %9s",
+                "messages", "filters", "filters msg/s", "set msg/s", "speedup"));
+    }
+
+    public static void main(String[] args) {
+        int messageCount = 1000000;
+        int[] filterCounts = new int[] { 10, 50, 200 };
+        int iterations = 5;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if (args[i].equals("--messages")) {
+                messageCount = (int) Double.parseDouble(value);
+            } else if (args[i].equals("--filters")) {
+                String[] counts = value.split(",");
+                filterCounts = new int[counts.length];
+                for (int j = 0; j < counts.length; j++) {
+                    filterCounts[j] = Integer.parseInt(counts[j]);
+                }
+            } else if (args[i].equals("--iterations")) {
+                iterations = Integer.parseInt(value);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        printHeader();
+        for (int filterCount : filterCounts) {
+            new LogCatFilterSetBenchmarks(messageCount, filterCount).run(iterations);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps connections to the adb server which are already bound to the transport of a device,
+ * so that the requests sent to a device don't wait for the connection to adb and the
+ * <code>host:transport:</code> handshake.
+ * <p/>The adb server closes a connection once the service requested on it is done, so a
+ * connection is still used for a single request. Each time a connection is handed out, a new
+ * one is opened in the background, up to {@link DdmPreferences#getWarmConnectionCount()} idle
+ * connections per device.
+ * <p/>The static getters give statistics on the connections, which can be used to check how
+ * often the idle connections are reused.
+ */
+public final class AdbConnectionPool {
+
+    /** Idle connections older than this are closed rather than used. */
+    private static final long MAX_IDLE_TIME_MS = 30000;
+
+    private static final Object sLock = new Object();
+
+    /** The pools of idle connections, by device serial number. */
+    private static final Map<String, DevicePool> sPools = new HashMap<String, DevicePool>();
+
+    private static final ExecutorService sWarmUpExecutor;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ADB Connection Warm-up"); //$NON-NLS-1$
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        sWarmUpExecutor = executor;
+    }
+
+    private static final AtomicLong sOpenedConnections = new AtomicLong();
+    private static final AtomicLong sReusedConnections = new AtomicLong();
+    private static final AtomicLong sRequests = new AtomicLong();
+    private static final AtomicLong sHandshakeTimeNanos = new AtomicLong();
+    private static final AtomicInteger sInFlightRequests = new AtomicInteger();
+
+    /**
+     * The idle connections of a device.
+     */
+    private static final class DevicePool {
+        final ArrayDeque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+        /** The number of connections being opened in the background. */
+        int warming;
+    }
+
+    private static final class IdleConnection {
+        final SocketChannel channel;
+        final InetSocketAddress address;
+        final long time;
+
+        IdleConnection(SocketChannel channel, InetSocketAddress address) {
+            this.channel = channel;
+            this.address = address;
+            this.time = System.currentTimeMillis();
+        }
+
+        boolean isExpired(long now) {
+            return now - time > MAX_IDLE_TIME_MS;
+        }
+    }
+
+    /**
+     * Returns a connection to adb bound to the transport of a device, in non-blocking mode.
+     * <p/>The connection must be closed with {@link #closeTransport(SocketChannel)}.
+     * @param adbSockAddr the socket address of adb.
+     * @param device the device, or null to get a connection without transport.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the transport request.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static SocketChannel openTransport(InetSocketAddress adbSockAddr, IDevice device)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+        SocketChannel channel = null;
+        if (device != null) {
+            channel = takeIdleConnection(adbSockAddr, device.getSerialNumber());
+        }
+
+        if (channel != null) {
+            sReusedConnections.incrementAndGet();
+        } else {
+            channel = connect(adbSockAddr, device);
+        }
+
+        sRequests.incrementAndGet();
+        sInFlightRequests.incrementAndGet();
+
+        if (device != null) {
+            warmUp(adbSockAddr, device);
+        }
+
+        return channel;
+    }
+
+    /**
+     * Closes a connection returned by {@link #openTransport(InetSocketAddress, IDevice)}.
+     */
+    static void closeTransport(SocketChannel channel) throws IOException {
+        sInFlightRequests.decrementAndGet();
+        channel.close();
+    }
+
+    /**
+     * Closes the idle connections of a device, when it is disconnected.
+     * @param serialNumber the serial number of the device.
+     */
+    static void closeConnections(String serialNumber) {
+        DevicePool pool;
+        synchronized (sLock) {
+            pool = sPools.remove(serialNumber);
+        }
+        if (pool != null) {
+            for (IdleConnection connection : pool.idle) {
+                close(connection.channel);
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections of all the devices, when adb is stopped.
+     */
+    static void closeAllConnections() {
+        List<String> serialNumbers;
+        synchronized (sLock) {
+            serialNumbers = new ArrayList<String>(sPools.keySet());
+        }
+        for (String serialNumber : serialNumbers) {
+            closeConnections(serialNumber);
+        }
+    }
+
+    /**
+     * Returns the number of connections opened to adb for device requests, including the
+     * idle connections opened in the background.
+     */
+    public static long getOpenedConnectionCount() {
+        return sOpenedConnections.get();
+    }
+
+    /**
+     * Returns the number of device requests sent so far.
+     */
+    public static long getRequestCount() {
+        return sRequests.get();
+    }
+
+    /**
+     * Returns the number of device requests which used an idle connection, and didn't wait
+     * for the handshake with adb.
+     */
+    public static long getReusedConnectionCount() {
+        return sReusedConnections.get();
+    }
+
+    /**
+     * Returns the average time taken to connect to adb and select the transport of a device.
+     * @param unit the unit of the returned time.
+     */
+    public static long getAverageHandshakeTime(TimeUnit unit) {
+        long count = sOpenedConnections.get();
+        if (count == 0) {
+            return 0;
+        }
+        return unit.convert(sHandshakeTimeNanos.get() / count, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the number of device requests currently running.
+     */
+    public static int getInFlightRequestCount() {
+        return sInFlightRequests.get();
+    }
+
+    /**
+     * Returns the number of idle connections currently open, for all the devices.
+     */
+    public static int getIdleConnectionCount() {
+        int count = 0;
+        synchronized (sLock) {
+            for (DevicePool pool : sPools.values()) {
+                count += pool.idle.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Connects to adb and selects the transport of the device.
+     */
+    private static SocketChannel connect(InetSocketAddress adbSockAddr, IDevice device)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+        long start = System.nanoTime();
+
+        SocketChannel channel = SocketChannel.open(adbSockAddr);
+        boolean success = false;
+        try {
+            channel.configureBlocking(false);
+
+            // if the device is not -1, then we first tell adb we're looking to talk
+            // to a specific device
+            AdbHelper.setDevice(channel, device);
+            success = true;
+        } finally {
+            if (!success) {
+                channel.close();
+            }
+        }
+
+        sOpenedConnections.incrementAndGet();
+        sHandshakeTimeNanos.addAndGet(System.nanoTime() - start);
+        return channel;
+    }
+
+    /**
+     * Returns an idle connection of the device which is still open, or null if there are none.
+     */
+    private static SocketChannel takeIdleConnection(InetSocketAddress adbSockAddr,
+            String serialNumber) {
+        while (true) {
+            IdleConnection connection;
+            synchronized (sLock) {
+                DevicePool pool = sPools.get(serialNumber);
+                connection = pool != null ? pool.idle.pollFirst() : null;
+            }
+
+            if (connection == null) {
+                return null;
+            }
+
+            if (adbSockAddr.equals(connection.address)
+                    && !connection.isExpired(System.currentTimeMillis())
+                    && isOpen(connection.channel)) {
+                return connection.channel;
+            }
+            close(connection.channel);
+        }
+    }
+
+    /**
+     * Opens new idle connections for the device in the background, if it doesn't have enough.
+     */
+    private static void warmUp(final InetSocketAddress adbSockAddr, final IDevice device) {
+        int count = DdmPreferences.getWarmConnectionCount();
+        if (count <= 0) {
+            return;
+        }
+
+        final String serialNumber = device.getSerialNumber();
+        synchronized (sLock) {
+            closeExpiredConnections();
+
+            DevicePool pool = sPools.get(serialNumber);
+            if (pool == null) {
+                pool = new DevicePool();
+                sPools.put(serialNumber, pool);
+            }
+            if (pool.idle.size() + pool.warming >= count) {
+                return;
+            }
+            pool.warming++;
+        }
+
+        sWarmUpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SocketChannel channel = null;
+                try {
+                    channel = connect(adbSockAddr, device);
+                } catch (Exception e) {
+                    Log.d("ddms", "Failed to open idle connection to " + serialNumber + ": "
+                            + e.getMessage());
+                }
+
+                synchronized (sLock) {
+                    DevicePool pool = sPools.get(serialNumber);
+                    if (pool != null) {
+                        pool.warming--;
+                        if (channel != null) {
+                            pool.idle.addLast(new IdleConnection(channel, adbSockAddr));
+                            channel = null;
+                        }
+                    }
+                }
+
+                // the device was disconnected in the meantime.
+                if (channel != null) {
+                    close(channel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the idle connections which are too old to be used. Must be called with the lock.
+     */
+    private static void closeExpiredConnections() {
+        long now = System.currentTimeMillis();
+        for (DevicePool pool : sPools.values()) {
+            for (Iterator<IdleConnection> it = pool.idle.iterator(); it.hasNext(); ) {
+                IdleConnection connection = it.next();
+                if (connection.isExpired(now)) {
+                    it.remove();
+                    close(connection.channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether adb didn't close an idle connection.
+     */
+    private static boolean isOpen(SocketChannel channel) {
+        try {
+            // adb doesn't send anything until a service is requested, so the read returns -1 if
+            // the connection was closed, and 0 otherwise.
+            return channel.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // doesn't really matter if the close fails.
+        }
+    }
+
+    /**
+     * Non accessible constructor.
+     */
+    private AdbConnectionPool() {
+    }
+}
@@ -23,6 +23,9 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 
@@ -38,7 +41,14 @@ final class AdbHelper {
     // public static final long kOkay = 0x59414b4fL;
     // public static final long kFail = 0x4c494146L;
 
-    static final int WAIT_TIME = 5; // spin-wait sleep, in ms
+    /** Maximum time spent waiting for data before checking whether a receiver was cancelled. */
+    static final int CANCEL_CHECK_TIME = 25; // in ms
+
+    /**
+     * Selectors used to wait for non-blocking sockets to become ready, one per thread so that
+     * each blocking call can wait on its own socket.
+     */
+    private static final ThreadLocal<Selector> sSelectors = new ThreadLocal<Selector>();
 
     static final String DEFAULT_ENCODING = "ISO-8859-1"; //$NON-NLS-1$
 
@@ -268,8 +278,22 @@ final class AdbHelper {
      */
     static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device)
             throws TimeoutException, AdbCommandRejectedException, IOException {
+        return getFrameBuffer(adbSockAddr, device, null);
+    }
 
-        RawImage imageParams = new RawImage();
+    /**
+     * Retrieve the frame buffer from the device, reusing the image of a previous frame.
+     * <p/>The pixel data of <var>previous</var> is reused if the new frame has the same size,
+     * which avoids allocating a new buffer for each frame when capturing the screen
+     * continuously.
+     * @param previous the image to fill, or null to create a new one.
+     * @return the image, or null if the protocol is not supported.
+     */
+    static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device,
+            RawImage previous)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+
+        RawImage imageParams = previous != null ? previous : new RawImage();
         byte[] request = formAdbRequest("framebuffer:"); //$NON-NLS-1$
         byte[] nudge = {
             0
@@ -278,12 +302,7 @@ final class AdbHelper {
 
         SocketChannel adbChan = null;
         try {
-            adbChan = SocketChannel.open(adbSockAddr);
-            adbChan.configureBlocking(false);
-
-            // if the device is not -1, then we first tell adb we're looking to talk
-            // to a specific device
-            setDevice(adbChan, device);
+            adbChan = AdbConnectionPool.openTransport(adbSockAddr, device);
 
             write(adbChan, request);
 
@@ -317,19 +336,23 @@ final class AdbHelper {
                 return null;
             }
 
-            Log.d("ddms", "image params: bpp=" + imageParams.bpp + ", size="
-                    + imageParams.size + ", width=" + imageParams.width
-                    + ", height=" + imageParams.height);
-
             write(adbChan, nudge);
 
-            reply = new byte[imageParams.size];
+            if (imageParams.data != null && imageParams.data.length == imageParams.size) {
+                reply = imageParams.data;
+            } else {
+                Log.d("ddms", "image params: bpp=" + imageParams.bpp + ", size="
+                        + imageParams.size + ", width=" + imageParams.width
+                        + ", height=" + imageParams.height);
+
+                reply = new byte[imageParams.size];
+            }
             read(adbChan, reply);
 
             imageParams.data = reply;
         } finally {
             if (adbChan != null) {
-                adbChan.close();
+                AdbConnectionPool.closeTransport(adbChan);
             }
         }
 
@@ -387,13 +410,7 @@ final class AdbHelper {
 
         SocketChannel adbChan = null;
         try {
-            adbChan = SocketChannel.open(adbSockAddr);
-            adbChan.configureBlocking(false);
-
-            // if the device is not -1, then we first tell adb we're looking to
-            // talk
-            // to a specific device
-            setDevice(adbChan, device);
+            adbChan = AdbConnectionPool.openTransport(adbSockAddr, device);
 
             byte[] request = formAdbRequest("shell:" + command); //$NON-NLS-1$
             write(adbChan, request);
@@ -423,14 +440,12 @@ final class AdbHelper {
                             + count);
                     break;
                 } else if (count == 0) {
-                    try {
-                        int wait = WAIT_TIME * 5;
-                        timeToResponseCount += wait;
-                        if (maxTimeToOutputMs > 0 && timeToResponseCount > maxTimeToOutputMs) {
-                            throw new ShellCommandUnresponsiveException();
-                        }
-                        Thread.sleep(wait);
-                    } catch (InterruptedException ie) {
+                    // wait for more output, waking up regularly to check for cancellation.
+                    long start = System.currentTimeMillis();
+                    waitFor(adbChan, SelectionKey.OP_READ, CANCEL_CHECK_TIME);
+                    timeToResponseCount += System.currentTimeMillis() - start;
+                    if (maxTimeToOutputMs > 0 && timeToResponseCount > maxTimeToOutputMs) {
+                        throw new ShellCommandUnresponsiveException();
                     }
                 } else {
                     // reset timeout
@@ -445,7 +460,7 @@ final class AdbHelper {
             }
         } finally {
             if (adbChan != null) {
-                adbChan.close();
+                AdbConnectionPool.closeTransport(adbChan);
             }
             Log.v("ddms", "execute: returning");
         }
@@ -483,12 +498,7 @@ final class AdbHelper {
         SocketChannel adbChan = null;
 
         try {
-            adbChan = SocketChannel.open(adbSockAddr);
-            adbChan.configureBlocking(false);
-
-            // if the device is not -1, then we first tell adb we're looking to talk
-            // to a specific device
-            setDevice(adbChan, device);
+            adbChan = AdbConnectionPool.openTransport(adbSockAddr, device);
 
             byte[] request = formAdbRequest("log:" + logName);
             write(adbChan, request);
@@ -511,10 +521,8 @@ final class AdbHelper {
                 if (count < 0) {
                     break;
                 } else if (count == 0) {
-                    try {
-                        Thread.sleep(WAIT_TIME * 5);
-                    } catch (InterruptedException ie) {
-                    }
+                    // wait for more output, waking up regularly to check for cancellation.
+                    waitFor(adbChan, SelectionKey.OP_READ, CANCEL_CHECK_TIME);
                 } else {
                     if (rcvr != null) {
                         rcvr.parseNewData(buf.array(), buf.arrayOffset(), buf.position());
@@ -524,7 +532,7 @@ final class AdbHelper {
             }
         } finally {
             if (adbChan != null) {
-                adbChan.close();
+                AdbConnectionPool.closeTransport(adbChan);
             }
         }
     }
@@ -669,9 +677,20 @@ final class AdbHelper {
      */
     static void read(SocketChannel chan, byte[] data, int length, int timeout)
             throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        read(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
 
+    /**
+     * Reads from the socket until the buffer is filled up to its limit, or no more data is
+     * coming (because the socket closed or the timeout expired).
+     *
+     * @param chan the opened socket to read from. It must be in non-blocking
+     *      mode for timeouts to work
+     * @param buf the buffer to store the read data into, from its position to its limit.
+     * @param timeout The timeout value. A timeout of zero means "wait forever".
+     */
+    static void read(SocketChannel chan, ByteBuffer buf, int timeout)
+            throws TimeoutException, IOException {
         while (buf.position() != buf.limit()) {
             int count;
 
@@ -680,19 +699,10 @@ final class AdbHelper {
                 Log.d("ddms", "read: channel EOF");
                 throw new IOException("EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
+                if (!waitFor(chan, SelectionKey.OP_READ, timeout)) {
                     Log.d("ddms", "read: timeout");
                     throw new TimeoutException();
                 }
-                // non-blocking spin
-                try {
-                    Thread.sleep(WAIT_TIME);
-                } catch (InterruptedException ie) {
-                }
-                numWaits++;
-            } else {
-                numWaits = 0;
             }
         }
     }
@@ -722,9 +732,20 @@ final class AdbHelper {
      */
     static void write(SocketChannel chan, byte[] data, int length, int timeout)
             throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        write(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
 
+    /**
+     * Write until the buffer is written up to its limit, the timeout expires, or the
+     * connection fails.
+     * @param chan the opened socket to write to.
+     * @param buf the buffer to send, from its position to its limit.
+     * @param timeout The timeout value. A timeout of zero means "wait forever".
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static void write(SocketChannel chan, ByteBuffer buf, int timeout)
+            throws TimeoutException, IOException {
         while (buf.position() != buf.limit()) {
             int count;
 
@@ -733,23 +754,90 @@ final class AdbHelper {
                 Log.d("ddms", "write: channel EOF");
                 throw new IOException("channel EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
+                if (!waitFor(chan, SelectionKey.OP_WRITE, timeout)) {
                     Log.d("ddms", "write: timeout");
                     throw new TimeoutException();
                 }
-                // non-blocking spin
-                try {
-                    Thread.sleep(WAIT_TIME);
-                } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    /**
+     * Write a region of a file until it is all written, the timeout expires, or the connection
+     * fails. The data is transferred directly from the file to the socket where the platform
+     * supports it, without going through the java heap.
+     * @param chan the opened socket to write to.
+     * @param file the file to send the data from.
+     * @param position the position in the file of the first byte to send.
+     * @param count the number of bytes to send.
+     * @param timeout The timeout value. A timeout of zero means "wait forever".
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws IOException in case of I/O error on the connection, or if the file is shorter
+     *      than expected.
+     */
+    static void write(SocketChannel chan, FileChannel file, long position, long count,
+            int timeout) throws TimeoutException, IOException {
+        long end = position + count;
+
+        while (position != end) {
+            long written = file.transferTo(position, end - position, chan);
+            if (written == 0) {
+                if (position >= file.size()) {
+                    Log.d("ddms", "write: file EOF");
+                    throw new IOException("file EOF");
+                }
+                if (!waitFor(chan, SelectionKey.OP_WRITE, timeout)) {
+                    Log.d("ddms", "write: timeout");
+                    throw new TimeoutException();
                 }
-                numWaits++;
             } else {
-                numWaits = 0;
+                position += written;
             }
         }
     }
 
+    /**
+     * Waits until a socket is ready for the given operations, or the timeout expires.
+     * @param chan the socket to wait for. If it is in blocking mode, this returns right away.
+     * @param ops the operations to wait for, as a set of {@link SelectionKey} operations.
+     * @param timeout The timeout value, in ms. A timeout of zero means "wait forever".
+     * @return true if the socket is ready, false if the timeout expired.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    private static boolean waitFor(SocketChannel chan, int ops, int timeout) throws IOException {
+        if (chan.isBlocking()) {
+            return true;
+        }
+
+        Selector selector = sSelectors.get();
+        if (selector == null || !selector.isOpen()) {
+            selector = Selector.open();
+            sSelectors.set(selector);
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        SelectionKey key = chan.register(selector, ops);
+        try {
+            while (true) {
+                long remaining = timeout != 0 ? deadline - System.currentTimeMillis() : 0;
+                if (timeout != 0 && remaining <= 0) {
+                    return false;
+                }
+                if (selector.select(remaining) > 0) {
+                    return true;
+                }
+
+                // select() returns early if the thread is interrupted. Like the callers, we
+                // ignore interruptions, and clear the flag so that the next select() waits.
+                Thread.interrupted();
+            }
+        } finally {
+            // cancel the key and flush it, so that the socket can be registered again.
+            key.cancel();
+            selector.selectNow();
+        }
+    }
+
     /**
      * tells adb to talk to a specific device
      *
@@ -796,17 +884,12 @@ final class AdbHelper {
 
         SocketChannel adbChan = null;
         try {
-            adbChan = SocketChannel.open(adbSockAddr);
-            adbChan.configureBlocking(false);
-
-            // if the device is not -1, then we first tell adb we're looking to talk
-            // to a specific device
-            setDevice(adbChan, device);
+            adbChan = AdbConnectionPool.openTransport(adbSockAddr, device);
 
             write(adbChan, request);
         } finally {
             if (adbChan != null) {
-                adbChan.close();
+                AdbConnectionPool.closeTransport(adbChan);
             }
         }
     }
@@ -16,7 +16,9 @@
 
 package com.android.ddmlib;
 
+import com.android.annotations.NonNull;
 import com.android.ddmlib.Log.LogLevel;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -28,7 +30,19 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -85,6 +99,54 @@ public final class AndroidDebugBridge {
     // lock object for synchronization
     private static final Object sLock = sBridgeListeners;
 
+    /**
+     * Executor sending the device changes to the {@link IDeviceChangeListener}s. A single thread
+     * keeps the changes in order.
+     */
+    private static final ExecutorService sEventExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Device Change Notifier"); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Maximum number of devices on which the operations started with
+     * {@link #installPackage(Collection, String, boolean, String...)} and
+     * {@link #executeShellCommand(Collection, String, long, TimeUnit)} run at the same time.
+     * The operations on the other devices wait for their turn.
+     */
+    private static final int MAX_PARALLEL_DEVICE_OPERATIONS = 16;
+
+    /**
+     * Maximum number of packages pushed at the same time by
+     * {@link #installPackage(Collection, String, boolean, String...)}. Pushes are limited by the
+     * bandwidth of the host, so running more of them at once doesn't make them faster.
+     */
+    private static final int MAX_PARALLEL_PUSHES = 4;
+
+    /** Executor running the operations on several devices. */
+    private static final ExecutorService sDeviceOperationExecutor;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_PARALLEL_DEVICE_OPERATIONS,
+                MAX_PARALLEL_DEVICE_OPERATIONS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Device Operation"); //$NON-NLS-1$
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        sDeviceOperationExecutor = executor;
+    }
+
+    private static final Semaphore sPushPermits = new Semaphore(MAX_PARALLEL_PUSHES);
+
     /**
      * Classes which implement this interface provide a method that deals
      * with {@link AndroidDebugBridge} changes.
@@ -140,7 +202,11 @@ public final class AndroidDebugBridge {
         /**
          * Sent when an existing client information changed.
          * <p/>
-         * This is sent from a non UI thread.
+         * This is sent from a non UI thread: the one which updated the {@link ClientData}, right
+         * after the update. The data isn't synchronized, so it should be read before returning,
+         * and not from another thread. The device changes are sent from another thread, so the
+         * change of a new client can be received before the change of the client list of its
+         * device.
          * @param client the updated client.
          * @param changeMask the bit mask describing the changed properties. It can contain
          * any of the following values: {@link Client#CHANGE_INFO},
@@ -545,6 +611,106 @@ public final class AndroidDebugBridge {
         return -1;
     }
 
+    /**
+     * Installs an application package on several devices at once.
+     * <p/>The package is pushed to each device, and then installed, as with
+     * {@link IDevice#installPackage(String, boolean, String...)}. The devices are handled in
+     * parallel, but the number of devices handled at the same time, and the number of pushes
+     * running at the same time, are limited.
+     * <p/>This method does not block. The result of each device is the error message of the
+     * installation, or null if it succeeded. The failures are {@link InstallException}s.
+     *
+     * @param devices the devices to install the package on.
+     * @param packageFilePath the absolute file system path to the package on the host.
+     * @param reinstall set to <code>true</code> if re-install of app should be performed
+     * @param extraArgs optional extra arguments to pass. See 'adb shell pm install --help' for
+     *            available options.
+     * @return the pending results of the installation.
+     */
+    @NonNull
+    public static MultiDeviceResult<String> installPackage(
+            @NonNull Collection<? extends IDevice> devices, @NonNull final String packageFilePath,
+            final boolean reinstall, final String... extraArgs) {
+        Map<IDevice, FutureTask<String>> tasks = new LinkedHashMap<IDevice, FutureTask<String>>();
+        for (final IDevice device : devices) {
+            tasks.put(device, new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws InstallException {
+                    String remoteFilePath = pushPackage(device, packageFilePath);
+                    String result = device.installRemotePackage(remoteFilePath, reinstall,
+                            extraArgs);
+                    device.removeRemotePackage(remoteFilePath);
+                    return result;
+                }
+            }));
+        }
+
+        return startDeviceOperations(tasks);
+    }
+
+    /**
+     * Executes a shell command on several devices at once.
+     * <p/>The devices are handled in parallel, but the number of devices handled at the same
+     * time is limited.
+     * <p/>This method does not block. The result of each device is the output of the command.
+     * Cancelling the command on a device stops reading its output.
+     *
+     * @param devices the devices to run the command on.
+     * @param command the shell command to execute
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is
+     *            allowed to not output any response on a device.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @return the pending results of the command.
+     * @see IDevice#executeShellCommand(String, IShellOutputReceiver, long, TimeUnit)
+     */
+    @NonNull
+    public static MultiDeviceResult<String> executeShellCommand(
+            @NonNull Collection<? extends IDevice> devices, @NonNull String command,
+            long maxTimeToOutputResponse, @NonNull TimeUnit maxTimeUnits) {
+        Map<IDevice, FutureTask<String>> tasks = new LinkedHashMap<IDevice, FutureTask<String>>();
+        for (IDevice device : devices) {
+            tasks.put(device, new ShellCommandTask(device, command, maxTimeToOutputResponse,
+                    maxTimeUnits, new CollectingOutputReceiver()));
+        }
+
+        return startDeviceOperations(tasks);
+    }
+
+    private static MultiDeviceResult<String> startDeviceOperations(
+            Map<IDevice, FutureTask<String>> tasks) {
+        for (FutureTask<String> task : tasks.values()) {
+            sDeviceOperationExecutor.execute(task);
+        }
+        return new MultiDeviceResult<String>(tasks);
+    }
+
+    /**
+     * Pushes a package to a device, once a push permit is available.
+     * @return the path of the package on the device.
+     */
+    private static String pushPackage(IDevice device, String packageFilePath)
+            throws InstallException {
+        try {
+            sPushPermits.acquire();
+        } catch (InterruptedException e) {
+            throw new InstallException(e);
+        }
+
+        try {
+            return device.syncPackageToDevice(packageFilePath);
+        } catch (IOException e) {
+            throw new InstallException(e);
+        } catch (AdbCommandRejectedException e) {
+            throw new InstallException(e);
+        } catch (TimeoutException e) {
+            throw new InstallException(e);
+        } catch (SyncException e) {
+            throw new InstallException(e);
+        } finally {
+            sPushPermits.release();
+        }
+    }
+
     /**
      * Creates a new bridge.
      * @param osLocation the location of the command line tool
@@ -562,7 +728,8 @@ public final class AndroidDebugBridge {
     /**
      * Creates a new bridge not linked to any particular adb executable.
      */
-    private AndroidDebugBridge() {
+    @VisibleForTesting
+    AndroidDebugBridge() {
     }
 
     /**
@@ -731,6 +898,7 @@ public final class AndroidDebugBridge {
         // kill the monitoring services
         mDeviceMonitor.stop();
         mDeviceMonitor = null;
+        AdbConnectionPool.closeAllConnections();
 
         if (!stopAdb()) {
             return false;
@@ -773,114 +941,121 @@ public final class AndroidDebugBridge {
     /**
      * Notify the listener of a new {@link IDevice}.
      * <p/>
-     * The notification of the listeners is done in a synchronized block. It is important to
-     * expect the listeners to potentially access various methods of {@link IDevice} as well as
-     * {@link #getDevices()} which use internal locks.
-     * <p/>
-     * For this reason, any call to this method from a method of {@link DeviceMonitor},
-     * {@link IDevice} which is also inside a synchronized block, should first synchronize on
-     * the {@link AndroidDebugBridge} lock. Access to this lock is done through {@link #getLock()}.
+     * The listeners are notified on a dedicated thread, in the order in which the changes
+     * happened, so that a slow listener doesn't delay the monitoring of the devices. This can be
+     * called while holding internal locks.
      * @param device the new <code>IDevice</code>.
      * @see #getLock()
      */
-    void deviceConnected(IDevice device) {
-        // because the listeners could remove themselves from the list while processing
-        // their event callback, we make a copy of the list and iterate on it instead of
-        // the main list.
-        // This mostly happens when the application quits.
-        IDeviceChangeListener[] listenersCopy = null;
-        synchronized (sLock) {
-            listenersCopy = sDeviceListeners.toArray(
-                    new IDeviceChangeListener[sDeviceListeners.size()]);
-        }
+    void deviceConnected(final IDevice device) {
+        sEventExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // because the listeners could remove themselves from the list while processing
+                // their event callback, we make a copy of the list and iterate on it instead of
+                // the main list.
+                // This mostly happens when the application quits.
+                IDeviceChangeListener[] listenersCopy = null;
+                synchronized (sLock) {
+                    listenersCopy = sDeviceListeners.toArray(
+                            new IDeviceChangeListener[sDeviceListeners.size()]);
+                }
 
-        // Notify the listeners
-        for (IDeviceChangeListener listener : listenersCopy) {
-            // we attempt to catch any exception so that a bad listener doesn't kill our
-            // thread
-            try {
-                listener.deviceConnected(device);
-            } catch (Exception e) {
-                Log.e(DDMS, e);
+                // Notify the listeners
+                for (IDeviceChangeListener listener : listenersCopy) {
+                    // we attempt to catch any exception so that a bad listener doesn't kill our
+                    // thread
+                    try {
+                        listener.deviceConnected(device);
+                    } catch (Exception e) {
+                        Log.e(DDMS, e);
+                    }
+                }
             }
-        }
+        });
     }
 
     /**
      * Notify the listener of a disconnected {@link IDevice}.
      * <p/>
-     * The notification of the listeners is done in a synchronized block. It is important to
-     * expect the listeners to potentially access various methods of {@link IDevice} as well as
-     * {@link #getDevices()} which use internal locks.
-     * <p/>
-     * For this reason, any call to this method from a method of {@link DeviceMonitor},
-     * {@link IDevice} which is also inside a synchronized block, should first synchronize on
-     * the {@link AndroidDebugBridge} lock. Access to this lock is done through {@link #getLock()}.
+     * The listeners are notified on a dedicated thread, in the order in which the changes
+     * happened, so that a slow listener doesn't delay the monitoring of the devices. This can be
+     * called while holding internal locks.
      * @param device the disconnected <code>IDevice</code>.
      * @see #getLock()
      */
-    void deviceDisconnected(IDevice device) {
-        // because the listeners could remove themselves from the list while processing
-        // their event callback, we make a copy of the list and iterate on it instead of
-        // the main list.
-        // This mostly happens when the application quits.
-        IDeviceChangeListener[] listenersCopy = null;
-        synchronized (sLock) {
-            listenersCopy = sDeviceListeners.toArray(
-                    new IDeviceChangeListener[sDeviceListeners.size()]);
-        }
+    void deviceDisconnected(final IDevice device) {
+        sEventExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // because the listeners could remove themselves from the list while processing
+                // their event callback, we make a copy of the list and iterate on it instead of
+                // the main list.
+                // This mostly happens when the application quits.
+                IDeviceChangeListener[] listenersCopy = null;
+                synchronized (sLock) {
+                    listenersCopy = sDeviceListeners.toArray(
+                            new IDeviceChangeListener[sDeviceListeners.size()]);
+                }
 
-        // Notify the listeners
-        for (IDeviceChangeListener listener : listenersCopy) {
-            // we attempt to catch any exception so that a bad listener doesn't kill our
-            // thread
-            try {
-                listener.deviceDisconnected(device);
-            } catch (Exception e) {
-                Log.e(DDMS, e);
+                // Notify the listeners
+                for (IDeviceChangeListener listener : listenersCopy) {
+                    // we attempt to catch any exception so that a bad listener doesn't kill our
+                    // thread
+                    try {
+                        listener.deviceDisconnected(device);
+                    } catch (Exception e) {
+                        Log.e(DDMS, e);
+                    }
+                }
             }
-        }
+        });
     }
 
     /**
      * Notify the listener of a modified {@link IDevice}.
      * <p/>
-     * The notification of the listeners is done in a synchronized block. It is important to
-     * expect the listeners to potentially access various methods of {@link IDevice} as well as
-     * {@link #getDevices()} which use internal locks.
-     * <p/>
-     * For this reason, any call to this method from a method of {@link DeviceMonitor},
-     * {@link IDevice} which is also inside a synchronized block, should first synchronize on
-     * the {@link AndroidDebugBridge} lock. Access to this lock is done through {@link #getLock()}.
+     * The listeners are notified on a dedicated thread, in the order in which the changes
+     * happened, so that a slow listener doesn't delay the monitoring of the devices. This can be
+     * called while holding internal locks.
      * @param device the modified <code>IDevice</code>.
      * @see #getLock()
      */
-    void deviceChanged(IDevice device, int changeMask) {
-        // because the listeners could remove themselves from the list while processing
-        // their event callback, we make a copy of the list and iterate on it instead of
-        // the main list.
-        // This mostly happens when the application quits.
-        IDeviceChangeListener[] listenersCopy = null;
-        synchronized (sLock) {
-            listenersCopy = sDeviceListeners.toArray(
-                    new IDeviceChangeListener[sDeviceListeners.size()]);
-        }
+    void deviceChanged(final IDevice device, final int changeMask) {
+        sEventExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // because the listeners could remove themselves from the list while processing
+                // their event callback, we make a copy of the list and iterate on it instead of
+                // the main list.
+                // This mostly happens when the application quits.
+                IDeviceChangeListener[] listenersCopy = null;
+                synchronized (sLock) {
+                    listenersCopy = sDeviceListeners.toArray(
+                            new IDeviceChangeListener[sDeviceListeners.size()]);
+                }
 
-        // Notify the listeners
-        for (IDeviceChangeListener listener : listenersCopy) {
-            // we attempt to catch any exception so that a bad listener doesn't kill our
-            // thread
-            try {
-                listener.deviceChanged(device, changeMask);
-            } catch (Exception e) {
-                Log.e(DDMS, e);
+                // Notify the listeners
+                for (IDeviceChangeListener listener : listenersCopy) {
+                    // we attempt to catch any exception so that a bad listener doesn't kill our
+                    // thread
+                    try {
+                        listener.deviceChanged(device, changeMask);
+                    } catch (Exception e) {
+                        Log.e(DDMS, e);
+                    }
+                }
             }
-        }
+        });
     }
 
     /**
      * Notify the listener of a modified {@link Client}.
      * <p/>
+     * Unlike the device changes, the listeners are notified synchronously, on the thread which
+     * modified the client: the {@link ClientData} isn't synchronized, and the next packets from
+     * the client could modify it while another thread reads it.
+     * <p/>
      * The notification of the listeners is done in a synchronized block. It is important to
      * expect the listeners to potentially access various methods of {@link IDevice} as well as
      * {@link #getDevices()} which use internal locks.
@@ -888,7 +1063,7 @@ public final class AndroidDebugBridge {
      * For this reason, any call to this method from a method of {@link DeviceMonitor},
      * {@link IDevice} which is also inside a synchronized block, should first synchronize on
      * the {@link AndroidDebugBridge} lock. Access to this lock is done through {@link #getLock()}.
-     * @param device the modified <code>Client</code>.
+     * @param client the modified <code>Client</code>.
      * @param changeMask the mask indicating what changed in the <code>Client</code>
      * @see #getLock()
      */
@@ -901,7 +1076,6 @@ public final class AndroidDebugBridge {
         synchronized (sLock) {
             listenersCopy = sClientListeners.toArray(
                     new IClientChangeListener[sClientListeners.size()]);
-
         }
 
         // Notify the listeners
@@ -916,6 +1090,18 @@ public final class AndroidDebugBridge {
         }
     }
 
+    /**
+     * Waits until the listeners have been notified of all the device changes sent so far.
+     */
+    @VisibleForTesting
+    static void waitForPendingEvents() throws InterruptedException, ExecutionException {
+        sEventExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
     /**
      * Returns the {@link DeviceMonitor} object.
      */
@@ -1176,4 +1362,31 @@ public final class AndroidDebugBridge {
         return result;
     }
 
+    /**
+     * A shell command running on a device, which stops reading the output of the command when
+     * it is cancelled.
+     */
+    private static final class ShellCommandTask extends FutureTask<String> {
+        private final CollectingOutputReceiver mReceiver;
+
+        ShellCommandTask(final IDevice device, final String command,
+                final long maxTimeToOutputResponse, final TimeUnit maxTimeUnits,
+                final CollectingOutputReceiver receiver) {
+            super(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    device.executeShellCommand(command, receiver, maxTimeToOutputResponse,
+                            maxTimeUnits);
+                    return receiver.getOutput();
+                }
+            });
+            mReceiver = receiver;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mReceiver.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct {@link ByteBuffer}s of a fixed capacity, shared across threads.
+ * <p/>Direct buffers are expensive to allocate and are only freed once they are garbage
+ * collected, so connections that need one for a short time should borrow it from a pool
+ * rather than allocate their own.
+ */
+final class ByteBufferPool {
+
+    private final int mCapacity;
+    private final ByteOrder mOrder;
+    private final int mMaxPooledBuffers;
+
+    private final Queue<ByteBuffer> mBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger mPooledBuffers = new AtomicInteger();
+
+    /**
+     * Creates a pool.
+     * @param capacity the capacity of each buffer.
+     * @param order the byte order of the buffers.
+     * @param maxPooledBuffers the maximum number of unused buffers kept by the pool. Buffers
+     *      released beyond this are left to the garbage collector.
+     */
+    ByteBufferPool(int capacity, ByteOrder order, int maxPooledBuffers) {
+        mCapacity = capacity;
+        mOrder = order;
+        mMaxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Returns a cleared buffer from the pool, allocating a new one if the pool is empty.
+     * The buffer should be given back with {@link #release(ByteBuffer)} once it is not used
+     * anymore.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = mBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(mCapacity).order(mOrder);
+        }
+
+        mPooledBuffers.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer obtained from {@link #acquire()}. The buffer must not be used by the
+     * caller afterward.
+     */
+    void release(ByteBuffer buffer) {
+        if (mPooledBuffers.incrementAndGet() <= mMaxPooledBuffers) {
+            mBuffers.offer(buffer);
+        } else {
+            mPooledBuffers.decrementAndGet();
+        }
+    }
+}
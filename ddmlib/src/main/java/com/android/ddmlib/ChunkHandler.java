@@ -18,6 +18,7 @@ package com.android.ddmlib;
 
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -65,6 +66,24 @@ abstract class ChunkHandler {
     abstract void handleChunk(Client client, int type,
         ByteBuffer data, boolean isReply, int msgId);
 
+    /**
+     * Returns whether the payload of the unsolicited chunks of type "type" should be written
+     * to a file as it is received, rather than kept in memory until the whole packet has
+     * arrived.  Such chunks are given to handleStreamedChunk() instead of handleChunk(), unless
+     * the whole packet was already received.
+     */
+    boolean isStreamedChunk(int type) {
+        return false;
+    }
+
+    /**
+     * Handle an incoming chunk whose payload was written to a temporary file, which the
+     * handler is responsible for deleting or keeping.  "file" is null if the payload could not
+     * be written.
+     */
+    void handleStreamedChunk(Client client, int type, File file) {
+    }
+
     /**
      * Handle chunks not recognized by handlers.  The handleChunk() method
      * in sub-classes should call this if the chunk type isn't recognized.
@@ -151,10 +170,7 @@ abstract class ChunkHandler {
      * "maxChunkLen" indicates the size of the chunk contents only.
      */
     static ByteBuffer allocBuffer(int maxChunkLen) {
-        ByteBuffer buf =
-            ByteBuffer.allocate(JdwpPacket.JDWP_HEADER_LEN + 8 +maxChunkLen);
-        buf.order(CHUNK_ORDER);
-        return buf;
+        return JdwpPacket.allocBuffer(JdwpPacket.JDWP_HEADER_LEN + 8 + maxChunkLen);
     }
 
     /**
@@ -101,6 +101,14 @@ public class Client {
     private static final int MAX_BUF_SIZE = 800*1024*1024;
     private ByteBuffer mReadBuffer;
 
+    /** Changes merged while handling several packets at once. See startUpdateBatch(). */
+    private final Object mUpdateLock = new Object();
+    private int mUpdateBatchDepth;
+    private int mPendingChanges;
+
+    /** The chunk being written to a file as it is received, if any. */
+    private StreamedChunk mStreamedChunk;
+
     private static final int WRITE_BUF_SIZE = 256;
     private ByteBuffer mWriteBuffer;
 
@@ -617,7 +625,8 @@ public class Client {
      * until this packet completes, so we synchronize on the channel.
      *
      * Another goal is to avoid unnecessary buffer copies, so we write
-     * directly out of the JdwpPacket's ByteBuffer.
+     * directly out of the JdwpPacket's ByteBuffer.  The buffer goes back
+     * to its pool once the packet has been sent.
      */
     void sendAndConsume(JdwpPacket packet, ChunkHandler replyHandler)
         throws IOException {
@@ -625,6 +634,7 @@ public class Client {
         if (mChan == null) {
             // can happen for e.g. THST packets
             Log.v("ddms", "Not sending packet -- client is closed");
+            packet.release();
             return;
         }
 
@@ -645,6 +655,9 @@ public class Client {
                 removeRequestId(packet.getId());
                 throw ioe;
             }
+            finally {
+                packet.release();
+            }
         }
     }
 
@@ -678,6 +691,15 @@ public class Client {
 
         int count;
 
+        if (mStreamedChunk != null) {
+            // the read buffer is emptied after each read while streaming, so it never grows.
+            count = mChan.read(mReadBuffer);
+            if (count < 0)
+                throw new IOException("read failed");
+            consumeStreamedChunk();
+            return;
+        }
+
         if (mReadBuffer.position() == mReadBuffer.capacity()) {
             if (mReadBuffer.capacity() * 2 > MAX_BUF_SIZE) {
                 Log.e("ddms", "Exceeded MAX_BUF_SIZE!");
@@ -769,6 +791,9 @@ public class Client {
                 if (Log.Config.LOGV) Log.v("ddms",
                     "Checking " + mReadBuffer.position() + " bytes");
             }
+            if (startStreamedChunk()) {
+                return null;
+            }
             return JdwpPacket.findPacket(mReadBuffer);
         } else {
             /*
@@ -780,6 +805,62 @@ public class Client {
         return null;
     }
 
+    /**
+     * If the buffer starts with a packet which has not been received entirely, and whose chunk
+     * is streamed by its handler, starts writing the chunk to a file.
+     *
+     * @return true if the buffer held the start of such a packet.
+     */
+    private boolean startStreamedChunk() throws IOException {
+        int type = JdwpPacket.findChunkType(mReadBuffer);
+        if (type == 0) {
+            return false;
+        }
+
+        ChunkHandler handler = MonitorThread.getInstance().getChunkHandler(type);
+        if (handler == null || !handler.isStreamedChunk(type)) {
+            return false;
+        }
+
+        ByteBuffer header = mReadBuffer.duplicate().order(ChunkHandler.CHUNK_ORDER);
+        int length = header.getInt(0);
+        if (length <= mReadBuffer.position()) {
+            // already received, the handler will get it normally.
+            return false;
+        }
+
+        int headerLength = JdwpPacket.JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN;
+        int payloadLength = header.getInt(JdwpPacket.JDWP_HEADER_LEN + 4);
+        Log.d("ddms", "Streaming " + ChunkHandler.name(type) + " chunk of " + payloadLength
+                + " bytes from " + this);
+
+        mStreamedChunk = new StreamedChunk(type, handler, length - headerLength, payloadLength);
+
+        // drop the headers, and write what we have of the payload.
+        mReadBuffer.flip();
+        mReadBuffer.position(headerLength);
+        mReadBuffer.compact();
+        consumeStreamedChunk();
+        return true;
+    }
+
+    /**
+     * Gives the data in the read buffer to the streamed chunk, and hands the chunk to its
+     * handler once it has been received entirely.  Data following the chunk is kept in the
+     * buffer.
+     */
+    private void consumeStreamedChunk() {
+        mReadBuffer.flip();
+        boolean done = mStreamedChunk.consume(mReadBuffer);
+        mReadBuffer.compact();
+
+        if (done) {
+            StreamedChunk chunk = mStreamedChunk;
+            mStreamedChunk = null;
+            chunk.finish(this);
+        }
+    }
+
     /*
      * Add the specified ID to the list of request IDs for which we await
      * a response.
@@ -873,6 +954,11 @@ public class Client {
 
         mOutstandingReqs.clear();
 
+        if (mStreamedChunk != null) {
+            mStreamedChunk.cancel();
+            mStreamedChunk = null;
+        }
+
         try {
             if (mChan != null) {
                 mChan.close();
@@ -900,7 +986,43 @@ public class Client {
     }
 
     void update(int changeMask) {
+        synchronized (mUpdateLock) {
+            if (mUpdateBatchDepth > 0) {
+                mPendingChanges |= changeMask;
+                return;
+            }
+        }
         mDevice.update(this, changeMask);
     }
+
+    /**
+     * Starts a batch of updates: the changes given to {@link #update(int)} are merged, and
+     * sent once by {@link #endUpdateBatch()}.  This is used when several packets from the
+     * client are handled at once, so that listeners are only notified once.
+     */
+    void startUpdateBatch() {
+        synchronized (mUpdateLock) {
+            mUpdateBatchDepth++;
+        }
+    }
+
+    /**
+     * Ends a batch of updates started with {@link #startUpdateBatch()}, and sends the merged
+     * changes, if any.
+     */
+    void endUpdateBatch() {
+        int changes;
+        synchronized (mUpdateLock) {
+            if (--mUpdateBatchDepth > 0) {
+                return;
+            }
+            changes = mPendingChanges;
+            mPendingChanges = 0;
+        }
+
+        if (changes != 0) {
+            mDevice.update(this, changes);
+        }
+    }
 }
 
@@ -18,6 +18,7 @@ package com.android.ddmlib;
 
 import com.android.ddmlib.HeapSegment.HeapSegmentElement;
 
+import java.io.File;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -343,6 +344,22 @@ public class ClientData {
         void onEndFailure(Client client, String message);
     }
 
+    /**
+     * Handlers able to act on HPROF dumps streamed from the VM, without holding the whole dump
+     * in memory.
+     * <p/>When such a handler is set, {@link #onSuccess(File, Client)} is called instead of
+     * {@link IHprofDumpHandler#onSuccess(byte[], Client)}.
+     */
+    public interface IHprofDumpFileHandler extends IHprofDumpHandler {
+        /**
+         * Called when a HPROF dump was successful.
+         * @param hprofFile a temporary file containing the HPROF data, streamed from the VM.
+         *      The handler is responsible for deleting or moving the file.
+         * @param client the client that was profiled.
+         */
+        void onSuccess(File hprofFile, Client client);
+    }
+
     /**
      * Handlers able to act on Method profiling info
      */
@@ -376,6 +393,22 @@ public class ClientData {
         void onEndFailure(Client client, String message);
     }
 
+    /**
+     * Handlers able to act on method traces streamed from the VM, without holding the whole
+     * trace in memory.
+     * <p/>When such a handler is set, {@link #onSuccess(File, Client)} is called instead of
+     * {@link IMethodProfilingHandler#onSuccess(byte[], Client)}.
+     */
+    public interface IMethodProfilingFileHandler extends IMethodProfilingHandler {
+        /**
+         * Called when a method tracing was successful.
+         * @param traceFile a temporary file containing the trace, streamed from the VM. The
+         *      handler is responsible for deleting or moving the file.
+         * @param client the client that was profiled.
+         */
+        void onSuccess(File traceFile, Client client);
+    }
+
     /**
      * Sets the handler to receive notifications when an HPROF dump succeeded or failed.
      */
@@ -26,7 +26,7 @@ import java.util.concurrent.CountDownLatch;
 public class CollectingOutputReceiver implements IShellOutputReceiver {
     private CountDownLatch mCompletionLatch;
     private StringBuffer mOutputBuffer = new StringBuffer();
-    private boolean mIsCanceled = false;
+    private volatile boolean mIsCanceled = false;
 
     public CollectingOutputReceiver() {
     }
@@ -47,6 +47,8 @@ public final class DdmPreferences {
     /** Default values for the use of the ADBHOST environment variable. */
     public static final boolean DEFAULT_USE_ADBHOST = false;
     public static final String DEFAULT_ADBHOST_VALUE = "127.0.0.1";
+    /** Default number of idle adb connections kept for each device. */
+    public static final int DEFAULT_WARM_CONNECTION_COUNT = 1;
 
     private static boolean sThreadUpdate = DEFAULT_INITIAL_THREAD_UPDATE;
     private static boolean sInitialHeapUpdate = DEFAULT_INITIAL_HEAP_UPDATE;
@@ -59,6 +61,7 @@ public final class DdmPreferences {
 
     private static boolean sUseAdbHost = DEFAULT_USE_ADBHOST;
     private static String sAdbHostValue = DEFAULT_ADBHOST_VALUE;
+    private static int sWarmConnectionCount = DEFAULT_WARM_CONNECTION_COUNT;
 
     /**
      * Returns the initial {@link Client} flag for thread updates.
@@ -211,6 +214,24 @@ public final class DdmPreferences {
         sAdbHostValue = adbHostValue;
     }
 
+    /**
+     * Returns the number of idle adb connections kept for each device.
+     * @see AdbConnectionPool
+     */
+    public static int getWarmConnectionCount() {
+        return sWarmConnectionCount;
+    }
+
+    /**
+     * Sets the number of idle adb connections, already bound to the device, kept for each
+     * device which received requests. 0 disables the idle connections.
+     * <p/>This change takes effect for new requests only.
+     * @param count the number of connections.
+     */
+    public static void setWarmConnectionCount(int count) {
+        sWarmConnectionCount = count;
+    }
+
     /**
      * Non accessible constructor.
      */
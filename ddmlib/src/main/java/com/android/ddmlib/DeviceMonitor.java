@@ -26,6 +26,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -35,17 +36,28 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A Device monitor. This connects to the Android Debug Bridge and get device and
  * debuggable process information from it.
  */
 final class DeviceMonitor {
+    /** Time to wait between attempts to connect to adb, in ms. */
+    private static final int CONNECTION_RETRY_DELAY = 1000;
+
+    /** Time to wait before reopening a dropped client, in ms. */
+    private static final int CLIENT_REOPEN_DELAY = 1000;
+
     private byte[] mLengthBuffer = new byte[4];
-    private byte[] mLengthBuffer2 = new byte[4];
 
-    private boolean mQuit = false;
+    private volatile boolean mQuit = false;
+    private final Object mQuitLock = new Object();
 
     private AndroidDebugBridge mServer;
 
@@ -55,7 +67,7 @@ final class DeviceMonitor {
     private int mRestartAttemptCount = 0;
     private boolean mInitialDeviceListDone = false;
 
-    private Selector mSelector;
+    private volatile Selector mSelector;
 
     private final ArrayList<Device> mDevices = new ArrayList<Device>();
 
@@ -63,6 +75,29 @@ final class DeviceMonitor {
 
     private final HashMap<Client, Integer> mClientsToReopen = new HashMap<Client, Integer>();
 
+    /** Devices whose client monitoring socket must be registered with {@link #mSelector}. */
+    private final Queue<Device> mDevicesToRegister = new ConcurrentLinkedQueue<Device>();
+
+    /**
+     * Clients that were dropped and will be reopened, in the order in which they are due.
+     * Only accessed from the client monitor thread.
+     */
+    private final ArrayList<ClientToReopen> mPendingReopens = new ArrayList<ClientToReopen>();
+
+    /**
+     * Executor running the tasks that block on adb, such as querying new devices for their
+     * info, so that they don't delay the monitoring of the other devices.
+     */
+    private final Executor mDeviceTaskExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Device Monitor Task"); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     /**
      * Creates a new {@link DeviceMonitor} object and links it to the running
      * {@link AndroidDebugBridge} object.
@@ -90,7 +125,10 @@ final class DeviceMonitor {
      * Stops the monitoring.
      */
     void stop() {
-        mQuit = true;
+        synchronized (mQuitLock) {
+            mQuit = true;
+            mQuitLock.notifyAll();
+        }
 
         // wakeup the main loop thread by closing the main connection to adb.
         try {
@@ -100,9 +138,10 @@ final class DeviceMonitor {
         } catch (IOException e1) {
         }
 
-        // wake up the secondary loop by closing the selector.
-        if (mSelector != null) {
-            mSelector.wakeup();
+        // wake up the secondary loop.
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
         }
     }
 
@@ -149,7 +188,10 @@ final class DeviceMonitor {
                 mClientsToReopen.put(client, port);
             }
         }
-        mSelector.wakeup();
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
     }
 
     /**
@@ -223,16 +265,11 @@ final class DeviceMonitor {
                 mMainAdbConnection = null;
 
                 // remove all devices from list
-                // because we are going to call mServer.deviceDisconnected which will acquire this
-                // lock we lock it first, so that the AndroidDebugBridge lock is always locked
-                // first.
-                synchronized (AndroidDebugBridge.getLock()) {
-                    synchronized (mDevices) {
-                        for (int n = mDevices.size() - 1; n >= 0; n--) {
-                            Device device = mDevices.get(0);
-                            removeDevice(device);
-                            mServer.deviceDisconnected(device);
-                        }
+                synchronized (mDevices) {
+                    for (int n = mDevices.size() - 1; n >= 0; n--) {
+                        Device device = mDevices.get(0);
+                        removeDevice(device);
+                        mServer.deviceDisconnected(device);
                     }
                 }
             }
@@ -240,12 +277,16 @@ final class DeviceMonitor {
     }
 
     /**
-     * Sleeps for a little bit.
+     * Waits before attempting to connect to adb again, unless the monitor is stopped.
      */
     private void waitABit() {
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e1) {
+        synchronized (mQuitLock) {
+            if (!mQuit) {
+                try {
+                    mQuitLock.wait(CONNECTION_RETRY_DELAY);
+                } catch (InterruptedException e1) {
+                }
+            }
         }
     }
 
@@ -329,106 +370,106 @@ final class DeviceMonitor {
      *  Updates the device list with the new items received from the monitoring service.
      */
     private void updateDevices(ArrayList<Device> newList) {
-        // because we are going to call mServer.deviceDisconnected which will acquire this lock
-        // we lock it first, so that the AndroidDebugBridge lock is always locked first.
-        synchronized (AndroidDebugBridge.getLock()) {
-            // array to store the devices that must be queried for information.
-            // it's important to not do it inside the synchronized loop as this could block
-            // the whole workspace (this lock is acquired during build too).
-            ArrayList<Device> devicesToQuery = new ArrayList<Device>();
-            synchronized (mDevices) {
-                // For each device in the current list, we look for a matching the new list.
-                // * if we find it, we update the current object with whatever new information
-                //   there is
-                //   (mostly state change, if the device becomes ready, we query for build info).
-                //   We also remove the device from the new list to mark it as "processed"
-                // * if we do not find it, we remove it from the current list.
-                // Once this is done, the new list contains device we aren't monitoring yet, so we
-                // add them to the list, and start monitoring them.
-
-                for (int d = 0 ; d < mDevices.size() ;) {
-                    Device device = mDevices.get(d);
-
-                    // look for a similar device in the new list.
-                    int count = newList.size();
-                    boolean foundMatch = false;
-                    for (int dd = 0 ; dd < count ; dd++) {
-                        Device newDevice = newList.get(dd);
-                        // see if it matches in id and serial number.
-                        if (newDevice.getSerialNumber().equals(device.getSerialNumber())) {
-                            foundMatch = true;
-
-                            // update the state if needed.
-                            if (device.getState() != newDevice.getState()) {
-                                device.setState(newDevice.getState());
-                                device.update(Device.CHANGE_STATE);
-
-                                // if the device just got ready/online, we need to start
-                                // monitoring it.
-                                if (device.isOnline()) {
-                                    if (AndroidDebugBridge.getClientSupport()) {
-                                        if (!startMonitoringDevice(device)) {
-                                            Log.e("DeviceMonitor",
-                                                    "Failed to start monitoring "
-                                                    + device.getSerialNumber());
-                                        }
-                                    }
-
-                                    if (device.getPropertyCount() == 0) {
-                                        devicesToQuery.add(device);
-                                    }
+        // arrays to store the devices that must be monitored and queried for information.
+        // it's important to not do it inside the synchronized loop as this blocks on adb, and
+        // would block any call to getDevices().
+        ArrayList<Device> devicesToMonitor = new ArrayList<Device>();
+        ArrayList<Device> devicesToQuery = new ArrayList<Device>();
+        synchronized (mDevices) {
+            // For each device in the current list, we look for a matching the new list.
+            // * if we find it, we update the current object with whatever new information
+            //   there is
+            //   (mostly state change, if the device becomes ready, we query for build info).
+            //   We also remove the device from the new list to mark it as "processed"
+            // * if we do not find it, we remove it from the current list.
+            // Once this is done, the new list contains device we aren't monitoring yet, so we
+            // add them to the list, and start monitoring them.
+
+            for (int d = 0 ; d < mDevices.size() ;) {
+                Device device = mDevices.get(d);
+
+                // look for a similar device in the new list.
+                int count = newList.size();
+                boolean foundMatch = false;
+                for (int dd = 0 ; dd < count ; dd++) {
+                    Device newDevice = newList.get(dd);
+                    // see if it matches in id and serial number.
+                    if (newDevice.getSerialNumber().equals(device.getSerialNumber())) {
+                        foundMatch = true;
+
+                        // update the state if needed.
+                        if (device.getState() != newDevice.getState()) {
+                            device.setState(newDevice.getState());
+                            device.update(Device.CHANGE_STATE);
+
+                            // if the device just got ready/online, we need to start
+                            // monitoring it.
+                            if (device.isOnline()) {
+                                if (AndroidDebugBridge.getClientSupport()) {
+                                    devicesToMonitor.add(device);
                                 }
-                            }
 
-                            // remove the new device from the list since it's been used
-                            newList.remove(dd);
-                            break;
+                                if (device.getPropertyCount() == 0) {
+                                    devicesToQuery.add(device);
+                                }
+                            }
                         }
-                    }
 
-                    if (!foundMatch) {
-                        // the device is gone, we need to remove it, and keep current index
-                        // to process the next one.
-                        removeDevice(device);
-                        mServer.deviceDisconnected(device);
-                    } else {
-                        // process the next one
-                        d++;
+                        // remove the new device from the list since it's been used
+                        newList.remove(dd);
+                        break;
                     }
                 }
 
-                // at this point we should still have some new devices in newList, so we
-                // process them.
-                for (Device newDevice : newList) {
-                    // add them to the list
-                    mDevices.add(newDevice);
-                    mServer.deviceConnected(newDevice);
-
-                    // start monitoring them.
-                    if (AndroidDebugBridge.getClientSupport()) {
-                        if (newDevice.isOnline()) {
-                            startMonitoringDevice(newDevice);
-                        }
-                    }
+                if (!foundMatch) {
+                    // the device is gone, we need to remove it, and keep current index
+                    // to process the next one.
+                    removeDevice(device);
+                    mServer.deviceDisconnected(device);
+                } else {
+                    // process the next one
+                    d++;
+                }
+            }
+
+            // at this point we should still have some new devices in newList, so we
+            // process them.
+            for (Device newDevice : newList) {
+                // add them to the list
+                mDevices.add(newDevice);
+                mServer.deviceConnected(newDevice);
 
-                    // look for their build info.
+                // start monitoring them.
+                if (AndroidDebugBridge.getClientSupport()) {
                     if (newDevice.isOnline()) {
-                        devicesToQuery.add(newDevice);
+                        devicesToMonitor.add(newDevice);
                     }
                 }
+
+                // look for their build info.
+                if (newDevice.isOnline()) {
+                    devicesToQuery.add(newDevice);
+                }
             }
+        }
 
-            // query the new devices for info.
-            for (Device d : devicesToQuery) {
-                queryNewDeviceForInfo(d);
+        for (Device d : devicesToMonitor) {
+            if (!startMonitoringDevice(d)) {
+                Log.e("DeviceMonitor", "Failed to start monitoring " + d.getSerialNumber());
             }
         }
+
+        // query the new devices for info.
+        for (Device d : devicesToQuery) {
+            queryNewDeviceForInfo(d);
+        }
         newList.clear();
     }
 
     private void removeDevice(Device device) {
         device.clearClientList();
         mDevices.remove(device);
+        AdbConnectionPool.closeConnections(device.getSerialNumber());
 
         SocketChannel channel = device.getClientMonitoringSocket();
         if (channel != null) {
@@ -440,12 +481,24 @@ final class DeviceMonitor {
         }
     }
 
+    /**
+     * Queries a device for its build info, in the background.
+     * @param device the device to query.
+     */
+    private void queryNewDeviceForInfo(final Device device) {
+        mDeviceTaskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                doQueryNewDeviceForInfo(device);
+            }
+        });
+    }
+
     /**
      * Queries a device for its build info.
      * @param device the device to query.
      */
-    private void queryNewDeviceForInfo(Device device) {
-        // TODO: do this in a separate thread.
+    private void doQueryNewDeviceForInfo(Device device) {
         try {
             // first get the list of properties.
             device.executeShellCommand(GetPropReceiver.GETPROP_COMMAND,
@@ -517,22 +570,16 @@ final class DeviceMonitor {
             try {
                 boolean result = sendDeviceMonitoringRequest(socketChannel, device);
                 if (result) {
-
-                    if (mSelector == null) {
-                        startDeviceMonitorThread();
-                    }
+                    startDeviceMonitorThread();
 
                     device.setClientMonitoringSocket(socketChannel);
+                    socketChannel.configureBlocking(false);
 
-                    synchronized (mDevices) {
-                        // always wakeup before doing the register. The synchronized block
-                        // ensure that the selector won't select() before the end of this block.
-                        // @see deviceClientMonitorLoop
-                        mSelector.wakeup();
-
-                        socketChannel.configureBlocking(false);
-                        socketChannel.register(mSelector, SelectionKey.OP_READ, device);
-                    }
+                    // the socket is registered by the client monitor thread, as registering
+                    // blocks while the selector is in select().
+                    // @see deviceClientMonitorLoop
+                    mDevicesToRegister.add(device);
+                    mSelector.wakeup();
 
                     return true;
                 }
@@ -572,7 +619,11 @@ final class DeviceMonitor {
         return false;
     }
 
-    private void startDeviceMonitorThread() throws IOException {
+    private synchronized void startDeviceMonitorThread() throws IOException {
+        if (mSelector != null) {
+            return;
+        }
+
         mSelector = Selector.open();
         new Thread("Device Client Monitor") { //$NON-NLS-1$
             @Override
@@ -585,46 +636,21 @@ final class DeviceMonitor {
     private void deviceClientMonitorLoop() {
         do {
             try {
-                // This synchronized block stops us from doing the select() if a new
-                // Device is being added.
-                // @see startMonitoringDevice()
-                synchronized (mDevices) {
+                // wait for incoming data, or until the next client must be reopened.
+                long timeout = 0;
+                if (!mPendingReopens.isEmpty()) {
+                    timeout = Math.max(1,
+                            mPendingReopens.get(0).mTime - System.currentTimeMillis());
                 }
 
-                int count = mSelector.select();
+                int count = mSelector.select(timeout);
 
                 if (mQuit) {
                     return;
                 }
 
-                synchronized (mClientsToReopen) {
-                    if (!mClientsToReopen.isEmpty()) {
-                        Set<Client> clients = mClientsToReopen.keySet();
-                        MonitorThread monitorThread = MonitorThread.getInstance();
-
-                        for (Client client : clients) {
-                            Device device = client.getDeviceImpl();
-                            int pid = client.getClientData().getPid();
-
-                            monitorThread.dropClient(client, false /* notify */);
-
-                            // This is kinda bad, but if we don't wait a bit, the client
-                            // will never answer the second handshake!
-                            waitABit();
-
-                            int port = mClientsToReopen.get(client);
-
-                            if (port == IDebugPortProvider.NO_STATIC_PORT) {
-                                port = getNextDebuggerPort();
-                            }
-                            Log.d("DeviceMonitor", "Reopening " + client);
-                            openClient(device, pid, port, monitorThread);
-                            device.update(Device.CHANGE_CLIENT_LIST);
-                        }
-
-                        mClientsToReopen.clear();
-                    }
-                }
+                registerMonitoredDevices();
+                reopenClients();
 
                 if (count == 0) {
                     continue;
@@ -640,30 +666,19 @@ final class DeviceMonitor {
                     if (key.isValid() && key.isReadable()) {
                         Object attachment = key.attachment();
 
-                        if (attachment instanceof Device) {
-                            Device device = (Device)attachment;
-
-                            SocketChannel socket = device.getClientMonitoringSocket();
-
-                            if (socket != null) {
-                                try {
-                                    int length = readLength(socket, mLengthBuffer2);
-
-                                    processIncomingJdwpData(device, socket, length);
-                                } catch (IOException ioe) {
-                                    Log.d("DeviceMonitor",
-                                            "Error reading jdwp list: " + ioe.getMessage());
-                                    socket.close();
-
-                                    // restart the monitoring of that device
-                                    synchronized (mDevices) {
-                                        if (mDevices.contains(device)) {
-                                            Log.d("DeviceMonitor",
-                                                    "Restarting monitoring service for " + device);
-                                            startMonitoringDevice(device);
-                                        }
-                                    }
-                                }
+                        if (attachment instanceof ClientTracker) {
+                            ClientTracker tracker = (ClientTracker)attachment;
+                            SocketChannel socket = (SocketChannel)key.channel();
+
+                            try {
+                                readJdwpData(tracker, socket);
+                            } catch (IOException ioe) {
+                                Log.d("DeviceMonitor",
+                                        "Error reading jdwp list: " + ioe.getMessage());
+                                socket.close();
+
+                                // restart the monitoring of that device
+                                restartMonitoringDevice(tracker.mDevice);
                             }
                         }
                     }
@@ -675,6 +690,121 @@ final class DeviceMonitor {
         } while (!mQuit);
     }
 
+    /**
+     * Registers the sockets of the devices that started being monitored with the selector.
+     */
+    private void registerMonitoredDevices() {
+        Device device;
+        while ((device = mDevicesToRegister.poll()) != null) {
+            SocketChannel socket = device.getClientMonitoringSocket();
+            if (socket != null) {
+                try {
+                    socket.register(mSelector, SelectionKey.OP_READ, new ClientTracker(device));
+                } catch (ClosedChannelException e) {
+                    // the device was removed in the meantime.
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the clients that must be reopened, and reopens the ones that were dropped long
+     * enough ago.
+     */
+    private void reopenClients() {
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        long now = System.currentTimeMillis();
+
+        synchronized (mClientsToReopen) {
+            for (Map.Entry<Client, Integer> entry : mClientsToReopen.entrySet()) {
+                Client client = entry.getKey();
+                monitorThread.dropClient(client, false /* notify */);
+
+                // if we don't wait a bit, the client will never answer the second handshake!
+                mPendingReopens.add(new ClientToReopen(client, entry.getValue(),
+                        now + CLIENT_REOPEN_DELAY));
+            }
+
+            mClientsToReopen.clear();
+        }
+
+        while (!mPendingReopens.isEmpty() && mPendingReopens.get(0).mTime <= now) {
+            ClientToReopen reopen = mPendingReopens.remove(0);
+            Client client = reopen.mClient;
+            Device device = client.getDeviceImpl();
+            int pid = client.getClientData().getPid();
+
+            int port = reopen.mPort;
+            if (port == IDebugPortProvider.NO_STATIC_PORT) {
+                port = getNextDebuggerPort();
+            }
+            Log.d("DeviceMonitor", "Reopening " + client);
+            openClient(device, pid, port, monitorThread);
+            device.update(Device.CHANGE_CLIENT_LIST);
+        }
+    }
+
+    /**
+     * Restarts the monitoring of a device in the background, if it is still connected.
+     */
+    private void restartMonitoringDevice(final Device device) {
+        mDeviceTaskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean connected;
+                synchronized (mDevices) {
+                    connected = mDevices.contains(device);
+                }
+
+                if (connected && !mQuit) {
+                    Log.d("DeviceMonitor", "Restarting monitoring service for " + device);
+                    startMonitoringDevice(device);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the data available from the socket tracking the debuggable processes of a device,
+     * and processes all the complete messages.
+     * @param tracker the state of the connection.
+     * @param socket the socket to read from.
+     * @throws IOException if the connection failed.
+     */
+    private void readJdwpData(ClientTracker tracker, SocketChannel socket) throws IOException {
+        ByteBuffer buffer = tracker.mBuffer;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                newBuffer.put(buffer);
+                buffer = tracker.mBuffer = newBuffer;
+            }
+
+            int count = socket.read(buffer);
+            if (count < 0) {
+                throw new IOException("EOF");
+            } else if (count == 0) {
+                break;
+            }
+        }
+
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            int length = parseLength(buffer.array(), buffer.position());
+            if (buffer.remaining() < 4 + length) {
+                break;
+            }
+
+            String result = new String(buffer.array(), buffer.position() + 4, length,
+                    AdbHelper.DEFAULT_ENCODING);
+            buffer.position(buffer.position() + 4 + length);
+
+            processIncomingJdwpData(tracker.mDevice, result);
+        }
+        buffer.compact();
+    }
+
     private boolean sendDeviceMonitoringRequest(SocketChannel socket, Device device)
             throws TimeoutException, AdbCommandRejectedException, IOException {
 
@@ -702,70 +832,61 @@ final class DeviceMonitor {
         }
     }
 
-    private void processIncomingJdwpData(Device device, SocketChannel monitorSocket, int length)
-            throws IOException {
+    private void processIncomingJdwpData(Device device, String result) {
 
-        // This methods reads @length bytes from the @monitorSocket channel.
-        // These bytes correspond to the pids of the current set of processes on the device.
+        // This methods takes the content of a message from the jdwp tracking socket.
+        // It contains the pids of the current set of processes on the device.
         // It takes this set of pids and compares them with the existing set of clients
         // for the device. Clients that correspond to pids that are not alive anymore are
         // dropped, and new clients are created for pids that don't have a corresponding Client.
 
-        if (length >= 0) {
-            // array for the current pids.
-            Set<Integer> newPids = new HashSet<Integer>();
-
-            // get the string data if there are any
-            if (length > 0) {
-                byte[] buffer = new byte[length];
-                String result = read(monitorSocket, buffer);
+        // array for the current pids.
+        Set<Integer> newPids = new HashSet<Integer>();
 
-                // split each line in its own list and create an array of integer pid
-                String[] pids = result.split("\n"); //$NON-NLS-1$
+        // split each line in its own list and create an array of integer pid
+        String[] pids = result.split("\n"); //$NON-NLS-1$
 
-                for (String pid : pids) {
-                    try {
-                        newPids.add(Integer.valueOf(pid));
-                    } catch (NumberFormatException nfe) {
-                        // looks like this pid is not really a number. Lets ignore it.
-                        continue;
-                    }
-                }
+        for (String pid : pids) {
+            try {
+                newPids.add(Integer.valueOf(pid));
+            } catch (NumberFormatException nfe) {
+                // looks like this pid is not really a number. Lets ignore it.
+                continue;
             }
+        }
 
-            MonitorThread monitorThread = MonitorThread.getInstance();
+        MonitorThread monitorThread = MonitorThread.getInstance();
 
-            List<Client> clients = device.getClientList();
-            Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
+        List<Client> clients = device.getClientList();
+        Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
 
-            synchronized (clients) {
-                for (Client c : clients) {
-                    existingClients.put(
-                            c.getClientData().getPid(),
-                            c);
-                }
+        synchronized (clients) {
+            for (Client c : clients) {
+                existingClients.put(
+                        c.getClientData().getPid(),
+                        c);
             }
+        }
 
-            Set<Client> clientsToRemove = new HashSet<Client>();
-            for (Integer pid : existingClients.keySet()) {
-                if (!newPids.contains(pid)) {
-                    clientsToRemove.add(existingClients.get(pid));
-                }
+        Set<Client> clientsToRemove = new HashSet<Client>();
+        for (Integer pid : existingClients.keySet()) {
+            if (!newPids.contains(pid)) {
+                clientsToRemove.add(existingClients.get(pid));
             }
+        }
 
-            Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
-            pidsToAdd.removeAll(existingClients.keySet());
+        Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
+        pidsToAdd.removeAll(existingClients.keySet());
 
-            monitorThread.dropClients(clientsToRemove, false);
+        monitorThread.dropClients(clientsToRemove, false);
 
-            // at this point whatever pid is left in the list needs to be converted into Clients.
-            for (int newPid : pidsToAdd) {
-                openClient(device, newPid, getNextDebuggerPort(), monitorThread);
-            }
+        // at this point whatever pid is left in the list needs to be converted into Clients.
+        for (int newPid : pidsToAdd) {
+            openClient(device, newPid, getNextDebuggerPort(), monitorThread);
+        }
 
-            if (!pidsToAdd.isEmpty() || !clientsToRemove.isEmpty()) {
-                mServer.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
-            }
+        if (!pidsToAdd.isEmpty() || !clientsToRemove.isEmpty()) {
+            mServer.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
         }
     }
 
@@ -900,15 +1021,24 @@ final class DeviceMonitor {
      * @throws IOException if the connection failed.
      */
     private int readLength(SocketChannel socket, byte[] buffer) throws IOException {
-        String msg = read(socket, buffer);
+        read(socket, buffer);
+        return parseLength(buffer, 0);
+    }
 
-        if (msg != null) {
-            try {
-                return Integer.parseInt(msg, 16);
-            } catch (NumberFormatException nfe) {
-                // we'll throw an exception below.
-            }
-       }
+    /**
+     * Parses the length of a message, written as 4 hexadecimal digits.
+     * @param buffer the buffer containing the length.
+     * @param offset the offset of the length in the buffer.
+     * @return the length.
+     * @throws IOException if the length is invalid.
+     */
+    private static int parseLength(byte[] buffer, int offset) throws IOException {
+        try {
+            return Integer.parseInt(
+                    new String(buffer, offset, 4, AdbHelper.DEFAULT_ENCODING), 16);
+        } catch (NumberFormatException nfe) {
+            // we'll throw an exception below.
+        }
 
         // we receive something we can't read. It's better to reset the connection at this point.
         throw new IOException("Unable to read length");
@@ -942,4 +1072,31 @@ final class DeviceMonitor {
         return null;
     }
 
+    /**
+     * The state of a connection tracking the debuggable processes of a device. Messages are
+     * accumulated in the buffer until they are complete.
+     */
+    private static final class ClientTracker {
+        final Device mDevice;
+        ByteBuffer mBuffer = ByteBuffer.allocate(1024);
+
+        ClientTracker(Device device) {
+            mDevice = device;
+        }
+    }
+
+    /**
+     * A client that was dropped, and must be reopened at a given time.
+     */
+    private static final class ClientToReopen {
+        final Client mClient;
+        final int mPort;
+        final long mTime;
+
+        ClientToReopen(Client client, int port, long time) {
+            mClient = client;
+            mPort = port;
+            mTime = time;
+        }
+    }
 }
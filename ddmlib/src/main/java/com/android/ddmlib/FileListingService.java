@@ -21,6 +21,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -85,21 +92,45 @@ public final class FileListingService {
     private static final String FILE_ROOT = "/"; //$NON-NLS-1$
 
 
+    private static final Pattern LS_LD_PATTERN = Pattern.compile(
+                    "d[rwx-]{9}\\s+\\S+\\s+\\S+\\s+[0-9-]{10}\\s+\\d{2}:\\d{2}$"); //$NON-NLS-1$
+
     /**
-     * Regexp pattern to parse the result from ls.
+     * Marker echoed between the commands of a batch, followed by the index of the next command,
+     * so that their output can be told apart.
      */
-    private static final Pattern LS_L_PATTERN = Pattern.compile(
-            "^([bcdlsp-][-r][-w][-xsS][-r][-w][-xsS][-r][-w][-xstST])\\s+(\\S+)\\s+(\\S+)\\s+" +
-            "([\\d\\s,]*)\\s+(\\d{4}-\\d\\d-\\d\\d)\\s+(\\d\\d:\\d\\d)\\s+(.*)$"); //$NON-NLS-1$
+    private static final String BATCH_MARKER = "@@ddms:"; //$NON-NLS-1$
 
-    private static final Pattern LS_LD_PATTERN = Pattern.compile(
-                    "d[rwx-]{9}\\s+\\S+\\s+\\S+\\s+[0-9-]{10}\\s+\\d{2}:\\d{2}$"); //$NON-NLS-1$
+    /** Maximum length of the shell command running a batch of commands. */
+    private static final int MAX_BATCH_COMMAND_LENGTH = 1000;
 
+    /**
+     * Executor running the asynchronous listings of all the devices. The listings of a given
+     * device are still run one at a time.
+     */
+    private static final ExecutorService sListingExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "File Listing"); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
-    private Device mDevice;
+    private IDevice mDevice;
     private FileEntry mRoot;
 
-    private ArrayList<Thread> mThreadList = new ArrayList<Thread>();
+    /** The asynchronous listings waiting to be run. */
+    private final ArrayList<PendingListing> mPendingListings = new ArrayList<PendingListing>();
+    private boolean mListingScheduled = false;
+
+    private final Runnable mListingTask = new Runnable() {
+        @Override
+        public void run() {
+            processPendingListings();
+        }
+    };
 
     /**
      * Represents an entry in a directory. This can be a file or a directory.
@@ -145,6 +176,12 @@ public final class FileListingService {
          */
         long fetchTime = 0;
 
+        /**
+         * The time at which the content of the whole tree under the entry was fetched, or 0 if
+         * it wasn't fetched yet, or was invalidated.
+         */
+        long treeFetchTime = 0;
+
         final ArrayList<FileEntry> mChildren = new ArrayList<FileEntry>();
 
         /**
@@ -341,6 +378,14 @@ public final class FileListingService {
 
         }
 
+        boolean needTreeFetch() {
+            if (treeFetchTime == 0) {
+                return true;
+            }
+            long current = System.currentTimeMillis();
+            return current - treeFetchTime > REFRESH_TEST;
+        }
+
         /**
          * Returns if the entry is a valid application package.
          */
@@ -413,6 +458,145 @@ public final class FileListingService {
         }
     }
 
+    /**
+     * A line of the output of <code>ls -l</code>.
+     * <p/>The lines are parsed by hand rather than with a regular expression, since a recursive
+     * listing can have tens of thousands of them.
+     */
+    static final class LsLine {
+        /** The characters allowed for each character of the permission string. */
+        private static final String[] PERMISSION_CHARS = {
+            "bcdlsp-", "-r", "-w", "-xsS", "-r", "-w", "-xsS", "-r", "-w", "-xstST" //$NON-NLS-1$
+        };
+
+        String permissions;
+        String owner;
+        String group;
+        String size;
+        String date;
+        String time;
+        String name;
+
+        /**
+         * Parses a line of the form <code>permissions owner group [size] date time name</code>.
+         * The size is empty for directories, and is "major, minor" for devices.
+         * @return the parsed line, or null if the line doesn't have this format.
+         */
+        static LsLine parse(String line) {
+            int length = line.length();
+            if (length < PERMISSION_CHARS.length) {
+                return null;
+            }
+            for (int i = 0; i < PERMISSION_CHARS.length; i++) {
+                if (PERMISSION_CHARS[i].indexOf(line.charAt(i)) == -1) {
+                    return null;
+                }
+            }
+
+            LsLine result = new LsLine();
+            result.permissions = line.substring(0, PERMISSION_CHARS.length);
+
+            int end = PERMISSION_CHARS.length;
+            int index = skipSpaces(line, end);
+            if (index == end) {
+                return null;
+            }
+            end = skipToken(line, index);
+            result.owner = line.substring(index, end);
+
+            index = skipSpaces(line, end);
+            if (index == end) {
+                return null;
+            }
+            end = skipToken(line, index);
+            result.group = line.substring(index, end);
+
+            index = skipSpaces(line, end);
+            if (index == end) {
+                return null;
+            }
+            int sizeStart = index;
+            while (!(isDate(line, index)
+                    && (index == sizeStart || isSpace(line.charAt(index - 1))))) {
+                if (index == length) {
+                    return null;
+                }
+                char c = line.charAt(index);
+                if ((c < '0' || c > '9') && c != ',' && !isSpace(c)) {
+                    return null;
+                }
+                index++;
+            }
+            result.size = line.substring(sizeStart, index).trim();
+            result.date = line.substring(index, index + 10);
+
+            end = index + 10;
+            index = skipSpaces(line, end);
+            if (index == end || !isTime(line, index)) {
+                return null;
+            }
+            result.time = line.substring(index, index + 5);
+
+            end = index + 5;
+            index = skipSpaces(line, end);
+            if (index == end) {
+                return null;
+            }
+            result.name = line.substring(index);
+
+            return result;
+        }
+
+        private static boolean isSpace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f'
+                    || c == '\r';
+        }
+
+        private static int skipSpaces(String line, int index) {
+            int length = line.length();
+            while (index < length && isSpace(line.charAt(index))) {
+                index++;
+            }
+            return index;
+        }
+
+        private static int skipToken(String line, int index) {
+            int length = line.length();
+            while (index < length && !isSpace(line.charAt(index))) {
+                index++;
+            }
+            return index;
+        }
+
+        /** Returns whether the line has a yyyy-mm-dd date at the given index. */
+        private static boolean isDate(String line, int index) {
+            if (index + 10 > line.length()) {
+                return false;
+            }
+            for (int i = 0; i < 10; i++) {
+                char c = line.charAt(index + i);
+                if (i == 4 || i == 7 ? c != '-' : c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Returns whether the line has a hh:mm time at the given index. */
+        private static boolean isTime(String line, int index) {
+            if (index + 5 > line.length()) {
+                return false;
+            }
+            for (int i = 0; i < 5; i++) {
+                char c = line.charAt(index + i);
+                if (i == 2 ? c != ':' : c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     private static class LsReceiver extends MultiLineReceiver {
 
         private ArrayList<FileEntry> mEntryList;
@@ -441,106 +625,109 @@ public final class FileListingService {
         @Override
         public void processNewLines(String[] lines) {
             for (String line : lines) {
-                // no need to handle empty lines.
-                if (line.isEmpty()) {
-                    continue;
-                }
+                processLine(line);
+            }
+        }
 
-                // run the line through the regexp
-                Matcher m = LS_L_PATTERN.matcher(line);
-                if (!m.matches()) {
-                    continue;
-                }
+        /**
+         * Parses a line of the output of ls, and adds its entry to the list of entries.
+         * @return the entry, or null if the line isn't an entry.
+         */
+        FileEntry processLine(String line) {
+            // no need to handle empty lines.
+            if (line.isEmpty()) {
+                return null;
+            }
 
-                // get the name
-                String name = m.group(7);
-
-                // get the rest of the groups
-                String permissions = m.group(1);
-                String owner = m.group(2);
-                String group = m.group(3);
-                String size = m.group(4);
-                String date = m.group(5);
-                String time = m.group(6);
-                String info = null;
-
-                // and the type
-                int objectType = TYPE_OTHER;
-                switch (permissions.charAt(0)) {
-                    case '-' :
-                        objectType = TYPE_FILE;
-                        break;
-                    case 'b' :
-                        objectType = TYPE_BLOCK;
-                        break;
-                    case 'c' :
-                        objectType = TYPE_CHARACTER;
-                        break;
-                    case 'd' :
-                        objectType = TYPE_DIRECTORY;
-                        break;
-                    case 'l' :
-                        objectType = TYPE_LINK;
-                        break;
-                    case 's' :
-                        objectType = TYPE_SOCKET;
-                        break;
-                    case 'p' :
-                        objectType = TYPE_FIFO;
-                        break;
-                }
+            LsLine lsLine = LsLine.parse(line);
+            if (lsLine == null) {
+                return null;
+            }
 
+            // get the name
+            String name = lsLine.name;
+
+            // get the rest of the fields
+            String permissions = lsLine.permissions;
+            String info = null;
+
+            // and the type
+            int objectType = TYPE_OTHER;
+            switch (permissions.charAt(0)) {
+                case '-' :
+                    objectType = TYPE_FILE;
+                    break;
+                case 'b' :
+                    objectType = TYPE_BLOCK;
+                    break;
+                case 'c' :
+                    objectType = TYPE_CHARACTER;
+                    break;
+                case 'd' :
+                    objectType = TYPE_DIRECTORY;
+                    break;
+                case 'l' :
+                    objectType = TYPE_LINK;
+                    break;
+                case 's' :
+                    objectType = TYPE_SOCKET;
+                    break;
+                case 'p' :
+                    objectType = TYPE_FIFO;
+                    break;
+            }
 
-                // now check what we may be linking to
-                if (objectType == TYPE_LINK) {
-                    String[] segments = name.split("\\s->\\s"); //$NON-NLS-1$
-
-                    // we should have 2 segments
-                    if (segments.length == 2) {
-                        // update the entry name to not contain the link
-                        name = segments[0];
-
-                        // and the link name
-                        info = segments[1];
-
-                        // now get the path to the link
-                        String[] pathSegments = info.split(FILE_SEPARATOR);
-                        if (pathSegments.length == 1) {
-                            // the link is to something in the same directory,
-                            // unless the link is ..
-                            if ("..".equals(pathSegments[0])) { //$NON-NLS-1$
-                                // set the type and we're done.
-                                objectType = TYPE_DIRECTORY_LINK;
-                            } else {
-                                // either we found the object already
-                                // or we'll find it later.
-                            }
+
+            // now check what we may be linking to
+            if (objectType == TYPE_LINK) {
+                String[] segments = name.split("\\s->\\s"); //$NON-NLS-1$
+
+                // we should have 2 segments
+                if (segments.length == 2) {
+                    // update the entry name to not contain the link
+                    name = segments[0];
+
+                    // and the link name
+                    info = segments[1];
+
+                    // now get the path to the link
+                    String[] pathSegments = info.split(FILE_SEPARATOR);
+                    if (pathSegments.length == 1) {
+                        // the link is to something in the same directory,
+                        // unless the link is ..
+                        if ("..".equals(pathSegments[0])) { //$NON-NLS-1$
+                            // set the type and we're done.
+                            objectType = TYPE_DIRECTORY_LINK;
+                        } else {
+                            // either we found the object already
+                            // or we'll find it later.
                         }
                     }
-
-                    // add an arrow in front to specify it's a link.
-                    info = "-> " + info; //$NON-NLS-1$;
                 }
 
-                // get the entry, either from an existing one, or a new one
-                FileEntry entry = getExistingEntry(name);
-                if (entry == null) {
-                    entry = new FileEntry(mParentEntry, name, objectType, false /* isRoot */);
-                }
+                // add an arrow in front to specify it's a link.
+                info = "-> " + info; //$NON-NLS-1$;
+            }
 
-                // add some misc info
-                entry.permissions = permissions;
-                entry.size = size;
-                entry.date = date;
-                entry.time = time;
-                entry.owner = owner;
-                entry.group = group;
-                if (objectType == TYPE_LINK) {
-                    entry.info = info;
-                }
+            // get the entry, either from an existing one, or a new one
+            FileEntry entry = getExistingEntry(name);
+            if (entry == null) {
+                entry = new FileEntry(mParentEntry, name, objectType, false /* isRoot */);
+            }
 
-                mEntryList.add(entry);
+            // add some misc info
+            entry.permissions = permissions;
+            entry.size = lsLine.size;
+            entry.date = lsLine.date;
+            entry.time = lsLine.time;
+            entry.owner = lsLine.owner;
+            entry.group = lsLine.group;
+            if (objectType == TYPE_LINK) {
+                entry.info = info;
             }
+
+            mEntryList.add(entry);
+            return entry;
         }
 
         /**
@@ -577,49 +764,230 @@ public final class FileListingService {
         }
 
         /**
-         * Determine if any symlinks in the <code entries> list are links-to-directories, and if so
-         * mark them as such.  This allows us to traverse them properly later on.
+         * Returns the entry whose content is listed.
          */
-        public void finishLinks(IDevice device, ArrayList<FileEntry> entries)
-                throws TimeoutException, AdbCommandRejectedException,
-                ShellCommandUnresponsiveException, IOException {
-            final int[] nLines = {0};
-            MultiLineReceiver receiver = new MultiLineReceiver() {
-                @Override
-                public void processNewLines(String[] lines) {
-                    for (String line : lines) {
-                        Matcher m = LS_LD_PATTERN.matcher(line);
-                        if (m.matches()) {
-                            nLines[0]++;
-                        }
+        FileEntry getParentEntry() {
+            return mParentEntry;
+        }
+
+        /**
+         * Returns the entries received so far.
+         */
+        ArrayList<FileEntry> getEntryList() {
+            return mEntryList;
+        }
+
+        /**
+         * Sorts the entries received and sets them as the children of the listed entry.
+         */
+        void setChildren() {
+            mParentEntry.fetchTime = System.currentTimeMillis();
+
+            Collections.sort(mEntryList, FileEntry.sEntryComparator);
+            mParentEntry.setChildren(mEntryList);
+        }
+    }
+
+    /**
+     * Receiver for several commands run in a single shell invocation with
+     * {@link FileListingService#executeBatch(IDevice, List, BatchReceiver)}. Each line is given
+     * with the index of the command it comes from.
+     */
+    private abstract static class BatchReceiver extends MultiLineReceiver {
+        private int mOffset;
+        private int mIndex = -1;
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                if (line.startsWith(BATCH_MARKER)) {
+                    try {
+                        mIndex = mOffset + Integer.parseInt(
+                                line.substring(BATCH_MARKER.length()).trim());
+                        continue;
+                    } catch (NumberFormatException e) {
+                        // not a marker after all.
                     }
                 }
-
-                @Override
-                public boolean isCancelled() {
-                    return false;
+                if (mIndex >= 0) {
+                    processLine(mIndex, line);
                 }
-            };
+            }
+        }
 
-            for (FileEntry entry : entries) {
-                if (entry.getType() != TYPE_LINK) continue;
+        /**
+         * Sets the index of the first command of the next shell invocation.
+         */
+        void startBatch(int offset) {
+            mOffset = offset;
+            mIndex = -1;
+        }
 
-                // We simply need to determine whether the referent is a directory or not.
-                // We do this by running `ls -ld ${link}/`.  If the referent exists and is a
-                // directory, we'll see the normal directory listing.  Otherwise, we'll see an
-                // error of some sort.
-                nLines[0] = 0;
+        abstract void processLine(int index, String line);
 
-                final String command = String.format("ls -l -d %s%s", entry.getFullEscapedPath(),
-                        FILE_SEPARATOR);
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
 
-                device.executeShellCommand(command, receiver);
+    /**
+     * Determine if any symlinks in the <code entries> list are links-to-directories, and if so
+     * mark them as such.  This allows us to traverse them properly later on.
+     * <p/>The links are checked with as few shell commands as possible.
+     */
+    private static void finishLinks(IDevice device, List<FileEntry> entries)
+            throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
+        final List<FileEntry> links = new ArrayList<FileEntry>();
+        List<String> commands = new ArrayList<String>();
+        for (FileEntry entry : entries) {
+            if (entry.getType() != TYPE_LINK) continue;
+
+            // We simply need to determine whether the referent is a directory or not.
+            // We do this by running `ls -ld ${link}/`.  If the referent exists and is a
+            // directory, we'll see the normal directory listing.  Otherwise, we'll see an
+            // error of some sort.
+            links.add(entry);
+            commands.add(String.format("ls -l -d %s%s", entry.getFullEscapedPath(), //$NON-NLS-1$
+                    FILE_SEPARATOR));
+        }
 
-                if (nLines[0] > 0) {
+        if (links.isEmpty()) {
+            return;
+        }
+
+        executeBatch(device, commands, new BatchReceiver() {
+            @Override
+            void processLine(int index, String line) {
+                Matcher m = LS_LD_PATTERN.matcher(line);
+                if (m.matches() && index < links.size()) {
                     // We saw lines matching the directory pattern, so it's a directory!
-                    entry.setType(TYPE_DIRECTORY_LINK);
+                    links.get(index).setType(TYPE_DIRECTORY_LINK);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs several shell commands, with as few shell invocations as possible.
+     * @param device the device running the commands.
+     * @param commands the commands.
+     * @param receiver the receiver of the output of all the commands.
+     */
+    private static void executeBatch(IDevice device, List<String> commands,
+            BatchReceiver receiver) throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
+        int start = 0;
+        while (start < commands.size()) {
+            StringBuilder batch = new StringBuilder();
+            int end = start;
+            while (end < commands.size()) {
+                String command = "echo " + BATCH_MARKER + (end - start) + "; " //$NON-NLS-1$ //$NON-NLS-2$
+                        + commands.get(end);
+                if (end > start
+                        && batch.length() + command.length() + 2 > MAX_BATCH_COMMAND_LENGTH) {
+                    break;
+                }
+                if (end > start) {
+                    batch.append("; "); //$NON-NLS-1$
+                }
+                batch.append(command);
+                end++;
+            }
+
+            receiver.startBatch(start);
+            device.executeShellCommand(batch.toString(), receiver);
+            start = end;
+        }
+    }
+
+    /**
+     * Receiver parsing the output of <code>ls -l -R</code>, which lists the content of each
+     * directory after a line with the path of the directory.
+     */
+    private static class RecursiveLsReceiver extends MultiLineReceiver {
+        /** The directories of the listed tree, by path. */
+        private final HashMap<String, FileEntry> mDirectories = new HashMap<String, FileEntry>();
+        /** The receivers of the directories listed so far. */
+        private final LinkedHashMap<FileEntry, LsReceiver> mReceivers =
+                new LinkedHashMap<FileEntry, LsReceiver>();
+
+        private LsReceiver mCurrentReceiver;
+
+        RecursiveLsReceiver(FileEntry entry) {
+            mDirectories.put(entry.getFullPath(), entry);
+
+            // the first directory doesn't always have a path line.
+            mCurrentReceiver = getReceiver(entry);
+        }
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                if (line.startsWith(FILE_SEPARATOR) && line.endsWith(":")) { //$NON-NLS-1$
+                    FileEntry directory = mDirectories.get(
+                            normalizePath(line.substring(0, line.length() - 1)));
+                    mCurrentReceiver = directory != null ? getReceiver(directory) : null;
+                } else if (mCurrentReceiver != null) {
+                    FileEntry entry = mCurrentReceiver.processLine(line);
+                    if (entry != null && entry.getType() == TYPE_DIRECTORY) {
+                        mDirectories.put(entry.getFullPath(), entry);
+                    }
+                }
+            }
+        }
+
+        private LsReceiver getReceiver(FileEntry directory) {
+            LsReceiver receiver = mReceivers.get(directory);
+            if (receiver == null) {
+                receiver = new LsReceiver(directory, new ArrayList<FileEntry>(),
+                        new ArrayList<String>());
+                mReceivers.put(directory, receiver);
+            }
+            return receiver;
+        }
+
+        /**
+         * Returns the receivers of all the directories which were listed.
+         */
+        Iterable<LsReceiver> getReceivers() {
+            return mReceivers.values();
+        }
+
+        /**
+         * Removes the duplicate and trailing separators of a path.
+         */
+        private static String normalizePath(String path) {
+            StringBuilder sb = new StringBuilder(path.length());
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                if (c != '/' || sb.length() == 0 || sb.charAt(sb.length() - 1) != '/') {
+                    sb.append(c);
                 }
             }
+            if (sb.length() > 1 && sb.charAt(sb.length() - 1) == '/') {
+                sb.setLength(sb.length() - 1);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * An asynchronous listing waiting to be run.
+     */
+    private static final class PendingListing {
+        final FileEntry entry;
+        final IListingReceiver receiver;
+
+        PendingListing(FileEntry entry, IListingReceiver receiver) {
+            this.entry = entry;
+            this.receiver = receiver;
         }
     }
 
@@ -639,7 +1007,7 @@ public final class FileListingService {
      * Creates a File Listing Service for a specified {@link Device}.
      * @param device The Device the service is connected to.
      */
-    FileListingService(Device device) {
+    FileListingService(IDevice device) {
         mDevice = device;
     }
 
@@ -668,8 +1036,10 @@ public final class FileListingService {
      * <p/>
      * If <var>receiver</var> is <code>null</code>, the device side <code>ls</code>
      * command is done synchronously, and the method will return upon completion of the command.<br>
-     * If <var>receiver</var> is non <code>null</code>, the command is launched is a separate
-     * thread and upon completion, the receiver will be notified of the result.
+     * If <var>receiver</var> is non <code>null</code>, the command is run on a shared thread
+     * pool and upon completion, the receiver will be notified of the result. The asynchronous
+     * listings requested while another one is running on the same device are done together
+     * in a single shell command.
      * <p/>
      * The result for each <code>ls</code> command is cached in the parent
      * <code>FileEntry</code>. <var>useCache</var> allows usage of this cache, but only if the
@@ -702,80 +1072,14 @@ public final class FileListingService {
         }
 
         // this is a asynchronous call.
-        // we launch a thread that will do ls and give the listing
-        // to the receiver
-        Thread t = new Thread("ls " + entry.getFullPath()) { //$NON-NLS-1$
-            @Override
-            public void run() {
-                doLs(entry);
-
-                receiver.setChildren(entry, entry.getCachedChildren());
-
-                final FileEntry[] children = entry.getCachedChildren();
-                if (children.length > 0 && children[0].isApplicationPackage()) {
-                    final HashMap<String, FileEntry> map = new HashMap<String, FileEntry>();
-
-                    for (FileEntry child : children) {
-                        String path = child.getFullPath();
-                        map.put(path, child);
-                    }
-
-                    // call pm.
-                    String command = PM_FULL_LISTING;
-                    try {
-                        mDevice.executeShellCommand(command, new MultiLineReceiver() {
-                            @Override
-                            public void processNewLines(String[] lines) {
-                                for (String line : lines) {
-                                    if (!line.isEmpty()) {
-                                        // get the filepath and package from the line
-                                        Matcher m = sPmPattern.matcher(line);
-                                        if (m.matches()) {
-                                            // get the children with that path
-                                            FileEntry entry = map.get(m.group(1));
-                                            if (entry != null) {
-                                                entry.info = m.group(2);
-                                                receiver.refreshEntry(entry);
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                            @Override
-                            public boolean isCancelled() {
-                                return false;
-                            }
-                        });
-                    } catch (Exception e) {
-                        // adb failed somehow, we do nothing.
-                    }
-                }
-
-
-                // if another thread is pending, launch it
-                synchronized (mThreadList) {
-                    // first remove ourselves from the list
-                    mThreadList.remove(this);
-
-                    // then launch the next one if applicable.
-                    if (!mThreadList.isEmpty()) {
-                        Thread t = mThreadList.get(0);
-                        t.start();
-                    }
-                }
-            }
-        };
-
-        // we don't want to run multiple ls on the device at the same time, so we
-        // store the thread in a list and launch it only if there's no other thread running.
-        // the thread will launch the next one once it's done.
-        synchronized (mThreadList) {
-            // add to the list
-            mThreadList.add(t);
-
-            // if it's the only one, launch it.
-            if (mThreadList.size() == 1) {
-                t.start();
+        // we don't want to run multiple ls on the device at the same time, so the listing is
+        // queued, and a single task runs the queued listings of this device.
+        synchronized (mPendingListings) {
+            mPendingListings.add(new PendingListing(entry, receiver));
+
+            if (!mListingScheduled) {
+                mListingScheduled = true;
+                sListingExecutor.execute(mListingTask);
             }
         }
 
@@ -801,27 +1105,104 @@ public final class FileListingService {
      */
     public FileEntry[] getChildrenSync(final FileEntry entry) throws TimeoutException,
             AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
-        doLsAndThrow(entry);
+        doLsAndThrow(Collections.singletonList(entry));
         return entry.getCachedChildren();
     }
 
+    /**
+     * Returns the children of a {@link FileEntry}, after fetching the whole tree under it.
+     * <p/>
+     * The tree is listed with a single <code>ls -R</code> command, and the children of all the
+     * directories in the tree are cached, so that they can then be accessed with
+     * {@link FileEntry#getCachedChildren()} or {@link #getChildren(FileEntry, boolean, IListingReceiver)}
+     * without running other commands. Links to directories are not followed.
+     * <p/>
+     * <var>useCache</var> allows usage of the tree fetched by a previous call, but only if it is
+     * more recent than {@link FileListingService#REFRESH_RATE} ms, and it was not invalidated
+     * with {@link #invalidate(FileEntry)}.
+     *
+     * @param entry The parent entry.
+     * @param useCache A flag to use the cache or to force a new ls command.
+     * @return The list of children
+     * @throws TimeoutException in case of timeout on the connection when sending the command.
+     * @throws AdbCommandRejectedException if adb rejects the command.
+     * @throws ShellCommandUnresponsiveException in case the shell command doesn't send any output
+     *            for a period longer than <var>maxTimeToOutputResponse</var>.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    public FileEntry[] getChildrenRecursive(FileEntry entry, boolean useCache)
+            throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
+        if (useCache && !entry.needTreeFetch()) {
+            return entry.getCachedChildren();
+        }
+
+        RecursiveLsReceiver receiver = new RecursiveLsReceiver(entry);
+        try {
+            String command = "ls -l -R " + entry.getFullEscapedPath() //$NON-NLS-1$
+                    + FILE_SEPARATOR;
+            mDevice.executeShellCommand(command, receiver);
+
+            // finish the process of the receiver to handle links
+            ArrayList<FileEntry> entries = new ArrayList<FileEntry>();
+            for (LsReceiver lsReceiver : receiver.getReceivers()) {
+                entries.addAll(lsReceiver.getEntryList());
+            }
+            finishLinks(mDevice, entries);
+        } finally {
+            for (LsReceiver lsReceiver : receiver.getReceivers()) {
+                lsReceiver.setChildren();
+            }
+        }
+
+        // the trees are only cached if the whole listing succeeded.
+        for (LsReceiver lsReceiver : receiver.getReceivers()) {
+            FileEntry directory = lsReceiver.getParentEntry();
+            directory.treeFetchTime = directory.fetchTime;
+        }
+
+        return entry.getCachedChildren();
+    }
+
+    /**
+     * Invalidates the cached children of an entry, for instance after files were added to it or
+     * removed from it. The next listing of the entry, or of the trees containing it, will run a
+     * new <code>ls</code> command even if the cache is requested.
+     * @param entry the entry whose content changed.
+     */
+    public void invalidate(FileEntry entry) {
+        entry.fetchTime = 0;
+        for (FileEntry e = entry; e != null; e = e.parent) {
+            e.treeFetchTime = 0;
+        }
+    }
+
     private void doLs(FileEntry entry) {
+        doLs(Collections.singletonList(entry));
+    }
+
+    private void doLs(List<FileEntry> entries) {
         try {
-            doLsAndThrow(entry);
+            doLsAndThrow(entries);
         } catch (Exception e) {
             // do nothing
         }
     }
 
-    private void doLsAndThrow(FileEntry entry) throws TimeoutException,
+    /**
+     * Lists the content of several entries, with as few shell commands as possible.
+     */
+    private void doLsAndThrow(List<FileEntry> entries) throws TimeoutException,
             AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
-        // create a list that will receive the list of the entries
-        ArrayList<FileEntry> entryList = new ArrayList<FileEntry>();
+        // create the receiver objects that will parse the result from ls
+        final List<LsReceiver> receivers = new ArrayList<LsReceiver>(entries.size());
+        List<String> commands = new ArrayList<String>(entries.size());
+        for (FileEntry entry : entries) {
+            // create a list that will receive the list of the entries, and a list that will
+            // receive the link to compute post ls.
+            receivers.add(new LsReceiver(entry, new ArrayList<FileEntry>(),
+                    new ArrayList<String>()));
 
-        // create a list that will receive the link to compute post ls;
-        ArrayList<String> linkList = new ArrayList<String>();
-
-        try {
             // create the command
             String command = "ls -l " + entry.getFullEscapedPath(); //$NON-NLS-1$
             if (entry.isDirectory()) {
@@ -830,22 +1211,123 @@ public final class FileListingService {
                 // otherwise behave like symlinks.
                 command += FILE_SEPARATOR;
             }
+            commands.add(command);
+        }
 
-            // create the receiver object that will parse the result from ls
-            LsReceiver receiver = new LsReceiver(entry, entryList, linkList);
-
+        try {
             // call ls.
-            mDevice.executeShellCommand(command, receiver);
+            if (receivers.size() == 1) {
+                mDevice.executeShellCommand(commands.get(0), receivers.get(0));
+            } else {
+                executeBatch(mDevice, commands, new BatchReceiver() {
+                    @Override
+                    void processLine(int index, String line) {
+                        if (index < receivers.size()) {
+                            receivers.get(index).processLine(line);
+                        }
+                    }
+                });
+            }
 
-            // finish the process of the receiver to handle links
-            receiver.finishLinks(mDevice, entryList);
+            // finish the process of the receivers to handle links
+            ArrayList<FileEntry> newEntries = new ArrayList<FileEntry>();
+            for (LsReceiver receiver : receivers) {
+                newEntries.addAll(receiver.getEntryList());
+            }
+            finishLinks(mDevice, newEntries);
         } finally {
-            // at this point we need to refresh the viewer
-            entry.fetchTime = System.currentTimeMillis();
+            // at this point we need to refresh the viewer: sort the children and set them
+            // as the new children
+            for (LsReceiver receiver : receivers) {
+                receiver.setChildren();
+            }
+        }
+    }
 
-            // sort the children and set them as the new children
-            Collections.sort(entryList, FileEntry.sEntryComparator);
-            entry.setChildren(entryList);
+    /**
+     * Runs the asynchronous listings queued so far, together, and reschedules itself if more
+     * listings were queued in the meantime.
+     */
+    private void processPendingListings() {
+        List<PendingListing> listings;
+        synchronized (mPendingListings) {
+            listings = new ArrayList<PendingListing>(mPendingListings);
+            mPendingListings.clear();
+        }
+
+        try {
+            LinkedHashSet<FileEntry> entries = new LinkedHashSet<FileEntry>();
+            for (PendingListing listing : listings) {
+                entries.add(listing.entry);
+            }
+            doLs(new ArrayList<FileEntry>(entries));
+
+            final Map<String, FileEntry> packages = new HashMap<String, FileEntry>();
+            for (PendingListing listing : listings) {
+                FileEntry[] children = listing.entry.getCachedChildren();
+                listing.receiver.setChildren(listing.entry, children);
+
+                if (children.length > 0 && children[0].isApplicationPackage()) {
+                    for (FileEntry child : children) {
+                        packages.put(child.getFullPath(), child);
+                    }
+                }
+            }
+
+            if (!packages.isEmpty()) {
+                getPackageInfo(packages, listings);
+            }
+        } finally {
+            // if other listings are pending, run them
+            synchronized (mPendingListings) {
+                if (mPendingListings.isEmpty()) {
+                    mListingScheduled = false;
+                } else {
+                    sListingExecutor.execute(mListingTask);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the application package of the package files, as returned by the package manager.
+     * @param packages the package files, by path.
+     * @param listings the listings whose receivers must be notified of the packages.
+     */
+    private void getPackageInfo(final Map<String, FileEntry> packages,
+            final List<PendingListing> listings) {
+        // call pm.
+        String command = PM_FULL_LISTING;
+        try {
+            mDevice.executeShellCommand(command, new MultiLineReceiver() {
+                @Override
+                public void processNewLines(String[] lines) {
+                    for (String line : lines) {
+                        if (!line.isEmpty()) {
+                            // get the filepath and package from the line
+                            Matcher m = sPmPattern.matcher(line);
+                            if (m.matches()) {
+                                // get the children with that path
+                                FileEntry entry = packages.get(m.group(1));
+                                if (entry != null) {
+                                    entry.info = m.group(2);
+                                    for (PendingListing listing : listings) {
+                                        if (listing.entry == entry.parent) {
+                                            listing.receiver.refreshEntry(entry);
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            });
+        } catch (Exception e) {
+            // adb failed somehow, we do nothing.
         }
     }
 
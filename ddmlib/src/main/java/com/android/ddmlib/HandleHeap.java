@@ -17,8 +17,10 @@
 package com.android.ddmlib;
 
 import com.android.ddmlib.ClientData.AllocationTrackingStatus;
+import com.android.ddmlib.ClientData.IHprofDumpFileHandler;
 import com.android.ddmlib.ClientData.IHprofDumpHandler;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
@@ -56,6 +58,21 @@ final class HandleHeap extends ChunkHandler {
 
     private HandleHeap() {}
 
+    @Override
+    boolean isStreamedChunk(int type) {
+        return type == CHUNK_HPDS
+                && ClientData.getHprofDumpHandler() instanceof IHprofDumpFileHandler;
+    }
+
+    @Override
+    void handleStreamedChunk(Client client, int type, File file) {
+        if (type == CHUNK_HPDS) {
+            handleStreamedHPDS(client, file);
+        } else if (file != null) {
+            file.delete();
+        }
+    }
+
     /**
      * Register for the packets we expect to get from the client.
      */
@@ -306,7 +323,9 @@ final class HandleHeap extends ChunkHandler {
      */
     private void handleHPDS(Client client, ByteBuffer data) {
         IHprofDumpHandler handler = ClientData.getHprofDumpHandler();
-        if (handler != null) {
+        if (handler instanceof IHprofDumpFileHandler) {
+            handleStreamedHPDS(client, StreamedChunk.writeToFile(CHUNK_HPDS, data));
+        } else if (handler != null) {
             byte[] stuff = new byte[data.capacity()];
             data.get(stuff, 0, stuff.length);
 
@@ -316,6 +335,25 @@ final class HandleHeap extends ChunkHandler {
         }
     }
 
+    /*
+     * Handle HeaP Dump Streaming response written to a file as it was
+     * received.
+     */
+    private void handleStreamedHPDS(Client client, File file) {
+        IHprofDumpHandler handler = ClientData.getHprofDumpHandler();
+        if (!(handler instanceof IHprofDumpFileHandler)) {
+            // the handler was changed while the dump was received.
+            if (file != null) {
+                file.delete();
+            }
+        } else if (file != null) {
+            Log.d("ddm-hprof", "got hprof file, size: " + file.length() + " bytes");
+            ((IHprofDumpFileHandler) handler).onSuccess(file, client);
+        } else {
+            handler.onEndFailure(client, "Failed to write the heap dump to a file");
+        }
+    }
+
     /**
      * Sends a REAE (REcent Allocation Enable) request to the client.
      */
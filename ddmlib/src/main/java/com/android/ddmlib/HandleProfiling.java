@@ -16,9 +16,11 @@
 
 package com.android.ddmlib;
 
+import com.android.ddmlib.ClientData.IMethodProfilingFileHandler;
 import com.android.ddmlib.ClientData.IMethodProfilingHandler;
 import com.android.ddmlib.ClientData.MethodProfilingStatus;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
@@ -41,6 +43,21 @@ final class HandleProfiling extends ChunkHandler {
 
     private HandleProfiling() {}
 
+    @Override
+    boolean isStreamedChunk(int type) {
+        return type == CHUNK_MPSE
+                && ClientData.getMethodProfilingHandler() instanceof IMethodProfilingFileHandler;
+    }
+
+    @Override
+    void handleStreamedChunk(Client client, int type, File file) {
+        if (type == CHUNK_MPSE) {
+            handleStreamedMPSE(client, file);
+        } else if (file != null) {
+            file.delete();
+        }
+    }
+
     /**
      * Register for the packets we expect to get from the client.
      */
@@ -261,6 +278,11 @@ final class HandleProfiling extends ChunkHandler {
      */
     private void handleMPSE(Client client, ByteBuffer data) {
         IMethodProfilingHandler handler = ClientData.getMethodProfilingHandler();
+        if (handler instanceof IMethodProfilingFileHandler) {
+            handleStreamedMPSE(client, StreamedChunk.writeToFile(CHUNK_MPSE, data));
+            return;
+        }
+
         if (handler != null) {
             byte[] stuff = new byte[data.capacity()];
             data.get(stuff, 0, stuff.length);
@@ -274,6 +296,27 @@ final class HandleProfiling extends ChunkHandler {
         client.update(Client.CHANGE_METHOD_PROFILING_STATUS);
     }
 
+    /**
+     * Handle incoming profiling data written to a file as it was received.
+     */
+    private void handleStreamedMPSE(Client client, File file) {
+        IMethodProfilingHandler handler = ClientData.getMethodProfilingHandler();
+        if (!(handler instanceof IMethodProfilingFileHandler)) {
+            // the handler was changed while the trace was received.
+            if (file != null) {
+                file.delete();
+            }
+        } else if (file != null) {
+            Log.d("ddm-prof", "got trace file, size: " + file.length() + " bytes");
+            ((IMethodProfilingFileHandler) handler).onSuccess(file, client);
+        } else {
+            handler.onEndFailure(client, "Failed to write the trace to a file");
+        }
+
+        client.getClientData().setMethodProfilingStatus(MethodProfilingStatus.OFF);
+        client.update(Client.CHANGE_METHOD_PROFILING_STATUS);
+    }
+
     /**
      * Send a MPRQ (Method PRofiling Query) request to the client.
      */
@@ -17,10 +17,13 @@
 
 package com.android.ddmlib;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A JDWP packet, sitting at the start of a ByteBuffer somewhere.
@@ -61,7 +64,17 @@ final class JdwpPacket {
     private int mLength, mId, mFlags, mCmdSet, mCmd, mErrCode;
     private boolean mIsNew;
 
-    private static int sSerialId = 0x40000000;
+    private static final AtomicInteger sSerialId = new AtomicInteger(0x40000000);
+
+    /*
+     * The packets we send are small, so their buffers come from a pool
+     * of direct buffers.  Direct buffers are written to the channels
+     * without being copied first.
+     */
+    @VisibleForTesting
+    static final int POOLED_BUFFER_SIZE = 256;
+    private static final ByteBufferPool sBufferPool =
+        new ByteBufferPool(POOLED_BUFFER_SIZE, ChunkHandler.CHUNK_ORDER, 64);
 
 
     /**
@@ -111,11 +124,42 @@ final class JdwpPacket {
      * Get the next serial number.  This creates a unique serial number
      * across all connections, not just for the current connection.  This
      * is a useful property when debugging, but isn't necessary.
+     */
+    private static int getNextSerial() {
+        return sSerialId.getAndIncrement();
+    }
+
+    /**
+     * Allocate a buffer for a new packet of "length" bytes.  The buffer
+     * comes from a pool if the packet is small enough, and is given back
+     * by release() once the packet has been sent.
+     *
+     * The buffer's limit is set to "length".
+     */
+    static ByteBuffer allocBuffer(int length) {
+        ByteBuffer buf;
+        if (length <= POOLED_BUFFER_SIZE) {
+            buf = sBufferPool.acquire();
+            buf.limit(length);
+        } else {
+            buf = ByteBuffer.allocate(length);
+        }
+        buf.order(ChunkHandler.CHUNK_ORDER);
+        return buf;
+    }
+
+    /**
+     * Give the buffer of a packet created with allocBuffer() back to the
+     * pool, once the packet has been sent.  The packet must not be used
+     * afterward.
      *
-     * We can't synchronize on an int, so we use a sync method.
+     * Packets sitting in a read buffer are left alone, as these buffers are
+     * never direct.
      */
-    private static synchronized int getNextSerial() {
-        return sSerialId++;
+    void release() {
+        if (mBuffer.isDirect() && mBuffer.capacity() == POOLED_BUFFER_SIZE) {
+            sBufferPool.release(mBuffer);
+        }
     }
 
     /**
@@ -324,6 +368,32 @@ final class JdwpPacket {
         return pkt;
     }
 
+    /**
+     * Return the type of the first chunk of the packet at the start of
+     * the buffer, if it's a DDM command packet and its chunk header has
+     * been received, or 0 otherwise.
+     *
+     * Unlike findPacket(), this doesn't need the whole packet.
+     */
+    static int findChunkType(ByteBuffer buf) {
+        if (buf.position() < JDWP_HEADER_LEN + ChunkHandler.CHUNK_HEADER_LEN)
+            return 0;
+
+        ByteOrder oldOrder = buf.order();
+        buf.order(ChunkHandler.CHUNK_ORDER);
+
+        int flags = buf.get(0x08) & 0xff;
+        int cmdSet = buf.get(0x09) & 0xff;
+        int cmd = buf.get(0x0a) & 0xff;
+        int type = buf.getInt(JDWP_HEADER_LEN);
+
+        buf.order(oldOrder);
+
+        if ((flags & REPLY_PACKET) != 0 || cmdSet != DDMS_CMD_SET || cmd != DDMS_CMD)
+            return 0;
+        return type;
+    }
+
     /**
      * Like findPacket(), but when we're expecting the JDWP handshake.
      *
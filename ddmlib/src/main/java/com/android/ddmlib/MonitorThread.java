@@ -312,40 +312,15 @@ final class MonitorThread extends Thread {
 
             /*
              * See if we have a full packet in the buffer. It's possible we have
-             * more than one packet, so we have to loop.
+             * more than one packet, so we have to loop. The changes made by
+             * the handlers are sent to the listeners once all the packets have
+             * been handled.
              */
-            JdwpPacket packet = client.getJdwpPacket();
-            while (packet != null) {
-                if (packet.isDdmPacket()) {
-                    // unsolicited DDM request - hand it off
-                    assert !packet.isReply();
-                    callHandler(client, packet, null);
-                    packet.consume();
-                } else if (packet.isReply()
-                        && client.isResponseToUs(packet.getId()) != null) {
-                    // reply to earlier DDM request
-                    ChunkHandler handler = client
-                            .isResponseToUs(packet.getId());
-                    if (packet.isError())
-                        client.packetFailed(packet);
-                    else if (packet.isEmpty())
-                        Log.d("ddms", "Got empty reply for 0x"
-                                + Integer.toHexString(packet.getId())
-                                + " from " + client);
-                    else
-                        callHandler(client, packet, handler);
-                    packet.consume();
-                    client.removeRequestId(packet.getId());
-                } else {
-                    Log.v("ddms", "Forwarding client "
-                            + (packet.isReply() ? "reply" : "event") + " 0x"
-                            + Integer.toHexString(packet.getId()) + " to "
-                            + client.getDebugger());
-                    client.forwardPacketToDebugger(packet);
-                }
-
-                // find next
-                packet = client.getJdwpPacket();
+            client.startUpdateBatch();
+            try {
+                dispatchPackets(client);
+            } finally {
+                client.endUpdateBatch();
             }
         } catch (CancelledKeyException e) {
             // key was canceled probably due to a disconnected client before we could
@@ -371,6 +346,54 @@ final class MonitorThread extends Thread {
         }
     }
 
+    /*
+     * Handle all the full packets in the buffer of a client.
+     */
+    private void dispatchPackets(Client client) throws IOException {
+        JdwpPacket packet = client.getJdwpPacket();
+        while (packet != null) {
+            if (packet.isDdmPacket()) {
+                // unsolicited DDM request - hand it off
+                assert !packet.isReply();
+                callHandler(client, packet, null);
+                packet.consume();
+            } else if (packet.isReply()
+                    && client.isResponseToUs(packet.getId()) != null) {
+                // reply to earlier DDM request
+                ChunkHandler handler = client
+                        .isResponseToUs(packet.getId());
+                if (packet.isError())
+                    client.packetFailed(packet);
+                else if (packet.isEmpty())
+                    Log.d("ddms", "Got empty reply for 0x"
+                            + Integer.toHexString(packet.getId())
+                            + " from " + client);
+                else
+                    callHandler(client, packet, handler);
+                packet.consume();
+                client.removeRequestId(packet.getId());
+            } else {
+                Log.v("ddms", "Forwarding client "
+                        + (packet.isReply() ? "reply" : "event") + " 0x"
+                        + Integer.toHexString(packet.getId()) + " to "
+                        + client.getDebugger());
+                client.forwardPacketToDebugger(packet);
+            }
+
+            // find next
+            packet = client.getJdwpPacket();
+        }
+    }
+
+    /**
+     * Returns the handler registered for a chunk type, or null if there is none.
+     */
+    ChunkHandler getChunkHandler(int type) {
+        synchronized (mHandlerMap) {
+            return mHandlerMap.get(type);
+        }
+    }
+
     /*
      * Process an incoming DDM packet. If this is a reply to an earlier request,
      * "handler" will be set to the handler responsible for the original
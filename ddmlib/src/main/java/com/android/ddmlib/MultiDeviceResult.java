@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pending results of an operation running on several devices at once, such as
+ * {@link AndroidDebugBridge#installPackage(java.util.Collection, String, boolean, String...)}.
+ * <p/>Each device has its own {@link Future}. The results can also be collected for all the
+ * devices once they are done, with {@link #getResults()} and {@link #getFailures()}.
+ *
+ * @param <T> the type of the result of the operation on each device.
+ */
+public final class MultiDeviceResult<T> {
+
+    private final Map<IDevice, Future<T>> mFutures;
+
+    MultiDeviceResult(@NonNull Map<IDevice, ? extends Future<T>> futures) {
+        mFutures = Collections.unmodifiableMap(new LinkedHashMap<IDevice, Future<T>>(futures));
+    }
+
+    /**
+     * Returns the {@link Future} of the operation on each device, in the order the devices
+     * were given.
+     */
+    @NonNull
+    public Map<IDevice, Future<T>> getFutures() {
+        return mFutures;
+    }
+
+    /**
+     * Waits until the operation is done on all the devices, or until the timeout expires.
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return true if the operation is done on all the devices, false if the timeout expired.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    public boolean await(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Future<T> future : mFutures.values()) {
+            long remaining = deadline - System.nanoTime();
+            try {
+                future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException ignored) {
+                // reported by getFailures()
+            } catch (CancellationException ignored) {
+                // reported by getFailures()
+            } catch (java.util.concurrent.TimeoutException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the operation on the devices where it is not done yet.
+     */
+    public void cancel() {
+        for (Future<T> future : mFutures.values()) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Returns whether the operation is done on all the devices, whether it succeeded, failed
+     * or was cancelled.
+     */
+    public boolean isDone() {
+        for (Future<T> future : mFutures.values()) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the results of the devices on which the operation succeeded so far.
+     */
+    @NonNull
+    public Map<IDevice, T> getResults() {
+        Map<IDevice, T> results = new LinkedHashMap<IDevice, T>();
+        for (Map.Entry<IDevice, Future<T>> entry : mFutures.entrySet()) {
+            Future<T> future = entry.getValue();
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    results.put(entry.getKey(), future.get());
+                } catch (ExecutionException ignored) {
+                    // reported by getFailures()
+                } catch (InterruptedException e) {
+                    // can't happen since the future is done.
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the errors of the devices on which the operation failed so far. Devices on which
+     * the operation was cancelled have a {@link CancellationException}.
+     */
+    @NonNull
+    public Map<IDevice, Throwable> getFailures() {
+        Map<IDevice, Throwable> failures = new LinkedHashMap<IDevice, Throwable>();
+        for (Map.Entry<IDevice, Future<T>> entry : mFutures.entrySet()) {
+            Future<T> future = entry.getValue();
+            if (future.isDone()) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failures.put(entry.getKey(), e.getCause());
+                } catch (CancellationException e) {
+                    failures.put(entry.getKey(), e);
+                } catch (InterruptedException e) {
+                    // can't happen since the future is done.
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return failures;
+    }
+}
@@ -16,6 +16,11 @@
 
 package com.android.ddmlib;
 
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.nio.ByteBuffer;
 
 /**
@@ -196,6 +201,123 @@ public final class RawImage {
         return a << 24 | r << 16 | g << 8 | b;
     }
 
+    /**
+     * Converts all the pixels of the image to ARGB values, as returned by {@link #getARGB(int)}.
+     * <p/>This is much faster than calling {@link #getARGB(int)} for each pixel, especially for
+     * the common RGBA_8888, BGRA_8888 and RGB_565 formats.
+     * @param argb the array receiving the pixels, row by row. If it is null or smaller than the
+     *      number of pixels, a new array is allocated.
+     * @return the array containing the pixels.
+     */
+    @NonNull
+    public int[] getARGB(@Nullable int[] argb) {
+        int count = width * height;
+        if (argb == null || argb.length < count) {
+            argb = new int[count];
+        }
+
+        if (bpp == 32 && red_length == 8 && green_length == 8 && blue_length == 8
+                && (alpha_length == 8 || alpha_length == 0)
+                && ((red_offset | green_offset | blue_offset | alpha_offset) & 7) == 0) {
+            convertByteAligned(argb, count);
+        } else if (bpp == 16 && red_offset == 11 && red_length == 5 && green_offset == 5
+                && green_length == 6 && blue_offset == 0 && blue_length == 5
+                && alpha_length == 0) {
+            convertRgb565(argb, count);
+        } else if (bpp == 16 || bpp == 32) {
+            convert(argb, count);
+        } else {
+            throw new UnsupportedOperationException(
+                    "RawImage.getARGB(int[]) only works in 16 and 32 bit mode.");
+        }
+
+        return argb;
+    }
+
+    /**
+     * Converts the image to a {@link BufferedImage} of type {@link BufferedImage#TYPE_INT_ARGB},
+     * writing the pixels directly in its raster.
+     * @param image the image to write to, or null. If it is null, or if its size or type don't
+     *      match, a new image is created.
+     * @return the image containing the pixels.
+     */
+    @NonNull
+    public BufferedImage getBufferedImage(@Nullable BufferedImage image) {
+        if (image == null || image.getWidth() != width || image.getHeight() != height
+                || image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        getARGB(((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+
+    /**
+     * Converts 32 bit pixels whose components are each stored in one byte, such as RGBA_8888.
+     */
+    private void convertByteAligned(int[] argb, int count) {
+        final byte[] data = this.data;
+        final int r = red_offset >> 3;
+        final int g = green_offset >> 3;
+        final int b = blue_offset >> 3;
+        final int a = alpha_offset >> 3;
+
+        if (alpha_length == 0) {
+            for (int i = 0, p = 0; i < count; i++, p += 4) {
+                argb[i] = 0xFF000000 | (data[p + r] & 0xFF) << 16 | (data[p + g] & 0xFF) << 8
+                        | (data[p + b] & 0xFF);
+            }
+        } else {
+            for (int i = 0, p = 0; i < count; i++, p += 4) {
+                argb[i] = data[p + a] << 24 | (data[p + r] & 0xFF) << 16
+                        | (data[p + g] & 0xFF) << 8 | (data[p + b] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Converts RGB_565 pixels.
+     */
+    private void convertRgb565(int[] argb, int count) {
+        final byte[] data = this.data;
+        for (int i = 0, p = 0; i < count; i++, p += 2) {
+            int value = (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8;
+            argb[i] = 0xFF000000 | (value & 0xF800) << 8 | (value & 0x07E0) << 5
+                    | (value & 0x001F) << 3;
+        }
+    }
+
+    /**
+     * Converts pixels in any 16 or 32 bit format, the same way as {@link #getARGB(int)}.
+     */
+    private void convert(int[] argb, int count) {
+        final byte[] data = this.data;
+        final int byteCount = bpp >> 3;
+        final int redMask = getMask(red_length);
+        final int greenMask = getMask(green_length);
+        final int blueMask = getMask(blue_length);
+        final int alphaMask = getMask(alpha_length);
+
+        for (int i = 0, p = 0; i < count; i++, p += byteCount) {
+            int value = (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8;
+            if (byteCount == 4) {
+                value |= (data[p + 2] & 0xFF) << 16 | (data[p + 3] & 0xFF) << 24;
+            }
+
+            int r = ((value >>> red_offset) & redMask) << (8 - red_length);
+            int g = ((value >>> green_offset) & greenMask) << (8 - green_length);
+            int b = ((value >>> blue_offset) & blueMask) << (8 - blue_length);
+            int a;
+            if (alpha_length == 0) {
+                a = 0xFF;
+            } else {
+                a = ((value >>> alpha_offset) & alphaMask) << (8 - alpha_length);
+            }
+
+            argb[i] = a << 24 | r << 16 | g << 8 | b;
+        }
+    }
+
     /**
      * creates a mask value based on a length and offset.
      * <p/>This value is compatible with org.eclipse.swt.graphics.PaletteData
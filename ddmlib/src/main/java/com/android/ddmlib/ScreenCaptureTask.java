@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures the screen of a device continuously, until {@link #stop()} is called.
+ * <p/>The frames are given to an {@link IFrameListener} on the thread running the task. The
+ * same {@link RawImage}, and the same pixel buffer, are reused for all the frames of the same
+ * size, so that capturing doesn't allocate a new buffer for each frame. Listeners can convert
+ * the frames with {@link RawImage#getARGB(int[])} or
+ * {@link RawImage#getBufferedImage(java.awt.image.BufferedImage)}, which can reuse their
+ * destination as well.
+ */
+public class ScreenCaptureTask implements Runnable {
+
+    /**
+     * Classes which implement this interface receive the frames captured by a
+     * {@link ScreenCaptureTask}.
+     */
+    public interface IFrameListener {
+        /**
+         * Sent when a new frame was captured.
+         * <p/>The image is reused for the next frame, so it must not be kept or modified after
+         * this method returns.
+         * @param image the frame.
+         */
+        void newFrame(@NonNull RawImage image);
+
+        /**
+         * Sent when the capture stopped because of an error.
+         * @param e the error.
+         */
+        void captureFailed(@NonNull Exception e);
+    }
+
+    private final IDevice mDevice;
+    private final IFrameListener mListener;
+    private final long mMinFrameIntervalNanos;
+
+    private volatile boolean mCancelled;
+
+    /**
+     * Creates a task capturing frames as fast as the device can send them.
+     * @param device the device to capture.
+     * @param listener the listener receiving the frames.
+     */
+    public ScreenCaptureTask(@NonNull IDevice device, @NonNull IFrameListener listener) {
+        this(device, listener, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a task capturing frames at a limited rate.
+     * @param device the device to capture.
+     * @param listener the listener receiving the frames.
+     * @param minFrameInterval the minimum time between the start of two captures.
+     * @param unit the unit of <var>minFrameInterval</var>.
+     */
+    public ScreenCaptureTask(@NonNull IDevice device, @NonNull IFrameListener listener,
+            long minFrameInterval, @NonNull TimeUnit unit) {
+        mDevice = device;
+        mListener = listener;
+        mMinFrameIntervalNanos = unit.toNanos(minFrameInterval);
+    }
+
+    @Override
+    public void run() {
+        RawImage image = null;
+
+        while (!mCancelled) {
+            long start = System.nanoTime();
+
+            try {
+                image = captureFrame(image);
+            } catch (Exception e) {
+                if (!mCancelled) {
+                    Log.e("ddms", "Screen capture failed: " + e.getMessage());
+                    mListener.captureFailed(e);
+                }
+                return;
+            }
+
+            if (image == null) {
+                // unsupported framebuffer protocol, already logged.
+                mListener.captureFailed(new UnsupportedOperationException(
+                        "Unsupported framebuffer protocol"));
+                return;
+            }
+
+            if (mCancelled) {
+                return;
+            }
+            mListener.newFrame(image);
+
+            long wait = mMinFrameIntervalNanos - (System.nanoTime() - start);
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the capture. The frame being captured, if any, is not sent to the listener.
+     */
+    public void stop() {
+        mCancelled = true;
+    }
+
+    private RawImage captureFrame(RawImage previous)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+        if (mDevice instanceof Device) {
+            return AdbHelper.getFrameBuffer(AndroidDebugBridge.getSocketAddress(),
+                    (Device) mDevice, previous);
+        }
+
+        // other implementations can't reuse the previous frame.
+        return mDevice.getScreenshot();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A chunk whose payload is written to a temporary file as it is received, instead of being
+ * kept in the read buffer of the {@link Client} until the whole JDWP packet has arrived.
+ * <p/>
+ * This is used for chunks that can be very large, like heap dumps, so that they don't need to
+ * fit in memory. Once the whole packet has been received, the file is given to the
+ * {@link ChunkHandler} with {@link ChunkHandler#handleStreamedChunk(Client, int, File)}.
+ */
+final class StreamedChunk {
+
+    private final int mType;
+    private final ChunkHandler mHandler;
+
+    /** The file receiving the payload, or null if it could not be written. */
+    private File mFile;
+    private FileChannel mChannel;
+
+    /** The number of bytes of the packet which have not been received yet. */
+    private int mPacketRemaining;
+
+    /** The number of bytes of the chunk payload which have not been written yet. */
+    private int mPayloadRemaining;
+
+    /**
+     * Starts streaming a chunk to a new temporary file.
+     * @param type the type of the chunk.
+     * @param handler the handler for the chunk type.
+     * @param packetRemaining the length of the JDWP packet, after the chunk header.
+     * @param payloadLength the length of the chunk payload.
+     */
+    StreamedChunk(int type, ChunkHandler handler, int packetRemaining, int payloadLength) {
+        mType = type;
+        mHandler = handler;
+        mPacketRemaining = packetRemaining;
+        mPayloadRemaining = Math.min(payloadLength, packetRemaining);
+
+        try {
+            mFile = File.createTempFile("ddms-" + ChunkHandler.name(type), ".tmp"); //$NON-NLS-1$
+            mChannel = new FileOutputStream(mFile).getChannel();
+        } catch (IOException e) {
+            Log.e("ddms", "Failed to create file for " + ChunkHandler.name(type) + " chunk");
+            discardFile();
+        }
+    }
+
+    /**
+     * Consumes the data of the chunk between the position and the limit of the buffer. Data
+     * after the end of the packet is left in the buffer.
+     * @return true if the whole packet has been received.
+     */
+    boolean consume(ByteBuffer buf) {
+        int count = Math.min(buf.remaining(), mPacketRemaining);
+        int payloadCount = Math.min(count, mPayloadRemaining);
+
+        if (payloadCount > 0 && mChannel != null) {
+            ByteBuffer payload = buf.duplicate();
+            payload.limit(payload.position() + payloadCount);
+            try {
+                while (payload.hasRemaining()) {
+                    mChannel.write(payload);
+                }
+            } catch (IOException e) {
+                Log.e("ddms", "Failed to write " + ChunkHandler.name(mType) + " chunk: "
+                        + e.getMessage());
+                discardFile();
+            }
+        }
+
+        buf.position(buf.position() + count);
+        mPacketRemaining -= count;
+        mPayloadRemaining -= payloadCount;
+        return mPacketRemaining == 0;
+    }
+
+    /**
+     * Gives the file to the handler, once the whole packet has been received.
+     */
+    void finish(Client client) {
+        mHandler.handleStreamedChunk(client, mType, close());
+    }
+
+    /**
+     * Writes the payload of a chunk which was received entirely to a temporary file.
+     * @param type the type of the chunk.
+     * @param data the payload of the chunk, between its position and its limit. The buffer
+     *      is left unchanged.
+     * @return the file, or null if the payload could not be written.
+     */
+    static File writeToFile(int type, ByteBuffer data) {
+        StreamedChunk chunk = new StreamedChunk(type, null, data.remaining(), data.remaining());
+        chunk.consume(data.duplicate());
+        return chunk.close();
+    }
+
+    /**
+     * Closes the file, and returns it, or null if the payload could not be written.
+     */
+    private File close() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.e("ddms", "Failed to write " + ChunkHandler.name(mType) + " chunk: "
+                        + e.getMessage());
+                discardFile();
+            }
+            mChannel = null;
+        }
+        return mFile;
+    }
+
+    /**
+     * Returns the file receiving the payload, or null if it could not be written.
+     */
+    @VisibleForTesting
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Deletes the file, when the connection is closed before the whole packet was received.
+     */
+    void cancel() {
+        discardFile();
+    }
+
+    private void discardFile() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {
+            }
+            mChannel = null;
+        }
+        if (mFile != null) {
+            mFile.delete();
+            mFile = null;
+        }
+    }
+}
@@ -27,6 +27,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 
@@ -78,6 +81,20 @@ public final class SyncService {
     private static final int SYNC_DATA_MAX = 64*1024;
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
+    /**
+     * Maximum number of transfer requests sent ahead of the one being processed when syncing
+     * multiple files. The device handles requests in order, so sending them ahead saves a round
+     * trip per file.
+     */
+    private static final int MAX_PENDING_REQUESTS = 32;
+
+    /**
+     * Direct buffers used to transfer data, shared by all the sync connections. Each buffer
+     * holds the largest data packet, along with the header of the next packet.
+     */
+    private static final ByteBufferPool sBufferPool =
+            new ByteBufferPool(SYNC_DATA_MAX + 8, ByteOrder.LITTLE_ENDIAN, 16);
+
     /**
      * Classes which implement this interface provide methods that deal
      * with displaying transfer progress.
@@ -137,9 +154,10 @@ public final class SyncService {
     private SocketChannel mChannel;
 
     /**
-     * Buffer used to send data. Allocated when needed and reused afterward.
+     * Buffer used to transfer data. Borrowed from {@link #sBufferPool} when needed, reused
+     * afterward, and given back when the connection is closed.
      */
-    private byte[] mBuffer;
+    private ByteBuffer mBuffer;
 
     /**
      * Creates a Sync service object.
@@ -217,6 +235,11 @@ public final class SyncService {
             }
             mChannel = null;
         }
+
+        if (mBuffer != null) {
+            sBufferPool.release(mBuffer);
+            mBuffer = null;
+        }
     }
 
     /**
@@ -257,7 +280,7 @@ public final class SyncService {
         FileListingService fls = new FileListingService(mDevice);
 
         // compute the number of file to move
-        int total = getTotalRemoteFileSize(entries, fls);
+        int total = getTotalRemoteFileSize(entries, fls, false /* useCache */);
 
         // start the monitor
         monitor.start(total);
@@ -387,16 +410,30 @@ public final class SyncService {
      * have a weight of 1.
      * @param entries
      * @param fls
+     * @param useCache whether the listings cached by <var>fls</var> can be used.
      * @return
+     * @throws TimeoutException in case of timeout on the connection when listing a directory.
+     * @throws IOException in case of I/O error on the connection, or if adb rejects the
+     *      listing of a directory.
      */
-    private int getTotalRemoteFileSize(FileEntry[] entries, FileListingService fls) {
+    private int getTotalRemoteFileSize(FileEntry[] entries, FileListingService fls,
+            boolean useCache) throws TimeoutException, IOException {
         int count = 0;
         for (FileEntry e : entries) {
             int type = e.getType();
             if (type == FileListingService.TYPE_DIRECTORY) {
-                // get the children
-                FileEntry[] children = fls.getChildren(e, false, null);
-                count += getTotalRemoteFileSize(children, fls) + 1;
+                // get the children. The whole tree is listed at once, so the sub-directories
+                // are then read from the cache.
+                FileEntry[] children;
+                try {
+                    children = fls.getChildrenRecursive(e, useCache);
+                } catch (ShellCommandUnresponsiveException ex) {
+                    // the listing of the whole tree can take too long, list the directory alone.
+                    children = fls.getChildren(e, false, null);
+                } catch (AdbCommandRejectedException ex) {
+                    throw new IOException(ex.getMessage(), ex);
+                }
+                count += getTotalRemoteFileSize(children, fls, true /* useCache */) + 1;
             } else if (type == FileListingService.TYPE_FILE) {
                 count += e.getSizeValue();
             }
@@ -430,6 +467,8 @@ public final class SyncService {
 
     /**
      * Pulls multiple files/folders recursively.
+     * <p/>Requests for the next files are sent while a file is being received, so that the
+     * device can start sending the next file as soon as it is done with the current one.
      * @param entries The list of entry to pull
      * @param localPath the localpath to a directory
      * @param fileListingService a FileListingService object to browse through remote directories.
@@ -442,7 +481,44 @@ public final class SyncService {
     private void doPull(FileEntry[] entries, String localPath,
             FileListingService fileListingService,
             ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        ArrayList<String> remoteFiles = new ArrayList<String>();
+        ArrayList<String> localFiles = new ArrayList<String>();
+        listPullFiles(entries, localPath, fileListingService, monitor, remoteFiles, localFiles);
+
+        final int timeOut = DdmPreferences.getTimeOut();
 
+        int requested = 0;
+        for (int i = 0; i < remoteFiles.size(); i++) {
+            // keep up to MAX_PENDING_REQUESTS requests ahead of the file being received.
+            while (requested < remoteFiles.size() && requested < i + MAX_PENDING_REQUESTS) {
+                sendPullRequest(remoteFiles.get(requested), timeOut);
+                requested++;
+            }
+
+            // check if we're cancelled
+            if (monitor.isCanceled()) {
+                throw new SyncException(SyncError.CANCELED);
+            }
+
+            monitor.startSubTask(remoteFiles.get(i));
+            receiveFile(localFiles.get(i), monitor, timeOut);
+        }
+    }
+
+    /**
+     * Lists the files to pull recursively, and creates the local directories for them.
+     * @param entries The list of entry to pull
+     * @param localPath the localpath to a directory
+     * @param fileListingService a FileListingService object to browse through remote directories.
+     * @param monitor the progress monitor. Must be started already.
+     * @param remoteFiles the list to which the remote paths of the files are added.
+     * @param localFiles the list to which the local destinations of the files are added.
+     *
+     * @throws SyncException if the pull was cancelled.
+     */
+    private void listPullFiles(FileEntry[] entries, String localPath,
+            FileListingService fileListingService, ISyncProgressMonitor monitor,
+            ArrayList<String> remoteFiles, ArrayList<String> localFiles) throws SyncException {
         for (FileEntry e : entries) {
             // check if we're cancelled
             if (monitor.isCanceled()) {
@@ -462,12 +538,12 @@ public final class SyncService {
                 // then recursively call the content. Since we did a ls command
                 // to get the number of files, we can use the cache
                 FileEntry[] children = fileListingService.getChildren(e, true, null);
-                doPull(children, dest, fileListingService, monitor);
+                listPullFiles(children, dest, fileListingService, monitor, remoteFiles,
+                        localFiles);
                 monitor.advance(1);
             } else if (type == FileListingService.TYPE_FILE) {
-                monitor.startSubTask(e.getFullPath());
-                String dest = localPath + File.separator + e.getName();
-                doPullFile(e.getFullPath(), dest, monitor);
+                remoteFiles.add(e.getFullPath());
+                localFiles.add(localPath + File.separator + e.getName());
             }
         }
     }
@@ -483,11 +559,22 @@ public final class SyncService {
      */
     private void doPullFile(String remotePath, String localPath,
             ISyncProgressMonitor monitor) throws IOException, SyncException, TimeoutException {
-        byte[] msg = null;
-        byte[] pullResult = new byte[8];
-
         final int timeOut = DdmPreferences.getTimeOut();
 
+        sendPullRequest(remotePath, timeOut);
+        receiveFile(localPath, monitor, timeOut);
+    }
+
+    /**
+     * Sends the request to pull a remote file.
+     * @param remotePath the remote file (length max is 1024)
+     * @param timeOut the timeout of the write operation.
+     * @throws SyncException if the remote path is invalid.
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout writing the request.
+     */
+    private void sendPullRequest(String remotePath, final int timeOut)
+            throws SyncException, IOException, TimeoutException {
         try {
             byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_ENCODING);
 
@@ -496,24 +583,38 @@ public final class SyncService {
             }
 
             // create the full request message
-            msg = createFileReq(ID_RECV, remotePathContent);
+            byte[] msg = createFileReq(ID_RECV, remotePathContent);
 
             // and send it.
             AdbHelper.write(mChannel, msg, -1, timeOut);
-
-            // read the result, in a byte array containing 2 ints
-            // (id, size)
-            AdbHelper.read(mChannel, pullResult, -1, timeOut);
-
-            // check we have the proper data back
-            if (!checkResult(pullResult, ID_DATA) &&
-                    !checkResult(pullResult, ID_DONE)) {
-                throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
-                        readErrorMessage(pullResult, timeOut));
-            }
         } catch (UnsupportedEncodingException e) {
             throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
         }
+    }
+
+    /**
+     * Receives a remote file, once it was requested with {@link #sendPullRequest(String, int)}.
+     * @param localPath the local destination
+     * @param monitor the monitor. The monitor must be started already.
+     * @param timeOut the timeout of the read operations.
+     * @throws SyncException if file could not be pulled
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void receiveFile(String localPath, ISyncProgressMonitor monitor, final int timeOut)
+            throws IOException, SyncException, TimeoutException {
+        byte[] pullResult = new byte[8];
+
+        // read the result, in a byte array containing 2 ints
+        // (id, size)
+        AdbHelper.read(mChannel, pullResult, -1, timeOut);
+
+        // check we have the proper data back
+        if (!checkResult(pullResult, ID_DATA) &&
+                !checkResult(pullResult, ID_DONE)) {
+            throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
+                    readErrorMessage(pullResult, timeOut));
+        }
 
         // access the destination file
         File f = new File(localPath);
@@ -523,9 +624,10 @@ public final class SyncService {
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(f);
+            FileChannel fileChannel = fos.getChannel();
 
             // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
+            ByteBuffer data = getBuffer();
 
             // loop to get data until we're done.
             while (true) {
@@ -550,19 +652,23 @@ public final class SyncService {
                     throw new SyncException(SyncError.BUFFER_OVERRUN);
                 }
 
-                // now read the length we received
-                AdbHelper.read(mChannel, data, length, timeOut);
-
-                // get the header for the next packet.
-                AdbHelper.read(mChannel, pullResult, -1, timeOut);
+                // now read the length we received, along with the header for the next packet.
+                data.clear();
+                data.limit(length + pullResult.length);
+                AdbHelper.read(mChannel, data, timeOut);
 
                 // write the content in the file
-                fos.write(data, 0, length);
+                data.flip();
+                data.limit(length);
+                while (data.hasRemaining()) {
+                    fileChannel.write(data);
+                }
+
+                data.limit(length + pullResult.length);
+                data.get(pullResult);
 
                 monitor.advance(length);
             }
-
-            fos.flush();
         } catch (IOException e) {
             Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
                     f.getAbsolutePath(), e.toString()));
@@ -577,6 +683,8 @@ public final class SyncService {
 
     /**
      * Push multiple files
+     * <p/>The result of each file is only read once the next files have been sent, so that
+     * sending a file doesn't wait for the device to be done with the previous one.
      * @param fileArray
      * @param remotePath
      * @param monitor
@@ -587,6 +695,61 @@ public final class SyncService {
      */
     private void doPush(File[] fileArray, String remotePath, ISyncProgressMonitor monitor)
             throws SyncException, IOException, TimeoutException {
+        ArrayList<File> localFiles = new ArrayList<File>();
+        ArrayList<String> remoteFiles = new ArrayList<String>();
+        listPushFiles(fileArray, remotePath, monitor, localFiles, remoteFiles);
+
+        final int timeOut = DdmPreferences.getTimeOut();
+
+        int pending = 0;
+        try {
+            for (int i = 0; i < localFiles.size(); i++) {
+                // check if we're canceled
+                if (monitor.isCanceled()) {
+                    throw new SyncException(SyncError.CANCELED);
+                }
+
+                monitor.startSubTask(remoteFiles.get(i));
+                sendFile(localFiles.get(i).getAbsolutePath(), remoteFiles.get(i), monitor,
+                        timeOut);
+
+                // keep up to MAX_PENDING_REQUESTS results unread.
+                pending++;
+                if (pending == MAX_PENDING_REQUESTS) {
+                    readPushResult(timeOut);
+                    pending--;
+                }
+            }
+        } catch (IOException e) {
+            // the device closes the connection when it fails to write a file, in which case
+            // its error message is in one of the results that weren't read yet.
+            try {
+                for (; pending > 0; pending--) {
+                    readPushResult(timeOut);
+                }
+            } catch (IOException ignored) {
+            } catch (TimeoutException ignored) {
+            }
+            throw e;
+        }
+
+        for (; pending > 0; pending--) {
+            readPushResult(timeOut);
+        }
+    }
+
+    /**
+     * Lists the files to push recursively.
+     * @param fileArray the local files and directories to push.
+     * @param remotePath the remote directory to push them to.
+     * @param monitor the monitor. The monitor must be started already.
+     * @param localFiles the list to which the local files are added.
+     * @param remoteFiles the list to which the remote destinations of the files are added.
+     *
+     * @throws SyncException if the push was cancelled.
+     */
+    private void listPushFiles(File[] fileArray, String remotePath, ISyncProgressMonitor monitor,
+            ArrayList<File> localFiles, ArrayList<String> remoteFiles) throws SyncException {
         for (File f : fileArray) {
             // check if we're canceled
             if (monitor.isCanceled()) {
@@ -597,14 +760,13 @@ public final class SyncService {
                     // append the name of the directory to the remote path
                     String dest = remotePath + "/" + f.getName(); // $NON-NLS-1S
                     monitor.startSubTask(dest);
-                    doPush(f.listFiles(), dest, monitor);
+                    listPushFiles(f.listFiles(), dest, monitor, localFiles, remoteFiles);
 
                     monitor.advance(1);
                 } else if (f.isFile()) {
                     // append the name of the file to the remote path
-                    String remoteFile = remotePath + "/" + f.getName(); // $NON-NLS-1S
-                    monitor.startSubTask(remoteFile);
-                    doPushFile(f.getAbsolutePath(), remoteFile, monitor);
+                    localFiles.add(f);
+                    remoteFiles.add(remotePath + "/" + f.getName()); // $NON-NLS-1S
                 }
             }
         }
@@ -622,11 +784,29 @@ public final class SyncService {
      */
     private void doPushFile(String localPath, String remotePath,
             ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        final int timeOut = DdmPreferences.getTimeOut();
+
+        sendFile(localPath, remotePath, monitor, timeOut);
+        readPushResult(timeOut);
+    }
+
+    /**
+     * Sends a single file, without waiting for the result of the transfer. The result must be
+     * read with {@link #readPushResult(int)}.
+     * @param localPath the local file to push
+     * @param remotePath the remote file (length max is 1024)
+     * @param monitor the monitor. The monitor must be started already.
+     * @param timeOut the timeout of the write operations.
+     *
+     * @throws SyncException if file could not be pushed
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout writing to the device.
+     */
+    private void sendFile(String localPath, String remotePath, ISyncProgressMonitor monitor,
+            final int timeOut) throws SyncException, IOException, TimeoutException {
         FileInputStream fis = null;
         byte[] msg;
 
-        final int timeOut = DdmPreferences.getTimeOut();
-
         try {
             byte[] remotePathContent = remotePath.getBytes(AdbHelper.DEFAULT_ENCODING);
 
@@ -638,6 +818,7 @@ public final class SyncService {
 
             // create the stream to read the file
             fis = new FileInputStream(f);
+            FileChannel fileChannel = fis.getChannel();
 
             // create the header for the action
             msg = createSendFileReq(ID_SEND, remotePathContent, 0644);
@@ -646,32 +827,34 @@ public final class SyncService {
             // file and network IO exceptions.
             AdbHelper.write(mChannel, msg, -1, timeOut);
 
-            System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
+            ByteBuffer header = getBuffer();
+            long position = 0;
+            long size = fileChannel.size();
 
             // look while there is something to read
-            while (true) {
+            while (position < size) {
                 // check if we're canceled
                 if (monitor.isCanceled()) {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
-                // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
-
-                if (readCount == -1) {
-                    // we reached the end of the file
-                    break;
-                }
+                // send up to SYNC_DATA_MAX
+                int count = (int) Math.min(SYNC_DATA_MAX, size - position);
 
                 // now send the data to the device
                 // first write the amount read
-                ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
+                header.clear();
+                header.put(ID_DATA);
+                header.putInt(count);
+                header.flip();
+                AdbHelper.write(mChannel, header, timeOut);
 
-                // now write it
-                AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
+                // now write it, straight from the file
+                AdbHelper.write(mChannel, fileChannel, position, count, timeOut);
+                position += count;
 
                 // and advance the monitor
-                monitor.advance(readCount);
+                monitor.advance(count);
             }
         } catch (UnsupportedEncodingException e) {
             throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
@@ -688,7 +871,19 @@ public final class SyncService {
 
         // and send it.
         AdbHelper.write(mChannel, msg, -1, timeOut);
+    }
 
+    /**
+     * Reads the result of a file sent with
+     * {@link #sendFile(String, String, ISyncProgressMonitor, int)}.
+     * @param timeOut the timeout of the read operations.
+     *
+     * @throws SyncException if the device failed to write the file.
+     * @throws IOException in case of I/O error on the connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    private void readPushResult(final int timeOut)
+            throws SyncException, IOException, TimeoutException {
         // read the result, in a byte array containing 2 ints
         // (id, size)
         byte[] result = new byte[8];
@@ -706,17 +901,22 @@ public final class SyncService {
      * @param timeOut
      * @return
      * @throws TimeoutException in case of a timeout reading responses from the device.
+     * @throws SyncException if the message is longer than a data packet.
      * @throws IOException
      */
     private String readErrorMessage(byte[] result, final int timeOut) throws TimeoutException,
-            IOException {
+            SyncException, IOException {
         if (checkResult(result, ID_FAIL)) {
             int len = ArrayHelper.swap32bitFromArray(result, 4);
+            if (len > SYNC_DATA_MAX) {
+                throw new SyncException(SyncError.BUFFER_OVERRUN);
+            }
 
             if (len > 0) {
-                AdbHelper.read(mChannel, getBuffer(), len, timeOut);
+                byte[] buffer = new byte[len];
+                AdbHelper.read(mChannel, buffer, len, timeOut);
 
-                String message = new String(getBuffer(), 0, len);
+                String message = new String(buffer, 0, len);
                 Log.e("ddms", "transfer error: " + message);
 
                 return message;
@@ -873,14 +1073,12 @@ public final class SyncService {
     }
 
     /**
-     * Retrieve the buffer, allocating if necessary
+     * Retrieve the buffer, borrowing it from the pool if necessary
      * @return
      */
-    private byte[] getBuffer() {
+    private ByteBuffer getBuffer() {
         if (mBuffer == null) {
-            // create the buffer used to read.
-            // we read max SYNC_DATA_MAX, but we need 2 4 bytes at the beginning.
-            mBuffer = new byte[SYNC_DATA_MAX + 8];
+            mBuffer = sBufferPool.acquire();
         }
         return mBuffer;
     }
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.ddmlib.log.EventContainer.EventValueType;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Events of the "event" log decoded by an {@link EventLogDecoder}, stored in columns of
+ * primitive values rather than in {@link EventContainer} objects.
+ * <p/>The header of each event (tag, pid, tid, time) is stored by event index. The values of
+ * the events are stored in one {@link TagColumns} per tag, with one row per event and one
+ * column per value. Events which could not be decoded with the description of their tag are
+ * kept as {@link EventContainer} objects, see {@link #getUndecodedEvent(int)}.
+ */
+public final class EventLogColumns {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int mCount;
+    private int[] mTags = new int[INITIAL_CAPACITY];
+    private int[] mPids = new int[INITIAL_CAPACITY];
+    private int[] mTids = new int[INITIAL_CAPACITY];
+    private int[] mSecs = new int[INITIAL_CAPACITY];
+    private int[] mNsecs = new int[INITIAL_CAPACITY];
+    /** Row of each event in the columns of its tag, or -1 if it was not decoded. */
+    private int[] mRows = new int[INITIAL_CAPACITY];
+
+    private final Map<Integer, TagColumns> mTagColumns = new HashMap<Integer, TagColumns>();
+    private final Map<Integer, EventContainer> mUndecodedEvents =
+            new HashMap<Integer, EventContainer>();
+
+    /**
+     * The values of the events of a tag. Integer and long values are stored in
+     * <code>long[]</code> columns, string values in <code>String[]</code> columns.
+     */
+    public static final class TagColumns {
+        private final int mTag;
+        private final EventValueType[] mTypes;
+        private final Object[] mColumns;
+        private int[] mEvents = new int[INITIAL_CAPACITY];
+        private int mRowCount;
+
+        TagColumns(int tag, EventValueType[] types) {
+            mTag = tag;
+            mTypes = types;
+            mColumns = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == EventValueType.STRING) {
+                    mColumns[i] = new String[INITIAL_CAPACITY];
+                } else {
+                    mColumns[i] = new long[INITIAL_CAPACITY];
+                }
+            }
+        }
+
+        /**
+         * Returns the tag of the events.
+         */
+        public int getTag() {
+            return mTag;
+        }
+
+        /**
+         * Returns the number of events of the tag.
+         */
+        public int getRowCount() {
+            return mRowCount;
+        }
+
+        /**
+         * Returns the number of values of each event.
+         */
+        public int getColumnCount() {
+            return mTypes.length;
+        }
+
+        /**
+         * Returns the type of the values of a column: {@link EventValueType#INT},
+         * {@link EventValueType#LONG} or {@link EventValueType#STRING}.
+         */
+        public EventValueType getColumnType(int column) {
+            return mTypes[column];
+        }
+
+        /**
+         * Returns the values of an {@link EventValueType#INT} or {@link EventValueType#LONG}
+         * column. Only the first {@link #getRowCount()} values are valid.
+         */
+        public long[] getLongColumn(int column) {
+            return (long[]) mColumns[column];
+        }
+
+        /**
+         * Returns the values of an {@link EventValueType#STRING} column. Only the first
+         * {@link #getRowCount()} values are valid.
+         */
+        public String[] getStringColumn(int column) {
+            return (String[]) mColumns[column];
+        }
+
+        /**
+         * Returns the index in the {@link EventLogColumns} of the event of a row.
+         */
+        public int getEventIndex(int row) {
+            return mEvents[row];
+        }
+
+        /**
+         * Adds a row, and returns its index. The values of the row must then be set with
+         * {@link #setLong(int, int, long)} and {@link #setString(int, int, String)}.
+         */
+        int addRow(int event) {
+            if (mRowCount == mEvents.length) {
+                int capacity = mRowCount * 2;
+                mEvents = Arrays.copyOf(mEvents, capacity);
+                for (int i = 0; i < mColumns.length; i++) {
+                    if (mColumns[i] instanceof long[]) {
+                        mColumns[i] = Arrays.copyOf((long[]) mColumns[i], capacity);
+                    } else {
+                        mColumns[i] = Arrays.copyOf((String[]) mColumns[i], capacity);
+                    }
+                }
+            }
+            mEvents[mRowCount] = event;
+            return mRowCount++;
+        }
+
+        void setLong(int row, int column, long value) {
+            ((long[]) mColumns[column])[row] = value;
+        }
+
+        void setString(int row, int column, String value) {
+            ((String[]) mColumns[column])[row] = value;
+        }
+    }
+
+    /**
+     * Returns the number of events.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the tag of an event.
+     */
+    public int getTag(int event) {
+        return mTags[event];
+    }
+
+    /**
+     * Returns the pid of the process that generated an event.
+     */
+    public int getPid(int event) {
+        return mPids[event];
+    }
+
+    /**
+     * Returns the tid of the thread that generated an event.
+     */
+    public int getTid(int event) {
+        return mTids[event];
+    }
+
+    /**
+     * Returns the seconds since epoch of an event.
+     */
+    public int getSec(int event) {
+        return mSecs[event];
+    }
+
+    /**
+     * Returns the nanoseconds of an event.
+     */
+    public int getNsec(int event) {
+        return mNsecs[event];
+    }
+
+    /**
+     * Returns the row of an event in the {@link TagColumns} of its tag, or -1 if the event was
+     * not decoded.
+     */
+    public int getRow(int event) {
+        return mRows[event];
+    }
+
+    /**
+     * Returns the columns of a tag, or null if no event of the tag was decoded.
+     */
+    public TagColumns getTagColumns(int tag) {
+        return mTagColumns.get(tag);
+    }
+
+    /**
+     * Returns the columns of all the tags with decoded events.
+     */
+    public Collection<TagColumns> getAllTagColumns() {
+        return Collections.unmodifiableCollection(mTagColumns.values());
+    }
+
+    /**
+     * Returns an event which could not be decoded with the description of its tag, parsed as
+     * an {@link EventContainer}, or null if the event was decoded or could not be parsed at
+     * all.
+     */
+    public EventContainer getUndecodedEvent(int event) {
+        return mUndecodedEvents.get(event);
+    }
+
+    /**
+     * Adds an event, and returns its index.
+     */
+    int addEvent(int tag, int pid, int tid, int sec, int nsec) {
+        if (mCount == mTags.length) {
+            int capacity = mCount * 2;
+            mTags = Arrays.copyOf(mTags, capacity);
+            mPids = Arrays.copyOf(mPids, capacity);
+            mTids = Arrays.copyOf(mTids, capacity);
+            mSecs = Arrays.copyOf(mSecs, capacity);
+            mNsecs = Arrays.copyOf(mNsecs, capacity);
+            mRows = Arrays.copyOf(mRows, capacity);
+        }
+        mTags[mCount] = tag;
+        mPids[mCount] = pid;
+        mTids[mCount] = tid;
+        mSecs[mCount] = sec;
+        mNsecs[mCount] = nsec;
+        mRows[mCount] = -1;
+        return mCount++;
+    }
+
+    /**
+     * Returns the columns of a tag, creating them if needed.
+     */
+    TagColumns getOrCreateTagColumns(int tag, EventValueType[] types) {
+        TagColumns columns = mTagColumns.get(tag);
+        if (columns == null) {
+            columns = new TagColumns(tag, types);
+            mTagColumns.put(tag, columns);
+        }
+        return columns;
+    }
+
+    void setRow(int event, int row) {
+        mRows[event] = row;
+    }
+
+    void setUndecodedEvent(int event, EventContainer container) {
+        mUndecodedEvents.put(event, container);
+    }
+}
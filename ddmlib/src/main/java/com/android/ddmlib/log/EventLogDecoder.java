@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.ddmlib.log.EventContainer.EventValueType;
+import com.android.ddmlib.log.EventLogColumns.TagColumns;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.android.ddmlib.utils.ArrayHelper;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decoder for the binary "event" log, storing the events in {@link EventLogColumns}.
+ * <p/>Unlike {@link EventLogParser#parse(LogEntry)}, which interprets the type of each value
+ * as it reads the event and boxes the values, the decoder creates a reader for each tag from
+ * the descriptions of the {@link EventLogParser} once, and stores the values directly in
+ * primitive columns. Events which don't match the description of their tag are parsed by the
+ * {@link EventLogParser} instead.
+ * <p/>The decoder can be used from several threads, but a given {@link EventLogColumns} must
+ * only be filled by one thread at a time.
+ */
+public final class EventLogDecoder {
+
+    /**
+     * Event log entry types.  These must match up with the declarations in
+     * java/android/android/util/EventLog.java.
+     */
+    private static final byte EVENT_TYPE_INT      = 0;
+    private static final byte EVENT_TYPE_LONG     = 1;
+    private static final byte EVENT_TYPE_STRING   = 2;
+    private static final byte EVENT_TYPE_LIST     = 3;
+
+    private final EventLogParser mParser;
+    private final Map<Integer, TagDecoder> mDecoders = new HashMap<Integer, TagDecoder>();
+
+    /**
+     * Reader for the events of a tag, whose values have a fixed layout.
+     */
+    private static final class TagDecoder {
+        private final int mTag;
+        private final EventValueType[] mTypes;
+        /** Whether the values are in a list, which is the case unless there is only one. */
+        private final boolean mIsList;
+
+        TagDecoder(int tag, EventValueType[] types) {
+            mTag = tag;
+            mTypes = types;
+            mIsList = types.length > 1;
+        }
+
+        /**
+         * Checks that the payload of an event has the layout of the tag, without reading the
+         * values.
+         * @param data the buffer containing the event.
+         * @param offset the offset of the values, after the tag.
+         * @param end the end of the event payload.
+         */
+        boolean matches(byte[] data, int offset, int end) {
+            if (mIsList) {
+                if (end - offset < 2 || data[offset] != EVENT_TYPE_LIST
+                        || data[offset + 1] != mTypes.length) {
+                    return false;
+                }
+                offset += 2;
+            }
+
+            for (EventValueType type : mTypes) {
+                if (end - offset < 1) {
+                    return false;
+                }
+                byte binaryType = data[offset++];
+                switch (type) {
+                    case INT:
+                        if (binaryType != EVENT_TYPE_INT || end - offset < 4) {
+                            return false;
+                        }
+                        offset += 4;
+                        break;
+                    case LONG:
+                        if (binaryType != EVENT_TYPE_LONG || end - offset < 8) {
+                            return false;
+                        }
+                        offset += 8;
+                        break;
+                    default:
+                        if (binaryType != EVENT_TYPE_STRING || end - offset < 4) {
+                            return false;
+                        }
+                        int length = ArrayHelper.swap32bitFromArray(data, offset);
+                        offset += 4;
+                        if (length < 0 || end - offset < length) {
+                            return false;
+                        }
+                        offset += length;
+                        break;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Reads the values of an event which {@link #matches(byte[], int, int)} the layout of
+         * the tag into a new row.
+         */
+        void decode(byte[] data, int offset, EventLogColumns columns, int event) {
+            TagColumns tagColumns = columns.getOrCreateTagColumns(mTag, mTypes);
+            int row = tagColumns.addRow(event);
+            columns.setRow(event, row);
+
+            if (mIsList) {
+                offset += 2;
+            }
+
+            for (int i = 0; i < mTypes.length; i++) {
+                offset++; // type, already checked.
+                switch (mTypes[i]) {
+                    case INT:
+                        tagColumns.setLong(row, i, ArrayHelper.swap32bitFromArray(data, offset));
+                        offset += 4;
+                        break;
+                    case LONG:
+                        tagColumns.setLong(row, i, ArrayHelper.swap64bitFromArray(data, offset));
+                        offset += 8;
+                        break;
+                    default:
+                        int length = ArrayHelper.swap32bitFromArray(data, offset);
+                        offset += 4;
+                        try {
+                            tagColumns.setString(row, i,
+                                    new String(data, offset, length, "UTF-8")); //$NON-NLS-1$
+                        } catch (UnsupportedEncodingException e) {
+                            // can't happen, UTF-8 is always supported.
+                        }
+                        offset += length;
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a decoder for the tags known by an {@link EventLogParser}. The parser must have
+     * been initialized already.
+     * @param parser the parser.
+     */
+    public EventLogDecoder(EventLogParser parser) {
+        mParser = parser;
+
+        for (Map.Entry<Integer, EventValueDescription[]> entry :
+                parser.getEventInfoMap().entrySet()) {
+            int tag = entry.getKey();
+            EventValueType[] types;
+            if (tag == GcEventContainer.GC_EVENT_TAG) {
+                // the description of the GC event doesn't match its encoding, which packs
+                // the values in 2 longs.
+                // @see GcEventContainer
+                types = new EventValueType[] { EventValueType.LONG, EventValueType.LONG };
+            } else {
+                types = getTypes(entry.getValue());
+            }
+
+            if (types != null) {
+                mDecoders.put(tag, new TagDecoder(tag, types));
+            }
+        }
+    }
+
+    /**
+     * Returns the types of the values of a tag, or null if they can't be stored in columns.
+     */
+    private static EventValueType[] getTypes(EventValueDescription[] descriptions) {
+        EventValueType[] types = new EventValueType[descriptions.length];
+        for (int i = 0; i < descriptions.length; i++) {
+            EventValueType type = descriptions[i].getEventValueType();
+            if (type != EventValueType.INT && type != EventValueType.LONG
+                    && type != EventValueType.STRING) {
+                return null;
+            }
+            types[i] = type;
+        }
+        return types;
+    }
+
+    /**
+     * Decodes an event received by a {@link LogReceiver}.
+     * @param entry the log entry.
+     * @param columns the columns receiving the event.
+     */
+    public void decode(LogEntry entry, EventLogColumns columns) {
+        if (entry.len < 4) {
+            return;
+        }
+
+        int tag = ArrayHelper.swap32bitFromArray(entry.data, 0);
+        int event = columns.addEvent(tag, entry.pid, entry.tid, entry.sec, entry.nsec);
+
+        TagDecoder decoder = mDecoders.get(tag);
+        if (decoder != null && decoder.matches(entry.data, 4, entry.len)) {
+            decoder.decode(entry.data, 4, columns, event);
+        } else {
+            EventContainer container = mParser.parse(entry);
+            if (container != null) {
+                columns.setUndecodedEvent(event, container);
+            }
+        }
+    }
+
+    /**
+     * Decodes a buffer of raw events, as sent by the "log:events" service: each event is a
+     * 20 byte header followed by its payload.
+     * @param data the buffer.
+     * @param offset the offset of the first event.
+     * @param length the length of the events.
+     * @return the decoded events.
+     */
+    public EventLogColumns decode(byte[] data, int offset, int length) {
+        EventLogColumns columns = new EventLogColumns();
+        decode(data, offset, length, columns);
+        return columns;
+    }
+
+    /**
+     * Decodes a buffer of raw events, as sent by the "log:events" service, and adds them to
+     * existing columns.
+     * @param data the buffer.
+     * @param offset the offset of the first event.
+     * @param length the length of the events.
+     * @param columns the columns receiving the events.
+     * @return the number of bytes which were decoded. It is less than <var>length</var> if the
+     *      buffer ends with an incomplete event.
+     */
+    public int decode(byte[] data, int offset, int length, EventLogColumns columns) {
+        int start = offset;
+        int end = offset + length;
+
+        while (end - offset >= LogReceiver.ENTRY_HEADER_SIZE) {
+            int len = ArrayHelper.swapU16bitFromArray(data, offset);
+            int payload = offset + LogReceiver.ENTRY_HEADER_SIZE;
+            if (end - payload < len) {
+                break;
+            }
+
+            if (len >= 4) {
+                int tag = ArrayHelper.swap32bitFromArray(data, payload);
+                int pid = ArrayHelper.swap32bitFromArray(data, offset + 4);
+                int tid = ArrayHelper.swap32bitFromArray(data, offset + 8);
+                int sec = ArrayHelper.swap32bitFromArray(data, offset + 12);
+                int nsec = ArrayHelper.swap32bitFromArray(data, offset + 16);
+                int event = columns.addEvent(tag, pid, tid, sec, nsec);
+
+                TagDecoder decoder = mDecoders.get(tag);
+                if (decoder != null && decoder.matches(data, payload + 4, payload + len)) {
+                    decoder.decode(data, payload + 4, columns, event);
+                } else {
+                    LogEntry entry = new LogEntry();
+                    entry.len = len;
+                    entry.pid = pid;
+                    entry.tid = tid;
+                    entry.sec = sec;
+                    entry.nsec = nsec;
+                    entry.data = new byte[len];
+                    System.arraycopy(data, payload, entry.data, 0, len);
+
+                    EventContainer container = mParser.parse(entry);
+                    if (container != null) {
+                        columns.setUndecodedEvent(event, container);
+                    }
+                }
+            }
+
+            offset = payload + len;
+        }
+
+        return offset - start;
+    }
+}
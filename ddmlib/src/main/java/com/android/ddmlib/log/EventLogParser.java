@@ -32,9 +32,8 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -68,6 +67,9 @@ public final class EventLogParser {
 
     private final TreeMap<Integer, String> mTagMap = new TreeMap<Integer, String>();
 
+    /** The tag values, by tag name, to look up the tags of text events. */
+    private final HashMap<String, Integer> mTagValueMap = new HashMap<String, Integer>();
+
     private final TreeMap<Integer, EventValueDescription[]> mValueDescriptionMap =
         new TreeMap<Integer, EventValueDescription[]>();
 
@@ -163,7 +165,7 @@ public final class EventLogParser {
                     int value = Integer.parseInt(m.group(1));
                     String name = m.group(2);
                     if (name != null && mTagMap.get(value) == null) {
-                        mTagMap.put(value, name);
+                        addTag(value, name);
                     }
 
                     // special case for the GC tag. We ignore what is in the file,
@@ -194,13 +196,23 @@ public final class EventLogParser {
                     int value = Integer.parseInt(m.group(1));
                     String name = m.group(2);
                     if (name != null && mTagMap.get(value) == null) {
-                        mTagMap.put(value, name);
+                        addTag(value, name);
                     }
                 }
             }
         }
     }
 
+    private void addTag(int value, String name) {
+        mTagMap.put(value, name);
+
+        // keep the lowest value for a name, as the text events used to be matched in order.
+        Integer previous = mTagValueMap.get(name);
+        if (previous == null || previous > value) {
+            mTagValueMap.put(name, value);
+        }
+    }
+
     private EventValueDescription[] processDescription(String description) {
         String[] descriptions = description.split("\\s*,\\s*"); //$NON-NLS-1$
 
@@ -321,18 +333,11 @@ public final class EventLogParser {
                 String tag = m.group(7);
 
                 // get the numerical tag value
-                int tagValue = -1;
-                Set<Entry<Integer, String>> tagSet = mTagMap.entrySet();
-                for (Entry<Integer, String> entry : tagSet) {
-                    if (tag.equals(entry.getValue())) {
-                        tagValue = entry.getKey();
-                        break;
-                    }
-                }
-
-                if (tagValue == -1) {
+                Integer tagValueObject = mTagValueMap.get(tag);
+                if (tagValueObject == null) {
                     return null;
                 }
+                int tagValue = tagValueObject;
 
                 int pid = Integer.parseInt(m.group(8));
 
@@ -26,7 +26,7 @@ import java.security.InvalidParameterException;
  */
 public final class LogReceiver {
 
-    private static final int ENTRY_HEADER_SIZE = 20; // 2*2 + 4*4; see LogEntry.
+    static final int ENTRY_HEADER_SIZE = 20; // 2*2 + 4*4; see LogEntry.
 
     /**
      * Represents a log entry and its raw data.
@@ -107,7 +107,7 @@ public final class LogCatFilter {
      * the following heuristic: if the regex has an upper case character, then the match
      * will be case sensitive. Otherwise it will be case insensitive.
      */
-    private int getPatternCompileFlags(String regex) {
+    static int getPatternCompileFlags(String regex) {
         for (char c : regex.toCharArray()) {
             if (Character.isUpperCase(c)) {
                 return 0;
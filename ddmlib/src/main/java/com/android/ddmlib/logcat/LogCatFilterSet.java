@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.Log.LogLevel;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A set of {@link LogCatFilter}s, which finds all the filters matching a message at once.
+ * <p/>
+ * The result is the same as calling {@link LogCatFilter#matches(LogCatMessage)} on each filter,
+ * but the work is shared between the filters:
+ * <ul>
+ * <li>the filters accepting the level and the pid of a message are precomputed.</li>
+ * <li>the filters matching a tag or an application name are computed once for each distinct
+ * value, since the same tags and applications appear in many messages.</li>
+ * <li>patterns without any special character are matched as plain strings, and the regular
+ * expression of the other patterns is only run if the literal text it starts with is
+ * found.</li>
+ * </ul>
+ * <p/>This class is thread safe.
+ */
+public final class LogCatFilterSet {
+    /** Maximum number of tags and application names for which the matching filters are kept. */
+    private static final int MAX_CACHED_VALUES = 1024;
+
+    private static final LogLevel[] sLogLevels = LogLevel.values();
+
+    private final List<LogCatFilter> mFilters;
+
+    /** Filters accepting each log level, indexed by priority. */
+    private final BitSet[] mLevelFilters;
+
+    /** Filters accepting any pid, and filters accepting a given pid. */
+    private final BitSet mAnyPidFilters = new BitSet();
+    private final Map<String, BitSet> mPidFilters = new HashMap<String, BitSet>();
+
+    /** Matchers of each filter, or null if the filter doesn't check the field. */
+    private final FieldMatcher[] mTagMatchers;
+    private final FieldMatcher[] mAppNameMatchers;
+    private final FieldMatcher[] mTextMatchers;
+
+    /** Filters accepting a given tag or application name. */
+    private final Map<String, BitSet> mTagFilters = new ConcurrentHashMap<String, BitSet>();
+    private final Map<String, BitSet> mAppNameFilters = new ConcurrentHashMap<String, BitSet>();
+
+    /**
+     * Creates a set.
+     * @param filters the filters of the set. The order of the filters is kept in the results.
+     */
+    public LogCatFilterSet(@NonNull List<LogCatFilter> filters) {
+        mFilters = Collections.unmodifiableList(new ArrayList<LogCatFilter>(filters));
+        int count = mFilters.size();
+
+        int maxPriority = 0;
+        for (LogLevel level : sLogLevels) {
+            maxPriority = Math.max(maxPriority, level.getPriority());
+        }
+        mLevelFilters = new BitSet[maxPriority + 1];
+        for (int priority = 0; priority <= maxPriority; priority++) {
+            mLevelFilters[priority] = new BitSet(count);
+        }
+
+        mTagMatchers = new FieldMatcher[count];
+        mAppNameMatchers = new FieldMatcher[count];
+        mTextMatchers = new FieldMatcher[count];
+
+        for (int i = 0; i < count; i++) {
+            LogCatFilter filter = mFilters.get(i);
+
+            for (int priority = filter.getLogLevel().getPriority(); priority <= maxPriority;
+                    priority++) {
+                mLevelFilters[priority].set(i);
+            }
+
+            String pid = filter.getPid();
+            if (pid.isEmpty()) {
+                mAnyPidFilters.set(i);
+            } else {
+                BitSet pidFilters = mPidFilters.get(pid);
+                if (pidFilters == null) {
+                    pidFilters = new BitSet(count);
+                    mPidFilters.put(pid, pidFilters);
+                }
+                pidFilters.set(i);
+            }
+
+            mTagMatchers[i] = FieldMatcher.create(filter.getTag());
+            mAppNameMatchers[i] = FieldMatcher.create(filter.getAppName());
+            mTextMatchers[i] = FieldMatcher.create(filter.getText());
+        }
+    }
+
+    /** Returns the filters of the set. */
+    @NonNull
+    public List<LogCatFilter> getFilters() {
+        return mFilters;
+    }
+
+    /**
+     * Returns the filters matching a message, in the order they were given to the set.
+     * @param m message to check
+     */
+    @NonNull
+    public List<LogCatFilter> getMatchingFilters(@NonNull LogCatMessage m) {
+        int priority = m.getLogLevel().getPriority();
+        if (priority < 0 || priority >= mLevelFilters.length) {
+            return Collections.emptyList();
+        }
+
+        BitSet candidates = (BitSet) mLevelFilters[priority].clone();
+
+        BitSet pidFilters = mPidFilters.get(m.getPid());
+        if (pidFilters != null) {
+            BitSet anyPid = (BitSet) mAnyPidFilters.clone();
+            anyPid.or(pidFilters);
+            candidates.and(anyPid);
+        } else {
+            candidates.and(mAnyPidFilters);
+        }
+
+        if (!candidates.isEmpty()) {
+            candidates.and(getFieldFilters(mAppNameFilters, mAppNameMatchers, m.getAppName()));
+        }
+        if (!candidates.isEmpty()) {
+            candidates.and(getFieldFilters(mTagFilters, mTagMatchers, m.getTag()));
+        }
+
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<LogCatFilter> matches = new ArrayList<LogCatFilter>(candidates.cardinality());
+        String text = m.getMessage();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (mTextMatchers[i] == null || mTextMatchers[i].matches(text)) {
+                matches.add(mFilters.get(i));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns whether any filter of the set matches a message.
+     * @param m message to check
+     */
+    public boolean matchesAny(@NonNull LogCatMessage m) {
+        return !getMatchingFilters(m).isEmpty();
+    }
+
+    /**
+     * Returns the filters accepting a value of a field, computing them the first time the value
+     * is seen.
+     */
+    @NonNull
+    private BitSet getFieldFilters(@NonNull Map<String, BitSet> cache,
+            @NonNull FieldMatcher[] matchers, @NonNull String value) {
+        BitSet filters = cache.get(value);
+        if (filters == null) {
+            filters = new BitSet(matchers.length);
+            for (int i = 0; i < matchers.length; i++) {
+                if (matchers[i] == null || matchers[i].matches(value)) {
+                    filters.set(i);
+                }
+            }
+
+            if (cache.size() >= MAX_CACHED_VALUES) {
+                cache.clear();
+            }
+            cache.put(value, filters);
+        }
+        return filters;
+    }
+
+    /**
+     * Matches a field of a message the same way as {@link LogCatFilter}, by searching for a
+     * regular expression in the field.
+     */
+    private static final class FieldMatcher {
+        /** Characters which have a special meaning in a regular expression. */
+        private static final String META_CHARACTERS = "\\^$.|?*+()[]{}"; //$NON-NLS-1$
+
+        private final Pattern mPattern;
+        private final boolean mCaseInsensitive;
+
+        /** Whether the pattern must match at the beginning of the field. */
+        private final boolean mAnchored;
+
+        /** The literal text the pattern starts with, which may be empty. */
+        @NonNull
+        private final String mPrefix;
+
+        /** Whether the pattern is entirely made of {@link #mPrefix}. */
+        private final boolean mLiteral;
+
+        /**
+         * Returns a matcher for the given regular expression, or null if the field should not
+         * be checked, either because the expression is empty or because it is invalid.
+         */
+        @Nullable
+        static FieldMatcher create(@NonNull String regex) {
+            if (regex.isEmpty()) {
+                return null;
+            }
+
+            int flags = LogCatFilter.getPatternCompileFlags(regex);
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile(regex, flags);
+            } catch (PatternSyntaxException e) {
+                return null;
+            }
+
+            boolean anchored = regex.charAt(0) == '^';
+            int start = anchored ? 1 : 0;
+            int end = start;
+            while (end < regex.length() && META_CHARACTERS.indexOf(regex.charAt(end)) < 0) {
+                end++;
+            }
+
+            boolean literal = end == regex.length();
+            if (!literal) {
+                if (regex.indexOf('|') >= 0) {
+                    // with an alternative, no text is required
+                    end = start;
+                } else {
+                    // the last character is optional if it is followed by these quantifiers
+                    char next = regex.charAt(end);
+                    if ((next == '?' || next == '*' || next == '{') && end > start) {
+                        end--;
+                    }
+                }
+            }
+
+            return new FieldMatcher(pattern, flags == Pattern.CASE_INSENSITIVE, anchored,
+                    regex.substring(start, end), literal);
+        }
+
+        private FieldMatcher(@NonNull Pattern pattern, boolean caseInsensitive,
+                boolean anchored, @NonNull String prefix, boolean literal) {
+            mPattern = pattern;
+            mCaseInsensitive = caseInsensitive;
+            mAnchored = anchored;
+            mPrefix = prefix;
+            mLiteral = literal;
+        }
+
+        boolean matches(@NonNull String value) {
+            if (!mPrefix.isEmpty()) {
+                boolean found = mAnchored ? regionMatches(value, 0) : indexOf(value) >= 0;
+                if (!found || mLiteral) {
+                    return found;
+                }
+            } else if (mLiteral) {
+                // "^" alone matches anything
+                return true;
+            }
+
+            return mPattern.matcher(value).find();
+        }
+
+        private int indexOf(@NonNull String value) {
+            if (!mCaseInsensitive) {
+                return value.indexOf(mPrefix);
+            }
+
+            for (int i = 0; i <= value.length() - mPrefix.length(); i++) {
+                if (regionMatches(value, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns whether the prefix is found in the value at the given offset. When ignoring
+         * case, only ASCII characters are compared without case, as with
+         * {@link Pattern#CASE_INSENSITIVE}.
+         */
+        private boolean regionMatches(@NonNull String value, int offset) {
+            if (offset + mPrefix.length() > value.length()) {
+                return false;
+            }
+
+            for (int i = 0; i < mPrefix.length(); i++) {
+                char c = value.charAt(offset + i);
+                char p = mPrefix.charAt(i);
+                if (c != p && !(mCaseInsensitive && toLowerAscii(c) == toLowerAscii(p))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static char toLowerAscii(char c) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+    }
+}
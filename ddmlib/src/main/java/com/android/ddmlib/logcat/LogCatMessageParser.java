@@ -17,17 +17,25 @@
 package com.android.ddmlib.logcat;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
 import com.google.common.primitives.Ints;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Class to parse raw output of {@code adb logcat -v long} to {@link LogCatMessage} objects.
+ * <p/>
+ * The output can be given either as lines, with {@link #processLogLines(String[], IDevice)},
+ * or as the raw bytes received from the device, with
+ * {@link #processLogData(byte[], int, int, IDevice)}. The latter avoids creating a
+ * {@link String} for each line, and only creates new strings for the message text and the
+ * time of each message: tags, pids and thread ids are shared between messages.
  */
 public final class LogCatMessageParser {
     private LogLevel mCurLogLevel = LogLevel.WARN;
@@ -36,23 +44,25 @@ public final class LogCatMessageParser {
     private String mCurTag = "?";
     private String mCurTime = "?:??";
 
-    /**
-     * This pattern is meant to parse the first line of a log message with the option
-     * 'logcat -v long'. The first line represents the date, tag, severity, etc.. while the
-     * following lines are the message (can be several lines).<br>
-     * This first line looks something like:<br>
-     * {@code "[ 00-00 00:00:00.000 <pid>:0x<???> <severity>/<tag>]"}
-     * <br>
-     * Note: severity is one of V, D, I, W, E, A? or F. However, there doesn't seem to be
-     *       a way to actually generate an A (assert) message. Log.wtf is supposed to generate
-     *       a message with severity A, however it generates the undocumented F level. In
-     *       such a case, the parser will change the level from F to A.<br>
-     * Note: the fraction of second value can have any number of digit.<br>
-     * Note: the tag should be trimmed as it may have spaces at the end.
-     */
-    private static final Pattern sLogHeaderPattern = Pattern.compile(
-            "^\\[\\s(\\d\\d-\\d\\d\\s\\d\\d:\\d\\d:\\d\\d\\.\\d+)"
-          + "\\s+(\\d*):\\s*(\\S+)\\s([VDIWEAF])/(.*)\\]$");
+    /** The package name of the process of the current header, looked up when first needed. */
+    private String mCurAppName = null;
+
+    /** Log levels, indexed by their priority letter. */
+    private static final LogLevel[] sLogLevels = new LogLevel[128];
+    static {
+        for (LogLevel level : LogLevel.values()) {
+            sLogLevels[level.getPriorityLetter()] = level;
+        }
+    }
+
+    /** Caches of the values that are repeated between messages. */
+    private final StringCache mTags = new StringCache();
+    private final StringCache mPids = new StringCache();
+    private final StringCache mTids = new StringCache();
+
+    /** The beginning of an unfinished line, stored for the next call. */
+    private byte[] mUnfinishedLine = new byte[256];
+    private int mUnfinishedLineLength = 0;
 
     /**
      * Parse a list of strings into {@link LogCatMessage} objects. This method
@@ -67,35 +77,279 @@ public final class LogCatMessageParser {
         List<LogCatMessage> messages = new ArrayList<LogCatMessage>(lines.length);
 
         for (String line : lines) {
-            if (line.isEmpty()) {
+            byte[] bytes = line.getBytes(Charsets.UTF_8);
+            processLine(bytes, 0, bytes.length, device, messages);
+        }
+
+        return messages;
+    }
+
+    /**
+     * Parses raw output of logcat -v long, as received from the device, into
+     * {@link LogCatMessage} objects. The data doesn't have to end on a line boundary:
+     * unfinished lines are kept until the next call. This method maintains state from previous
+     * calls regarding the last seen header of logcat messages.
+     * @param data the buffer containing the output.
+     * @param offset the offset of the output in the buffer.
+     * @param length the length of the output.
+     * @param device device from which this output has been received
+     * @return list of LogMessage objects parsed from the complete lines of the output, which
+     *      may be empty.
+     */
+    @NonNull
+    public List<LogCatMessage> processLogData(@NonNull byte[] data, int offset, int length,
+            @Nullable IDevice device) {
+        List<LogCatMessage> messages = null;
+        int end = offset + length;
+        int start = offset;
+
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
                 continue;
             }
 
-            Matcher matcher = sLogHeaderPattern.matcher(line);
-            if (matcher.matches()) {
-                mCurTime = matcher.group(1);
-                mCurPid = matcher.group(2);
-                mCurTid = matcher.group(3);
-                mCurLogLevel = LogLevel.getByLetterString(matcher.group(4));
-                mCurTag = matcher.group(5).trim();
-
-                /* LogLevel doesn't support messages with severity "F". Log.wtf() is supposed
-                 * to generate "A", but generates "F". */
-                if (mCurLogLevel == null && matcher.group(4).equals("F")) {
-                    mCurLogLevel = LogLevel.ASSERT;
-                }
+            if (messages == null) {
+                messages = new ArrayList<LogCatMessage>();
+            }
+
+            if (mUnfinishedLineLength > 0) {
+                appendUnfinishedLine(data, start, i);
+                processLine(mUnfinishedLine, 0, mUnfinishedLineLength, device, messages);
+                mUnfinishedLineLength = 0;
             } else {
-                String pkgName = ""; //$NON-NLS-1$
-                Integer pid = Ints.tryParse(mCurPid);
-                if (pid != null && device != null) {
-                    pkgName = device.getClientName(pid);
-                }
-                LogCatMessage m = new LogCatMessage(mCurLogLevel, mCurPid, mCurTid,
-                        pkgName, mCurTag, mCurTime, line);
-                messages.add(m);
+                processLine(data, start, i, device, messages);
             }
+            start = i + 1;
         }
 
+        appendUnfinishedLine(data, start, end);
+
+        if (messages == null) {
+            return Collections.emptyList();
+        }
+        return messages;
+    }
+
+    /**
+     * Parses the unfinished line left by the previous calls to
+     * {@link #processLogData(byte[], int, int, IDevice)}, once there is no more output.
+     * @param device device from which the output has been received
+     * @return list of LogMessage objects parsed from the unfinished line, which may be empty.
+     */
+    @NonNull
+    public List<LogCatMessage> flush(@Nullable IDevice device) {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>(1);
+        if (mUnfinishedLineLength > 0) {
+            processLine(mUnfinishedLine, 0, mUnfinishedLineLength, device, messages);
+            mUnfinishedLineLength = 0;
+        }
         return messages;
     }
+
+    private void appendUnfinishedLine(byte[] data, int start, int end) {
+        int length = end - start;
+        if (mUnfinishedLineLength + length > mUnfinishedLine.length) {
+            mUnfinishedLine = Arrays.copyOf(mUnfinishedLine,
+                    Math.max(mUnfinishedLine.length * 2, mUnfinishedLineLength + length));
+        }
+        System.arraycopy(data, start, mUnfinishedLine, mUnfinishedLineLength, length);
+        mUnfinishedLineLength += length;
+    }
+
+    /**
+     * Processes a single line, without its line terminator.
+     */
+    private void processLine(byte[] data, int start, int end, IDevice device,
+            List<LogCatMessage> messages) {
+        // lines from the shell are terminated by \r\n.
+        if (end > start && data[end - 1] == '\r') {
+            end--;
+        }
+
+        if (end == start) {
+            return;
+        }
+
+        if (!parseHeader(data, start, end)) {
+            if (mCurAppName == null) {
+                mCurAppName = getAppName(device);
+            }
+            String line = new String(data, start, end - start, Charsets.UTF_8);
+            messages.add(new LogCatMessage(mCurLogLevel, mCurPid, mCurTid, mCurAppName,
+                    mCurTag, mCurTime, line));
+        }
+    }
+
+    @NonNull
+    private String getAppName(@Nullable IDevice device) {
+        String pkgName = ""; //$NON-NLS-1$
+        Integer pid = Ints.tryParse(mCurPid);
+        if (pid != null && device != null) {
+            pkgName = device.getClientName(pid);
+        }
+        return pkgName;
+    }
+
+    /**
+     * Parses the first line of a log message with the option 'logcat -v long', and updates the
+     * current header values if it is one. The first line represents the date, tag, severity,
+     * etc.. while the following lines are the message (can be several lines).<br>
+     * This first line looks something like:<br>
+     * {@code "[ 00-00 00:00:00.000 <pid>:0x<???> <severity>/<tag>]"}
+     * <br>
+     * Note: severity is one of V, D, I, W, E, A? or F. However, there doesn't seem to be
+     *       a way to actually generate an A (assert) message. Log.wtf is supposed to generate
+     *       a message with severity A, however it generates the undocumented F level. In
+     *       such a case, the parser will change the level from F to A.<br>
+     * Note: the fraction of second value can have any number of digit.<br>
+     * Note: the tag should be trimmed as it may have spaces at the end.
+     * @return true if the line is a header.
+     */
+    private boolean parseHeader(byte[] data, int start, int end) {
+        // the smallest header is "[ MM-DD hh:mm:ss.s :t L/]"
+        if (end - start < 25 || data[start] != '[' || !isWhitespace(data[start + 1])
+                || data[end - 1] != ']') {
+            return false;
+        }
+
+        // time
+        int timeStart = start + 2;
+        if (!isDigits(data, timeStart, 2) || data[timeStart + 2] != '-'
+                || !isDigits(data, timeStart + 3, 2) || !isWhitespace(data[timeStart + 5])
+                || !isDigits(data, timeStart + 6, 2) || data[timeStart + 8] != ':'
+                || !isDigits(data, timeStart + 9, 2) || data[timeStart + 11] != ':'
+                || !isDigits(data, timeStart + 12, 2) || data[timeStart + 14] != '.') {
+            return false;
+        }
+        int i = timeStart + 15;
+        int fractionStart = i;
+        while (i < end && isDigit(data[i])) {
+            i++;
+        }
+        int timeEnd = i;
+        if (timeEnd == fractionStart) {
+            return false;
+        }
+
+        // pid
+        int whitespaceStart = i;
+        while (i < end && isWhitespace(data[i])) {
+            i++;
+        }
+        if (i == whitespaceStart) {
+            return false;
+        }
+        int pidStart = i;
+        while (i < end && isDigit(data[i])) {
+            i++;
+        }
+        int pidEnd = i;
+        if (i == end || data[i] != ':') {
+            return false;
+        }
+        i++;
+
+        // tid
+        while (i < end && isWhitespace(data[i])) {
+            i++;
+        }
+        int tidStart = i;
+        while (i < end && !isWhitespace(data[i])) {
+            i++;
+        }
+        int tidEnd = i;
+        if (tidEnd == tidStart) {
+            return false;
+        }
+
+        // level, and tag until the final ']'
+        if (i + 3 > end - 1 || data[i + 2] != '/') {
+            return false;
+        }
+        /* LogLevel doesn't support messages with severity "F". Log.wtf() is supposed
+         * to generate "A", but generates "F". */
+        byte letter = data[i + 1];
+        LogLevel level = letter >= 0 ? sLogLevels[letter] : null;
+        if (letter == 'F') {
+            level = LogLevel.ASSERT;
+        }
+        if (level == null) {
+            return false;
+        }
+
+        int tagStart = i + 3;
+        int tagEnd = end - 1;
+        while (tagStart < tagEnd && (data[tagStart] & 0xff) <= ' ') {
+            tagStart++;
+        }
+        while (tagEnd > tagStart && (data[tagEnd - 1] & 0xff) <= ' ') {
+            tagEnd--;
+        }
+
+        mCurLogLevel = level;
+        mCurTime = new String(data, timeStart, timeEnd - timeStart, Charsets.ISO_8859_1);
+        mCurPid = mPids.get(data, pidStart, pidEnd);
+        mCurTid = mTids.get(data, tidStart, tidEnd);
+        mCurTag = mTags.get(data, tagStart, tagEnd);
+        mCurAppName = null;
+        return true;
+    }
+
+    private static boolean isDigits(byte[] data, int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            if (!isDigit(data[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /** Returns whether a byte is a whitespace character, as matched by \s in a regexp. */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /**
+     * A cache of the strings decoded from ranges of bytes, so that values repeated in many
+     * messages are decoded once and share the same instance. The cache is bounded: an entry
+     * is replaced by any other value with the same hash slot.
+     */
+    private static final class StringCache {
+        private static final int SIZE = 512;
+
+        private final byte[][] mKeys = new byte[SIZE][];
+        private final String[] mValues = new String[SIZE];
+
+        @NonNull
+        String get(byte[] data, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + data[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+
+            byte[] key = mKeys[slot];
+            if (key != null && key.length == end - start) {
+                boolean equal = true;
+                for (int i = 0; i < key.length; i++) {
+                    if (key[i] != data[start + i]) {
+                        equal = false;
+                        break;
+                    }
+                }
+                if (equal) {
+                    return mValues[slot];
+                }
+            }
+
+            String value = new String(data, start, end - start, Charsets.UTF_8);
+            mKeys[slot] = Arrays.copyOfRange(data, start, end);
+            mValues[slot] = value;
+            return value;
+        }
+    }
 }
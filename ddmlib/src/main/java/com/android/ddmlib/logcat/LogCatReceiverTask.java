@@ -17,14 +17,17 @@
 package com.android.ddmlib.logcat;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.ddmlib.AdbCommandRejectedException;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log.LogLevel;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
+import com.android.ddmlib.log.LogReceiver;
+import com.android.ddmlib.log.LogReceiver.ILogListener;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
 
 import java.io.IOException;
 import java.util.Collections;
@@ -33,8 +36,17 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Receives the log of a device, and gives the messages to {@link LogCatListener}s.
+ * <p/>
+ * By default, the task parses the text output of {@code logcat -v long}. In binary mode, it
+ * reads the binary log entries from the device instead, and keeps the most recent ones in a
+ * {@link LogCatRingBuffer}: entries are only converted to text when there are listeners, or
+ * when they are queried from the buffer.
+ */
 public class LogCatReceiverTask implements Runnable {
     private static final String LOGCAT_COMMAND = "logcat -v long"; //$NON-NLS-1$
+    private static final String LOG_NAME = "main"; //$NON-NLS-1$
     private static final int DEVICE_POLL_INTERVAL_MSEC = 1000;
 
     private static final LogCatMessage sDeviceDisconnectedMsg =
@@ -49,6 +61,12 @@ public class LogCatReceiverTask implements Runnable {
     private final LogCatMessageParser mParser;
     private final AtomicBoolean mCancelled;
 
+    /** The buffer and the receiver of the binary log entries, or null in text mode. */
+    @Nullable
+    private final LogCatRingBuffer mRingBuffer;
+    @Nullable
+    private final LogReceiver mLogReceiver;
+
     @GuardedBy("this")
     private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
 
@@ -58,6 +76,32 @@ public class LogCatReceiverTask implements Runnable {
         mReceiver = new LogCatOutputReceiver();
         mParser = new LogCatMessageParser();
         mCancelled = new AtomicBoolean();
+        mRingBuffer = null;
+        mLogReceiver = null;
+    }
+
+    /**
+     * Creates a task reading the binary log entries of the device.
+     * @param device the device to read the log from.
+     * @param ringBufferCapacity the size, in bytes, of the buffer keeping the most recent
+     *      entries.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, int ringBufferCapacity) {
+        mDevice = device;
+
+        mReceiver = null;
+        mParser = null;
+        mCancelled = new AtomicBoolean();
+        mRingBuffer = new LogCatRingBuffer(ringBufferCapacity);
+        mLogReceiver = new LogReceiver(new LogEntryListener());
+    }
+
+    /**
+     * Returns the buffer of the most recent log entries in binary mode, or null in text mode.
+     */
+    @Nullable
+    public LogCatRingBuffer getRingBuffer() {
+        return mRingBuffer;
     }
 
     @Override
@@ -72,11 +116,16 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         try {
-            mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            if (mLogReceiver != null) {
+                mDevice.runLogService(LOG_NAME, mLogReceiver);
+            } else {
+                mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            }
         } catch (TimeoutException e) {
             notifyListeners(Collections.singletonList(sConnectionTimeoutMsg));
         } catch (AdbCommandRejectedException ignored) {
-            // will not be thrown as long as the shell supports logcat
+            // will not be thrown as long as the shell supports logcat, or the device has a
+            // log service in binary mode
         } catch (ShellCommandUnresponsiveException ignored) {
             // this will not be thrown since the last argument is 0
         } catch (IOException e) {
@@ -88,13 +137,42 @@ public class LogCatReceiverTask implements Runnable {
 
     public void stop() {
         mCancelled.set(true);
+        if (mLogReceiver != null) {
+            mLogReceiver.cancel();
+        }
     }
 
-    private class LogCatOutputReceiver extends MultiLineReceiver {
-        public LogCatOutputReceiver() {
-            setTrimLine(false);
+    /**
+     * Receives the binary log entries, and keeps them in the ring buffer. The entries are only
+     * converted to messages when someone is listening.
+     */
+    private class LogEntryListener implements ILogListener {
+        @Override
+        public void newEntry(LogEntry entry) {
+            if (mCancelled.get()) {
+                return;
+            }
+
+            mRingBuffer.add(entry);
+            if (hasListeners()) {
+                List<LogCatMessage> messages = mRingBuffer.decode(entry, mDevice);
+                if (!messages.isEmpty()) {
+                    notifyListeners(messages);
+                }
+            }
         }
 
+        @Override
+        public void newData(byte[] data, int offset, int length) {
+            // the entries are handled in newEntry
+        }
+    }
+
+    /**
+     * Receives the raw output of logcat, and gives it to the parser without splitting it into
+     * lines first. Listeners receive all the messages parsed from a chunk of output at once.
+     */
+    private class LogCatOutputReceiver implements IShellOutputReceiver {
         /** Implements {@link IShellOutputReceiver#isCancelled() }. */
         @Override
         public boolean isCancelled() {
@@ -102,14 +180,20 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         @Override
-        public void processNewLines(String[] lines) {
+        public void addOutput(byte[] data, int offset, int length) {
             if (!mCancelled.get()) {
-                processLogLines(lines);
+                processLogMessages(mParser.processLogData(data, offset, length, mDevice));
             }
         }
 
-        private void processLogLines(String[] lines) {
-            List<LogCatMessage> newMessages = mParser.processLogLines(lines, mDevice);
+        @Override
+        public void flush() {
+            if (!mCancelled.get()) {
+                processLogMessages(mParser.flush(mDevice));
+            }
+        }
+
+        private void processLogMessages(List<LogCatMessage> newMessages) {
             if (!newMessages.isEmpty()) {
                 notifyListeners(newMessages);
             }
@@ -124,6 +208,10 @@ public class LogCatReceiverTask implements Runnable {
         mListeners.remove(l);
     }
 
+    private synchronized boolean hasListeners() {
+        return !mListeners.isEmpty();
+    }
+
     private synchronized void notifyListeners(List<LogCatMessage> messages) {
         for (LogCatListener l: mListeners) {
             l.log(messages);
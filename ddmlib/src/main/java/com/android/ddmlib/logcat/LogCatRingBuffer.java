@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A fixed capacity buffer of the most recent binary log entries of a device.
+ * <p/>
+ * Entries are kept in their binary form, outside of the java heap, and the oldest entries are
+ * discarded when there is no room left for new ones. They are only converted to
+ * {@link LogCatMessage}s when they are queried.
+ * <p/>
+ * Each entry is identified by a sequence number, which increases by one for each entry added
+ * to the buffer, so that new entries can be queried incrementally.
+ * <p/>This class is thread safe.
+ */
+public final class LogCatRingBuffer {
+    /** Size of the header of each entry: payload length, pid, tid, sec, nsec. */
+    private static final int HEADER_SIZE = 20;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    /** Absolute positions of the oldest entry, and of the end of the newest entry. */
+    private long mStart;
+    private long mEnd;
+
+    private int mCount;
+    private long mFirstSequence;
+
+    /** Used to format the time of the entries, in the same format as 'logcat -v long'. */
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("MM-dd HH:mm:ss",
+            Locale.US);
+    private int mLastFormattedSec = -1;
+    private String mLastFormattedTime;
+
+    /**
+     * Creates a buffer.
+     * @param capacity the size of the buffer, in bytes.
+     */
+    public LogCatRingBuffer(int capacity) {
+        mCapacity = capacity;
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Adds an entry to the buffer, discarding the oldest entries if needed. Entries that are
+     * bigger than the whole buffer are ignored.
+     */
+    public synchronized void add(@NonNull LogEntry entry) {
+        int size = HEADER_SIZE + entry.len;
+        if (size > mCapacity) {
+            return;
+        }
+
+        while (mCapacity - (mEnd - mStart) < size) {
+            mStart += HEADER_SIZE + getInt(mStart);
+            mCount--;
+            mFirstSequence++;
+        }
+
+        putInt(mEnd, entry.len);
+        putInt(mEnd + 4, entry.pid);
+        putInt(mEnd + 8, entry.tid);
+        putInt(mEnd + 12, entry.sec);
+        putInt(mEnd + 16, entry.nsec);
+        put(mEnd + HEADER_SIZE, entry.data, 0, entry.len);
+        mEnd += size;
+        mCount++;
+    }
+
+    /** Returns the number of entries in the buffer. */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /** Returns the sequence number of the oldest entry in the buffer. */
+    public synchronized long getFirstSequence() {
+        return mFirstSequence;
+    }
+
+    /** Returns the sequence number of the next entry that will be added to the buffer. */
+    public synchronized long getNextSequence() {
+        return mFirstSequence + mCount;
+    }
+
+    /** Discards all the entries of the buffer. */
+    public synchronized void clear() {
+        mFirstSequence += mCount;
+        mCount = 0;
+        mStart = mEnd = 0;
+    }
+
+    /**
+     * Returns the messages of the entries in the buffer, starting at the given sequence number.
+     * Entries that were already discarded are skipped. An entry whose text spans several lines
+     * is converted to one message per line, as in the output of 'logcat -v long'.
+     * @param fromSequence the sequence number of the first entry to return.
+     * @param device the device the entries come from, used to find the name of the
+     *      application of each message.
+     */
+    @NonNull
+    public synchronized List<LogCatMessage> getMessages(long fromSequence,
+            @Nullable IDevice device) {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+
+        long position = mStart;
+        for (long sequence = mFirstSequence; sequence < mFirstSequence + mCount; sequence++) {
+            int len = getInt(position);
+            if (sequence >= fromSequence) {
+                addMessages(position, len, device, messages);
+            }
+            position += HEADER_SIZE + len;
+        }
+
+        return messages;
+    }
+
+    /**
+     * Returns the messages of an entry that is not in the buffer, in the same form as
+     * {@link #getMessages(long, IDevice)}.
+     */
+    @NonNull
+    synchronized List<LogCatMessage> decode(@NonNull LogEntry entry, @Nullable IDevice device) {
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>(1);
+        addMessages(entry.data, entry.len, entry.pid, entry.tid, entry.sec, entry.nsec, device,
+                messages);
+        return messages;
+    }
+
+    private void addMessages(long position, int len, @Nullable IDevice device,
+            @NonNull List<LogCatMessage> messages) {
+        byte[] payload = new byte[len];
+        get(position + HEADER_SIZE, payload);
+        addMessages(payload, len, getInt(position + 4), getInt(position + 8),
+                getInt(position + 12), getInt(position + 16), device, messages);
+    }
+
+    /**
+     * Converts an entry to messages. The payload of an entry is the priority, followed by the
+     * tag and the text of the message, both terminated by 0.
+     */
+    private void addMessages(byte[] payload, int len, int pid, int tid, int sec, int nsec,
+            @Nullable IDevice device, @NonNull List<LogCatMessage> messages) {
+        if (len == 0) {
+            return;
+        }
+
+        LogLevel level = getLogLevel(payload[0]);
+
+        int tagEnd = 1;
+        while (tagEnd < len && payload[tagEnd] != 0) {
+            tagEnd++;
+        }
+        String tag = new String(payload, 1, tagEnd - 1, Charsets.UTF_8).trim();
+
+        int textStart = Math.min(tagEnd + 1, len);
+        int textEnd = len;
+        while (textEnd > textStart && (payload[textEnd - 1] == 0
+                || payload[textEnd - 1] == '\n')) {
+            textEnd--;
+        }
+
+        String pidString = Integer.toString(pid);
+        String tidString = Integer.toString(tid);
+        String appName = device != null ? device.getClientName(pid) : null;
+        if (appName == null) {
+            appName = ""; //$NON-NLS-1$
+        }
+        String time = formatTime(sec, nsec);
+
+        int lineStart = textStart;
+        for (int i = textStart; i <= textEnd; i++) {
+            if (i == textEnd || payload[i] == '\n') {
+                String text = new String(payload, lineStart, i - lineStart, Charsets.UTF_8);
+                messages.add(new LogCatMessage(level, pidString, tidString, appName, tag, time,
+                        text));
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    @NonNull
+    private static LogLevel getLogLevel(int priority) {
+        for (LogLevel level : LogLevel.values()) {
+            if (level.getPriority() == priority) {
+                return level;
+            }
+        }
+
+        // unknown and default priorities are shown as verbose, and fatal ones as assert.
+        return priority < LogLevel.VERBOSE.getPriority() ? LogLevel.VERBOSE : LogLevel.ASSERT;
+    }
+
+    @NonNull
+    private String formatTime(int sec, int nsec) {
+        if (sec != mLastFormattedSec) {
+            mLastFormattedTime = mTimeFormat.format(new Date(sec * 1000L));
+            mLastFormattedSec = sec;
+        }
+        return String.format(Locale.US, "%s.%03d", mLastFormattedTime, nsec / 1000000);
+    }
+
+    private int getInt(long position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (mBuffer.get((int) ((position + i) % mCapacity)) & 0xff);
+        }
+        return value;
+    }
+
+    private void putInt(long position, int value) {
+        for (int i = 0; i < 4; i++) {
+            mBuffer.put((int) ((position + i) % mCapacity), (byte) (value >>> (24 - 8 * i)));
+        }
+    }
+
+    /** Copies data to the buffer, wrapping around its end if needed. */
+    private void put(long position, byte[] data, int offset, int length) {
+        int start = (int) (position % mCapacity);
+        int first = Math.min(length, mCapacity - start);
+        mBuffer.position(start);
+        mBuffer.put(data, offset, first);
+        if (first < length) {
+            mBuffer.position(0);
+            mBuffer.put(data, offset + first, length - first);
+        }
+    }
+
+    /** Fills an array from the buffer, wrapping around its end if needed. */
+    private void get(long position, byte[] data) {
+        int start = (int) (position % mCapacity);
+        int first = Math.min(data.length, mCapacity - start);
+        mBuffer.position(start);
+        mBuffer.get(data, 0, first);
+        if (first < data.length) {
+            mBuffer.position(0);
+            mBuffer.get(data, first, data.length - first);
+        }
+    }
+}
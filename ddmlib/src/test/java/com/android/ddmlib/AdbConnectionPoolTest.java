@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link AdbConnectionPool}, with a fake adb server running shell commands.
+ */
+public class AdbConnectionPoolTest extends TestCase {
+
+    private ServerSocket mServer;
+    private Thread mServerThread;
+    private IDevice mDevice;
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mServerThread = new Thread("Fake adb") {
+            @Override
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = mServer.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    synchronized (mSockets) {
+                        mSockets.add(socket);
+                    }
+                    new Thread("Fake adb connection") {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }.start();
+                }
+            }
+        };
+        mServerThread.start();
+
+        mDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mDevice.getSerialNumber()).andStubReturn("emulator-5554");
+        EasyMock.replay(mDevice);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mServerThread.join();
+        AdbConnectionPool.closeConnections("emulator-5554");
+        DdmPreferences.setWarmConnectionCount(DdmPreferences.DEFAULT_WARM_CONNECTION_COUNT);
+    }
+
+    public void testReuse() throws Exception {
+        InetSocketAddress address = (InetSocketAddress) mServer.getLocalSocketAddress();
+        long reused = AdbConnectionPool.getReusedConnectionCount();
+        long requests = AdbConnectionPool.getRequestCount();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("echo " + i, execute(address, "echo " + i));
+            waitForIdleConnection();
+        }
+
+        assertEquals(requests + 5, AdbConnectionPool.getRequestCount());
+        // only the first request had to connect.
+        assertEquals(reused + 4, AdbConnectionPool.getReusedConnectionCount());
+        assertEquals(0, AdbConnectionPool.getInFlightRequestCount());
+        assertTrue(AdbConnectionPool.getAverageHandshakeTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    public void testClosedConnection() throws Exception {
+        InetSocketAddress address = (InetSocketAddress) mServer.getLocalSocketAddress();
+        assertEquals("first", execute(address, "first"));
+        waitForIdleConnection();
+
+        // the idle connection is closed by adb, and must not be used.
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+        Thread.sleep(100);
+
+        long reused = AdbConnectionPool.getReusedConnectionCount();
+        assertEquals("second", execute(address, "second"));
+        assertEquals(reused, AdbConnectionPool.getReusedConnectionCount());
+    }
+
+    public void testDisabled() throws Exception {
+        DdmPreferences.setWarmConnectionCount(0);
+        InetSocketAddress address = (InetSocketAddress) mServer.getLocalSocketAddress();
+        long reused = AdbConnectionPool.getReusedConnectionCount();
+
+        execute(address, "first");
+        execute(address, "second");
+        assertEquals(reused, AdbConnectionPool.getReusedConnectionCount());
+        assertEquals(0, AdbConnectionPool.getIdleConnectionCount());
+    }
+
+    private String execute(InetSocketAddress address, String command) throws Exception {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        AdbHelper.executeRemoteCommand(address, command, mDevice, receiver, 5, TimeUnit.SECONDS);
+        return receiver.getOutput();
+    }
+
+    private static void waitForIdleConnection() throws InterruptedException {
+        for (int i = 0; i < 100 && AdbConnectionPool.getIdleConnectionCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, AdbConnectionPool.getIdleConnectionCount());
+    }
+
+    /**
+     * Serves a connection: selects the transport, then runs a shell command which echoes
+     * itself.
+     */
+    private static void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            if (!readRequest(in).startsWith("host:transport:")) {
+                socket.close();
+                return;
+            }
+            out.write("OKAY".getBytes("UTF-8"));
+
+            String request = readRequest(in);
+            out.write("OKAY".getBytes("UTF-8"));
+            out.write(request.substring("shell:".length()).getBytes("UTF-8"));
+            socket.close();
+        } catch (IOException e) {
+            // the connection was closed.
+        }
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        in.readFully(length);
+        byte[] request = new byte[Integer.parseInt(new String(length, "UTF-8"), 16)];
+        in.readFully(request);
+        return new String(request, "UTF-8");
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.AndroidDebugBridge.IClientChangeListener;
+import com.android.ddmlib.AndroidDebugBridge.IDeviceChangeListener;
+import com.android.ddmlib.IDevice.DeviceState;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for the notification of the device and client changes by
+ * {@link AndroidDebugBridge}.
+ */
+public class AndroidDebugBridgeTest extends TestCase {
+    private final List<String> mEvents = new ArrayList<String>();
+    private final Thread mTestThread = Thread.currentThread();
+    private AndroidDebugBridge mBridge;
+    private Device mDevice;
+    private Client mClient;
+
+    /** Records the changes, and is slow to handle the device changes. */
+    private final IDeviceChangeListener mDeviceListener = new IDeviceChangeListener() {
+        @Override
+        public void deviceConnected(IDevice device) {
+            record("connected " + device.getSerialNumber());
+        }
+
+        @Override
+        public void deviceDisconnected(IDevice device) {
+            record("disconnected " + device.getSerialNumber());
+        }
+
+        @Override
+        public void deviceChanged(IDevice device, int changeMask) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            record("device changed " + changeMask + " "
+                    + device.getClients().length + " clients");
+        }
+    };
+
+    /** Records the changes, with the thread they are sent from and the state of the client. */
+    private final IClientChangeListener mClientListener = new IClientChangeListener() {
+        @Override
+        public void clientChanged(Client client, int changeMask) {
+            record("client changed " + changeMask + " "
+                    + client.getClientData().getPid() + " "
+                    + client.getClientData().getDebuggerConnectionStatus()
+                    + (Thread.currentThread() == mTestThread ? "" : " on another thread"));
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        mBridge = new AndroidDebugBridge();
+        mDevice = new Device(new DeviceMonitor(mBridge), "emulator-5554", DeviceState.ONLINE);
+        mClient = new Client(mDevice, null, 42);
+        AndroidDebugBridge.addDeviceChangeListener(mDeviceListener);
+        AndroidDebugBridge.addClientChangeListener(mClientListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        AndroidDebugBridge.removeDeviceChangeListener(mDeviceListener);
+        AndroidDebugBridge.removeClientChangeListener(mClientListener);
+    }
+
+    private void record(String event) {
+        synchronized (mEvents) {
+            mEvents.add(event);
+        }
+    }
+
+    private List<String> getEvents() {
+        synchronized (mEvents) {
+            return new ArrayList<String>(mEvents);
+        }
+    }
+
+    public void testDeviceEventOrder() throws Exception {
+        mBridge.deviceConnected(mDevice);
+        mDevice.addClient(mClient);
+        mBridge.deviceChanged(mDevice, IDevice.CHANGE_CLIENT_LIST);
+        mDevice.update(IDevice.CHANGE_STATE);
+        mBridge.deviceDisconnected(mDevice);
+
+        // The events are sent on another thread, but in order.
+        AndroidDebugBridge.waitForPendingEvents();
+        assertEquals(Arrays.asList(
+                "connected emulator-5554",
+                "device changed 2 1 clients",
+                "device changed 1 1 clients",
+                "disconnected emulator-5554"), getEvents());
+    }
+
+    public void testClientEventsSentSynchronously() throws Exception {
+        // The listener reads the data of the client right when it changes, not after the next
+        // changes.
+        ClientData data = mClient.getClientData();
+        data.setDebuggerConnectionStatus(ClientData.DebuggerStatus.WAITING);
+        mClient.update(Client.CHANGE_DEBUGGER_STATUS);
+        data.setDebuggerConnectionStatus(ClientData.DebuggerStatus.ATTACHED);
+        mClient.update(Client.CHANGE_DEBUGGER_STATUS);
+        data.setDebuggerConnectionStatus(ClientData.DebuggerStatus.DEFAULT);
+        assertEquals(Arrays.asList(
+                "client changed 2 42 WAITING",
+                "client changed 2 42 ATTACHED"), getEvents());
+    }
+
+    public void testSlowListener() throws Exception {
+        // Sending the changes doesn't wait for the listeners.
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            mBridge.deviceChanged(mDevice, IDevice.CHANGE_STATE);
+        }
+        mClient.update(Client.CHANGE_PORT);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took " + elapsedMs + " ms", elapsedMs < 250);
+
+        // The client change doesn't wait for the device changes.
+        List<String> events = getEvents();
+        assertFalse(events.isEmpty());
+        assertEquals("client changed 4 42 DEFAULT", events.get(0));
+
+        AndroidDebugBridge.waitForPendingEvents();
+        assertEquals(11, getEvents().size());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.AndroidDebugBridge.IClientChangeListener;
+import com.android.ddmlib.IDevice.DeviceState;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the batching of the changes of a {@link Client}.
+ */
+public class ClientTest extends TestCase {
+    private final List<Integer> mChanges = new ArrayList<Integer>();
+    private Client mClient;
+
+    private final IClientChangeListener mListener = new IClientChangeListener() {
+        @Override
+        public void clientChanged(Client client, int changeMask) {
+            if (client == mClient) {
+                synchronized (mChanges) {
+                    mChanges.add(changeMask);
+                }
+            }
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        Device device = new Device(new DeviceMonitor(new AndroidDebugBridge()),
+                "emulator-5554", DeviceState.ONLINE);
+        mClient = new Client(device, null, 42);
+        AndroidDebugBridge.addClientChangeListener(mListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        AndroidDebugBridge.removeClientChangeListener(mListener);
+    }
+
+    private List<Integer> getChanges() {
+        synchronized (mChanges) {
+            return new ArrayList<Integer>(mChanges);
+        }
+    }
+
+    public void testUpdateWithoutBatch() throws Exception {
+        mClient.update(Client.CHANGE_NAME);
+        mClient.update(Client.CHANGE_PORT);
+        assertEquals(2, getChanges().size());
+    }
+
+    public void testUpdateBatch() throws Exception {
+        mClient.startUpdateBatch();
+        mClient.update(Client.CHANGE_NAME);
+        mClient.update(Client.CHANGE_THREAD_DATA);
+        mClient.update(Client.CHANGE_NAME);
+        mClient.update(Client.CHANGE_HEAP_DATA);
+        assertTrue(getChanges().isEmpty());
+
+        mClient.endUpdateBatch();
+        List<Integer> changes = getChanges();
+        assertEquals(1, changes.size());
+        assertEquals(Client.CHANGE_NAME | Client.CHANGE_THREAD_DATA | Client.CHANGE_HEAP_DATA,
+                changes.get(0).intValue());
+    }
+
+    public void testNestedUpdateBatch() throws Exception {
+        mClient.startUpdateBatch();
+        mClient.update(Client.CHANGE_PORT);
+        mClient.startUpdateBatch();
+        mClient.update(Client.CHANGE_DEBUGGER_STATUS);
+        mClient.endUpdateBatch();
+        assertTrue(getChanges().isEmpty());
+
+        mClient.endUpdateBatch();
+        List<Integer> changes = getChanges();
+        assertEquals(1, changes.size());
+        assertEquals(Client.CHANGE_PORT | Client.CHANGE_DEBUGGER_STATUS,
+                changes.get(0).intValue());
+    }
+
+    public void testEmptyUpdateBatch() throws Exception {
+        mClient.startUpdateBatch();
+        mClient.endUpdateBatch();
+        assertTrue(getChanges().isEmpty());
+
+        // Changes after the end of the batch are sent right away.
+        mClient.update(Client.CHANGE_PORT);
+        List<Integer> changes = getChanges();
+        assertEquals(1, changes.size());
+        assertEquals(Client.CHANGE_PORT, changes.get(0).intValue());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.FileListingService.FileEntry;
+import com.android.ddmlib.FileListingService.LsLine;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+/**
+ * Unit tests for {@link FileListingService}.
+ */
+public class FileListingServiceTest extends TestCase {
+
+    public void testParseFile() {
+        LsLine line = LsLine.parse(
+                "-rw-rw-r-- root     sdcard_rw     1234 2012-03-04 05:06 my file.txt");
+        assertNotNull(line);
+        assertEquals("-rw-rw-r--", line.permissions);
+        assertEquals("root", line.owner);
+        assertEquals("sdcard_rw", line.group);
+        assertEquals("1234", line.size);
+        assertEquals("2012-03-04", line.date);
+        assertEquals("05:06", line.time);
+        assertEquals("my file.txt", line.name);
+    }
+
+    public void testParseDirectory() {
+        LsLine line = LsLine.parse("drwxr-xr-x system   system            2012-03-04 05:06 app");
+        assertNotNull(line);
+        assertEquals("", line.size);
+        assertEquals("app", line.name);
+    }
+
+    public void testParseDevice() {
+        LsLine line = LsLine.parse("crw-rw-rw- root     root       1,   3 2012-03-04 05:06 null");
+        assertNotNull(line);
+        assertEquals("1,   3", line.size);
+        assertEquals("null", line.name);
+    }
+
+    public void testParseLink() {
+        LsLine line = LsLine.parse(
+                "lrwxrwxrwx root     root              2012-03-04 05:06 sdcard -> /mnt/sdcard");
+        assertNotNull(line);
+        assertEquals("sdcard -> /mnt/sdcard", line.name);
+    }
+
+    public void testParseInvalid() {
+        assertNull(LsLine.parse(""));
+        assertNull(LsLine.parse("total 12"));
+        assertNull(LsLine.parse("opendir failed, Permission denied"));
+        assertNull(LsLine.parse("-rwxrwxrwz root root 12 2012-03-04 05:06 file"));
+        assertNull(LsLine.parse("-rw-rw-r-- root root abc 2012-03-04 05:06 file"));
+        assertNull(LsLine.parse("-rw-rw-r-- root root 12 2012-03-04 05:06"));
+        assertNull(LsLine.parse("-rw-rw-r-- root root 12 2012-03-04 5:06 file"));
+    }
+
+    public void testGetChildrenRecursive() throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        expectCommand(device, "ls -l /",
+                "drwxrwxr-x system   sdcard_rw          2012-03-04 05:06 sdcard");
+        expectCommand(device, "ls -l -R /sdcard/",
+                "drwxrwxr-x system   sdcard_rw          2012-03-04 05:06 DCIM",
+                "-rw-rw-r-- system   sdcard_rw      120 2012-03-04 05:06 a.txt",
+                "lrwxrwxrwx system   sdcard_rw          2012-03-04 05:06 link -> DCIM",
+                "",
+                "/sdcard//DCIM:",
+                "drwxrwxr-x system   sdcard_rw          2012-03-04 05:06 Camera",
+                "",
+                "/sdcard//DCIM/Camera:",
+                "-rw-rw-r-- system   sdcard_rw     4567 2012-03-04 05:06 IMG 1.jpg");
+        expectCommand(device, "echo @@ddms:0; ls -l -d /sdcard/link/",
+                "@@ddms:0",
+                "drwxrwxr-x system   sdcard_rw          2012-03-04 05:06");
+        EasyMock.replay(device);
+
+        FileListingService service = new FileListingService(device);
+        FileEntry sdcard = service.getChildrenSync(service.getRoot())[0];
+
+        FileEntry[] children = service.getChildrenRecursive(sdcard, true);
+        assertEquals(3, children.length);
+        assertEquals("DCIM", children[0].getName());
+        assertEquals("a.txt", children[1].getName());
+        assertEquals(120, children[1].getSizeValue());
+        assertEquals("link", children[2].getName());
+        assertEquals(FileListingService.TYPE_DIRECTORY_LINK, children[2].getType());
+
+        FileEntry camera = children[0].findChild("Camera");
+        assertNotNull(camera);
+        FileEntry image = camera.findChild("IMG 1.jpg");
+        assertNotNull(image);
+        assertEquals("/sdcard/DCIM/Camera/IMG 1.jpg", image.getFullPath());
+
+        // the whole tree is cached.
+        assertSame(children[0], service.getChildrenRecursive(sdcard, true)[0]);
+        assertEquals(1, service.getChildren(camera, true, null).length);
+        EasyMock.verify(device);
+    }
+
+    public void testInvalidate() throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        expectCommand(device, "ls -l /",
+                "drwxrwx--x system   system            2012-03-04 05:06 data");
+        expectCommand(device, "ls -l -R /data/",
+                "drwxrwx--x system   system            2012-03-04 05:06 app");
+        expectCommand(device, "ls -l -R /data/",
+                "drwxrwx--x system   system            2012-03-04 05:06 app",
+                "drwxrwx--x system   system            2012-03-04 05:06 local");
+        EasyMock.replay(device);
+
+        FileListingService service = new FileListingService(device);
+        FileEntry data = service.getChildrenSync(service.getRoot())[0];
+
+        FileEntry app = service.getChildrenRecursive(data, true)[0];
+        service.getChildrenRecursive(data, true);
+        service.invalidate(app);
+
+        FileEntry[] children = service.getChildrenRecursive(data, true);
+        assertEquals(2, children.length);
+        // existing entries are reused.
+        assertSame(app, children[0]);
+        EasyMock.verify(device);
+    }
+
+    private static void expectCommand(IDevice device, String command, final String... output)
+            throws Exception {
+        device.executeShellCommand(EasyMock.eq(command),
+                EasyMock.isA(IShellOutputReceiver.class));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                StringBuilder sb = new StringBuilder();
+                for (String line : output) {
+                    sb.append(line).append("\r\n");
+                }
+                byte[] data = sb.toString().getBytes("UTF-8");
+                receiver.addOutput(data, 0, data.length);
+                receiver.flush();
+                return null;
+            }
+        });
+    }
+}
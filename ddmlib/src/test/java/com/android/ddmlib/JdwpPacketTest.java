@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the pooled buffers of {@link JdwpPacket}.
+ */
+public class JdwpPacketTest extends TestCase {
+
+    /**
+     * Allocates buffers until the given one is given back by the pool, which keeps at most 64
+     * buffers, or returns null if it never is.
+     */
+    private static ByteBuffer findPooledBuffer(ByteBuffer expected, int length) {
+        List<ByteBuffer> others = new ArrayList<ByteBuffer>();
+        try {
+            for (int i = 0; i <= 64; i++) {
+                ByteBuffer buf = JdwpPacket.allocBuffer(length);
+                if (buf == expected) {
+                    return buf;
+                }
+                others.add(buf);
+            }
+            return null;
+        } finally {
+            for (ByteBuffer buf : others) {
+                new JdwpPacket(buf).release();
+            }
+        }
+    }
+
+    public void testAllocBuffer() {
+        ByteBuffer buf = JdwpPacket.allocBuffer(100);
+        assertTrue(buf.isDirect());
+        assertEquals(JdwpPacket.POOLED_BUFFER_SIZE, buf.capacity());
+        assertEquals(0, buf.position());
+        assertEquals(100, buf.limit());
+        assertEquals(ChunkHandler.CHUNK_ORDER, buf.order());
+        new JdwpPacket(buf).release();
+    }
+
+    public void testReleasedBufferIsCleared() {
+        ByteBuffer buf = JdwpPacket.allocBuffer(JdwpPacket.POOLED_BUFFER_SIZE);
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0x55);
+        }
+        buf.position(10);
+        buf.limit(20);
+        buf.mark();
+        new JdwpPacket(buf).release();
+
+        ByteBuffer reused = findPooledBuffer(buf, 30);
+        assertNotNull("Released buffer was not reused", reused);
+        assertEquals(0, reused.position());
+        assertEquals(30, reused.limit());
+        assertEquals(JdwpPacket.POOLED_BUFFER_SIZE, reused.capacity());
+        assertEquals(ChunkHandler.CHUNK_ORDER, reused.order());
+        try {
+            reused.reset();
+            fail("The mark of the released buffer was kept");
+        } catch (InvalidMarkException expected) {
+        }
+        new JdwpPacket(reused).release();
+    }
+
+    public void testLargeBufferNotPooled() {
+        int length = JdwpPacket.POOLED_BUFFER_SIZE + 1;
+        ByteBuffer buf = JdwpPacket.allocBuffer(length);
+        assertFalse(buf.isDirect());
+        assertEquals(length, buf.capacity());
+        assertEquals(0, buf.position());
+        assertEquals(length, buf.limit());
+        assertEquals(ChunkHandler.CHUNK_ORDER, buf.order());
+
+        new JdwpPacket(buf).release();
+        assertNull(findPooledBuffer(buf, length));
+        assertNull(findPooledBuffer(buf, JdwpPacket.POOLED_BUFFER_SIZE));
+    }
+
+    public void testReadBufferNotPooled() {
+        // Packets found in a read buffer don't own their buffer.
+        ByteBuffer buf = ByteBuffer.allocate(JdwpPacket.POOLED_BUFFER_SIZE);
+        new JdwpPacket(buf).release();
+        assertNull(findPooledBuffer(buf, 10));
+    }
+}
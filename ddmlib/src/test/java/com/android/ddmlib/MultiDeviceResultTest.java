@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the operations running on several devices from {@link AndroidDebugBridge}.
+ */
+public class MultiDeviceResultTest extends TestCase {
+
+    public void testExecuteShellCommand() throws Exception {
+        IDevice device1 = createShellDevice("output1", null);
+        IDevice device2 = createShellDevice("output2", null);
+        IDevice device3 = createShellDevice(null, new IOException("connection lost"));
+        EasyMock.replay(device1, device2, device3);
+
+        MultiDeviceResult<String> result = AndroidDebugBridge.executeShellCommand(
+                Arrays.asList(device1, device2, device3), "ls", 1, TimeUnit.SECONDS);
+        assertTrue(result.await(10, TimeUnit.SECONDS));
+        assertTrue(result.isDone());
+
+        Map<IDevice, String> results = result.getResults();
+        assertEquals(2, results.size());
+        assertEquals("output1", results.get(device1));
+        assertEquals("output2", results.get(device2));
+
+        Map<IDevice, Throwable> failures = result.getFailures();
+        assertEquals(1, failures.size());
+        assertEquals("connection lost", failures.get(device3).getMessage());
+    }
+
+    public void testInstallPackage() throws Exception {
+        IDevice device1 = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device1.syncPackageToDevice("/tmp/app.apk"))
+                .andReturn("/data/local/tmp/app.apk");
+        EasyMock.expect(device1.installRemotePackage("/data/local/tmp/app.apk", true))
+                .andReturn(null);
+        device1.removeRemotePackage("/data/local/tmp/app.apk");
+
+        IDevice device2 = EasyMock.createMock(IDevice.class);
+        SyncException error = new SyncException(SyncException.SyncError.NO_LOCAL_FILE);
+        EasyMock.expect(device2.syncPackageToDevice("/tmp/app.apk")).andThrow(error);
+        EasyMock.replay(device1, device2);
+
+        MultiDeviceResult<String> result = AndroidDebugBridge.installPackage(
+                Arrays.asList(device1, device2), "/tmp/app.apk", true);
+        assertTrue(result.await(10, TimeUnit.SECONDS));
+
+        assertTrue(result.getResults().containsKey(device1));
+        assertNull(result.getResults().get(device1));
+        Throwable failure = result.getFailures().get(device2);
+        assertTrue(failure instanceof InstallException);
+        assertSame(error, failure.getCause());
+        EasyMock.verify(device1, device2);
+    }
+
+    public void testCancel() throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        device.executeShellCommand(EasyMock.eq("logcat"), EasyMock.isA(IShellOutputReceiver.class),
+                EasyMock.anyLong(), EasyMock.eq(TimeUnit.SECONDS));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                // runs until the receiver is cancelled, as the shell commands do.
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                while (!receiver.isCancelled()) {
+                    Thread.sleep(10);
+                }
+                return null;
+            }
+        });
+        EasyMock.replay(device);
+
+        MultiDeviceResult<String> result = AndroidDebugBridge.executeShellCommand(
+                Arrays.asList(device), "logcat", 0, TimeUnit.SECONDS);
+        assertFalse(result.await(50, TimeUnit.MILLISECONDS));
+
+        result.cancel();
+        assertTrue(result.await(10, TimeUnit.SECONDS));
+        assertTrue(result.getResults().isEmpty());
+        assertTrue(result.getFailures().get(device) instanceof CancellationException);
+    }
+
+    private static IDevice createShellDevice(final String output, final Exception error)
+            throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        device.executeShellCommand(EasyMock.eq("ls"), EasyMock.isA(IShellOutputReceiver.class),
+                EasyMock.eq(1L), EasyMock.eq(TimeUnit.SECONDS));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                if (error != null) {
+                    throw error;
+                }
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                byte[] data = output.getBytes("UTF-8");
+                receiver.addOutput(data, 0, data.length);
+                receiver.flush();
+                return null;
+            }
+        });
+        return device;
+    }
+}
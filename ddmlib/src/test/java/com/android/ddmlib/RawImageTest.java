@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link RawImage}.
+ */
+public class RawImageTest extends TestCase {
+
+    public void testRgba8888() {
+        checkConversion(createImage(32, 0, 8, 8, 8, 16, 8, 24, 8));
+    }
+
+    public void testBgra8888() {
+        checkConversion(createImage(32, 16, 8, 8, 8, 0, 8, 24, 8));
+    }
+
+    public void testRgbx8888() {
+        checkConversion(createImage(32, 0, 8, 8, 8, 16, 8, 0, 0));
+    }
+
+    public void testRgb565() {
+        checkConversion(createImage(16, 11, 5, 5, 6, 0, 5, 0, 0));
+    }
+
+    public void testRgba5551() {
+        // not one of the fast paths.
+        checkConversion(createImage(16, 11, 5, 6, 5, 1, 5, 0, 1));
+    }
+
+    public void testBufferReuse() {
+        RawImage image = createImage(16, 11, 5, 5, 6, 0, 5, 0, 0);
+
+        int[] argb = new int[image.width * image.height + 10];
+        assertSame(argb, image.getARGB(argb));
+        assertNotSame(argb, image.getARGB(new int[1]));
+
+        BufferedImage buffered = image.getBufferedImage(null);
+        assertSame(buffered, image.getBufferedImage(buffered));
+        assertNotSame(buffered, image.getRotated().getBufferedImage(buffered));
+    }
+
+    private static RawImage createImage(int bpp, int redOffset, int redLength, int greenOffset,
+            int greenLength, int blueOffset, int blueLength, int alphaOffset, int alphaLength) {
+        RawImage image = new RawImage();
+        image.version = 1;
+        image.bpp = bpp;
+        image.width = 7;
+        image.height = 5;
+        image.size = image.width * image.height * bpp / 8;
+        image.red_offset = redOffset;
+        image.red_length = redLength;
+        image.green_offset = greenOffset;
+        image.green_length = greenLength;
+        image.blue_offset = blueOffset;
+        image.blue_length = blueLength;
+        image.alpha_offset = alphaOffset;
+        image.alpha_length = alphaLength;
+        image.data = new byte[image.size];
+        new Random(42).nextBytes(image.data);
+        return image;
+    }
+
+    private static void checkConversion(RawImage image) {
+        int[] argb = image.getARGB((int[]) null);
+        BufferedImage buffered = image.getBufferedImage(null);
+        int bytesPerPixel = image.bpp / 8;
+
+        for (int y = 0; y < image.height; y++) {
+            for (int x = 0; x < image.width; x++) {
+                int index = y * image.width + x;
+                int expected = image.getARGB(index * bytesPerPixel);
+                assertEquals(expected, argb[index]);
+                assertEquals(expected, buffered.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link StreamedChunk}.
+ */
+public class StreamedChunkTest extends TestCase {
+    private static final int CHUNK_TEST = ChunkHandler.type("TEST");
+
+    /** Records the files it is given. */
+    private static class RecordingHandler extends ChunkHandler {
+        int mCalls;
+        int mType;
+        File mFile;
+
+        @Override
+        void clientReady(Client client) {
+        }
+
+        @Override
+        void clientDisconnected(Client client) {
+        }
+
+        @Override
+        void handleChunk(Client client, int type, ByteBuffer data, boolean isReply,
+                int msgId) {
+            fail("Streamed chunks should not be handled as regular chunks");
+        }
+
+        @Override
+        boolean isStreamedChunk(int type) {
+            return true;
+        }
+
+        @Override
+        void handleStreamedChunk(Client client, int type, File file) {
+            mCalls++;
+            mType = type;
+            mFile = file;
+        }
+    }
+
+    private final RecordingHandler mHandler = new RecordingHandler();
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mHandler.mFile != null) {
+            mHandler.mFile.delete();
+        }
+    }
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int count = in.read(data, offset, data.length - offset);
+                assertTrue(count > 0);
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    public void testSplitPayload() throws Exception {
+        byte[] data = payload(10000);
+        StreamedChunk chunk = new StreamedChunk(CHUNK_TEST, mHandler, data.length, data.length);
+
+        // The payload arrives in several reads of different sizes.
+        int[] splits = new int[] { 1, 999, 4096, 3000 };
+        int offset = 0;
+        for (int split : splits) {
+            ByteBuffer buf = ByteBuffer.wrap(data, offset, split);
+            assertFalse(chunk.consume(buf));
+            assertFalse(buf.hasRemaining());
+            offset += split;
+        }
+        assertEquals(0, mHandler.mCalls);
+
+        // The last read also contains the start of the next packet, which must be left in the
+        // buffer.
+        ByteBuffer buf = ByteBuffer.allocate(data.length - offset + 5);
+        buf.put(data, offset, data.length - offset);
+        buf.put(new byte[] { 1, 2, 3, 4, 5 });
+        buf.flip();
+        assertTrue(chunk.consume(buf));
+        assertEquals(5, buf.remaining());
+        assertEquals(1, buf.get());
+
+        chunk.finish(null);
+        assertEquals(1, mHandler.mCalls);
+        assertEquals(CHUNK_TEST, mHandler.mType);
+        assertNotNull(mHandler.mFile);
+        assertTrue(Arrays.equals(data, read(mHandler.mFile)));
+    }
+
+    public void testPacketLongerThanPayload() throws Exception {
+        byte[] data = payload(100);
+        byte[] packet = Arrays.copyOf(data, 150);
+        StreamedChunk chunk = new StreamedChunk(CHUNK_TEST, mHandler, packet.length, data.length);
+
+        assertFalse(chunk.consume(ByteBuffer.wrap(packet, 0, 120)));
+        ByteBuffer buf = ByteBuffer.wrap(packet, 120, 30);
+        assertTrue(chunk.consume(buf));
+        assertFalse(buf.hasRemaining());
+
+        // Only the payload of the chunk is written, not the rest of the packet.
+        chunk.finish(null);
+        assertEquals(1, mHandler.mCalls);
+        assertTrue(Arrays.equals(data, read(mHandler.mFile)));
+    }
+
+    public void testCancel() throws Exception {
+        byte[] data = payload(1000);
+        StreamedChunk chunk = new StreamedChunk(CHUNK_TEST, mHandler, data.length, data.length);
+        File file = chunk.getFile();
+        assertNotNull(file);
+
+        assertFalse(chunk.consume(ByteBuffer.wrap(data, 0, 500)));
+        assertTrue(file.exists());
+
+        // The connection is closed before the end of the packet.
+        chunk.cancel();
+        assertFalse(file.exists());
+        assertNull(chunk.getFile());
+        assertEquals(0, mHandler.mCalls);
+    }
+
+    public void testWriteToFile() throws Exception {
+        byte[] data = payload(2000);
+        ByteBuffer buf = ByteBuffer.wrap(data, 10, 1000);
+        File file = StreamedChunk.writeToFile(CHUNK_TEST, buf);
+        try {
+            assertNotNull(file);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, 1010), read(file)));
+
+            // The buffer is left unchanged.
+            assertEquals(10, buf.position());
+            assertEquals(1010, buf.limit());
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,601 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.FileListingService.FileEntry;
+import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.SyncException.SyncError;
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link SyncService}, with a fake adb server storing the files of the device
+ * in memory.
+ */
+public class SyncServiceTest extends TestCase {
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+
+    private ServerSocket mServer;
+    private Thread mServerThread;
+    private Device mDevice;
+    private File mTempDir;
+
+    /** The files of the fake device, by path. */
+    private final Map<String, byte[]> mRemoteFiles = new HashMap<String, byte[]>();
+
+    /** The paths which fail to be written or read on the device. */
+    private final Set<String> mFailingPaths =
+            Collections.synchronizedSet(new HashSet<String>());
+
+    /** The length given in FAIL packets, or -1 to give the length of the message. */
+    private volatile int mFailureLength = -1;
+
+    /** The largest DATA packet received by the device. */
+    private int mMaxDataLength;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mServerThread = new Thread("Fake adb") {
+            @Override
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = mServer.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    new Thread("Fake adb sync") {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }.start();
+                }
+            }
+        };
+        mServerThread.start();
+
+        mDevice = new Device(new DeviceMonitor(new AndroidDebugBridge()), "emulator-5554",
+                DeviceState.ONLINE);
+        mTempDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mServerThread.join();
+        deleteRecursively(mTempDir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private SyncService openSync() throws Exception {
+        SyncService sync = new SyncService(
+                (InetSocketAddress) mServer.getLocalSocketAddress(), mDevice);
+        assertTrue(sync.openSync());
+        return sync;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private File createLocalFile(String name, byte[] data) throws IOException {
+        File file = new File(mTempDir, name);
+        Files.write(data, file);
+        return file;
+    }
+
+    private byte[] getRemoteFile(String path) {
+        synchronized (mRemoteFiles) {
+            return mRemoteFiles.get(path);
+        }
+    }
+
+    private void putRemoteFile(String path, byte[] data) {
+        synchronized (mRemoteFiles) {
+            mRemoteFiles.put(path, data);
+        }
+    }
+
+    public void testPushPullFile() throws Exception {
+        Random random = new Random(42);
+        // Empty files, and files around the size of a DATA packet
+        int[] sizes = new int[] {
+                0, 1, SYNC_DATA_MAX - 1, SYNC_DATA_MAX, SYNC_DATA_MAX + 1, 5 * SYNC_DATA_MAX + 7
+        };
+        File pulledDir = new File(mTempDir, "pulled");
+        assertTrue(pulledDir.mkdir());
+
+        SyncService sync = openSync();
+        try {
+            for (int size : sizes) {
+                byte[] data = randomBytes(random, size);
+                File local = createLocalFile("file" + size, data);
+                String remote = "/sdcard/file" + size;
+
+                sync.pushFile(local.getPath(), remote, SyncService.getNullProgressMonitor());
+                assertTrue("Pushed " + size + " bytes",
+                        Arrays.equals(data, getRemoteFile(remote)));
+
+                File pulled = new File(pulledDir, "file" + size);
+                sync.pullFile(remote, pulled.getPath(), SyncService.getNullProgressMonitor());
+                assertTrue("Pulled " + size + " bytes",
+                        Arrays.equals(data, Files.toByteArray(pulled)));
+            }
+        } finally {
+            sync.close();
+        }
+        synchronized (mRemoteFiles) {
+            assertEquals(SYNC_DATA_MAX, mMaxDataLength);
+        }
+    }
+
+    public void testSeveralConnections() throws Exception {
+        // The transfer buffer is given back to the pool when a connection is closed, and
+        // reused by the next ones.
+        Random random = new Random(42);
+        for (int i = 0; i < 3; i++) {
+            byte[] data = randomBytes(random, 2 * SYNC_DATA_MAX + i);
+            File local = createLocalFile("file" + i, data);
+            File pulled = new File(mTempDir, "pulled" + i);
+
+            SyncService sync = openSync();
+            try {
+                sync.pushFile(local.getPath(), "/sdcard/file",
+                        SyncService.getNullProgressMonitor());
+                sync.pullFile("/sdcard/file", pulled.getPath(),
+                        SyncService.getNullProgressMonitor());
+            } finally {
+                sync.close();
+            }
+            assertTrue(Arrays.equals(data, Files.toByteArray(pulled)));
+        }
+    }
+
+    public void testPushFileFailure() throws Exception {
+        File local = createLocalFile("file", randomBytes(new Random(42), 1000));
+        mFailingPaths.add("/system/file");
+
+        SyncService sync = openSync();
+        try {
+            sync.pushFile(local.getPath(), "/system/file", SyncService.getNullProgressMonitor());
+            fail("Expected the push to fail");
+        } catch (SyncException e) {
+            assertEquals(SyncError.TRANSFER_PROTOCOL_ERROR, e.getErrorCode());
+            assertEquals("Read-only file system: /system/file", e.getMessage());
+        } finally {
+            sync.close();
+        }
+        assertNull(getRemoteFile("/system/file"));
+    }
+
+    public void testLongFailureMessage() throws Exception {
+        // A corrupt FAIL packet must not make the service allocate a huge buffer.
+        File local = createLocalFile("file", randomBytes(new Random(42), 1000));
+        mFailingPaths.add("/system/file");
+        mFailureLength = Integer.MAX_VALUE;
+
+        SyncService sync = openSync();
+        try {
+            sync.pushFile(local.getPath(), "/system/file", SyncService.getNullProgressMonitor());
+            fail("Expected the push to fail");
+        } catch (SyncException e) {
+            assertEquals(SyncError.BUFFER_OVERRUN, e.getErrorCode());
+        } finally {
+            sync.close();
+        }
+    }
+
+    public void testPullMissingFile() throws Exception {
+        File pulled = new File(mTempDir, "pulled");
+        SyncService sync = openSync();
+        try {
+            sync.pullFile("/sdcard/missing", pulled.getPath(),
+                    SyncService.getNullProgressMonitor());
+            fail("Expected the pull to fail");
+        } catch (SyncException e) {
+            assertEquals(SyncError.NO_REMOTE_OBJECT, e.getErrorCode());
+        } finally {
+            sync.close();
+        }
+        assertFalse(pulled.exists());
+    }
+
+    public void testPushPull() throws Exception {
+        // More files than the number of pending requests
+        Random random = new Random(42);
+        int count = 40;
+        String[] names = new String[count];
+        String[] localPaths = new String[count];
+        byte[][] contents = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            // Listed in the same order as the array
+            names[i] = String.format("file%02d", i);
+            contents[i] = randomBytes(random, random.nextInt(3 * SYNC_DATA_MAX));
+            localPaths[i] = createLocalFile(names[i], contents[i]).getPath();
+        }
+
+        SyncService sync = openSync();
+        try {
+            sync.push(localPaths, getRemoteDirectory(), SyncService.getNullProgressMonitor());
+            for (int i = 0; i < count; i++) {
+                assertTrue(names[i],
+                        Arrays.equals(contents[i], getRemoteFile("/sdcard/" + names[i])));
+            }
+
+            File pulledDir = new File(mTempDir, "pulled");
+            assertTrue(pulledDir.mkdir());
+            CountingProgressMonitor monitor = new CountingProgressMonitor();
+            sync.pull(getRemoteFiles(names, contents), pulledDir.getPath(), monitor);
+            for (int i = 0; i < count; i++) {
+                assertTrue(names[i], Arrays.equals(contents[i],
+                        Files.toByteArray(new File(pulledDir, names[i]))));
+            }
+            assertEquals(monitor.mTotalWork, monitor.mWork);
+        } finally {
+            sync.close();
+        }
+    }
+
+    public void testPushFailureAfterPendingResults() throws Exception {
+        // The result of the failing file is read once all the files have been sent
+        checkPushFailure(40, 35);
+    }
+
+    public void testPushFailureWhileSending() throws Exception {
+        // The result of the failing file is read while the next files are being sent
+        checkPushFailure(40, 2);
+    }
+
+    private void checkPushFailure(int count, int failing) throws Exception {
+        Random random = new Random(42);
+        String[] localPaths = new String[count];
+        byte[][] contents = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            contents[i] = randomBytes(random, random.nextInt(SYNC_DATA_MAX));
+            localPaths[i] = createLocalFile("file" + i, contents[i]).getPath();
+        }
+        mFailingPaths.add("/sdcard/file" + failing);
+
+        SyncService sync = openSync();
+        try {
+            sync.push(localPaths, getRemoteDirectory(), SyncService.getNullProgressMonitor());
+            fail("Expected the push to fail");
+        } catch (SyncException e) {
+            assertEquals(SyncError.TRANSFER_PROTOCOL_ERROR, e.getErrorCode());
+            assertEquals("Read-only file system: /sdcard/file" + failing, e.getMessage());
+        } finally {
+            sync.close();
+        }
+
+        // The files before the failing one were written, and the device ignored the next ones.
+        for (int i = 0; i < count; i++) {
+            byte[] remote = getRemoteFile("/sdcard/file" + i);
+            if (i < failing) {
+                assertTrue("file" + i, Arrays.equals(contents[i], remote));
+            } else {
+                assertNull("file" + i, remote);
+            }
+        }
+    }
+
+    public void testPullFailure() throws Exception {
+        Random random = new Random(42);
+        int count = 40;
+        int failing = 5;
+        String[] names = new String[count];
+        byte[][] contents = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            // Listed in the same order as the array
+            names[i] = String.format("file%02d", i);
+            contents[i] = randomBytes(random, random.nextInt(2 * SYNC_DATA_MAX));
+            if (i != failing) {
+                putRemoteFile("/sdcard/" + names[i], contents[i]);
+            }
+        }
+
+        File pulledDir = new File(mTempDir, "pulled");
+        assertTrue(pulledDir.mkdir());
+        SyncService sync = openSync();
+        try {
+            sync.pull(getRemoteFiles(names, contents), pulledDir.getPath(),
+                    SyncService.getNullProgressMonitor());
+            fail("Expected the pull to fail");
+        } catch (SyncException e) {
+            assertEquals(SyncError.TRANSFER_PROTOCOL_ERROR, e.getErrorCode());
+            assertEquals("No such file or directory: /sdcard/" + names[failing], e.getMessage());
+        } finally {
+            sync.close();
+        }
+
+        // The files before the missing one were pulled, and the next ones weren't.
+        for (int i = 0; i < count; i++) {
+            File pulled = new File(pulledDir, names[i]);
+            if (i < failing) {
+                assertTrue(names[i], Arrays.equals(contents[i], Files.toByteArray(pulled)));
+            } else {
+                assertFalse(names[i], pulled.exists());
+            }
+        }
+    }
+
+    /** Returns the entry of the /sdcard directory of the device. */
+    private static FileEntry getRemoteDirectory() throws Exception {
+        return listRemoteDirectory(new String[0]);
+    }
+
+    /** Returns the entries of files of the /sdcard directory of the device. */
+    private static FileEntry[] getRemoteFiles(String[] names, byte[][] contents)
+            throws Exception {
+        String[] listing = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            listing[i] = String.format("-rw-rw-r-- system   sdcard_rw %8d 2012-03-04 05:06 %s",
+                    contents[i].length, names[i]);
+        }
+        FileEntry[] files = listRemoteDirectory(listing).getCachedChildren();
+        assertEquals(names.length, files.length);
+        return files;
+    }
+
+    /**
+     * Returns the entry of the /sdcard directory of the device, with its children listed by a
+     * {@link FileListingService}.
+     */
+    private static FileEntry listRemoteDirectory(String[] listing) throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        expectCommand(device, "ls -l /",
+                "drwxrwxr-x system   sdcard_rw          2012-03-04 05:06 sdcard");
+        expectCommand(device, "ls -l -R /sdcard/", listing);
+        EasyMock.replay(device);
+
+        FileListingService service = new FileListingService(device);
+        FileEntry sdcard = service.getChildrenSync(service.getRoot())[0];
+        service.getChildrenRecursive(sdcard, true);
+        return sdcard;
+    }
+
+    private static void expectCommand(IDevice device, String command, final String... output)
+            throws Exception {
+        device.executeShellCommand(EasyMock.eq(command),
+                EasyMock.isA(IShellOutputReceiver.class));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                StringBuilder sb = new StringBuilder();
+                for (String line : output) {
+                    sb.append(line).append("\r\n");
+                }
+                byte[] data = sb.toString().getBytes("UTF-8");
+                receiver.addOutput(data, 0, data.length);
+                receiver.flush();
+                return null;
+            }
+        });
+    }
+
+    /** Records the progress of a transfer. */
+    private static class CountingProgressMonitor implements ISyncProgressMonitor {
+        int mTotalWork;
+        int mWork;
+
+        @Override
+        public void start(int totalWork) {
+            mTotalWork = totalWork;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public void startSubTask(String name) {
+        }
+
+        @Override
+        public void advance(int work) {
+            mWork += work;
+        }
+    }
+
+    /**
+     * Serves a connection: selects the transport, starts the sync service, and handles the
+     * sync requests until the connection is closed.
+     */
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            if (!readRequest(in).startsWith("host:transport:")) {
+                socket.close();
+                return;
+            }
+            out.write("OKAY".getBytes("UTF-8"));
+            if (!readRequest(in).equals("sync:")) {
+                socket.close();
+                return;
+            }
+            out.write("OKAY".getBytes("UTF-8"));
+
+            byte[] header = new byte[8];
+            while (readPacket(in, header)) {
+                String id = new String(header, 0, 4, "UTF-8");
+                byte[] path = new byte[getLength(header)];
+                in.readFully(path);
+                String name = new String(path, "UTF-8");
+
+                boolean ok;
+                if (id.equals("SEND")) {
+                    ok = receiveFile(in, out, name.substring(0, name.lastIndexOf(',')));
+                } else if (id.equals("RECV")) {
+                    ok = sendFile(out, name);
+                } else if (id.equals("STAT")) {
+                    byte[] data = getRemoteFile(name);
+                    writePacket(out, "STAT", data != null ? 0x81A4 : 0);
+                    out.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                            .putInt(data != null ? data.length : 0).putInt(0).array());
+                    ok = true;
+                } else {
+                    ok = false;
+                }
+
+                if (!ok) {
+                    // The device stops handling requests after an error.
+                    socket.shutdownOutput();
+                    while (in.read(header) >= 0) {
+                    }
+                    break;
+                }
+            }
+            socket.close();
+        } catch (IOException e) {
+            // the connection was closed.
+        }
+    }
+
+    /** Receives a file sent with SEND, and replies with OKAY or FAIL. */
+    private boolean receiveFile(DataInputStream in, OutputStream out, String path)
+            throws IOException {
+        byte[] header = new byte[8];
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (true) {
+            in.readFully(header);
+            String id = new String(header, 0, 4, "UTF-8");
+            if (id.equals("DONE")) {
+                break;
+            }
+            if (!id.equals("DATA")) {
+                throw new IOException("Unexpected packet " + id);
+            }
+            int length = getLength(header);
+            synchronized (mRemoteFiles) {
+                mMaxDataLength = Math.max(mMaxDataLength, length);
+            }
+            byte[] buffer = new byte[length];
+            in.readFully(buffer);
+            data.write(buffer);
+        }
+
+        if (mFailingPaths.contains(path)) {
+            writeFailure(out, "Read-only file system: " + path);
+            return false;
+        }
+        putRemoteFile(path, data.toByteArray());
+        writePacket(out, "OKAY", 0);
+        return true;
+    }
+
+    /** Sends a file requested with RECV, as DATA packets followed by DONE, or FAIL. */
+    private boolean sendFile(OutputStream out, String path) throws IOException {
+        byte[] data = getRemoteFile(path);
+        if (data == null || mFailingPaths.contains(path)) {
+            writeFailure(out, "No such file or directory: " + path);
+            return false;
+        }
+        for (int offset = 0; offset < data.length; offset += SYNC_DATA_MAX) {
+            int length = Math.min(SYNC_DATA_MAX, data.length - offset);
+            writePacket(out, "DATA", length);
+            out.write(data, offset, length);
+        }
+        writePacket(out, "DONE", 0);
+        return true;
+    }
+
+    private void writeFailure(OutputStream out, String message) throws IOException {
+        byte[] content = message.getBytes("UTF-8");
+        writePacket(out, "FAIL", mFailureLength >= 0 ? mFailureLength : content.length);
+        out.write(content);
+    }
+
+    private static void writePacket(OutputStream out, String id, int value) throws IOException {
+        out.write(id.getBytes("UTF-8"));
+        out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array());
+    }
+
+    private static int getLength(byte[] header) {
+        return ByteBuffer.wrap(header, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    /** Reads the header of a sync request, or returns false at the end of the connection. */
+    private static boolean readPacket(InputStream in, byte[] header) throws IOException {
+        int offset = 0;
+        while (offset < header.length) {
+            int count = in.read(header, offset, header.length - offset);
+            if (count < 0) {
+                if (offset == 0) {
+                    return false;
+                }
+                throw new IOException("Truncated request");
+            }
+            offset += count;
+        }
+        return true;
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        in.readFully(length);
+        byte[] request = new byte[Integer.parseInt(new String(length, "UTF-8"), 16)];
+        in.readFully(request);
+        return new String(request, "UTF-8");
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.ddmlib.log.EventContainer.EventValueType;
+import com.android.ddmlib.log.EventLogColumns.TagColumns;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class EventLogDecoderTest extends TestCase {
+
+    private static final String[] TAGS = {
+            "2722 battery_level (level|1|6),(voltage|1|1),(temperature|1|1)",
+            "30009 am_activity_launch_time (Token|1|5),(Component Name|3),(time|2|3)",
+            "42 answer (to life the universe etc|3)",
+            "1004 no_description",
+    };
+
+    private EventLogParser mParser;
+    private EventLogDecoder mDecoder;
+
+    @Override
+    protected void setUp() throws Exception {
+        mParser = new EventLogParser();
+        mParser.init(TAGS);
+        mDecoder = new EventLogDecoder(mParser);
+    }
+
+    public void testDecode() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeEvent(out, 100, 1, list(intValue(95), intValue(4100), intValue(310)), 2722);
+        writeEvent(out, 200, 2, list(intValue(7), stringValue("com.example/.Main"),
+                longValue(1234L)), 30009);
+        writeEvent(out, 300, 3, stringValue("forty-two"), 42);
+        writeEvent(out, 400, 4, list(intValue(80), intValue(4000), intValue(300)), 2722);
+        byte[] data = out.toByteArray();
+
+        EventLogColumns columns = mDecoder.decode(data, 0, data.length);
+        assertEquals(4, columns.getCount());
+        assertEquals(2722, columns.getTag(0));
+        assertEquals(100, columns.getPid(0));
+        assertEquals(1, columns.getSec(0));
+        assertEquals(30009, columns.getTag(1));
+
+        TagColumns battery = columns.getTagColumns(2722);
+        assertEquals(2, battery.getRowCount());
+        assertEquals(3, battery.getColumnCount());
+        assertEquals(EventValueType.INT, battery.getColumnType(0));
+        assertEquals(95, battery.getLongColumn(0)[0]);
+        assertEquals(80, battery.getLongColumn(0)[1]);
+        assertEquals(300, battery.getLongColumn(2)[1]);
+        assertEquals(3, battery.getEventIndex(1));
+        assertEquals(1, columns.getRow(3));
+
+        TagColumns launch = columns.getTagColumns(30009);
+        assertEquals(7, launch.getLongColumn(0)[0]);
+        assertEquals("com.example/.Main", launch.getStringColumn(1)[0]);
+        assertEquals(1234L, launch.getLongColumn(2)[0]);
+
+        assertEquals("forty-two", columns.getTagColumns(42).getStringColumn(0)[0]);
+    }
+
+    public void testUndecodedEvents() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // not the layout of the description.
+        writeEvent(out, 100, 1, list(intValue(95), intValue(4100)), 2722);
+        // no description.
+        writeEvent(out, 200, 2, intValue(12), 1004);
+        byte[] data = out.toByteArray();
+
+        EventLogColumns columns = mDecoder.decode(data, 0, data.length);
+        assertEquals(2, columns.getCount());
+        assertEquals(-1, columns.getRow(0));
+        assertNull(columns.getTagColumns(2722));
+
+        EventContainer event = columns.getUndecodedEvent(0);
+        assertNotNull(event);
+        assertEquals(EventValueType.LIST, event.getType());
+        assertEquals(95, event.getValue(0));
+        assertEquals(4100, event.getValue(1));
+        assertEquals(Integer.valueOf(12), columns.getUndecodedEvent(1).getInt());
+    }
+
+    public void testPartialEvent() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeEvent(out, 300, 3, stringValue("forty-two"), 42);
+        int first = out.size();
+        writeEvent(out, 300, 3, stringValue("forty-three"), 42);
+        byte[] data = out.toByteArray();
+
+        EventLogColumns columns = new EventLogColumns();
+        assertEquals(first, mDecoder.decode(data, 0, data.length - 1, columns));
+        assertEquals(1, columns.getCount());
+
+        assertEquals(data.length - first,
+                mDecoder.decode(data, first, data.length - first, columns));
+        assertEquals(2, columns.getCount());
+        assertEquals("forty-three", columns.getTagColumns(42).getStringColumn(0)[1]);
+    }
+
+    private static void writeEvent(ByteArrayOutputStream out, int pid, int sec, byte[] value,
+            int tag) {
+        ByteBuffer buf = ByteBuffer.allocate(24 + value.length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putShort((short) (4 + value.length));
+        buf.putShort((short) 0);
+        buf.putInt(pid);
+        buf.putInt(pid + 1);
+        buf.putInt(sec);
+        buf.putInt(0);
+        buf.putInt(tag);
+        buf.put(value);
+        out.write(buf.array(), 0, buf.capacity());
+    }
+
+    private static byte[] intValue(int value) {
+        return ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN).put((byte) 0).putInt(value)
+                .array();
+    }
+
+    private static byte[] longValue(long value) {
+        return ByteBuffer.allocate(9).order(ByteOrder.LITTLE_ENDIAN).put((byte) 1).putLong(value)
+                .array();
+    }
+
+    private static byte[] stringValue(String value) throws Exception {
+        byte[] bytes = value.getBytes("UTF-8");
+        return ByteBuffer.allocate(5 + bytes.length).order(ByteOrder.LITTLE_ENDIAN)
+                .put((byte) 2).putInt(bytes.length).put(bytes).array();
+    }
+
+    private static byte[] list(byte[]... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(3);
+        out.write(values.length);
+        for (byte[] value : values) {
+            out.write(value, 0, value.length);
+        }
+        return out.toByteArray();
+    }
+}
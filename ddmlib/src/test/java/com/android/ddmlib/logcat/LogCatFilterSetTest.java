@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LogCatFilterSetTest extends TestCase {
+    private static final String[] PATTERNS = {
+            "", "dalvikvm", "Dalvik", "^dalvik", "^Dalvik", "vm$", "^", "act.*ty",
+            "activit?y", "ab+c", "a|b", "[invalid", "\\d+", "GC_", "gc_", "^gc_concurrent$",
+            "é", "É", "K",
+    };
+
+    private static final String[] VALUES = {
+            "", "dalvikvm", "DalvikVM", "my dalvikvm", "ActivityManager", "activiy", "abbc",
+            "ac", "GC_CONCURRENT freed 12K", "gc_concurrent", "123", "é", "É", "K",
+    };
+
+    public void testSameResultsAsFilters() {
+        List<LogCatFilter> filters = new ArrayList<LogCatFilter>();
+        for (String pattern : PATTERNS) {
+            filters.add(new LogCatFilter("tag", pattern, "", "", "", LogLevel.VERBOSE));
+            filters.add(new LogCatFilter("text", "", pattern, "", "", LogLevel.VERBOSE));
+            filters.add(new LogCatFilter("app", "", "", "", pattern, LogLevel.VERBOSE));
+        }
+        filters.add(new LogCatFilter("pid", "", "", "123", "", LogLevel.VERBOSE));
+        filters.add(new LogCatFilter("pid2", "dalvik", "", "123", "", LogLevel.VERBOSE));
+        filters.add(new LogCatFilter("level", "", "", "", "", LogLevel.WARN));
+        filters.add(new LogCatFilter("all", "Activity", "act", "456", "com", LogLevel.INFO));
+        LogCatFilterSet set = new LogCatFilterSet(filters);
+
+        for (int repeat = 0; repeat < 2; repeat++) {
+            for (LogLevel level : LogLevel.values()) {
+                for (String pid : new String[] { "123", "456", "789" }) {
+                    for (String value : VALUES) {
+                        checkMessage(set, new LogCatMessage(level, pid, "1", "com.example",
+                                value, "", "activity"));
+                        checkMessage(set, new LogCatMessage(level, pid, "1", "com.example",
+                                "ActivityManager", "", value));
+                        checkMessage(set, new LogCatMessage(level, pid, "1", value,
+                                "dalvikvm", "", ""));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testMatchingFilters() {
+        LogCatFilter tag = new LogCatFilter("tag", "^Activity", "", "", "", LogLevel.VERBOSE);
+        LogCatFilter text = new LogCatFilter("text", "", "started", "", "", LogLevel.VERBOSE);
+        LogCatFilter error = new LogCatFilter("error", "", "", "", "", LogLevel.ERROR);
+        LogCatFilterSet set = new LogCatFilterSet(Arrays.asList(tag, text, error));
+
+        LogCatMessage m = new LogCatMessage(LogLevel.INFO, "1", "1", "", "ActivityManager", "",
+                "Process started");
+        assertEquals(Arrays.asList(tag, text), set.getMatchingFilters(m));
+        assertTrue(set.matchesAny(m));
+
+        m = new LogCatMessage(LogLevel.INFO, "1", "1", "", "dalvikvm", "", "GC");
+        assertTrue(set.getMatchingFilters(m).isEmpty());
+        assertFalse(set.matchesAny(m));
+
+        m = new LogCatMessage(LogLevel.ERROR, "1", "1", "", "dalvikvm", "", "GC");
+        assertEquals(Arrays.asList(error), set.getMatchingFilters(m));
+    }
+
+    private static void checkMessage(LogCatFilterSet set, LogCatMessage m) {
+        List<LogCatFilter> expected = new ArrayList<LogCatFilter>();
+        for (LogCatFilter filter : set.getFilters()) {
+            if (filter.matches(m)) {
+                expected.add(filter);
+            }
+        }
+        assertEquals(m.toString(), expected, set.getMatchingFilters(m));
+    }
+}
@@ -19,6 +19,7 @@ import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.logcat.LogCatMessage;
 import com.android.ddmlib.logcat.LogCatMessageParser;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -98,4 +99,63 @@ public final class LogCatMessageParserTest extends TestCase {
         assertEquals(mParsedMessages.get(0).getTid(), Integer.toString(0x1ef));
         assertEquals(mParsedMessages.get(1).getTid(), "234");
     }
+
+    /** Check that raw output split at arbitrary points gives the same messages as lines. */
+    public void testProcessLogData() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (String line : MESSAGES) {
+            sb.append(line).append("\r\n\r\n"); //$NON-NLS-1$
+        }
+        byte[] data = sb.toString().getBytes("UTF-8"); //$NON-NLS-1$
+
+        for (int chunkSize : new int[] { 1, 7, 64, data.length }) {
+            LogCatMessageParser parser = new LogCatMessageParser();
+            List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+            for (int offset = 0; offset < data.length; offset += chunkSize) {
+                messages.addAll(parser.processLogData(data, offset,
+                        Math.min(chunkSize, data.length - offset), null));
+            }
+            messages.addAll(parser.flush(null));
+
+            assertEquals(mParsedMessages.size(), messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                assertEquals(mParsedMessages.get(i).toString(), messages.get(i).toString());
+                assertEquals(mParsedMessages.get(i).getTid(), messages.get(i).getTid());
+            }
+        }
+    }
+
+    /** Check that an unterminated last line is only parsed once the output is flushed. */
+    public void testFlush() throws Exception {
+        LogCatMessageParser parser = new LogCatMessageParser();
+        byte[] data = (MESSAGES[0] + "\n" + MESSAGES[1]).getBytes("UTF-8"); //$NON-NLS-1$
+
+        assertTrue(parser.processLogData(data, 0, data.length, null).isEmpty());
+        List<LogCatMessage> messages = parser.flush(null);
+        assertEquals(1, messages.size());
+        assertEquals(MESSAGES[1], messages.get(0).getMessage());
+    }
+
+    /** Check that headers of consecutive messages share their tag. */
+    public void testSharedTag() {
+        assertSame(mParsedMessages.get(0).getTag(), mParsedMessages.get(6).getTag());
+    }
+
+    /** Check that lines that almost look like headers are messages. */
+    public void testInvalidHeaders() {
+        LogCatMessageParser parser = new LogCatMessageParser();
+        String[] lines = new String[] {
+                "[ 08-11 19:11:07.132   495:0x1ef D/dtag     ]", //$NON-NLS-1$
+                "[ 08-11 19:11:07.132   495:0x1ef X/dtag     ]", //$NON-NLS-1$
+                "[ 08-11 19:11:07.   495:0x1ef D/dtag     ]",    //$NON-NLS-1$
+                "[ 08-11 19:11:07.132   495:0x1ef D/dtag",       //$NON-NLS-1$
+                "[ 08-11 19:11:07.132 495 D/dtag]",              //$NON-NLS-1$
+        };
+        List<LogCatMessage> messages = parser.processLogLines(lines, null);
+        assertEquals(4, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(lines[i + 1], messages.get(i).getMessage());
+            assertEquals("dtag", messages.get(i).getTag()); //$NON-NLS-1$
+        }
+    }
 }
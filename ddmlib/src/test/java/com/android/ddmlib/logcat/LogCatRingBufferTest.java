@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class LogCatRingBufferTest extends TestCase {
+    public void testDecode() {
+        LogCatRingBuffer buffer = new LogCatRingBuffer(1024);
+        buffer.add(createEntry(123, 456, 6, "MyTag", "first line\nsecond line\n", 123000000));
+
+        List<LogCatMessage> messages = buffer.getMessages(0, null);
+        assertEquals(2, messages.size());
+
+        LogCatMessage m = messages.get(0);
+        assertEquals(LogLevel.ERROR, m.getLogLevel());
+        assertEquals("123", m.getPid());
+        assertEquals("456", m.getTid());
+        assertEquals("MyTag", m.getTag());
+        assertEquals("", m.getAppName());
+        assertEquals("first line", m.getMessage());
+        assertTrue(m.getTime().matches("\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.123"));
+        assertEquals("second line", messages.get(1).getMessage());
+        assertEquals(m.getTime(), messages.get(1).getTime());
+    }
+
+    public void testPriorities() {
+        LogCatRingBuffer buffer = new LogCatRingBuffer(1024);
+        buffer.add(createEntry(1, 1, 3, "t", "debug", 0));
+        buffer.add(createEntry(1, 1, 7, "t", "fatal", 0));
+        buffer.add(createEntry(1, 1, 1, "t", "default", 0));
+
+        List<LogCatMessage> messages = buffer.getMessages(0, null);
+        assertEquals(LogLevel.DEBUG, messages.get(0).getLogLevel());
+        assertEquals(LogLevel.ASSERT, messages.get(1).getLogLevel());
+        assertEquals(LogLevel.VERBOSE, messages.get(2).getLogLevel());
+    }
+
+    public void testEviction() {
+        // each entry takes 20 bytes of header, and 10 bytes of payload
+        LogCatRingBuffer buffer = new LogCatRingBuffer(100);
+        for (int i = 0; i < 10; i++) {
+            buffer.add(createEntry(i, i, 4, "tag", "msg" + i, 0));
+        }
+
+        // only the last 3 entries fit, and they wrap around the end of the buffer
+        assertEquals(3, buffer.size());
+        assertEquals(7, buffer.getFirstSequence());
+        assertEquals(10, buffer.getNextSequence());
+
+        List<LogCatMessage> messages = buffer.getMessages(0, null);
+        assertEquals(3, messages.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("msg" + (7 + i), messages.get(i).getMessage());
+            assertEquals(Integer.toString(7 + i), messages.get(i).getPid());
+        }
+
+        // incremental queries only return the new entries
+        messages = buffer.getMessages(9, null);
+        assertEquals(1, messages.size());
+        assertEquals("msg9", messages.get(0).getMessage());
+        assertTrue(buffer.getMessages(10, null).isEmpty());
+    }
+
+    public void testEntryTooLarge() {
+        LogCatRingBuffer buffer = new LogCatRingBuffer(64);
+        buffer.add(createEntry(1, 1, 4, "tag", "small", 0));
+        buffer.add(createEntry(1, 1, 4, "tag", "this message does not fit in the buffer", 0));
+
+        assertEquals(1, buffer.size());
+        assertEquals(1, buffer.getNextSequence());
+        assertEquals("small", buffer.getMessages(0, null).get(0).getMessage());
+    }
+
+    public void testClear() {
+        LogCatRingBuffer buffer = new LogCatRingBuffer(1024);
+        buffer.add(createEntry(1, 1, 4, "tag", "msg", 0));
+        buffer.add(createEntry(1, 1, 4, "tag", "msg", 0));
+        buffer.clear();
+
+        assertEquals(0, buffer.size());
+        assertEquals(2, buffer.getFirstSequence());
+        assertTrue(buffer.getMessages(0, null).isEmpty());
+
+        buffer.add(createEntry(1, 1, 4, "tag", "new", 0));
+        assertEquals("new", buffer.getMessages(2, null).get(0).getMessage());
+    }
+
+    private static LogEntry createEntry(int pid, int tid, int priority, String tag, String msg,
+            int nsec) {
+        byte[] tagBytes = tag.getBytes(Charsets.UTF_8);
+        byte[] msgBytes = msg.getBytes(Charsets.UTF_8);
+
+        LogEntry entry = new LogEntry();
+        entry.len = 1 + tagBytes.length + 1 + msgBytes.length + 1;
+        entry.pid = pid;
+        entry.tid = tid;
+        entry.sec = 1400000000;
+        entry.nsec = nsec;
+        entry.data = new byte[entry.len];
+        entry.data[0] = (byte) priority;
+        System.arraycopy(tagBytes, 0, entry.data, 1, tagBytes.length);
+        System.arraycopy(msgBytes, 0, entry.data, tagBytes.length + 2, msgBytes.length);
+        return entry;
+    }
+}
@@ -104,6 +104,8 @@ public class LintCliClient extends LintClient {
 
 
         mDriver.setAbbreviating(!mFlags.isShowEverything());
+        mDriver.setThreadCount(mFlags.getThreadCount());
+        mDriver.setIncremental(mFlags.isIncremental());
         if (!mFlags.isQuiet()) {
             mDriver.addLintListener(new ProgressPrinter());
         }
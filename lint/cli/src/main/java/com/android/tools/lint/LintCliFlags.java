@@ -45,6 +45,8 @@ public class LintCliFlags {
     private boolean mShowLines = true;
     private final List<Reporter> mReporters = Lists.newArrayList();
     private boolean mQuiet;
+    private int mThreadCount = 1;
+    private boolean mIncremental;
     private boolean mWarnAll;
     private boolean mNoWarnings;
     private boolean mAllErrors;
@@ -159,6 +161,26 @@ public class LintCliFlags {
         mQuiet = quiet;
     }
 
+    /** Returns the number of threads used to check the files of a project */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /** Sets the number of threads used to check the files of a project */
+    public void setThreadCount(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    /** Returns whether the results of previous runs are reused for unchanged files */
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    /** Sets whether the results of previous runs are reused for unchanged files */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
     /** Returns whether lint should check all warnings, including those off by default */
     public boolean isCheckAllWarnings() {
         return mWarnAll;
@@ -18,7 +18,7 @@ package com.android.tools.lint;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
-import com.android.tools.lint.client.api.IDomParser;
+import com.android.tools.lint.client.api.IStreamingDomParser;
 import com.android.tools.lint.client.api.IssueRegistry;
 import com.android.tools.lint.detector.api.Location;
 import com.android.tools.lint.detector.api.Location.Handle;
@@ -26,6 +26,7 @@ import com.android.tools.lint.detector.api.XmlContext;
 import com.android.utils.PositionXmlParser;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
@@ -39,7 +40,7 @@ import java.io.UnsupportedEncodingException;
  * <p>
  * It also catches and reports parser errors as lint errors.
  */
-public class LintCliXmlParser extends PositionXmlParser implements IDomParser {
+public class LintCliXmlParser extends PositionXmlParser implements IStreamingDomParser {
     @Override
     public Document parseXml(@NonNull XmlContext context) {
         String xml = null;
@@ -49,7 +50,59 @@ public class LintCliXmlParser extends PositionXmlParser implements IDomParser {
             if (xml != null) {
                 return super.parse(xml);
             }
-        } catch (UnsupportedEncodingException e) {
+        } catch (Throwable t) {
+            reportError(context, xml, t);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean streamXml(@NonNull final XmlContext context,
+            @NonNull final IStreamingDomParser.ElementHandler handler) {
+        String xml = null;
+        try {
+            xml = context.getContents();
+            if (xml != null) {
+                super.stream(xml, new PositionXmlParser.ElementHandler() {
+                    @Override
+                    public void handleElement(@NonNull Element element) {
+                        try {
+                            handler.handleElement(context, element);
+                        } catch (RuntimeException e) {
+                            throw new HandlerFailure(e);
+                        }
+                    }
+                });
+                return true;
+            }
+        } catch (HandlerFailure e) {
+            // Not a parser error: let the driver deal with failing detectors
+            throw e.getCause();
+        } catch (Throwable t) {
+            reportError(context, xml, t);
+        }
+        return false;
+    }
+
+    /** Wraps the exceptions thrown by the handler of {@link #streamXml} */
+    private static class HandlerFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        HandlerFailure(@NonNull RuntimeException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized RuntimeException getCause() {
+            return (RuntimeException) super.getCause();
+        }
+    }
+
+    /** Reports a failure to parse the file of the given context */
+    private static void reportError(@NonNull XmlContext context, @Nullable String xml,
+            @NonNull Throwable t) {
+        if (t instanceof UnsupportedEncodingException) {
+            Exception e = (Exception) t;
             context.report(
                     // Must provide an issue since API guarantees that the issue parameter
                     // is valid
@@ -57,7 +110,8 @@ public class LintCliXmlParser extends PositionXmlParser implements IDomParser {
                     e.getCause() != null ? e.getCause().getLocalizedMessage() :
                         e.getLocalizedMessage(),
                     null);
-        } catch (SAXException e) {
+        } else if (t instanceof SAXException) {
+            Exception e = (Exception) t;
             Location location = Location.create(context.file);
             String message = e.getCause() != null ? e.getCause().getLocalizedMessage() :
                     e.getLocalizedMessage();
@@ -76,10 +130,9 @@ public class LintCliXmlParser extends PositionXmlParser implements IDomParser {
                     IssueRegistry.PARSER_ERROR, location,
                     message,
                     null);
-        } catch (Throwable t) {
+        } else {
             context.log(t, null);
         }
-        return null;
     }
 
     @NonNull
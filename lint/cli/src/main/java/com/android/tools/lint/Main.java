@@ -78,6 +78,8 @@ public class Main {
     private static final String ARG_URL        = "--url";          //$NON-NLS-1$
     private static final String ARG_VERSION    = "--version";      //$NON-NLS-1$
     private static final String ARG_EXIT_CODE  = "--exitcode";     //$NON-NLS-1$
+    private static final String ARG_THREADS    = "--threads";      //$NON-NLS-1$
+    private static final String ARG_INCREMENTAL = "--incremental"; //$NON-NLS-1$
     private static final String ARG_CLASSES    = "--classpath";    //$NON-NLS-1$
     private static final String ARG_SOURCES    = "--sources";      //$NON-NLS-1$
     private static final String ARG_RESOURCES  = "--resources";    //$NON-NLS-1$
@@ -240,6 +242,22 @@ public class Main {
             } else if (arg.equals(ARG_VERSION)) {
                 printVersion(client);
                 System.exit(0);
+            } else if (arg.equals(ARG_THREADS)) {
+                int threadCount = 0;
+                if (index < args.length - 1) {
+                    try {
+                        threadCount = Integer.parseInt(args[++index]);
+                    } catch (NumberFormatException e) {
+                        // reported below
+                    }
+                }
+                if (threadCount < 1) {
+                    System.err.println("Missing or invalid thread count");
+                    System.exit(ERRNO_INVALID_ARGS);
+                }
+                mFlags.setThreadCount(threadCount);
+            } else if (arg.equals(ARG_INCREMENTAL)) {
+                mFlags.setIncremental(true);
             } else if (arg.equals(ARG_URL)) {
                 if (index == args.length - 1) {
                     System.err.println("Missing URL mapping string");
@@ -885,6 +903,10 @@ public class Main {
             ARG_LIST_IDS, "List the available issue id's and exit.",
             ARG_VERSION, "Output version information and exit.",
             ARG_EXIT_CODE, "Set the exit code to " + ERRNO_ERRORS + " if errors are found.",
+            ARG_THREADS + " <count>", "Check the files of a project with the given number " +
+                "of threads.",
+            ARG_INCREMENTAL, "Reuse the results of previous runs for the files which " +
+                "haven't changed since.",
             ARG_SHOW, "List available issues along with full explanations.",
             ARG_SHOW + " <ids>", "Show full explanations for the given list of issue id's.",
 
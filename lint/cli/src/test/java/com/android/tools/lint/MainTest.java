@@ -46,6 +46,13 @@ public class MainTest extends AbstractCheckTest {
 
     private void checkDriver(String expectedOutput, String expectedError, String[] args)
             throws Exception {
+        String[] result = runDriver(args);
+        assertEquals(expectedError, result[1]);
+        assertEquals(expectedOutput, result[0]);
+    }
+
+    /** Runs lint with the given arguments, and returns its output and its error output */
+    private String[] runDriver(String[] args) throws Exception {
         PrintStream previousOut = System.out;
         PrintStream previousErr = System.err;
         try {
@@ -78,8 +85,7 @@ public class MainTest extends AbstractCheckTest {
                 // Allow
             }
 
-            assertEquals(expectedError, cleanup(error.toString()));
-            assertEquals(expectedOutput, cleanup(output.toString()));
+            return new String[] { cleanup(output.toString()), cleanup(error.toString()) };
         } finally {
             // Re-enable system exit for unit test
             System.setSecurityManager(null);
@@ -116,6 +122,52 @@ public class MainTest extends AbstractCheckTest {
         });
     }
 
+    public void testThreads() throws Exception {
+        // Runs serial and thread safe checks together, on layouts with many issues
+        String checks = "UselessParent,UselessLeaf,HardcodedText,PxUsage,SpUsage,SmallSp,"
+                + "ContentDescription,ScrollViewSize,TextFields,"                // Thread safe
+                + "DuplicateIds,InefficientWeight,NestedWeights,TooManyViews,"   // Serial
+                + "TooDeepLayout,ObsoleteLayoutParam,NestedScrolling";
+        File project = getProjectDir(null,
+                "res/layout/accessibility.xml",
+                "res/layout/duplicate.xml",
+                "res/layout/inefficient_weight.xml",
+                "res/layout/layout1.xml",
+                "res/layout/nested_weights.xml",
+                "res/layout/scrolling.xml",
+                "res/layout/size.xml",
+                "res/layout/textsize.xml",
+                "res/layout/too_many.xml",
+                "res/layout/useless.xml",
+                "res/layout/useless2.xml",
+                "res/layout/useless3.xml",
+                "res/layout/wrongparams.xml",
+                "res/values/strings.xml"
+        );
+        String[] expected = runDriver(new String[] {
+                "--quiet",
+                "--check",
+                checks,
+                project.getPath()
+        });
+        assertEquals("", expected[1]);
+        assertTrue(expected[0], expected[0].contains("[UselessParent]"));
+        assertTrue(expected[0], expected[0].contains("[DuplicateIds]"));
+        assertTrue(expected[0], expected[0].contains("[InefficientWeight]"));
+        assertTrue(expected[0], expected[0].contains("[HardcodedText]"));
+
+        String[] threaded = runDriver(new String[] {
+                "--quiet",
+                "--threads",
+                "4",
+                "--check",
+                checks,
+                project.getPath()
+        });
+        assertEquals(expected[1], threaded[1]);
+        assertEquals(expected[0], threaded[0]);
+    }
+
     public void testShowDescription() throws Exception {
         checkDriver(
         // Expected output
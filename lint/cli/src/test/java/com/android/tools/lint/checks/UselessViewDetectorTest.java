@@ -16,10 +16,79 @@
 
 package com.android.tools.lint.checks;
 
+import com.android.annotations.NonNull;
+import com.android.tools.lint.LintCliXmlParser;
+import com.android.tools.lint.client.api.IDomParser;
+import com.android.tools.lint.client.api.IStreamingDomParser;
+import com.android.tools.lint.client.api.LintDriver;
 import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.XmlContext;
+
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 @SuppressWarnings("javadoc")
 public class UselessViewDetectorTest extends AbstractCheckTest {
+    private int mThreadCount = 1;
+    private File mCacheDir;
+    /** The layout files read by the detectors in the last run */
+    private final List<String> mReadFiles = new ArrayList<String>();
+
+    @Override
+    protected void configureDriver(LintDriver driver) {
+        driver.setThreadCount(mThreadCount);
+        driver.setIncremental(mCacheDir != null);
+    }
+
+    @Override
+    protected TestLintClient createClient() {
+        return new TestLintClient() {
+            @Override
+            public File getCacheDir(boolean create) {
+                return mCacheDir != null ? mCacheDir : super.getCacheDir(create);
+            }
+
+            @Override
+            public IDomParser getDomParser() {
+                return new LintCliXmlParser() {
+                    @Override
+                    public Document parseXml(@NonNull XmlContext context) {
+                        recordRead(context);
+                        return super.parseXml(context);
+                    }
+
+                    @Override
+                    public boolean streamXml(@NonNull XmlContext context,
+                            @NonNull IStreamingDomParser.ElementHandler handler) {
+                        recordRead(context);
+                        return super.streamXml(context, handler);
+                    }
+                };
+            }
+        };
+    }
+
+    private void recordRead(XmlContext context) {
+        if (context.file.getParentFile().getName().equals("layout")) {
+            synchronized (mReadFiles) {
+                mReadFiles.add(context.file.getName());
+            }
+        }
+    }
+
+    private List<String> getReadFiles() {
+        synchronized (mReadFiles) {
+            List<String> files = new ArrayList<String>(mReadFiles);
+            Collections.sort(files);
+            mReadFiles.clear();
+            return files;
+        }
+    }
+
     @Override
     protected Detector getDetector() {
         return new UselessViewDetector();
@@ -64,4 +133,64 @@ public class UselessViewDetectorTest extends AbstractCheckTest {
 
             lintFiles("res/layout/breadcrumbs_in_fragment.xml"));
     }
+
+    public void testThreads() throws Exception {
+        String[] files = {
+            "res/layout/useless.xml",
+            "res/layout/useless2.xml",
+            "res/layout/useless3.xml",
+            "res/layout/breadcrumbs_in_fragment.xml"
+        };
+        String expected = lintProject(files);
+        assertTrue(expected, expected.contains("4 warnings"));
+
+        mThreadCount = 3;
+        assertEquals(expected, lintProject(files));
+    }
+
+    public void testIncremental() throws Exception {
+        String[] files = {
+            "res/layout/useless.xml",
+            "res/layout/useless2.xml",
+            "res/layout/useless3.xml",
+            "res/layout/breadcrumbs_in_fragment.xml"
+        };
+        // useless2.xml is edited to have the contents of useless.xml
+        String[] editedFiles = {
+            "res/layout/useless.xml",
+            "res/layout/useless.xml=>res/layout/useless2.xml",
+            "res/layout/useless3.xml",
+            "res/layout/breadcrumbs_in_fragment.xml"
+        };
+        String expected = lintProject(files);
+        String expectedEdited = lintProject(editedFiles);
+        assertTrue(expectedEdited, expectedEdited.contains("8 warnings"));
+        getReadFiles();
+
+        mCacheDir = new File(getTempDir(), getClass().getSimpleName() + "_cache");
+        addCleanupDir(mCacheDir);
+        assertEquals(expected, lintProject(files));
+        assertEquals(4, getReadFiles().size());
+        File[] cacheFiles = mCacheDir.listFiles();
+        assertNotNull(cacheFiles);
+        assertEquals(1, cacheFiles.length);
+
+        // Reported from the cache, without reading the files
+        assertEquals(expected, lintProject(files));
+        assertEquals(Collections.<String>emptyList(), getReadFiles());
+        mThreadCount = 3;
+        assertEquals(expected, lintProject(files));
+        assertEquals(Collections.<String>emptyList(), getReadFiles());
+
+        // Only the edited file is checked again
+        assertEquals(expectedEdited, lintProject(editedFiles));
+        assertEquals(Collections.singletonList("useless2.xml"), getReadFiles());
+        mThreadCount = 1;
+        assertEquals(expectedEdited, lintProject(editedFiles));
+        assertEquals(Collections.<String>emptyList(), getReadFiles());
+
+        // And checked again when it's changed back
+        assertEquals(expected, lintProject(files));
+        assertEquals(Collections.singletonList("useless2.xml"), getReadFiles());
+    }
 }
@@ -16,13 +16,19 @@
 
 package com.android.tools.lint.client.api;
 
+import com.android.tools.lint.LintCliClient;
+import com.android.tools.lint.LintCliFlags;
 import com.android.tools.lint.client.api.LintDriver.ClassEntry;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import junit.framework.TestCase;
 
@@ -49,4 +55,34 @@ public class LintDriverTest extends TestCase {
         Collections.sort(list3);
         assertEquals(expected, list3);
     }
+
+    public void testClassEntryInJar() throws Exception {
+        byte[] contents = new byte[] { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE };
+        File jarFile = File.createTempFile("lint", ".jar");
+        try {
+            ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jarFile));
+            zos.putNextEntry(new ZipEntry("foo/Bar.class"));
+            zos.write(contents);
+            zos.closeEntry();
+            zos.close();
+
+            ZipFile zipFile = new ZipFile(jarFile);
+            try {
+                ClassEntry entry = new ClassEntry(jarFile, zipFile,
+                        zipFile.getEntry("foo/Bar.class"));
+                assertEquals(new File("foo/Bar.class"), entry.file);
+                assertEquals(jarFile, entry.jarFile);
+                assertNull(entry.bytes);
+
+                LintClient client = new LintCliClient(new LintCliFlags());
+                assertTrue(Arrays.equals(contents, entry.read(client)));
+                // Read again, since the contents are not kept
+                assertTrue(Arrays.equals(contents, entry.read(client)));
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            jarFile.delete();
+        }
+    }
 }
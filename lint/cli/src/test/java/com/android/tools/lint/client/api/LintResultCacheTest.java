@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.LintCliClient;
+import com.android.tools.lint.LintCliFlags;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Severity;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class LintResultCacheTest extends TestCase {
+    private static final String SIGNATURE = LintResultCache.digest("detectors");
+    private static final String DIGEST_A = LintResultCache.digest("a");
+    private static final String DIGEST_B = LintResultCache.digest("b");
+
+    private File mDir;
+    private File mFile;
+    /** The number of errors logged by the client */
+    private int mLogCount;
+
+    private final LintClient mClient = new LintCliClient(new LintCliFlags()) {
+        @Override
+        public void log(@NonNull Severity severity, @Nullable Throwable exception,
+                @Nullable String format, @Nullable Object... args) {
+            mLogCount++;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        mDir = Files.createTempDir();
+        mFile = new File(mDir, "cache");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mDir.delete();
+    }
+
+    private static Location createLocation(String path, int line, String message) {
+        Position start = new DefaultPosition(line, 4, line * 100 + 4);
+        Position end = new DefaultPosition(line, 10, line * 100 + 10);
+        Location location = Location.create(new File(path), start, end);
+        location.setMessage(message);
+        return location;
+    }
+
+    /** Saves a cache with two files, the first one having several issues */
+    private void saveCache() {
+        LintResultCache cache = LintResultCache.load(mClient, mFile, SIGNATURE);
+        Location location = createLocation("res/layout/a.xml", 3, null);
+        Location secondary = createLocation("res/layout/a.xml", 8, "Parent");
+        secondary.setSecondary(Location.create(new File("res/layout/c.xml")));
+        location.setSecondary(secondary);
+        cache.put("a.xml", DIGEST_A, Arrays.asList(
+                new LintResultCache.Report("UselessParent", Severity.WARNING, "Useless",
+                        location),
+                new LintResultCache.Report("ParserError", Severity.ERROR, "No location",
+                        null)));
+        cache.put("b.xml", DIGEST_B, Collections.<LintResultCache.Report>emptyList());
+        cache.save(mClient, false);
+        assertTrue(mFile.exists());
+    }
+
+    private static void checkPosition(Position position, int line, int column, int offset) {
+        assertNotNull(position);
+        assertEquals(line, position.getLine());
+        assertEquals(column, position.getColumn());
+        assertEquals(offset, position.getOffset());
+    }
+
+    public void testEmpty() throws Exception {
+        LintResultCache cache = LintResultCache.load(mClient, mFile, SIGNATURE);
+        assertNull(cache.get("a.xml", DIGEST_A));
+        assertEquals(0, mLogCount);
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        saveCache();
+        LintResultCache cache = LintResultCache.load(mClient, mFile, SIGNATURE);
+        assertEquals(0, mLogCount);
+
+        // The file changed
+        assertNull(cache.get("a.xml", DIGEST_B));
+        assertNull(cache.get("c.xml", DIGEST_A));
+
+        LintResultCache.Entry entry = cache.get("b.xml", DIGEST_B);
+        assertNotNull(entry);
+        assertTrue(entry.reports.isEmpty());
+
+        entry = cache.get("a.xml", DIGEST_A);
+        assertNotNull(entry);
+        assertEquals(DIGEST_A, entry.digest);
+        assertEquals(2, entry.reports.size());
+
+        LintResultCache.Report report = entry.reports.get(0);
+        assertEquals("UselessParent", report.issueId);
+        assertEquals(Severity.WARNING, report.severity);
+        assertEquals("Useless", report.message);
+        Location location = report.location;
+        assertNotNull(location);
+        assertEquals(new File("res/layout/a.xml"), location.getFile());
+        checkPosition(location.getStart(), 3, 4, 304);
+        checkPosition(location.getEnd(), 3, 10, 310);
+        assertNull(location.getMessage());
+
+        Location secondary = location.getSecondary();
+        assertNotNull(secondary);
+        assertEquals(new File("res/layout/a.xml"), secondary.getFile());
+        checkPosition(secondary.getStart(), 8, 4, 804);
+        checkPosition(secondary.getEnd(), 8, 10, 810);
+        assertEquals("Parent", secondary.getMessage());
+
+        Location last = secondary.getSecondary();
+        assertNotNull(last);
+        assertEquals(new File("res/layout/c.xml"), last.getFile());
+        assertNull(last.getStart());
+        assertNull(last.getEnd());
+        assertNull(last.getMessage());
+        assertNull(last.getSecondary());
+
+        report = entry.reports.get(1);
+        assertEquals("ParserError", report.issueId);
+        assertEquals(Severity.ERROR, report.severity);
+        assertEquals("No location", report.message);
+        assertNull(report.location);
+    }
+
+    public void testKeepOldEntries() throws Exception {
+        saveCache();
+        LintResultCache cache = LintResultCache.load(mClient, mFile, SIGNATURE);
+        cache.put("b.xml", DIGEST_A, Collections.<LintResultCache.Report>emptyList());
+        cache.save(mClient, true);
+
+        cache = LintResultCache.load(mClient, mFile, SIGNATURE);
+        assertNotNull(cache.get("a.xml", DIGEST_A));
+        assertNotNull(cache.get("b.xml", DIGEST_A));
+        assertNull(cache.get("b.xml", DIGEST_B));
+
+        // Only the entries of this run are kept otherwise
+        cache.put("b.xml", DIGEST_B, Collections.<LintResultCache.Report>emptyList());
+        cache.save(mClient, false);
+        cache = LintResultCache.load(mClient, mFile, SIGNATURE);
+        assertNull(cache.get("a.xml", DIGEST_A));
+        assertNotNull(cache.get("b.xml", DIGEST_B));
+        assertEquals(0, mLogCount);
+    }
+
+    public void testSignatureMismatch() throws Exception {
+        saveCache();
+        String signature = LintResultCache.digest("other detectors");
+        LintResultCache cache = LintResultCache.load(mClient, mFile, signature);
+        assertNull(cache.get("a.xml", DIGEST_A));
+        assertNull(cache.get("b.xml", DIGEST_B));
+        assertEquals(0, mLogCount);
+
+        // The file is rewritten with the new signature
+        cache.save(mClient, true);
+        assertNull(LintResultCache.load(mClient, mFile, SIGNATURE).get("b.xml", DIGEST_B));
+    }
+
+    public void testTruncatedFile() throws Exception {
+        saveCache();
+        byte[] contents = Files.toByteArray(mFile);
+        Files.write(Arrays.copyOf(contents, contents.length - 10), mFile);
+
+        LintResultCache cache = LintResultCache.load(mClient, mFile, SIGNATURE);
+        assertNull(cache.get("a.xml", DIGEST_A));
+        assertNull(cache.get("b.xml", DIGEST_B));
+        assertEquals(1, mLogCount);
+    }
+
+    public void testCorruptFile() throws Exception {
+        // The number of entries, after the format version and the signature, is wrong
+        int countOffset = 4 + 2 + SIGNATURE.length();
+        for (int count : new int[] { -1, Integer.MAX_VALUE }) {
+            saveCache();
+            byte[] contents = Files.toByteArray(mFile);
+            contents[countOffset] = (byte) (count >>> 24);
+            contents[countOffset + 1] = (byte) (count >>> 16);
+            contents[countOffset + 2] = (byte) (count >>> 8);
+            contents[countOffset + 3] = (byte) count;
+            Files.write(contents, mFile);
+
+            mLogCount = 0;
+            LintResultCache cache = LintResultCache.load(mClient, mFile, SIGNATURE);
+            assertNull(cache.get("a.xml", DIGEST_A));
+            assertEquals(1, mLogCount);
+        }
+
+        // Not a cache file
+        Files.write(new byte[] { 1, 2, 3 }, mFile);
+        mLogCount = 0;
+        LintResultCache cache = LintResultCache.load(mClient, mFile, SIGNATURE);
+        assertNull(cache.get("a.xml", DIGEST_A));
+        assertEquals(1, mLogCount);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public class SuperClassIndexTest extends TestCase {
+    private static final String CHECKSUM = LintResultCache.digest("classes");
+
+    private static Map<String, String> createHierarchy() {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("foo/View", "java/lang/Object");
+        map.put("foo/ViewGroup", "foo/View");
+        map.put("foo/LinearLayout", "foo/ViewGroup");
+        map.put("foo/TextView", "foo/View");
+        map.put("foo/Button", "foo/TextView");
+        map.put("foo/MyActivity", "android/app/Activity");
+        map.put("foo/MyActivity$1", "foo/MyActivity");
+        return map;
+    }
+
+    public void testLookup() throws Exception {
+        checkIndex(SuperClassIndex.create(CHECKSUM, createHierarchy()));
+    }
+
+    public void testWriteAndLoad() throws Exception {
+        File file = File.createTempFile("superclasses", ".bin");
+        try {
+            SuperClassIndex.create(CHECKSUM, createHierarchy()).write(file);
+            SuperClassIndex index = SuperClassIndex.load(file, CHECKSUM);
+            assertNotNull(index);
+            checkIndex(index);
+
+            // Out of date
+            assertNull(SuperClassIndex.load(file, LintResultCache.digest("other classes")));
+        } finally {
+            file.delete();
+        }
+        assertNull(SuperClassIndex.load(file, CHECKSUM));
+    }
+
+    private static void checkIndex(SuperClassIndex index) {
+        assertEquals(7, index.getClassCount());
+        assertEquals(-1, index.find("foo/Unknown"));
+        assertEquals(-1, index.find("java/lang/Object"));
+
+        int button = index.find("foo/Button");
+        assertEquals("foo/Button", index.getName(button));
+        assertEquals("foo/TextView", index.getSuperClass(button));
+        assertEquals("foo/View", index.getName(index.getRoot(button)));
+        assertEquals("java/lang/Object", index.getSuperClass(index.find("foo/View")));
+
+        int view = index.find("foo/View");
+        int viewGroup = index.find("foo/ViewGroup");
+        int textView = index.find("foo/TextView");
+        int linearLayout = index.find("foo/LinearLayout");
+        assertTrue(index.isSubclassOf(button, view));
+        assertTrue(index.isSubclassOf(button, textView));
+        assertTrue(index.isSubclassOf(button, button));
+        assertTrue(index.isSubclassOf(linearLayout, view));
+        assertFalse(index.isSubclassOf(button, viewGroup));
+        assertFalse(index.isSubclassOf(view, button));
+        assertFalse(index.isSubclassOf(linearLayout, textView));
+
+        int inner = index.find("foo/MyActivity$1");
+        int activity = index.find("foo/MyActivity");
+        assertTrue(index.isSubclassOf(inner, activity));
+        assertFalse(index.isSubclassOf(inner, view));
+        assertEquals(activity, index.getRoot(inner));
+        assertEquals("android/app/Activity", index.getSuperClass(activity));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.XmlContext;
+import com.google.common.annotations.Beta;
+
+import org.w3c.dom.Element;
+
+/**
+ * An XML parser which can also pass the elements of a file to lint as they are
+ * parsed, without building the whole document. Lint uses this for the files
+ * where none of the applicable detectors needs the document (see
+ * {@link Detector#requiresXmlDocument()}).
+ * <p/>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+@Beta
+public interface IStreamingDomParser extends IDomParser {
+    /**
+     * Parses the file pointed to by the given context, and passes each element
+     * to the given handler once its end tag has been parsed. The elements have
+     * their attributes, and their enclosing elements can be reached with
+     * {@link Element#getParentNode()}, but they have no child nodes. The
+     * {@link #getLocation} methods must work for the elements and their
+     * attributes while the handler is running.
+     *
+     * @param context the context pointing to the file to be parsed
+     * @param handler the handler to pass the elements to
+     * @return true if the file was parsed, false if parsing failed (in which case
+     *         the elements before the error may already have been passed to the
+     *         handler)
+     */
+    boolean streamXml(@NonNull XmlContext context, @NonNull ElementHandler handler);
+
+    /** Handler for the elements passed by {@link #streamXml(XmlContext, ElementHandler)} */
+    interface ElementHandler {
+        /**
+         * Called for each element of the file, after the elements it contains
+         *
+         * @param context the context of the file being parsed
+         * @param element the element
+         */
+        void handleElement(@NonNull XmlContext context, @NonNull Element element);
+    }
+}
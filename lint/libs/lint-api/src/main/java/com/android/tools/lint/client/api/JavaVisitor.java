@@ -189,46 +189,67 @@ public class JavaVisitor {
     }
 
     void visitFile(@NonNull JavaContext context, @NonNull File file) {
-        context.parser = mParser;
-
-        Node compilationUnit = null;
         try {
-            compilationUnit = mParser.parseJava(context);
-            if (compilationUnit == null) {
-                // No need to log this; the parser should be reporting
-                // a full warning (such as IssueRegistry#PARSER_ERROR)
-                // with details, location, etc.
-                return;
+            if (parseFile(context)) {
+                visitCompilationUnit(context);
             }
-            context.compilationUnit = compilationUnit;
+        } finally {
+            dispose(context);
+        }
+    }
 
-            for (VisitingDetector v : mAllDetectors) {
-                v.setContext(context);
-                v.getDetector().beforeCheckFile(context);
-            }
+    /**
+     * Parses the file of the given context. The parse tree must be released with
+     * {@link #dispose(JavaContext)}.
+     *
+     * @return true if the file was parsed
+     */
+    boolean parseFile(@NonNull JavaContext context) {
+        context.parser = mParser;
+        context.compilationUnit = mParser.parseJava(context);
 
-            for (VisitingDetector v : mFullTreeDetectors) {
-                AstVisitor visitor = v.getVisitor();
-                if (visitor != null) {
-                    compilationUnit.accept(visitor);
-                }
-            }
+        // If null, no need to log this; the parser should be reporting
+        // a full warning (such as IssueRegistry#PARSER_ERROR)
+        // with details, location, etc.
+        return context.compilationUnit != null;
+    }
 
-            if (!mMethodDetectors.isEmpty() || !mResourceFieldDetectors.isEmpty()) {
-                AstVisitor visitor = new DelegatingJavaVisitor(context);
-                compilationUnit.accept(visitor);
-            } else if (!mNodeTypeDetectors.isEmpty()) {
-                AstVisitor visitor = new DispatchVisitor();
+    /**
+     * Runs the detectors on the parse tree of the given context, which has been parsed
+     * by {@link #parseFile(JavaContext)}, possibly by another visitor
+     */
+    void visitCompilationUnit(@NonNull JavaContext context) {
+        Node compilationUnit = context.compilationUnit;
+
+        for (VisitingDetector v : mAllDetectors) {
+            v.setContext(context);
+            v.getDetector().beforeCheckFile(context);
+        }
+
+        for (VisitingDetector v : mFullTreeDetectors) {
+            AstVisitor visitor = v.getVisitor();
+            if (visitor != null) {
                 compilationUnit.accept(visitor);
             }
+        }
 
-            for (VisitingDetector v : mAllDetectors) {
-                v.getDetector().afterCheckFile(context);
-            }
-        } finally {
-            if (compilationUnit != null) {
-                mParser.dispose(context, compilationUnit);
-            }
+        if (!mMethodDetectors.isEmpty() || !mResourceFieldDetectors.isEmpty()) {
+            AstVisitor visitor = new DelegatingJavaVisitor(context);
+            compilationUnit.accept(visitor);
+        } else if (!mNodeTypeDetectors.isEmpty()) {
+            AstVisitor visitor = new DispatchVisitor();
+            compilationUnit.accept(visitor);
+        }
+
+        for (VisitingDetector v : mAllDetectors) {
+            v.getDetector().afterCheckFile(context);
+        }
+    }
+
+    /** Releases the parse tree of the given context, if any */
+    static void dispose(@NonNull JavaContext context) {
+        if (context.compilationUnit != null) {
+            context.parser.dispose(context, context.compilationUnit);
         }
     }
 
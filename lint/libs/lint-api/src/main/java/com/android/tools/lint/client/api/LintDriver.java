@@ -55,6 +55,7 @@ import com.android.tools.lint.detector.api.XmlContext;
 import com.google.common.annotations.Beta;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -79,14 +80,15 @@ import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.Enumeration;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -96,8 +98,18 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import lombok.ast.Annotation;
 import lombok.ast.AnnotationElement;
@@ -128,6 +140,11 @@ public class LintDriver {
      */
     private static final int MAX_PHASES = 3;
     private static final String SUPPRESS_LINT_VMSIG = '/' + SUPPRESS_LINT + ';';
+    /**
+     * Number of files each worker thread can parse ahead of the analyzing thread,
+     * when running with several threads
+     */
+    private static final int FILES_PER_THREAD = 4;
 
     private final LintClient mClient;
     private LintRequest mRequest;
@@ -145,6 +162,21 @@ public class LintDriver {
     private boolean mAbbreviating = true;
     private boolean mParserErrors;
     private Map<Object,Object> mProperties;
+    private int mThreadCount = 1;
+    /** Runs the file checks when {@link #mThreadCount} is more than 1, during an analysis */
+    private ExecutorService mExecutor;
+    /** The reports made by detectors on a worker thread, for the file being checked */
+    private final ThreadLocal<List<PendingReport>> mPendingReports =
+            new ThreadLocal<List<PendingReport>>();
+    private boolean mIncremental;
+    /** The results of the previous runs, for the project being checked incrementally */
+    private LintResultCache mResultCache;
+    /** The detectors whose results are cached, for the project being checked */
+    private Set<Detector> mCachedDetectors;
+    /** The ids of the issues whose reports are cached, for the project being checked */
+    private Set<String> mCachedIssues;
+    /** The reports of the file being checked, recorded for the result cache */
+    private List<PendingReport> mRecordedReports;
 
     /**
      * Creates a new {@link LintDriver}
@@ -319,6 +351,73 @@ public class LintDriver {
         mParserErrors = hasErrors;
     }
 
+    /**
+     * Sets the number of threads used to check the files of a project.
+     * <p>
+     * With more than one thread, the resource files, Java source files and class
+     * files are parsed concurrently, and the resource and Java source files are
+     * checked concurrently by the detectors which are
+     * {@link Detector#isThreadSafe() thread safe}. The other detectors check the
+     * files one at a time, on the thread calling {@link #analyze(LintRequest)}, in
+     * the same order as with a single thread.
+     * <p>
+     * Issues are always reported to the {@link LintClient} on the thread calling
+     * {@link #analyze(LintRequest)}, in the order of the files, such that the
+     * output doesn't depend on the number of threads. However, the {@link IDomParser}
+     * and {@link IJavaParser} instances returned by the client, as well as
+     * {@link LintClient#readFile(File)}, are used from several threads.
+     *
+     * @param threadCount the number of threads, 1 (the default) to check all the
+     *            files on the calling thread
+     */
+    public void setThreadCount(int threadCount) {
+        assert threadCount >= 1 : threadCount;
+        mThreadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Returns the number of threads used to check the files of a project
+     *
+     * @return the number of threads
+     * @see #setThreadCount(int)
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Sets whether the results of the previous runs should be reused for the files
+     * which haven't changed since.
+     * <p>
+     * When incremental, the issues reported on each resource file and Java source
+     * file by the detectors which only look at one file at a time (the
+     * {@link Detector#isThreadSafe() thread safe} detectors of the
+     * {@link Scope#RESOURCE_FILE} and {@link Scope#JAVA_FILE} scopes) are stored in
+     * the {@link LintClient#getCacheDir(boolean) cache directory}, along with a digest
+     * of the file contents. In later runs these detectors are skipped for the files
+     * whose contents haven't changed, and the stored issues are reported instead.
+     * The stored issues are discarded whenever the set of detectors, their code, the
+     * severity of their issues or the SDK levels of the project change. The other
+     * detectors, such as the ones looking at all the files of a project, are always
+     * run.
+     *
+     * @param incremental whether to reuse the results of the previous runs
+     */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    /**
+     * Returns whether the results of the previous runs are reused for the files
+     * which haven't changed since
+     *
+     * @return true if the analysis is incremental
+     * @see #setIncremental(boolean)
+     */
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
     /**
      * Returns the projects being analyzed
      *
@@ -360,9 +459,23 @@ public class LintDriver {
     public void analyze(@NonNull LintRequest request) {
         try {
             mRequest = request;
+            if (mThreadCount > 1) {
+                mExecutor = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread thread = new Thread(r, "Lint Worker"); //$NON-NLS-1$
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
             analyze();
         } finally {
             mRequest = null;
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
         }
     }
 
@@ -923,6 +1036,27 @@ public class LintDriver {
             }
         }
 
+        // Only the first phase runs all the detectors
+        if (mIncremental && mPhase == 1) {
+            mResultCache = openResultCache(project, main);
+        }
+        try {
+            checkProjectFiles(project, main);
+            if (mResultCache != null && !mCanceled) {
+                // Keep the results of the files which were not checked this time
+                boolean partial = project.getSubset() != null
+                        || !mScope.contains(Scope.RESOURCE_FILE)
+                        || !mScope.contains(Scope.JAVA_FILE);
+                mResultCache.save(mClient, partial);
+            }
+        } finally {
+            mResultCache = null;
+            mCachedDetectors = null;
+            mCachedIssues = null;
+        }
+    }
+
+    private void checkProjectFiles(@NonNull Project project, @Nullable Project main) {
         // Process both Scope.RESOURCE_FILE and Scope.ALL_RESOURCE_FILES detectors together
         // in a single pass through the resource directories.
         if (mScope.contains(Scope.ALL_RESOURCE_FILES) || mScope.contains(Scope.RESOURCE_FILE)) {
@@ -937,16 +1071,27 @@ public class LintDriver {
                     }
                 }
                 if (!xmlDetectors.isEmpty()) {
-                    List<File> files = project.getSubset();
-                    if (files != null) {
-                        checkIndividualResources(project, main, xmlDetectors, files);
-                    } else {
-                        List<File> resourceFolders = project.getResourceFolders();
-                        if (!resourceFolders.isEmpty() && !xmlDetectors.isEmpty()) {
-                            for (File res : resourceFolders) {
-                                checkResFolder(project, main, res, xmlDetectors);
+                    if (mExecutor != null || mResultCache != null) {
+                        // Gather the files first, then check them all in two steps
+                        mPendingResourceFiles = new ArrayList<XmlContext>();
+                    }
+                    try {
+                        List<File> files = project.getSubset();
+                        if (files != null) {
+                            checkIndividualResources(project, main, xmlDetectors, files);
+                        } else {
+                            List<File> resourceFolders = project.getResourceFolders();
+                            if (!resourceFolders.isEmpty() && !xmlDetectors.isEmpty()) {
+                                for (File res : resourceFolders) {
+                                    checkResFolder(project, main, res, xmlDetectors);
+                                }
                             }
                         }
+                        if (mPendingResourceFiles != null && !mCanceled) {
+                            checkResourceFilesConcurrently(xmlDetectors, mPendingResourceFiles);
+                        }
+                    } finally {
+                        mPendingResourceFiles = null;
                     }
                 }
             }
@@ -1026,6 +1171,12 @@ public class LintDriver {
      */
     private Map<String, String> mSuperClassMap;
 
+    /**
+     * Indexes of the super classes of the library jars, in class path order, for the
+     * classes which are not in {@link #mSuperClassMap}
+     */
+    private List<SuperClassIndex> mSuperClassIndexes;
+
     /**
      * Returns the super class for the given class name,
      * which should be in VM format (e.g. java/lang/Integer, not java.lang.Integer).
@@ -1045,6 +1196,16 @@ public class LintDriver {
         assert name.indexOf('.') == -1 : "Use VM signatures, e.g. java/lang/Integer";
 
         String superClass = mSuperClassMap.get(name);
+        if (superClass == null) {
+            // Later jars take precedence, as when the classes are read
+            for (int i = mSuperClassIndexes.size() - 1; i >= 0; i--) {
+                SuperClassIndex index = mSuperClassIndexes.get(i);
+                int number = index.find(name);
+                if (number != -1) {
+                    return index.getSuperClass(number);
+                }
+            }
+        }
         if (superClass == null && mCurrentProject != null) {
             if ("java/lang/Object".equals(name)) {  //$NON-NLS-1$
                 return null;
@@ -1084,7 +1245,25 @@ public class LintDriver {
             if (className.equals(superClassName)) {
                 return true;
             }
-            className = getSuperClass(className);
+            SuperClassIndex index = null;
+            int number = -1;
+            if (!mSuperClassMap.containsKey(className)) {
+                for (int i = mSuperClassIndexes.size() - 1; i >= 0 && number == -1; i--) {
+                    index = mSuperClassIndexes.get(i);
+                    number = index.find(className);
+                }
+            }
+            if (number != -1) {
+                // Answer within the jar of the class, then skip to the first super
+                // class outside of the jar
+                int superNumber = index.find(superClassName);
+                if (superNumber != -1 && index.isSubclassOf(number, superNumber)) {
+                    return true;
+                }
+                className = index.getSuperClass(index.getRoot(number));
+            } else {
+                className = getSuperClass(className);
+            }
         }
 
         return false;
@@ -1121,15 +1300,33 @@ public class LintDriver {
             return;
         }
 
-        // We need to read in all the classes up front such that we can initialize
+        // The jars stay open while the classes are checked, such that their classes
+        // can be read on demand
+        List<ZipFile> jars = new ArrayList<ZipFile>();
+        try {
+            checkClasses(project, main, jars);
+        } finally {
+            for (ZipFile jar : jars) {
+                try {
+                    jar.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void checkClasses(Project project, Project main, List<ZipFile> jars) {
+        // We need to find all the classes up front such that we can initialize
         // the parent chains (such that for example for a virtual dispatch, we can
-        // also check the super classes).
+        // also check the super classes). The class files are only read when needed,
+        // one at a time, such that they don't all have to be kept in memory.
 
         List<File> libraries = project.getJavaLibraries();
         List<ClassEntry> libraryEntries;
         if (!libraries.isEmpty()) {
             libraryEntries = new ArrayList<ClassEntry>(64);
-            findClasses(libraryEntries, libraries);
+            findClasses(libraryEntries, libraries, jars);
             Collections.sort(libraryEntries);
         } else {
             libraryEntries = Collections.emptyList();
@@ -1149,11 +1346,12 @@ public class LintDriver {
             classEntries = Collections.emptyList();
         } else {
             classEntries = new ArrayList<ClassEntry>(64);
-            findClasses(classEntries, classFolders);
+            findClasses(classEntries, classFolders, jars);
             Collections.sort(classEntries);
         }
 
         if (getPhase() == 1) {
+            mSuperClassIndexes = getSuperClassIndexes(libraries, libraryEntries);
             mSuperClassMap = getSuperMap(libraryEntries, classEntries);
         }
 
@@ -1180,24 +1378,12 @@ public class LintDriver {
             for (File file : files) {
                 String path = file.getPath();
                 if (file.isFile() && path.endsWith(DOT_CLASS)) {
-                    try {
-                        byte[] bytes = mClient.readBytes(file);
-                        if (bytes != null) {
-                            for (File dir : classFolders) {
-                                if (path.startsWith(dir.getPath())) {
-                                    entries.add(new ClassEntry(file, null /* jarFile*/, dir,
-                                            bytes));
-                                    break;
-                                }
-                            }
+                    for (File dir : classFolders) {
+                        if (path.startsWith(dir.getPath())) {
+                            entries.add(new ClassEntry(file, null /* jarFile*/, dir,
+                                    null /* bytes: read on demand */));
+                            break;
                         }
-                    } catch (IOException e) {
-                        mClient.log(e, null);
-                        continue;
-                    }
-
-                    if (mCanceled) {
-                        return;
                     }
                 }
             }
@@ -1207,6 +1393,7 @@ public class LintDriver {
                 // No superclass info available on individual lint runs, unless
                 // the client can provide it
                 mSuperClassMap = Maps.newHashMap();
+                mSuperClassIndexes = Collections.emptyList();
                 runClassDetectors(Scope.CLASS_FILE, entries, project, main);
             }
         }
@@ -1230,16 +1417,26 @@ public class LintDriver {
                 String sourceContents = null;
                 String sourceName = "";
                 mOuterClasses = new ArrayDeque<ClassNode>();
-                for (ClassEntry entry : entries) {
-                    ClassReader reader;
-                    ClassNode classNode;
-                    try {
-                        reader = new ClassReader(entry.bytes);
-                        classNode = new ClassNode();
-                        reader.accept(classNode, 0 /* flags */);
-                    } catch (Throwable t) {
+                ClassParser parser = new ClassParser(entries);
+                for (int i = 0, n = entries.size(); i < n; i++) {
+                    ClassEntry entry = entries.get(i);
+                    LoadedClass loaded = parser.getClass(i);
+                    if (loaded.error != null) {
+                        mClient.log(loaded.error, null);
+                    }
+                    if (loaded.bytes == null) {
+                        if (mCanceled) {
+                            return;
+                        }
+                        continue;
+                    }
+                    ClassNode classNode = loaded.node;
+                    if (classNode == null) {
                         mClient.log(null, "Error processing %1$s: broken class file?",
                                 entry.path());
+                        if (mCanceled) {
+                            return;
+                        }
                         continue;
                     }
 
@@ -1279,7 +1476,7 @@ public class LintDriver {
                     }
 
                     ClassContext context = new ClassContext(this, project, main,
-                            entry.file, entry.jarFile, entry.binDir, entry.bytes,
+                            entry.file, entry.jarFile, entry.binDir, loaded.bytes,
                             classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
                             sourceContents);
 
@@ -1302,6 +1499,100 @@ public class LintDriver {
         }
     }
 
+    /**
+     * Reads the class files of a list of entries, in order. When running with several
+     * threads, the workers read the next few classes ahead of the analyzing thread.
+     * The contents of the classes are not kept once they have been returned.
+     */
+    private class ClassParser {
+        private final List<ClassEntry> mEntries;
+        private final List<Future<LoadedClass>> mFutures;
+
+        ClassParser(@NonNull List<ClassEntry> entries) {
+            mEntries = entries;
+            if (mExecutor != null) {
+                mFutures = new ArrayList<Future<LoadedClass>>(entries.size());
+                for (int i = 0, n = Math.min(entries.size(), mThreadCount * FILES_PER_THREAD);
+                        i < n; i++) {
+                    submit(i);
+                }
+            } else {
+                mFutures = null;
+            }
+        }
+
+        /** Returns the contents and class node of the given entry */
+        @NonNull
+        LoadedClass getClass(int index) {
+            if (mFutures == null) {
+                return load(mEntries.get(index));
+            }
+
+            if (mFutures.size() < mEntries.size()) {
+                submit(mFutures.size());
+            }
+            Future<LoadedClass> future = mFutures.get(index);
+            mFutures.set(index, null);
+            LoadedClass loaded = new LoadedClass();
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mCanceled = true;
+            } catch (ExecutionException e) {
+                // Reported like the read errors of the worker
+                loaded.error = e.getCause();
+            }
+            return loaded;
+        }
+
+        private void submit(int index) {
+            final ClassEntry entry = mEntries.get(index);
+            mFutures.add(mExecutor.submit(new Callable<LoadedClass>() {
+                @Override
+                public LoadedClass call() {
+                    return load(entry);
+                }
+            }));
+        }
+    }
+
+    /** A class file read by a {@link ClassParser} */
+    private static class LoadedClass {
+        /** The contents of the class file, or null if it could not be read */
+        byte[] bytes;
+        /** The class node, or null if the class file could not be parsed */
+        ClassNode node;
+        /** The error which prevented reading the class file, if any */
+        Throwable error;
+    }
+
+    @NonNull
+    private LoadedClass load(@NonNull ClassEntry entry) {
+        LoadedClass loaded = new LoadedClass();
+        try {
+            loaded.bytes = entry.read(mClient);
+            if (loaded.bytes != null) {
+                loaded.node = parse(loaded.bytes);
+            }
+        } catch (IOException e) {
+            loaded.error = e;
+        }
+        return loaded;
+    }
+
+    @Nullable
+    private static ClassNode parse(@NonNull byte[] bytes) {
+        try {
+            ClassReader reader = new ClassReader(bytes);
+            ClassNode classNode = new ClassNode();
+            reader.accept(classNode, 0 /* flags */);
+            return classNode;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
     /** Returns the outer class node of the given class node
      * @param classNode the inner class node
      * @return the outer class node */
@@ -1329,22 +1620,111 @@ public class LintDriver {
         Map<String, String> map = new HashMap<String, String>(size);
 
         SuperclassVisitor visitor = new SuperclassVisitor(map);
-        addSuperClasses(visitor, libraryEntries);
+        if (mSuperClassIndexes.isEmpty()) {
+            addSuperClasses(visitor, libraryEntries);
+        } else {
+            // The classes of the jars are indexed
+            List<ClassEntry> entries = new ArrayList<ClassEntry>();
+            for (ClassEntry entry : libraryEntries) {
+                if (entry.getZipEntry() == null) {
+                    entries.add(entry);
+                }
+            }
+            addSuperClasses(visitor, entries);
+        }
         addSuperClasses(visitor, classEntries);
 
         return map;
     }
 
+    /**
+     * Returns the super class indexes of the library jars, loaded from the cache
+     * directory, or created and stored there when a jar has changed. Returns an
+     * empty list if there is no cache directory, in which case the super classes
+     * of the jars are read again.
+     */
+    @NonNull
+    private List<SuperClassIndex> getSuperClassIndexes(List<File> libraries,
+            List<ClassEntry> libraryEntries) {
+        File cacheDir = mClient.getCacheDir(true);
+        if (cacheDir == null || libraryEntries.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<File, List<ClassEntry>> jarEntries = Maps.newHashMap();
+        for (ClassEntry entry : libraryEntries) {
+            if (entry.getZipEntry() != null) {
+                List<ClassEntry> entries = jarEntries.get(entry.jarFile);
+                if (entries == null) {
+                    entries = new ArrayList<ClassEntry>();
+                    jarEntries.put(entry.jarFile, entries);
+                }
+                entries.add(entry);
+            }
+        }
+
+        List<SuperClassIndex> indexes = new ArrayList<SuperClassIndex>(jarEntries.size());
+        for (File jar : libraries) {
+            List<ClassEntry> entries = jarEntries.get(jar);
+            if (entries == null) {
+                continue;
+            }
+
+            // The checksum covers the checksums of the class files, which the jar
+            // directory provides without reading the classes
+            StringBuilder sb = new StringBuilder(entries.size() * 40);
+            for (ClassEntry entry : entries) {
+                ZipEntry zipEntry = entry.getZipEntry();
+                assert zipEntry != null;
+                sb.append(zipEntry.getName()).append(':').append(zipEntry.getCrc())
+                        .append(':').append(zipEntry.getSize()).append('\n');
+            }
+            String checksum = LintResultCache.digest(sb.toString());
+            File file = new File(cacheDir, "lint-superclasses-" //$NON-NLS-1$
+                    + LintResultCache.digest(jar.getAbsolutePath()));
+            SuperClassIndex index = SuperClassIndex.load(file, checksum);
+            if (index == null) {
+                Map<String, String> map = new HashMap<String, String>(entries.size());
+                addSuperClasses(new SuperclassVisitor(map), entries);
+                if (mCanceled) {
+                    return Collections.emptyList();
+                }
+                index = SuperClassIndex.create(checksum, map);
+                try {
+                    index.write(file);
+                } catch (IOException e) {
+                    mClient.log(e, "Could not write %1$s", file.getPath());
+                }
+            }
+            indexes.add(index);
+        }
+
+        return indexes;
+    }
+
     private void addSuperClasses(SuperclassVisitor visitor, List<ClassEntry> entries) {
         for (ClassEntry entry : entries) {
+            byte[] bytes;
+            try {
+                bytes = entry.read(mClient);
+            } catch (IOException e) {
+                mClient.log(e, null);
+                continue;
+            }
+            if (bytes == null) {
+                continue;
+            }
             try {
-                ClassReader reader = new ClassReader(entry.bytes);
+                ClassReader reader = new ClassReader(bytes);
                 int flags = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG
                         | ClassReader.SKIP_FRAMES;
                 reader.accept(visitor, flags);
             } catch (Throwable t) {
                 mClient.log(null, "Error processing %1$s: broken class file?", entry.path());
             }
+            if (mCanceled) {
+                return;
+            }
         }
     }
 
@@ -1435,65 +1815,48 @@ public class LintDriver {
 
     private void findClasses(
             @NonNull List<ClassEntry> entries,
-            @NonNull List<File> classPath) {
+            @NonNull List<File> classPath,
+            @NonNull List<ZipFile> jars) {
         for (File classPathEntry : classPath) {
             if (classPathEntry.getName().endsWith(DOT_JAR)) {
                 File jarFile = classPathEntry;
                 if (!jarFile.exists()) {
                     continue;
                 }
-                ZipInputStream zis = null;
+                ZipFile zipFile;
                 try {
-                    FileInputStream fis = new FileInputStream(jarFile);
-                    zis = new ZipInputStream(fis);
-                    ZipEntry entry = zis.getNextEntry();
-                    while (entry != null) {
-                        String name = entry.getName();
-                        if (name.endsWith(DOT_CLASS)) {
-                            try {
-                                byte[] bytes = ByteStreams.toByteArray(zis);
-                                if (bytes != null) {
-                                    File file = new File(entry.getName());
-                                    entries.add(new ClassEntry(file, jarFile, jarFile, bytes));
-                                }
-                            } catch (Exception e) {
-                                mClient.log(e, null);
-                                continue;
-                            }
-                        }
-
-                        if (mCanceled) {
-                            return;
-                        }
-
-                        entry = zis.getNextEntry();
-                    }
+                    zipFile = new ZipFile(jarFile);
                 } catch (IOException e) {
                     mClient.log(e, "Could not read jar file contents from %1$s", jarFile);
-                } finally {
-                    Closeables.closeQuietly(zis);
+                    continue;
+                }
+                jars.add(zipFile);
+
+                // Only the central directory is read here; the classes are inflated
+                // when they are checked
+                Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry entry = zipEntries.nextElement();
+                    if (entry.getName().endsWith(DOT_CLASS)) {
+                        entries.add(new ClassEntry(jarFile, zipFile, entry));
+                    }
                 }
 
-                continue;
+                if (mCanceled) {
+                    return;
+                }
             } else if (classPathEntry.isDirectory()) {
                 File binDir = classPathEntry;
                 List<File> classFiles = new ArrayList<File>();
                 addClassFiles(binDir, classFiles);
 
                 for (File file : classFiles) {
-                    try {
-                        byte[] bytes = mClient.readBytes(file);
-                        if (bytes != null) {
-                            entries.add(new ClassEntry(file, null /* jarFile*/, binDir, bytes));
-                        }
-                    } catch (IOException e) {
-                        mClient.log(e, null);
-                        continue;
-                    }
+                    entries.add(new ClassEntry(file, null /* jarFile*/, binDir,
+                            null /* bytes: read on demand */));
+                }
 
-                    if (mCanceled) {
-                        return;
-                    }
+                if (mCanceled) {
+                    return;
                 }
             } else {
                 mClient.log(null, "Ignoring class path entry %1$s", classPathEntry);
@@ -1535,15 +1898,7 @@ public class LintDriver {
             gatherJavaFiles(folder, sources);
         }
         if (!sources.isEmpty()) {
-            JavaVisitor visitor = new JavaVisitor(javaParser, checks);
-            for (File file : sources) {
-                JavaContext context = new JavaContext(this, project, main, file);
-                fireEvent(EventType.SCANNING_FILE, context);
-                visitor.visitFile(context, file);
-                if (mCanceled) {
-                    return;
-                }
-            }
+            checkJavaFiles(project, main, javaParser, checks, sources);
         }
     }
 
@@ -1559,18 +1914,98 @@ public class LintDriver {
             return;
         }
 
-        JavaVisitor visitor = new JavaVisitor(javaParser, checks);
-
+        List<File> sources = new ArrayList<File>(files.size());
         for (File file : files) {
             if (file.isFile() && file.getPath().endsWith(DOT_JAVA)) {
-                JavaContext context = new JavaContext(this, project, main, file);
-                fireEvent(EventType.SCANNING_FILE, context);
-                visitor.visitFile(context, file);
-                if (mCanceled) {
-                    return;
+                sources.add(file);
+            }
+        }
+        checkJavaFiles(project, main, javaParser, checks, sources);
+    }
+
+    private void checkJavaFiles(
+            @NonNull Project project,
+            @Nullable Project main,
+            @NonNull IJavaParser javaParser,
+            @NonNull List<Detector> checks,
+            @NonNull List<File> files) {
+        if (mResultCache != null || mExecutor != null && files.size() > 1) {
+            checkJavaFilesConcurrently(project, main, javaParser, checks, files);
+            return;
+        }
+
+        JavaVisitor visitor = new JavaVisitor(javaParser, checks);
+        for (File file : files) {
+            JavaContext context = new JavaContext(this, project, main, file);
+            fireEvent(EventType.SCANNING_FILE, context);
+            visitor.visitFile(context, file);
+            if (mCanceled) {
+                return;
+            }
+        }
+    }
+
+    private void checkJavaFilesConcurrently(
+            @NonNull Project project,
+            @Nullable Project main,
+            @NonNull IJavaParser javaParser,
+            @NonNull List<Detector> checks,
+            @NonNull List<File> files) {
+        final List<Detector> threadSafeChecks = new ArrayList<Detector>(checks.size());
+        final List<Detector> uncachedChecks = new ArrayList<Detector>(checks.size());
+        final List<Detector> otherChecks = new ArrayList<Detector>(checks.size());
+        for (Detector check : checks) {
+            if (check.isThreadSafe()) {
+                threadSafeChecks.add(check);
+                if (mCachedDetectors == null || !mCachedDetectors.contains(check)) {
+                    uncachedChecks.add(check);
                 }
+            } else {
+                otherChecks.add(check);
             }
         }
+        final JavaVisitor serialVisitor = new JavaVisitor(javaParser, otherChecks);
+
+        List<JavaContext> contexts = new ArrayList<JavaContext>(files.size());
+        for (File file : files) {
+            contexts.add(new JavaContext(this, project, main, file));
+        }
+
+        new FileCheck<JavaContext, JavaVisitor>() {
+            @NonNull
+            @Override
+            protected JavaVisitor createWorker(boolean cached) {
+                IJavaParser parser = mClient.getJavaParser();
+                assert parser != null; // already checked by the caller
+                return new JavaVisitor(parser, cached ? uncachedChecks : threadSafeChecks);
+            }
+
+            @Override
+            protected boolean isFullyCached(@NonNull JavaContext context) {
+                return uncachedChecks.isEmpty() && otherChecks.isEmpty();
+            }
+
+            @Override
+            protected boolean checkConcurrently(@NonNull JavaVisitor worker,
+                    @NonNull JavaContext context) {
+                if (!worker.parseFile(context)) {
+                    return false;
+                }
+                worker.visitCompilationUnit(context);
+                return true;
+            }
+
+            @Override
+            protected void checkSerially(@NonNull JavaContext context, boolean parsed) {
+                try {
+                    if (parsed) {
+                        serialVisitor.visitCompilationUnit(context);
+                    }
+                } finally {
+                    JavaVisitor.dispose(context);
+                }
+            }
+        }.run(contexts);
     }
 
     private static void gatherJavaFiles(@NonNull File dir, @NonNull List<File> result) {
@@ -1669,8 +2104,7 @@ public class LintDriver {
                 for (File file : xmlFiles) {
                     if (LintUtils.isXmlFile(file)) {
                         XmlContext context = new XmlContext(this, project, main, file, type);
-                        fireEvent(EventType.SCANNING_FILE, context);
-                        visitor.visitFile(context, file);
+                        checkResourceFile(visitor, context);
                         if (mCanceled) {
                             return;
                         }
@@ -1709,14 +2143,481 @@ public class LintDriver {
                     XmlVisitor visitor = getVisitor(type, xmlDetectors);
                     if (visitor != null) {
                         XmlContext context = new XmlContext(this, project, main, file, type);
-                        fireEvent(EventType.SCANNING_FILE, context);
-                        visitor.visitFile(context, file);
+                        checkResourceFile(visitor, context);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Resource files gathered to be checked concurrently, or null when checking
+     * them one at a time
+     */
+    private List<XmlContext> mPendingResourceFiles;
+
+    /** Checks a resource file, or queues it to be checked concurrently */
+    private void checkResourceFile(@NonNull XmlVisitor visitor, @NonNull XmlContext context) {
+        if (mPendingResourceFiles != null) {
+            mPendingResourceFiles.add(context);
+        } else {
+            fireEvent(EventType.SCANNING_FILE, context);
+            visitor.visitFile(context, context.file);
+        }
+    }
+
+    private void checkResourceFilesConcurrently(
+            @NonNull List<ResourceXmlDetector> checks,
+            @NonNull List<XmlContext> contexts) {
+        IDomParser parser = mClient.getDomParser();
+        if (parser == null) {
+            return;
+        }
+
+        // Split the detectors applicable to each folder type into the thread safe
+        // detectors, run by the workers, and the others
+        final Map<ResourceFolderType, List<Detector>> threadSafeChecks =
+                new EnumMap<ResourceFolderType, List<Detector>>(ResourceFolderType.class);
+        final Map<ResourceFolderType, List<Detector>> uncachedChecks =
+                new EnumMap<ResourceFolderType, List<Detector>>(ResourceFolderType.class);
+        final Map<ResourceFolderType, XmlVisitor> serialVisitors =
+                new EnumMap<ResourceFolderType, XmlVisitor>(ResourceFolderType.class);
+        final Set<ResourceFolderType> serialTypes = EnumSet.noneOf(ResourceFolderType.class);
+        for (XmlContext context : contexts) {
+            ResourceFolderType type = context.getResourceFolderType();
+            assert type != null;
+            if (!threadSafeChecks.containsKey(type)) {
+                List<Detector> safe = new ArrayList<Detector>(checks.size());
+                List<Detector> uncached = new ArrayList<Detector>(checks.size());
+                List<Detector> other = new ArrayList<Detector>(checks.size());
+                for (ResourceXmlDetector check : checks) {
+                    if (check.appliesTo(type)) {
+                        if (check.isThreadSafe()) {
+                            safe.add(check);
+                            if (mCachedDetectors == null || !mCachedDetectors.contains(check)) {
+                                uncached.add(check);
+                            }
+                        } else {
+                            other.add(check);
+                        }
+                    }
+                }
+                threadSafeChecks.put(type, safe);
+                uncachedChecks.put(type, uncached);
+                serialVisitors.put(type, new XmlVisitor(parser, other));
+                if (!other.isEmpty()) {
+                    serialTypes.add(type);
+                }
+            }
+        }
+
+        new FileCheck<XmlContext, Map<ResourceFolderType, XmlVisitor>>() {
+            @NonNull
+            @Override
+            protected Map<ResourceFolderType, XmlVisitor> createWorker(boolean cached) {
+                IDomParser workerParser = mClient.getDomParser();
+                assert workerParser != null;
+                Map<ResourceFolderType, XmlVisitor> visitors =
+                        new EnumMap<ResourceFolderType, XmlVisitor>(ResourceFolderType.class);
+                for (Map.Entry<ResourceFolderType, List<Detector>> entry
+                        : (cached ? uncachedChecks : threadSafeChecks).entrySet()) {
+                    visitors.put(entry.getKey(), new XmlVisitor(workerParser, entry.getValue()));
+                }
+                return visitors;
+            }
+
+            @Override
+            protected boolean isFullyCached(@NonNull XmlContext context) {
+                ResourceFolderType type = context.getResourceFolderType();
+                return uncachedChecks.get(type).isEmpty() && !serialTypes.contains(type);
+            }
+
+            @Override
+            protected boolean checkConcurrently(
+                    @NonNull Map<ResourceFolderType, XmlVisitor> worker,
+                    @NonNull XmlContext context) {
+                ResourceFolderType type = context.getResourceFolderType();
+                XmlVisitor visitor = worker.get(type);
+                if (visitor.isStreamable() && !serialTypes.contains(type)) {
+                    // No detector needs the document
+                    visitor.streamFile(context);
+                    return false;
+                }
+                if (!visitor.parseFile(context, context.file)) {
+                    return false;
+                }
+                visitor.visitDocument(context);
+                return true;
+            }
+
+            @Override
+            protected void checkSerially(@NonNull XmlContext context, boolean parsed) {
+                try {
+                    if (parsed) {
+                        serialVisitors.get(context.getResourceFolderType())
+                                .visitDocument(context);
+                    }
+                } finally {
+                    XmlVisitor.dispose(context);
+                }
+            }
+        }.run(contexts);
+    }
+
+    /**
+     * Opens the result cache of a project, or returns null if none of the applicable
+     * detectors have results which can be cached
+     */
+    @Nullable
+    private LintResultCache openResultCache(@NonNull Project project, @Nullable Project main) {
+        File cacheDir = mClient.getCacheDir(true);
+        if (cacheDir == null) {
+            return null;
+        }
+
+        // Only the results of the thread safe detectors which look at one file at a
+        // time can be cached
+        Set<Detector> otherDetectors = Sets.newIdentityHashSet();
+        for (Map.Entry<Scope, List<Detector>> entry : mScopeDetectors.entrySet()) {
+            if (entry.getKey() != Scope.RESOURCE_FILE && entry.getKey() != Scope.JAVA_FILE) {
+                otherDetectors.addAll(entry.getValue());
+            }
+        }
+        Map<Class<? extends Detector>, Detector> candidates = Maps.newHashMap();
+        for (Scope scope : new Scope[] { Scope.RESOURCE_FILE, Scope.JAVA_FILE }) {
+            List<Detector> detectors = mScopeDetectors.get(scope);
+            if (detectors != null) {
+                for (Detector detector : detectors) {
+                    if (detector.isThreadSafe() && !otherDetectors.contains(detector)) {
+                        candidates.put(detector.getClass(), detector);
+                    }
+                }
+            }
+        }
+
+        // The cached results are only valid for the same detectors, issue severities
+        // and SDK levels
+        Project mainProject = main != null ? main : project;
+        Configuration configuration = project.getConfiguration();
+        Configuration mainConfiguration = mainProject.getConfiguration();
+        StringBuilder signature = new StringBuilder(1000);
+        for (Project p : new Project[] { project, mainProject }) {
+            signature.append(p.getMinSdk()).append(',').append(p.getTargetSdk()).append(',')
+                    .append(p.getBuildSdk()).append('\n');
+        }
+        Set<Detector> cachedDetectors = Sets.newIdentityHashSet();
+        Set<String> cachedIssues = Sets.newHashSet();
+        List<Issue> issues = new ArrayList<Issue>(mRegistry.getIssues());
+        Collections.sort(issues);
+        for (Issue issue : issues) {
+            Detector detector = candidates.get(issue.getImplementation().getDetectorClass());
+            if (detector != null) {
+                cachedDetectors.add(detector);
+                cachedIssues.add(issue.getId());
+                signature.append(issue.getId()).append(':')
+                        .append(configuration.getSeverity(issue)).append(':')
+                        .append(mainConfiguration.getSeverity(issue)).append('\n');
+            }
+        }
+        if (cachedDetectors.isEmpty()) {
+            return null;
+        }
+        List<String> detectorClasses = new ArrayList<String>(cachedDetectors.size());
+        for (Detector detector : cachedDetectors) {
+            detectorClasses.add(detector.getClass().getName() + ':'
+                    + getClassDigest(detector.getClass()));
+        }
+        Collections.sort(detectorClasses);
+        for (String detectorClass : detectorClasses) {
+            signature.append(detectorClass).append('\n');
+        }
+
+        // Parser errors are reported by the client's parsers when reading the files
+        cachedIssues.add(IssueRegistry.PARSER_ERROR.getId());
+        mCachedDetectors = cachedDetectors;
+        mCachedIssues = cachedIssues;
+
+        String name = "lint-results-" + LintResultCache.digest( //$NON-NLS-1$
+                project.getDir().getAbsolutePath() + '\n'
+                + mainProject.getDir().getAbsolutePath());
+        return LintResultCache.load(mClient, new File(cacheDir, name),
+                LintResultCache.digest(signature.toString()));
+    }
+
+    /** Returns a digest of the bytecode of a class, or an empty string if not found */
+    @NonNull
+    private static String getClassDigest(@NonNull Class<?> c) {
+        InputStream stream = c.getResourceAsStream(
+                '/' + c.getName().replace('.', '/') + DOT_CLASS);
+        if (stream != null) {
+            try {
+                return LintResultCache.digest(ByteStreams.toByteArray(stream));
+            } catch (IOException e) {
+                // Fall through
+            } finally {
+                Closeables.closeQuietly(stream);
+            }
+        }
+        return ""; //$NON-NLS-1$
+    }
+
+    /** Reports the issues found on a file in a previous run */
+    private void replayCachedReports(@NonNull Context context,
+            @NonNull LintResultCache.Entry entry, boolean skipped) {
+        for (LintResultCache.Report report : entry.reports) {
+            boolean parserError = report.issueId.equals(IssueRegistry.PARSER_ERROR.getId());
+            if (parserError && !skipped) {
+                // Reported again by the parser, if the file still fails to parse
+                continue;
+            }
+            Issue issue = mRegistry.getIssue(report.issueId);
+            if (issue != null) {
+                if (parserError) {
+                    mParserErrors = true;
+                }
+                mClient.report(context, issue, report.severity, report.location,
+                        report.message, null);
+            }
+        }
+    }
+
+    /** Stores the issues found on a file by the cached detectors */
+    private void storeCachedReports(@NonNull Context context, @NonNull String digest,
+            @NonNull List<PendingReport> reports) {
+        List<LintResultCache.Report> cached =
+                new ArrayList<LintResultCache.Report>(reports.size());
+        for (PendingReport report : reports) {
+            if (mCachedIssues.contains(report.issue.getId())) {
+                cached.add(new LintResultCache.Report(report.issue.getId(), report.severity,
+                        report.message, report.location));
+            }
+        }
+        mResultCache.put(context.file.getPath(), digest, cached);
+    }
+
+    /**
+     * Checks files in two steps. Each file is first parsed and checked by the thread
+     * safe detectors, on a worker thread when there are several threads, then checked
+     * by the other detectors on the analyzing thread, one file at a time and in order.
+     * The issues reported on the worker threads are held until the file is processed
+     * on the analyzing thread, such that the client gets them in the same order
+     * whatever the number of threads.
+     * <p>
+     * When a {@link LintResultCache} is used, the files which haven't changed since
+     * the previous run are not checked by the cached detectors; their stored issues
+     * are reported instead.
+     *
+     * @param <C> the type of context of the files
+     * @param <W> the state of a worker thread, such as its visitors
+     */
+    private abstract class FileCheck<C extends Context, W> {
+        /**
+         * Creates the state of a worker thread. Called on the analyzing thread, such
+         * that the lint client is not asked for parsers from other threads.
+         *
+         * @param cached whether the worker checks files with cached results, in which
+         *            case the {@link #mCachedDetectors} must be skipped
+         */
+        @NonNull
+        protected abstract W createWorker(boolean cached);
+
+        /**
+         * Returns true if all the detectors which apply to the given file are cached,
+         * such that a file with cached results doesn't need to be parsed at all
+         */
+        protected abstract boolean isFullyCached(@NonNull C context);
+
+        /**
+         * Parses a file and runs the thread safe detectors on it; called on a worker
+         * thread, or on the analyzing thread when there are no workers
+         *
+         * @return true if the file was parsed and must be checked by the other detectors
+         */
+        protected abstract boolean checkConcurrently(@NonNull W worker, @NonNull C context);
+
+        /**
+         * Runs the other detectors on a file if it was parsed, then releases its parse tree;
+         * called on the analyzing thread
+         */
+        protected abstract void checkSerially(@NonNull C context, boolean parsed);
+
+        void run(@NonNull List<C> contexts) {
+            final int count = contexts.size();
+            final PendingFile[] files = new PendingFile[count];
+            for (int i = 0; i < count; i++) {
+                files[i] = new PendingFile();
+            }
+
+            if (mExecutor == null) {
+                W worker = createWorker(false);
+                W cachedWorker = mResultCache != null ? createWorker(true) : null;
+                for (int i = 0; i < count; i++) {
+                    C context = contexts.get(i);
+                    fireEvent(EventType.SCANNING_FILE, context);
+                    checkFile(worker, cachedWorker, context, files[i]);
+                    finishFile(context, files[i]);
+                    if (mCanceled) {
+                        return;
+                    }
+                }
+                return;
+            }
+
+            // Make sure the configurations are loaded before they are used concurrently
+            for (Project project : mCurrentProjects) {
+                Configuration configuration = project.getConfiguration();
+                for (Issue issue : mRegistry.getIssues()) {
+                    configuration.getSeverity(issue);
+                }
+            }
+
+            final List<C> pending = contexts;
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicBoolean stopped = new AtomicBoolean();
+            // Limit how far ahead of the analyzing thread the workers can get, such that
+            // only a few parse trees are kept in memory
+            final Semaphore window = new Semaphore(mThreadCount * FILES_PER_THREAD);
+
+            for (int i = 0, n = Math.min(mThreadCount, count); i < n; i++) {
+                final W worker = createWorker(false);
+                final W cachedWorker = mResultCache != null ? createWorker(true) : null;
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (true) {
+                            window.acquireUninterruptibly();
+                            int index = next.getAndIncrement();
+                            if (index >= count || stopped.get()) {
+                                return;
+                            }
+                            checkFile(worker, cachedWorker, pending.get(index), files[index]);
+                        }
+                    }
+                });
+            }
+
+            try {
+                for (int i = 0; i < count; i++) {
+                    C context = contexts.get(i);
+                    fireEvent(EventType.SCANNING_FILE, context);
+
+                    files[i].done.await();
+                    finishFile(context, files[i]);
+                    window.release();
+
+                    if (mCanceled) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mCanceled = true;
+            } finally {
+                // Let the workers exit, if the check ended early
+                stopped.set(true);
+                window.release(count);
+            }
+        }
+
+        /** Runs the first step on a file */
+        private void checkFile(@NonNull W worker, @Nullable W cachedWorker,
+                @NonNull C context, @NonNull PendingFile file) {
+            mPendingReports.set(file.reports);
+            try {
+                if (!mCanceled) {
+                    LintResultCache cache = mResultCache;
+                    if (cache != null) {
+                        String contents = context.getContents();
+                        if (contents != null) {
+                            file.digest = LintResultCache.digest(contents);
+                            file.cached = cache.get(context.file.getPath(), file.digest);
+                        }
+                    }
+                    if (file.cached != null && cachedWorker != null) {
+                        if (isFullyCached(context)) {
+                            file.skipped = true;
+                        } else {
+                            file.parsed = checkConcurrently(cachedWorker, context);
+                        }
+                    } else {
+                        file.parsed = checkConcurrently(worker, context);
                     }
                 }
+            } catch (Throwable t) {
+                file.failure = t;
+            } finally {
+                mPendingReports.remove();
+                file.done.countDown();
+            }
+        }
+
+        /** Runs the second step on a file, on the analyzing thread */
+        private void finishFile(@NonNull C context, @NonNull PendingFile file) {
+            boolean record = file.cached == null && file.digest != null;
+            if (record) {
+                mRecordedReports = new ArrayList<PendingReport>();
+            }
+            try {
+                for (PendingReport report : file.reports) {
+                    mClient.report(report.context, report.issue, report.severity,
+                            report.location, report.message, report.data);
+                }
+                if (file.failure != null) {
+                    checkSerially(context, false);
+                    throw Throwables.propagate(file.failure);
+                }
+                checkSerially(context, file.parsed);
+                if (file.cached != null) {
+                    replayCachedReports(context, file.cached, file.skipped);
+                    mResultCache.put(context.file.getPath(), file.digest, file.cached.reports);
+                } else if (record) {
+                    storeCachedReports(context, file.digest, mRecordedReports);
+                }
+            } finally {
+                mRecordedReports = null;
             }
         }
     }
 
+    /** A file checked by a {@link FileCheck} */
+    private static class PendingFile {
+        final List<PendingReport> reports = new ArrayList<PendingReport>();
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean parsed;
+        Throwable failure;
+        /** The digest of the file contents, when using a result cache */
+        String digest;
+        /** The results of the previous run, if the file hasn't changed since */
+        LintResultCache.Entry cached;
+        /** Whether the file wasn't read at all since all its detectors are cached */
+        boolean skipped;
+    }
+
+    /** An issue reported on a worker thread, to be passed on to the client later */
+    private static class PendingReport {
+        final Context context;
+        final Issue issue;
+        final Severity severity;
+        final Location location;
+        final String message;
+        final Object data;
+
+        PendingReport(
+                @NonNull Context context,
+                @NonNull Issue issue,
+                @NonNull Severity severity,
+                @Nullable Location location,
+                @NonNull String message,
+                @Nullable Object data) {
+            this.context = context;
+            this.issue = issue;
+            this.severity = severity;
+            this.location = location;
+            this.message = message;
+            this.data = data;
+        }
+    }
+
     /**
      * Adds a listener to be notified of lint progress
      *
@@ -1773,6 +2674,21 @@ public class LintDriver {
                 @Nullable Location location,
                 @NonNull String message,
                 @Nullable Object data) {
+            List<PendingReport> pendingReports = mPendingReports.get();
+            if (pendingReports != null) {
+                // Reported on a worker thread: passed on from the analyzing thread
+                pendingReports.add(new PendingReport(context, issue, severity, location,
+                        message, data));
+                return;
+            }
+
+            if (mRecordedReports != null) {
+                // Recorded before filtering, since the filters are applied again when
+                // the issues are reported from the result cache
+                mRecordedReports.add(new PendingReport(context, issue, severity, location,
+                        message, data));
+            }
+
             assert mCurrentProject != null;
             if (!mCurrentProject.getReportIssues()) {
                 return;
@@ -2382,7 +3298,10 @@ public class LintDriver {
         public final File file;
         public final File jarFile;
         public final File binDir;
+        /** The contents of the class file, or null to read the file when needed */
         public final byte[] bytes;
+        private final ZipFile mZipFile;
+        private final ZipEntry mZipEntry;
 
         public ClassEntry(File file, File jarFile, File binDir, byte[] bytes) {
             super();
@@ -2390,6 +3309,52 @@ public class LintDriver {
             this.jarFile = jarFile;
             this.binDir = binDir;
             this.bytes = bytes;
+            mZipFile = null;
+            mZipEntry = null;
+        }
+
+        /** Creates an entry for a class in an open jar, inflated when needed */
+        ClassEntry(File jarFile, ZipFile zipFile, ZipEntry zipEntry) {
+            super();
+            this.file = new File(zipEntry.getName());
+            this.jarFile = jarFile;
+            this.binDir = jarFile;
+            this.bytes = null;
+            mZipFile = zipFile;
+            mZipEntry = zipEntry;
+        }
+
+        /** Returns the entry of the class in its jar, or null if not in a jar */
+        @Nullable
+        ZipEntry getZipEntry() {
+            return mZipEntry;
+        }
+
+        /**
+         * Returns the contents of the class file. Unless they were provided up
+         * front, the contents are read again on each call.
+         *
+         * @param client the client to read the file with
+         * @return the contents, or null if the file could not be read
+         * @throws IOException if the file could not be read
+         */
+        @Nullable
+        public byte[] read(@NonNull LintClient client) throws IOException {
+            if (bytes != null) {
+                return bytes;
+            }
+            if (mZipEntry != null) {
+                InputStream stream = mZipFile.getInputStream(mZipEntry);
+                if (stream == null) {
+                    return null;
+                }
+                try {
+                    return ByteStreams.toByteArray(stream);
+                } finally {
+                    Closeables.closeQuietly(stream);
+                }
+            }
+            return client.readBytes(file);
         }
 
         public String path() {
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Severity;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of the issues reported on each file of a project by the
+ * detectors which only look at one file at a time. The issues are stored by
+ * file, along with a digest of the file contents, such that the file doesn't
+ * need to be checked again by these detectors as long as it doesn't change.
+ * <p>
+ * The cache is only valid for a given signature, which covers the cached
+ * detectors and the configuration of their issues; a cache file with a
+ * different signature is ignored.
+ * <p>
+ * The cache can be read from several threads, but {@link #put} must only be
+ * called by one thread.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+class LintResultCache {
+    /** Version of the cache file format, to be changed when the format changes */
+    private static final int FORMAT_VERSION = 1;
+
+    private final File mFile;
+    private final String mSignature;
+    /** Entries read from the cache file */
+    private final Map<String, Entry> mEntries;
+    /** Entries computed in this run */
+    private final Map<String, Entry> mNewEntries = Maps.newHashMap();
+
+    /** The issues reported on a file */
+    static class Entry {
+        final String digest;
+        final List<Report> reports;
+
+        Entry(@NonNull String digest, @NonNull List<Report> reports) {
+            this.digest = digest;
+            this.reports = reports;
+        }
+    }
+
+    /** An issue reported on a file */
+    static class Report {
+        final String issueId;
+        final Severity severity;
+        final String message;
+        final Location location;
+
+        Report(@NonNull String issueId, @NonNull Severity severity, @NonNull String message,
+                @Nullable Location location) {
+            this.issueId = issueId;
+            this.severity = severity;
+            this.message = message;
+            this.location = location;
+        }
+    }
+
+    private LintResultCache(@NonNull File file, @NonNull String signature,
+            @NonNull Map<String, Entry> entries) {
+        mFile = file;
+        mSignature = signature;
+        mEntries = entries;
+    }
+
+    /**
+     * Loads a cache file. The cache is empty if the file doesn't exist, can't be
+     * read, or was written with a different signature.
+     *
+     * @param client the client to log errors to
+     * @param file the cache file
+     * @param signature the signature of the current run
+     * @return the cache
+     */
+    @NonNull
+    static LintResultCache load(@NonNull LintClient client, @NonNull File file,
+            @NonNull String signature) {
+        Map<String, Entry> entries = Collections.emptyMap();
+        if (file.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() == FORMAT_VERSION && in.readUTF().equals(signature)) {
+                    entries = readEntries(in);
+                }
+            } catch (IOException e) {
+                client.log(e, "Failed to read lint cache %1$s", file.getPath());
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+        }
+
+        return new LintResultCache(file, signature, entries);
+    }
+
+    /**
+     * Returns the issues reported on a file in a previous run, if the file hasn't
+     * changed since
+     *
+     * @param key the key of the file, such as its path
+     * @param digest the digest of the current contents of the file
+     * @return the cached entry, or null
+     */
+    @Nullable
+    Entry get(@NonNull String key, @NonNull String digest) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.digest.equals(digest)) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Records the issues reported on a file in this run
+     *
+     * @param key the key of the file
+     * @param digest the digest of the contents of the file
+     * @param reports the issues reported on the file
+     */
+    void put(@NonNull String key, @NonNull String digest, @NonNull List<Report> reports) {
+        mNewEntries.put(key, new Entry(digest, reports));
+    }
+
+    /**
+     * Writes the entries recorded in this run to the cache file.
+     *
+     * @param client the client to log errors to
+     * @param keepOldEntries whether to also keep the entries of the files which were
+     *            not checked in this run, for example when only some files of the
+     *            project were checked
+     */
+    void save(@NonNull LintClient client, boolean keepOldEntries) {
+        Map<String, Entry> entries = mNewEntries;
+        if (keepOldEntries) {
+            entries = Maps.newHashMap(mEntries);
+            entries.putAll(mNewEntries);
+        }
+
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            return;
+        }
+
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(mSignature);
+            writeEntries(out, entries);
+            written = true;
+        } catch (IOException e) {
+            client.log(e, "Failed to write lint cache %1$s", mFile.getPath());
+        } finally {
+            Closeables.closeQuietly(out);
+            if (!written) {
+                // Don't leave a truncated file behind
+                mFile.delete();
+            }
+        }
+    }
+
+    private static Map<String, Entry> readEntries(@NonNull DataInputStream in)
+            throws IOException {
+        // The counts are not trusted for sizing the collections, since the file could
+        // be corrupt
+        int count = readCount(in);
+        Map<String, Entry> entries = Maps.newHashMap();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            String digest = in.readUTF();
+            int reportCount = readCount(in);
+            List<Report> reports = Lists.newArrayList();
+            for (int j = 0; j < reportCount; j++) {
+                String issueId = in.readUTF();
+                Severity severity;
+                try {
+                    severity = Severity.valueOf(in.readUTF());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage());
+                }
+                String message = in.readUTF();
+                Location location = readLocation(in);
+                reports.add(new Report(issueId, severity, message, location));
+            }
+            entries.put(key, new Entry(digest, reports));
+        }
+        return entries;
+    }
+
+    private static int readCount(@NonNull DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static void writeEntries(@NonNull DataOutputStream out,
+            @NonNull Map<String, Entry> entries) throws IOException {
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue().digest);
+            List<Report> reports = entry.getValue().reports;
+            out.writeInt(reports.size());
+            for (Report report : reports) {
+                out.writeUTF(report.issueId);
+                out.writeUTF(report.severity.name());
+                out.writeUTF(report.message);
+                writeLocation(out, report.location);
+            }
+        }
+    }
+
+    @Nullable
+    private static Location readLocation(@NonNull DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+
+        File file = new File(in.readUTF());
+        Position start = readPosition(in);
+        Position end = readPosition(in);
+        Location location = start != null ? Location.create(file, start, end)
+                : Location.create(file);
+        if (in.readBoolean()) {
+            location.setMessage(in.readUTF());
+        }
+        location.setSecondary(readLocation(in));
+        return location;
+    }
+
+    private static void writeLocation(@NonNull DataOutputStream out,
+            @Nullable Location location) throws IOException {
+        out.writeBoolean(location != null);
+        if (location == null) {
+            return;
+        }
+
+        out.writeUTF(location.getFile().getPath());
+        writePosition(out, location.getStart());
+        writePosition(out, location.getEnd());
+        String message = location.getMessage();
+        out.writeBoolean(message != null);
+        if (message != null) {
+            out.writeUTF(message);
+        }
+        writeLocation(out, location.getSecondary());
+    }
+
+    @Nullable
+    private static Position readPosition(@NonNull DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int line = in.readInt();
+        int column = in.readInt();
+        int offset = in.readInt();
+        return new DefaultPosition(line, column, offset);
+    }
+
+    private static void writePosition(@NonNull DataOutputStream out,
+            @Nullable Position position) throws IOException {
+        out.writeBoolean(position != null);
+        if (position != null) {
+            out.writeInt(position.getLine());
+            out.writeInt(position.getColumn());
+            out.writeInt(position.getOffset());
+        }
+    }
+
+    /**
+     * Returns a digest of the given contents, as a hexadecimal string
+     *
+     * @param contents the contents
+     * @return the digest
+     */
+    @NonNull
+    static String digest(@NonNull byte[] contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+
+        byte[] hash = digest.digest(contents);
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a digest of the given text contents, as a hexadecimal string
+     *
+     * @param contents the contents
+     * @return the digest
+     */
+    @NonNull
+    static String digest(@NonNull String contents) {
+        return digest(contents.getBytes(Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the super classes of the classes of a jar file. The index is stored
+ * in the lint cache directory and memory mapped in later runs, such that the
+ * classes of the jar don't need to be read again as long as the jar doesn't
+ * change.
+ * <p>
+ * The classes whose super class is in the same jar form trees, which are numbered
+ * in depth first order. Each class records the number of its last descendant and
+ * of the root of its tree, such that whether a class extends another class of the
+ * same tree is answered without walking up the hierarchy, and the walk can skip
+ * directly to the first super class outside of the jar.
+ * <p>
+ * The file format is, with big endian integers:
+ * <pre>
+ *   int magic, int version, byte[40] checksum of the jar, int class count,
+ *   int[count] the class numbers, sorted by class name (for binary searches),
+ *   for each class, by number:
+ *     int name offset, int super class name offset (or -1),
+ *     int number of the root of its tree, int number of its last descendant,
+ *   the string table: for each string, a short length and the UTF-8 bytes
+ * </pre>
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+class SuperClassIndex {
+    private static final int MAGIC = 0x4C534349; // "LSCI"
+    private static final int VERSION = 1;
+    /** Length of a checksum: a SHA-1 digest in hexadecimal */
+    static final int CHECKSUM_LENGTH = 40;
+    private static final int CHECKSUM_OFFSET = 8;
+    private static final int HEADER_SIZE = CHECKSUM_OFFSET + CHECKSUM_LENGTH + 4;
+    private static final int RECORD_SIZE = 4 * 4;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mRecordsOffset;
+
+    private SuperClassIndex(@NonNull ByteBuffer buffer) {
+        mBuffer = buffer;
+        mCount = buffer.getInt(HEADER_SIZE - 4);
+        mRecordsOffset = HEADER_SIZE + mCount * 4;
+    }
+
+    /**
+     * Maps an index file, if it exists and was created for the given jar checksum
+     *
+     * @param file the index file
+     * @param checksum the checksum of the jar
+     * @return the index, or null if the file doesn't exist or is out of date
+     */
+    @Nullable
+    static SuperClassIndex load(@NonNull File file, @NonNull String checksum) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION
+                    || !checksum.equals(getChecksum(buffer))) {
+                return null;
+            }
+            SuperClassIndex index = new SuperClassIndex(buffer);
+            if (index.mCount < 0
+                    || buffer.limit() < index.mRecordsOffset + index.mCount * RECORD_SIZE) {
+                return null;
+            }
+            return index;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            // The mapping remains valid once the file is closed
+            Closeables.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Creates an index from the super classes of the classes of a jar
+     *
+     * @param checksum the checksum of the jar
+     * @param superClasses map from the name of each class of the jar to the name of
+     *            its super class, if any
+     * @return the index
+     */
+    @NonNull
+    static SuperClassIndex create(@NonNull String checksum,
+            @NonNull Map<String, String> superClasses) {
+        assert checksum.length() == CHECKSUM_LENGTH : checksum;
+
+        // Build the trees of the classes whose super class is in the jar
+        Map<String, List<String>> subClasses = Maps.newHashMap();
+        List<String> roots = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : superClasses.entrySet()) {
+            String superClass = entry.getValue();
+            if (superClass != null && superClasses.containsKey(superClass)) {
+                List<String> list = subClasses.get(superClass);
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    subClasses.put(superClass, list);
+                }
+                list.add(entry.getKey());
+            } else {
+                roots.add(entry.getKey());
+            }
+        }
+
+        // Number the classes in depth first order. Classes in a cycle, which can only
+        // come from broken class files, are not reachable from a root and are left out.
+        Numbering numbering = new Numbering(superClasses.size(), subClasses);
+        for (String root : roots) {
+            numbering.number(root, numbering.count);
+        }
+        int count = numbering.count;
+        String[] names = numbering.names;
+
+        // Lay out the string table
+        Map<String, Integer> offsets = Maps.newHashMap();
+        List<byte[]> strings = new ArrayList<byte[]>();
+        int stringsSize = 0;
+        byte[][] nameBytes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            for (String s : new String[] { names[i], superClasses.get(names[i]) }) {
+                if (s != null && !offsets.containsKey(s)) {
+                    byte[] bytes = s.getBytes(Charsets.UTF_8);
+                    offsets.put(s, stringsSize);
+                    strings.add(bytes);
+                    stringsSize += 2 + bytes.length;
+                }
+            }
+            nameBytes[i] = names[i].getBytes(Charsets.UTF_8);
+        }
+
+        // Sort the class numbers by name, comparing the UTF-8 bytes like the lookups
+        Integer[] sorted = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = i;
+        }
+        final byte[][] keys = nameBytes;
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return compareBytes(keys[i1], keys[i2]);
+            }
+        });
+
+        int recordsOffset = HEADER_SIZE + count * 4;
+        int stringsOffset = recordsOffset + count * RECORD_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(stringsOffset + stringsSize);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.put(checksum.getBytes(Charsets.US_ASCII));
+        buffer.putInt(count);
+        for (Integer number : sorted) {
+            buffer.putInt(number);
+        }
+        for (int i = 0; i < count; i++) {
+            String superClass = superClasses.get(names[i]);
+            buffer.putInt(stringsOffset + offsets.get(names[i]));
+            buffer.putInt(superClass != null ? stringsOffset + offsets.get(superClass) : -1);
+            buffer.putInt(numbering.roots[i]);
+            buffer.putInt(numbering.last[i]);
+        }
+        for (byte[] bytes : strings) {
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+        buffer.rewind();
+
+        return new SuperClassIndex(buffer);
+    }
+
+    /** Depth first numbering of the class trees */
+    private static class Numbering {
+        final String[] names;
+        final int[] roots;
+        final int[] last;
+        final Map<String, List<String>> subClasses;
+        int count;
+
+        Numbering(int size, @NonNull Map<String, List<String>> subClasses) {
+            names = new String[size];
+            roots = new int[size];
+            last = new int[size];
+            this.subClasses = subClasses;
+        }
+
+        void number(@NonNull String name, int root) {
+            int number = count++;
+            names[number] = name;
+            roots[number] = root;
+            List<String> children = subClasses.get(name);
+            if (children != null) {
+                for (String child : children) {
+                    number(child, root);
+                }
+            }
+            last[number] = count - 1;
+        }
+    }
+
+    /**
+     * Writes the index to a file
+     *
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    void write(@NonNull File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException(parent.getPath());
+        }
+
+        // Write a new file and rename it, rather than overwriting a file which
+        // may be mapped
+        File temp = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+        FileOutputStream out = new FileOutputStream(temp);
+        boolean written = false;
+        try {
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.rewind();
+            out.getChannel().write(buffer);
+            written = true;
+        } finally {
+            Closeables.close(out, !written);
+            if (!written) {
+                temp.delete();
+            }
+        }
+        file.delete();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException(file.getPath());
+        }
+    }
+
+    /** Returns the number of classes in the index */
+    int getClassCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of a class, or -1 if the class is not in the index
+     *
+     * @param name the class name, in VM format
+     * @return the class number, or -1
+     */
+    int find(@NonNull String name) {
+        byte[] key = name.getBytes(Charsets.UTF_8);
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int number = mBuffer.getInt(HEADER_SIZE + middle * 4);
+            int cmp = compareString(getInt(number, 0), key);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return number;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the name of a class */
+    @NonNull
+    String getName(int number) {
+        return getString(getInt(number, 0));
+    }
+
+    /** Returns the name of the super class of a class, or null */
+    @Nullable
+    String getSuperClass(int number) {
+        int offset = getInt(number, 1);
+        return offset != -1 ? getString(offset) : null;
+    }
+
+    /**
+     * Returns the number of the root of the tree of a class: the class whose
+     * super class is the first one outside of the index
+     */
+    int getRoot(int number) {
+        return getInt(number, 2);
+    }
+
+    /**
+     * Returns true if a class is the given ancestor class or one of its subclasses
+     *
+     * @param number the number of the class
+     * @param ancestor the number of the ancestor class
+     * @return true if the class extends the ancestor, directly or not
+     */
+    boolean isSubclassOf(int number, int ancestor) {
+        return ancestor <= number && number <= getInt(ancestor, 3);
+    }
+
+    private int getInt(int number, int field) {
+        return mBuffer.getInt(mRecordsOffset + number * RECORD_SIZE + field * 4);
+    }
+
+    @NonNull
+    private String getString(int offset) {
+        int length = mBuffer.getShort(offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + 2 + i);
+        }
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private int compareString(int offset, @NonNull byte[] key) {
+        int length = mBuffer.getShort(offset) & 0xFFFF;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int b1 = mBuffer.get(offset + 2 + i) & 0xFF;
+            int b2 = key[i] & 0xFF;
+            if (b1 != b2) {
+                return b1 - b2;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int compareBytes(@NonNull byte[] bytes1, @NonNull byte[] bytes2) {
+        int n = Math.min(bytes1.length, bytes2.length);
+        for (int i = 0; i < n; i++) {
+            int b1 = bytes1[i] & 0xFF;
+            int b2 = bytes2[i] & 0xFF;
+            if (b1 != b2) {
+                return b1 - b2;
+            }
+        }
+        return bytes1.length - bytes2.length;
+    }
+
+    @NonNull
+    private static String getChecksum(@NonNull ByteBuffer buffer) {
+        byte[] bytes = new byte[CHECKSUM_LENGTH];
+        for (int i = 0; i < CHECKSUM_LENGTH; i++) {
+            bytes[i] = buffer.get(CHECKSUM_OFFSET + i);
+        }
+        return new String(bytes, Charsets.US_ASCII);
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.tools.lint.client.api;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Detector.XmlScanner;
 import com.android.tools.lint.detector.api.LintUtils;
@@ -52,6 +53,11 @@ import java.util.RandomAccess;
  * It also notifies all the detectors before and after the document is processed
  * such that they can do pre- and post-processing.
  * <p>
+ * When none of the detectors needs the document (see
+ * {@link Detector#requiresXmlDocument()}) and the parser supports it, the
+ * elements are instead checked while the file is being parsed, without
+ * building its document.
+ * <p>
  * <b>NOTE: This is not a public or final API; if you rely on this be prepared
  * to adjust your code for the next tools release.</b>
  */
@@ -69,6 +75,7 @@ class XmlVisitor {
             new ArrayList<Detector.XmlScanner>();
     private final List<? extends Detector> mAllDetectors;
     private final IDomParser mParser;
+    private final boolean mStreamable;
 
     // Really want this:
     //<T extends List<Detector> & Detector.XmlScanner> XmlVisitor(IDomParser parser,
@@ -116,53 +123,146 @@ class XmlVisitor {
                 mDocumentDetectors.add(xmlDetector);
             }
         }
+
+        boolean streamable = mDocumentDetectors.isEmpty()
+                && parser instanceof IStreamingDomParser;
+        for (Detector detector : xmlDetectors) {
+            if (detector.requiresXmlDocument()) {
+                streamable = false;
+                break;
+            }
+        }
+        mStreamable = streamable;
+    }
+
+    /**
+     * Returns whether the files can be checked with {@link #streamFile(XmlContext)},
+     * since none of the detectors needs their documents
+     */
+    boolean isStreamable() {
+        return mStreamable;
     }
 
     void visitFile(@NonNull XmlContext context, @NonNull File file) {
-        assert LintUtils.isXmlFile(file);
-        context.parser = mParser;
+        if (mStreamable && context.document == null) {
+            streamFile(context);
+            return;
+        }
 
         try {
-            if (context.document == null) {
-                context.document = mParser.parseXml(context);
-                if (context.document == null) {
-                    // No need to log this; the parser should be reporting
-                    // a full warning (such as IssueRegistry#PARSER_ERROR)
-                    // with details, location, etc.
-                    return;
-                }
-                if (context.document.getDocumentElement() == null) {
-                    // Ignore empty documents
-                    return;
-                }
+            if (parseFile(context, file)) {
+                visitDocument(context);
             }
+        } finally {
+            dispose(context);
+        }
+    }
 
-            for (Detector check : mAllDetectors) {
-                check.beforeCheckFile(context);
+    /**
+     * Parses the file of the given context, unless the context already has a document.
+     * The document must be released with {@link #dispose(XmlContext)}.
+     *
+     * @return true if the document should be visited, false if it could not be parsed
+     *         or is empty
+     */
+    boolean parseFile(@NonNull XmlContext context, @NonNull File file) {
+        assert LintUtils.isXmlFile(file);
+        context.parser = mParser;
+        if (context.document == null) {
+            context.document = mParser.parseXml(context);
+            if (context.document == null) {
+                // No need to log this; the parser should be reporting
+                // a full warning (such as IssueRegistry#PARSER_ERROR)
+                // with details, location, etc.
+                return false;
             }
+        }
 
-            for (Detector.XmlScanner check : mDocumentDetectors) {
-                check.visitDocument(context, context.document);
-            }
+        // Ignore empty documents
+        return context.document.getDocumentElement() != null;
+    }
 
-            if (!mElementToCheck.isEmpty() || !mAttributeToCheck.isEmpty()
-                    || !mAllAttributeDetectors.isEmpty() || !mAllElementDetectors.isEmpty()) {
-                visitElement(context, context.document.getDocumentElement());
-            }
+    /**
+     * Runs the detectors on the document of the given context, which has been parsed
+     * by {@link #parseFile(XmlContext, File)}, possibly by another visitor
+     */
+    void visitDocument(@NonNull XmlContext context) {
+        for (Detector check : mAllDetectors) {
+            check.beforeCheckFile(context);
+        }
 
-            for (Detector check : mAllDetectors) {
-                check.afterCheckFile(context);
-            }
-        } finally {
-            if (context.document != null) {
-                mParser.dispose(context, context.document);
-                context.document = null;
-            }
+        for (Detector.XmlScanner check : mDocumentDetectors) {
+            check.visitDocument(context, context.document);
+        }
+
+        if (!mElementToCheck.isEmpty() || !mAttributeToCheck.isEmpty()
+                || !mAllAttributeDetectors.isEmpty() || !mAllElementDetectors.isEmpty()) {
+            visitElement(context, context.document.getDocumentElement());
+        }
+
+        for (Detector check : mAllDetectors) {
+            check.afterCheckFile(context);
+        }
+    }
+
+    /**
+     * Runs the detectors on the file of the given context while it is being parsed,
+     * without building its document; only possible if {@link #isStreamable()}
+     *
+     * @return true if the file was parsed, false if it could not be parsed
+     */
+    boolean streamFile(@NonNull XmlContext context) {
+        assert mStreamable && context.document == null;
+        context.parser = mParser;
+        for (Detector check : mAllDetectors) {
+            check.beforeCheckFile(context);
+        }
+
+        boolean parsed = ((IStreamingDomParser) mParser).streamXml(context,
+                new IStreamingDomParser.ElementHandler() {
+                    @Override
+                    public void handleElement(@NonNull XmlContext context,
+                            @NonNull Element element) {
+                        List<Detector.XmlScanner> elementChecks =
+                                mElementToCheck.get(element.getTagName());
+                        checkElement(context, element, elementChecks);
+                        checkElementAfter(context, element, elementChecks);
+                    }
+                });
+
+        for (Detector check : mAllDetectors) {
+            check.afterCheckFile(context);
+        }
+        return parsed;
+    }
+
+    /** Releases the document of the given context, if any */
+    static void dispose(@NonNull XmlContext context) {
+        if (context.document != null) {
+            context.parser.dispose(context, context.document);
+            context.document = null;
         }
     }
 
     private void visitElement(@NonNull XmlContext context, @NonNull Element element) {
         List<Detector.XmlScanner> elementChecks = mElementToCheck.get(element.getTagName());
+        checkElement(context, element, elementChecks);
+
+        // Visit children
+        NodeList childNodes = element.getChildNodes();
+        for (int i = 0, n = childNodes.getLength(); i < n; i++) {
+            Node child = childNodes.item(i);
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                visitElement(context, (Element) child);
+            }
+        }
+
+        checkElementAfter(context, element, elementChecks);
+    }
+
+    /** Runs the element detectors on an element, and the attribute detectors on its attributes */
+    private void checkElement(@NonNull XmlContext context, @NonNull Element element,
+            @Nullable List<Detector.XmlScanner> elementChecks) {
         if (elementChecks != null) {
             assert elementChecks instanceof RandomAccess;
             for (XmlScanner check : elementChecks) {
@@ -196,17 +296,11 @@ class XmlVisitor {
                 }
             }
         }
+    }
 
-        // Visit children
-        NodeList childNodes = element.getChildNodes();
-        for (int i = 0, n = childNodes.getLength(); i < n; i++) {
-            Node child = childNodes.item(i);
-            if (child.getNodeType() == Node.ELEMENT_NODE) {
-                visitElement(context, (Element) child);
-            }
-        }
-
-        // Post hooks
+    /** Runs the post hooks of the element detectors on an element */
+    private void checkElementAfter(@NonNull XmlContext context, @NonNull Element element,
+            @Nullable List<Detector.XmlScanner> elementChecks) {
         if (elementChecks != null) {
             for (XmlScanner check : elementChecks) {
                 check.visitElementAfter(context, element);
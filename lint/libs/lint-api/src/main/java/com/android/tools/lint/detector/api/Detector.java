@@ -491,6 +491,49 @@ public abstract class Detector {
         return Speed.NORMAL;
     }
 
+    /**
+     * Returns whether this detector can check several files at the same time,
+     * when lint is running with more than one thread (see
+     * {@link LintDriver#setThreadCount(int)}). A thread safe detector must not
+     * keep any state between the {@link #beforeCheckFile(Context)} and
+     * {@link #afterCheckFile(Context)} calls of a file, or across files, other
+     * than in the context of the file.
+     * <p>
+     * Detectors which are not thread safe are run on one file at a time, in the
+     * same order as when running with a single thread.
+     * <p>
+     * Since the issues a thread safe detector reports on a file only depend on that
+     * file, they are also cached across runs when lint is incremental (see
+     * {@link LintDriver#setIncremental(boolean)}), for the detectors which only look
+     * at individual resource files or Java source files.
+     *
+     * @return true if this detector can check several files concurrently
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Returns whether this XML detector needs the whole document of the files it
+     * checks. Detectors which only look at the elements and attributes they are
+     * given, and at the attributes of their enclosing elements, can return false,
+     * in which case lint may check the files without building their documents
+     * when none of the other applicable detectors needs them either.
+     * <p>
+     * In that case {@link XmlContext#document} is null, the elements have no
+     * children (not even text nodes), and they are visited after the elements
+     * they contain: {@link #visitElement(XmlContext, Element)},
+     * {@link #visitAttribute(XmlContext, Attr)} and
+     * {@link #visitElementAfter(XmlContext, Element)} are all called when the
+     * end tag of an element has been parsed. If a file cannot be parsed, the
+     * elements before the error may already have been visited.
+     *
+     * @return true if this detector needs the XML document
+     */
+    public boolean requiresXmlDocument() {
+        return true;
+    }
+
     // ---- Dummy implementations to make implementing XmlScanner easier: ----
 
     @SuppressWarnings("javadoc")
@@ -87,6 +87,16 @@ public class AccessibilityDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean requiresXmlDocument() {
+        return false;
+    }
+
     @Override
     public Collection<String> getApplicableElements() {
         return Arrays.asList(
@@ -76,6 +76,11 @@ public class ColorUsageDetector extends Detector implements Detector.JavaScanner
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements JavaScanner ----
 
     @Override
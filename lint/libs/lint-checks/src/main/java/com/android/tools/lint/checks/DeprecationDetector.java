@@ -75,6 +75,16 @@ public class DeprecationDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean requiresXmlDocument() {
+        return false;
+    }
+
     @Override
     public Collection<String> getApplicableElements() {
         return Collections.singletonList(
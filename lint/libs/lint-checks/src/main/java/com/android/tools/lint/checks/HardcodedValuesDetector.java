@@ -81,6 +81,16 @@ public class HardcodedValuesDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean requiresXmlDocument() {
+        return false;
+    }
+
     @Override
     public Collection<String> getApplicableAttributes() {
         return Arrays.asList(
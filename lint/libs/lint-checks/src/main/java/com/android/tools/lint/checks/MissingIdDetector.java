@@ -77,6 +77,16 @@ public class MissingIdDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean requiresXmlDocument() {
+        return false;
+    }
+
     @Override
     public Collection<String> getApplicableElements() {
         return Collections.singletonList(VIEW_FRAGMENT);
@@ -144,6 +144,11 @@ public class PxUsageDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         // Look in both layouts (at attribute values) and in value files (at style definitions)
@@ -87,6 +87,16 @@ public class TextFieldDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean requiresXmlDocument() {
+        return false;
+    }
+
     @Override
     public Collection<String> getApplicableElements() {
         return Collections.singletonList(EDIT_TEXT);
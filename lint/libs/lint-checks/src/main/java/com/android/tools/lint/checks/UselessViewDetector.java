@@ -97,6 +97,11 @@ public class UselessViewDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     private static final List<String> CONTAINERS = new ArrayList<String>(18);
     static {
         CONTAINERS.add(ABSOLUTE_LAYOUT);
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace.benchmarks;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.vmtrace.MethodInfo;
+import com.android.tools.perflib.vmtrace.TraceAction;
+import com.android.tools.perflib.vmtrace.VmTraceHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A randomly generated, but reproducible, method trace. Each thread performs a random walk
+ * over its call stack: it either enters a new method or exits the current one, until the
+ * requested number of events has been generated across all threads.
+ * <p>
+ * The same sequence of events can either be written to a file in the dual clock, version 3
+ * trace format, or be replayed directly to a {@link VmTraceHandler}.
+ */
+public class SyntheticTrace {
+    private static final int TRACE_MAGIC = 0x574f4c53; // 'SLOW'
+    private static final int TRACE_VERSION = 3;
+    private static final int DATA_HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 14;
+
+    /** Method ids are multiples of 4, since the low bits of a record encode the action. */
+    private static final long FIRST_METHOD_ID = 0x1000;
+
+    private static final int CLASS_COUNT = 100;
+    private static final int METHODS_PER_CLASS = 10;
+    private static final int MAX_DEPTH = 64;
+
+    private final long mEventCount;
+    private final int mThreadCount;
+    private final long mSeed;
+
+    public SyntheticTrace(long eventCount, int threadCount, long seed) {
+        mEventCount = eventCount;
+        mThreadCount = threadCount;
+        mSeed = seed;
+    }
+
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /** Reports the header and all the events of this trace to the given handler. */
+    public void replay(@NonNull VmTraceHandler handler) {
+        handler.setVersion(TRACE_VERSION);
+        handler.setProperty("clock", "dual");
+        handler.setProperty("vm", "dalvik");
+        for (int t = 0; t < mThreadCount; t++) {
+            handler.addThread(getThreadId(t), getThreadName(t));
+        }
+        for (int m = 0; m < CLASS_COUNT * METHODS_PER_CLASS; m++) {
+            long id = getMethodId(m);
+            handler.addMethod(id, new MethodInfo(id, getClassName(m), getMethodName(m), "()V",
+                    getClassName(m) + ".java", m));
+        }
+
+        EventGenerator generator = new EventGenerator();
+        while (generator.next()) {
+            handler.addMethodAction(generator.threadId, generator.methodId, generator.action,
+                    generator.threadTime, generator.globalTime);
+        }
+    }
+
+    /** Writes this trace to the given file, in the format read by the trace parser. */
+    public void writeTo(@NonNull File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        try {
+            writeHeader(out);
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(TRACE_MAGIC);
+            buffer.putShort((short) TRACE_VERSION);
+            buffer.putShort((short) DATA_HEADER_SIZE);
+            buffer.putLong(System.currentTimeMillis() * 1000);
+            buffer.putShort((short) RECORD_SIZE);
+            while (buffer.position() < DATA_HEADER_SIZE) {
+                buffer.put((byte) 0);
+            }
+
+            EventGenerator generator = new EventGenerator();
+            while (generator.next()) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                buffer.putShort((short) generator.threadId);
+                buffer.putInt((int) generator.methodId | generator.action.ordinal());
+                buffer.putInt(generator.threadTime);
+                buffer.putInt(generator.globalTime);
+            }
+            out.write(buffer.array(), 0, buffer.position());
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeHeader(@NonNull OutputStream out) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("*version\n");
+        sb.append(TRACE_VERSION).append('\n');
+        sb.append("data-file-overflow=false\n");
+        sb.append("clock=dual\n");
+        sb.append("vm=dalvik\n");
+        sb.append("*threads\n");
+        for (int t = 0; t < mThreadCount; t++) {
+            sb.append(getThreadId(t)).append('\t').append(getThreadName(t)).append('\n');
+        }
+        sb.append("*methods\n");
+        for (int m = 0; m < CLASS_COUNT * METHODS_PER_CLASS; m++) {
+            sb.append(String.format(Locale.US, "0x%x\t%s\t%s\t()V\t%s.java\t%d\n",
+                    getMethodId(m), getClassName(m), getMethodName(m),
+                    getUnqualifiedClassName(m), m));
+        }
+        sb.append("*end\n");
+        out.write(sb.toString().getBytes(Charset.forName("US-ASCII")));
+    }
+
+    private static int getThreadId(int thread) {
+        return thread + 1;
+    }
+
+    private static String getThreadName(int thread) {
+        return thread == 0 ? "main" : "Thread-" + thread;
+    }
+
+    private static long getMethodId(int method) {
+        return FIRST_METHOD_ID + method * 4;
+    }
+
+    private static String getClassName(int method) {
+        return "com/example/benchmark/" + getUnqualifiedClassName(method);
+    }
+
+    private static String getUnqualifiedClassName(int method) {
+        return "Class" + method / METHODS_PER_CLASS;
+    }
+
+    private static String getMethodName(int method) {
+        return "method" + method % METHODS_PER_CLASS;
+    }
+
+    /** Generates the events of this trace, one at a time. */
+    private class EventGenerator {
+        private final Random mRandom = new Random(mSeed);
+        private final long[][] mStacks = new long[mThreadCount][MAX_DEPTH];
+        private final int[] mDepths = new int[mThreadCount];
+        private final int[] mThreadTimes = new int[mThreadCount];
+        private long mGenerated;
+
+        public int threadId;
+        public long methodId;
+        public TraceAction action;
+        public int threadTime;
+        public int globalTime;
+
+        /** Moves to the next event, and returns false if all events have been generated. */
+        public boolean next() {
+            if (mGenerated == mEventCount) {
+                return false;
+            }
+            mGenerated++;
+
+            // Switch threads every few events, as a scheduler would.
+            int thread = threadId == 0 || mRandom.nextInt(8) == 0 ?
+                    mRandom.nextInt(mThreadCount) : threadId - 1;
+            threadId = getThreadId(thread);
+
+            long[] stack = mStacks[thread];
+            int depth = mDepths[thread];
+            if (depth == 0 || depth < MAX_DEPTH && mRandom.nextBoolean()) {
+                methodId = getMethodId(mRandom.nextInt(CLASS_COUNT * METHODS_PER_CLASS));
+                action = TraceAction.METHOD_ENTER;
+                stack[depth] = methodId;
+                mDepths[thread] = depth + 1;
+            } else {
+                methodId = stack[depth - 1];
+                action = TraceAction.METHOD_EXIT;
+                mDepths[thread] = depth - 1;
+            }
+
+            int elapsed = 1 + mRandom.nextInt(10);
+            mThreadTimes[thread] += elapsed;
+            threadTime = mThreadTimes[thread];
+            globalTime += elapsed + mRandom.nextInt(3);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace.benchmarks;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.vmtrace.CallTable;
+import com.android.tools.perflib.vmtrace.CallingContextTree;
+import com.android.tools.perflib.vmtrace.ClockType;
+import com.android.tools.perflib.vmtrace.MethodInfo;
+import com.android.tools.perflib.vmtrace.SearchResult;
+import com.android.tools.perflib.vmtrace.ThreadInfo;
+import com.android.tools.perflib.vmtrace.TraceAction;
+import com.android.tools.perflib.vmtrace.VmTraceData;
+import com.android.tools.perflib.vmtrace.VmTraceHandler;
+import com.android.tools.perflib.vmtrace.VmTraceParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for parsing and analyzing method traces, run over {@link SyntheticTrace}s of
+ * varying sizes and thread counts.
+ * <p>
+ * For each benchmark, this reports the throughput in trace events per second, the number of
+ * bytes allocated per event by the benchmark thread, and the heap retained by the result of
+ * the benchmark once it completes. Usage:
+ * <pre>
+ *   VmTraceBenchmarks [--events 100000,1000000] [--threads 1,8] [--warmup 2] [--iterations 5]
+ *                     [--benchmarks replay,build,parse,tree,search,percentage]
+ * </pre>
+ */
+public class VmTraceBenchmarks {
+    private static final long SEED = 0x5eed;
+
+    private interface Benchmark {
+        /** Runs one iteration of the benchmark, and returns its result so that it is retained. */
+        Object run() throws IOException;
+    }
+
+    private long[] mEventCounts = new long[] { 100000, 1000000, 10000000 };
+    private int[] mThreadCounts = new int[] { 1, 4, 8 };
+    private int mWarmupIterations = 2;
+    private int mIterations = 5;
+    private List<String> mBenchmarks =
+            Arrays.asList("replay", "build", "parse", "tree", "search", "percentage");
+
+    public static void main(String[] args) throws IOException {
+        VmTraceBenchmarks benchmarks = new VmTraceBenchmarks();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if (args[i].equals("--events")) {
+                String[] counts = value.split(",");
+                benchmarks.mEventCounts = new long[counts.length];
+                for (int j = 0; j < counts.length; j++) {
+                    benchmarks.mEventCounts[j] = (long) Double.parseDouble(counts[j]);
+                }
+            } else if (args[i].equals("--threads")) {
+                String[] counts = value.split(",");
+                benchmarks.mThreadCounts = new int[counts.length];
+                for (int j = 0; j < counts.length; j++) {
+                    benchmarks.mThreadCounts[j] = Integer.parseInt(counts[j]);
+                }
+            } else if (args[i].equals("--warmup")) {
+                benchmarks.mWarmupIterations = Integer.parseInt(value);
+            } else if (args[i].equals("--iterations")) {
+                benchmarks.mIterations = Integer.parseInt(value);
+            } else if (args[i].equals("--benchmarks")) {
+                benchmarks.mBenchmarks = Arrays.asList(value.split(","));
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        benchmarks.runAll();
+    }
+
+    private void runAll() throws IOException {
+        System.out.println(String.format(Locale.US, "%-12s %12s %8s %16s %14s %14s",
+                "benchmark", "events", "threads", "events/s", "alloc B/event", "retained MB"));
+
+        for (long eventCount : mEventCounts) {
+            for (int threadCount : mThreadCounts) {
+                SyntheticTrace trace = new SyntheticTrace(eventCount, threadCount, SEED);
+                File traceFile = File.createTempFile("benchmark", ".trace");
+                try {
+                    trace.writeTo(traceFile);
+                    runAll(trace, traceFile);
+                } finally {
+                    traceFile.delete();
+                }
+            }
+        }
+    }
+
+    private void runAll(@NonNull final SyntheticTrace trace, @NonNull final File traceFile)
+            throws IOException {
+        if (mBenchmarks.contains("replay")) {
+            // The cost of generating the events, which is included in the build benchmark.
+            measure("replay", trace, new Benchmark() {
+                @Override
+                public Object run() {
+                    trace.replay(new NullTraceHandler());
+                    return null;
+                }
+            });
+        }
+
+        if (mBenchmarks.contains("build")) {
+            measure("build", trace, new Benchmark() {
+                @Override
+                public Object run() {
+                    VmTraceData.Builder builder = new VmTraceData.Builder();
+                    trace.replay(builder);
+                    return builder.build();
+                }
+            });
+        }
+
+        if (mBenchmarks.contains("parse")) {
+            measure("parse", trace, new Benchmark() {
+                @Override
+                public Object run() throws IOException {
+                    return parse(traceFile);
+                }
+            });
+        }
+
+        if (!mBenchmarks.contains("tree") && !mBenchmarks.contains("search")
+                && !mBenchmarks.contains("percentage")) {
+            return;
+        }
+
+        final VmTraceData data = parse(traceFile);
+        if (mBenchmarks.contains("tree")) {
+            // The top down and bottom up trees of all the threads, which are only built when
+            // asked for and must not slow down parsing.
+            measure("tree", trace, new Benchmark() {
+                @Override
+                public Object run() {
+                    List<CallingContextTree> trees = new ArrayList<CallingContextTree>();
+                    for (ThreadInfo thread : data.getThreads()) {
+                        CallTable calls = thread.getCallTable();
+                        if (calls != null) {
+                            CallingContextTree tree = new CallingContextTree(calls);
+                            tree.getBottomUp();
+                            trees.add(tree);
+                        }
+                    }
+                    return trees;
+                }
+            });
+        }
+
+        if (mBenchmarks.contains("search")) {
+            measure("search", trace, new Benchmark() {
+                @Override
+                public Object run() {
+                    List<SearchResult> results = new ArrayList<SearchResult>();
+                    for (ThreadInfo thread : data.getThreads()) {
+                        results.add(data.searchFor("method1", thread));
+                    }
+                    return results;
+                }
+            });
+        }
+
+        if (mBenchmarks.contains("percentage")) {
+            measure("percentage", trace, new Benchmark() {
+                @Override
+                public Object run() {
+                    double sum = 0;
+                    for (ThreadInfo thread : data.getThreads()) {
+                        CallTable calls = thread.getCallTable();
+                        if (calls == null) {
+                            continue;
+                        }
+                        for (int i = 0; i < calls.size(); i++) {
+                            sum += data.getDurationPercentage(calls.getCall(i), thread,
+                                    ClockType.GLOBAL, true);
+                        }
+                    }
+                    return sum;
+                }
+            });
+        }
+    }
+
+    @NonNull
+    private static VmTraceData parse(@NonNull File traceFile) throws IOException {
+        VmTraceParser parser = new VmTraceParser(traceFile);
+        parser.parse();
+        return parser.getTraceData();
+    }
+
+    private void measure(@NonNull String name, @NonNull SyntheticTrace trace,
+            @NonNull Benchmark benchmark) throws IOException {
+        for (int i = 0; i < mWarmupIterations; i++) {
+            benchmark.run();
+        }
+
+        Object[] result = new Object[1];
+        long elapsedNs = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < mIterations; i++) {
+            result[0] = null;
+            long allocatedStart = getAllocatedBytes();
+            long start = System.nanoTime();
+            result[0] = benchmark.run();
+            elapsedNs += System.nanoTime() - start;
+            allocatedBytes += getAllocatedBytes() - allocatedStart;
+        }
+
+        // Measure the heap retained by the result of the last iteration.
+        long usedWithResult = getUsedHeap();
+        result[0] = null;
+        long retainedBytes = usedWithResult - getUsedHeap();
+
+        double events = (double) trace.getEventCount() * mIterations;
+        System.out.println(String.format(Locale.US, "%-12s %12d %8d %16.0f %14.1f %14.1f",
+                name, trace.getEventCount(), trace.getThreadCount(),
+                events / elapsedNs * TimeUnit.SECONDS.toNanos(1),
+                allocatedBytes / events,
+                retainedBytes / (1024. * 1024.)));
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, or 0 if the VM
+     * doesn't support measuring it. Allocations made by the parser's worker threads are not
+     * included.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /** Returns the heap in use after collecting as much garbage as possible. */
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            long current = runtime.totalMemory() - runtime.freeMemory();
+            if (current >= used) {
+                break;
+            }
+            used = current;
+        }
+        return used;
+    }
+
+    /** A handler that drops all events, to measure the cost of generating them. */
+    private static class NullTraceHandler implements VmTraceHandler {
+        @Override
+        public void setVersion(int version) {
+        }
+
+        @Override
+        public void setProperty(String key, String value) {
+        }
+
+        @Override
+        public void addThread(int id, String name) {
+        }
+
+        @Override
+        public void addMethod(long id, MethodInfo info) {
+        }
+
+        @Override
+        public void addMethodAction(int threadId, long methodId, TraceAction methodAction,
+                int threadTime, int globalTime) {
+        }
+    }
+}
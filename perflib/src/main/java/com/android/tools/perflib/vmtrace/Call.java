@@ -17,91 +17,48 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.annotations.NonNull;
-import com.android.annotations.Nullable;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.primitives.UnsignedInts;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * A single method invocation. A {@link Call} is a lightweight view over one entry of the
+ * {@link CallTable} that stores the call hierarchy of a thread.
+ */
 public class Call {
-    private final long mMethodId;
-
-    /**
-     * Note: The thread entry and exit times are stored as unsigned integers in the trace data.
-     * In this model, they are stored as integers, but the getters for all of these time values
-     * convert them into longs.
-     */
-    private final int mEntryThreadTime;
-    private final int mEntryGlobalTime;
-    private final int mExitGlobalTime;
-    private final int mExitThreadTime;
-
-    private final long mInclusiveThreadTimeInCallees;
-    private final long mInclusiveGlobalTimeInCallees;
-
-    private final int mDepth;
-
-    /**
-     * Indicates whether the current call is recursive. A call is recursive if the same method
-     * is present in its backstack.
-     */
-    private final boolean mIsRecursive;
-
-    private final List<Call> mCallees;
-
-    private Call(@NonNull Builder builder, @NonNull Stack<Long> backStack) {
-        mMethodId = builder.mMethodId;
-
-        mEntryThreadTime = builder.mEntryThreadTime;
-        mEntryGlobalTime = builder.mEntryGlobalTime;
-        mExitThreadTime = builder.mExitThreadTime;
-        mExitGlobalTime = builder.mExitGlobalTime;
+    private final CallTable mTable;
+    private final int mIndex;
 
-        mDepth = backStack.size();
-
-        mIsRecursive = backStack.contains(mMethodId);
-
-        if (builder.mCallees == null) {
-            mCallees = Collections.emptyList();
-        } else {
-            backStack.push(mMethodId);
-            List<Call> callees = new ArrayList<Call>(builder.mCallees.size());
-            for (Builder b : builder.mCallees) {
-                callees.add(b.build(backStack));
-            }
-            backStack.pop();
-            mCallees = new ImmutableList.Builder<Call>().addAll(callees).build();
-        }
+    Call(@NonNull CallTable table, int index) {
+        mTable = table;
+        mIndex = index;
+    }
 
-        mInclusiveThreadTimeInCallees = sumInclusiveTimes(mCallees, ClockType.THREAD);
-        mInclusiveGlobalTimeInCallees = sumInclusiveTimes(mCallees, ClockType.GLOBAL);
+    /** Returns the table storing this call. */
+    @NonNull
+    public CallTable getCallTable() {
+        return mTable;
     }
 
-    private long sumInclusiveTimes(@NonNull List<Call> callees, ClockType clockType) {
-        long sum = 0;
-        for (Call c : callees) {
-            sum += c.getInclusiveTime(clockType, TimeUnit.MICROSECONDS);
-        }
-        return sum;
+    /** Returns the index of this call in its {@link CallTable}. */
+    public int getIndex() {
+        return mIndex;
     }
 
     public long getMethodId() {
-        return mMethodId;
+        return mTable.getMethodId(mIndex);
     }
 
     @NonNull
     public List<Call> getCallees() {
-        return mCallees;
+        return mTable.getCallees(mIndex);
     }
 
     public int getDepth() {
-        return mDepth;
+        return mTable.getDepth(mIndex);
     }
 
     /**
@@ -109,96 +66,41 @@ public class Call {
      * in its backstack)
      */
     public boolean isRecursive() {
-        return mIsRecursive;
+        return mTable.isRecursive(mIndex);
     }
 
     public long getEntryTime(ClockType clockType, TimeUnit units) {
-        long entryTime = clockType == ClockType.THREAD ?
-                UnsignedInts.toLong(mEntryThreadTime) : UnsignedInts.toLong(mEntryGlobalTime);
-        return units.convert(entryTime, VmTraceData.getDefaultTimeUnits());
+        return mTable.getEntryTime(mIndex, clockType, units);
     }
 
     public long getExitTime(ClockType clockType, TimeUnit units) {
-        long exitTime = clockType == ClockType.THREAD ?
-                UnsignedInts.toLong(mExitThreadTime) : UnsignedInts.toLong(mExitGlobalTime);
-        return units.convert(exitTime, VmTraceData.getDefaultTimeUnits());
+        return mTable.getExitTime(mIndex, clockType, units);
     }
 
     public long getInclusiveTime(ClockType clockType, TimeUnit units) {
-        long inclusiveTime = clockType == ClockType.THREAD ?
-                UnsignedInts.toLong(mExitThreadTime - mEntryThreadTime) :
-                UnsignedInts.toLong(mExitGlobalTime - mEntryGlobalTime);
-        return units.convert(inclusiveTime, VmTraceData.getDefaultTimeUnits());
+        return mTable.getInclusiveTime(mIndex, clockType, units);
     }
 
     public long getExclusiveTime(ClockType clockType, TimeUnit units) {
-        long inclusiveTimeInCallees = clockType == ClockType.THREAD ?
-                mInclusiveThreadTimeInCallees : mInclusiveGlobalTimeInCallees;
-        long exclusiveTime = getInclusiveTime(clockType, VmTraceData.getDefaultTimeUnits()) -
-                inclusiveTimeInCallees;
-        return units.convert(exclusiveTime, VmTraceData.getDefaultTimeUnits());
+        return mTable.getExclusiveTime(mIndex, clockType, units);
     }
 
-    public static class Builder {
-        private final long mMethodId;
-
-        private int mEntryThreadTime;
-        private int mEntryGlobalTime;
-        private int mExitGlobalTime;
-        private int mExitThreadTime;
-
-        private List<Builder> mCallees = null;
-
-        public Builder(long methodId) {
-            mMethodId = methodId;
-        }
-
-        public long getMethodId() {
-            return mMethodId;
-        }
-
-        public void setMethodEntryTime(int threadTime, int globalTime) {
-            mEntryThreadTime = threadTime;
-            mEntryGlobalTime = globalTime;
-        }
-
-        public void setMethodExitTime(int threadTime, int globalTime) {
-            mExitThreadTime = threadTime;
-            mExitGlobalTime = globalTime;
-        }
-
-        public void addCallee(Builder c) {
-            if (mCallees == null) {
-                mCallees = new ArrayList<Builder>();
-            }
-            mCallees.add(c);
-        }
-
-        @Nullable
-        public List<Builder> getCallees() {
-            return mCallees;
-        }
-
-        public int getMethodEntryThreadTime() {
-            return mEntryThreadTime;
-        }
-
-        public int getMethodEntryGlobalTime() {
-            return mEntryGlobalTime;
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
         }
-
-        public int getMethodExitThreadTime() {
-            return mExitThreadTime;
+        if (!(o instanceof Call)) {
+            return false;
         }
 
-        public int getMethodExitGlobalTime() {
-            return mExitGlobalTime;
-        }
+        Call other = (Call) o;
+        return mTable == other.mTable && mIndex == other.mIndex;
+    }
 
-        @NonNull
-        public Call build(@NonNull Stack<Long> backStack) {
-            return new Call(this, backStack);
-        }
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(mTable) + mIndex;
     }
 
     /**
@@ -257,30 +159,41 @@ public class Call {
      * were invoked.
      */
     private static class CallHierarchyIterator implements Iterator<Call> {
-        private final Stack<Call> mCallStack = new Stack<Call>();
+        private final CallTable mTable;
+
+        /** Stack of indices of the calls yet to be visited. */
+        private int[] mCallStack = new int[16];
+        private int mStackSize;
 
         public CallHierarchyIterator(@NonNull Call top) {
-            mCallStack.push(top);
+            mTable = top.getCallTable();
+            mCallStack[mStackSize++] = top.getIndex();
         }
 
         @Override
         public boolean hasNext() {
-            return !mCallStack.isEmpty();
+            return mStackSize > 0;
         }
 
         @Override
         public Call next() {
-            if (mCallStack.isEmpty()) {
+            if (mStackSize == 0) {
                 return null;
             }
 
-            Call top = mCallStack.pop();
+            int top = mCallStack[--mStackSize];
 
-            for (int i = top.getCallees().size() - 1; i >= 0; i--) {
-                mCallStack.push(top.getCallees().get(i));
+            int first = mTable.getFirstCallee(top);
+            int count = mTable.getCalleeCount(top);
+            if (mStackSize + count > mCallStack.length) {
+                mCallStack = Arrays.copyOf(mCallStack, Math.max(mCallStack.length * 2,
+                        mStackSize + count));
+            }
+            for (int i = first + count - 1; i >= first; i--) {
+                mCallStack[mStackSize++] = i;
             }
 
-            return top;
+            return mTable.getCall(top);
         }
 
         @Override
@@ -16,28 +16,36 @@
 
 package com.android.tools.perflib.vmtrace;
 
-import com.android.annotations.Nullable;
+import com.android.annotations.NonNull;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Stack;
+import java.util.Arrays;
 
 /**
  * {@link CallStackReconstructor} helps in reconstructing per thread call stacks from a sequence of
  * trace events (method entry/exit events).
  */
 public class CallStackReconstructor {
+    private static final int NONE = -1;
+
     /** Method id corresponding to the top level call under which all calls are nested. */
     private final long mTopLevelCallId;
 
-    /** List of calls currently assumed to be at stack depth 0 (called from the top level) */
-    private final List<Call.Builder> mTopLevelCalls = new ArrayList<Call.Builder>();
+    /** Accumulates all the calls in the order in which they are invoked. */
+    private final CallTable.Builder mCalls = new CallTable.Builder();
+
+    /**
+     * List of calls currently assumed to be at stack depth 0 (called from the top level),
+     * linked through {@link CallTable.Builder#getNextSibling(int)}.
+     */
+    private int mFirstTopLevelCall = NONE;
+    private int mLastTopLevelCall = NONE;
 
     /** Current call stack based on the sequence of received trace events. */
-    private final Stack<Call.Builder> mCallStack = new Stack<Call.Builder>();
+    private int[] mCallStack = new int[32];
+    private int mCallStackSize;
 
-    /** The single top level call under which the entire reconstructed call stack nests. */
-    private Call mTopLevelCall;
+    /** The table holding the entire reconstructed call stack. */
+    private CallTable mCallTable;
 
     /**
      * Constructs a call stack reconstructor with the method id under which
@@ -56,45 +64,57 @@ public class CallStackReconstructor {
     }
 
     private void enterMethod(long methodId, int threadTime, int globalTime) {
-        Call.Builder cb = new Call.Builder(methodId);
-        cb.setMethodEntryTime(threadTime, globalTime);
+        int cb = mCalls.addCall(methodId);
+        mCalls.setMethodEntryTime(cb, threadTime, globalTime);
 
-        if (mCallStack.isEmpty()) {
-            mTopLevelCalls.add(cb);
+        if (mCallStackSize == 0) {
+            addTopLevelCall(cb);
         } else {
-            Call.Builder caller = mCallStack.peek();
-            caller.addCallee(cb);
+            int caller = mCallStack[mCallStackSize - 1];
+            mCalls.addCallee(caller, cb);
         }
 
-        mCallStack.push(cb);
+        if (mCallStackSize == mCallStack.length) {
+            mCallStack = Arrays.copyOf(mCallStack, mCallStackSize * 2);
+        }
+        mCallStack[mCallStackSize++] = cb;
+    }
+
+    private void addTopLevelCall(int cb) {
+        if (mLastTopLevelCall == NONE) {
+            mFirstTopLevelCall = cb;
+        } else {
+            mCalls.setNextSibling(mLastTopLevelCall, cb);
+        }
+        mLastTopLevelCall = cb;
     }
 
     private void exitMethod(long methodId, int threadTime, int globalTime) {
-        if (!mCallStack.isEmpty()) {
-            Call.Builder c = mCallStack.pop();
-            if (c.getMethodId() != methodId) {
+        if (mCallStackSize > 0) {
+            int c = mCallStack[--mCallStackSize];
+            if (mCalls.getMethodId(c) != methodId) {
                 String msg = String
                         .format("Error during call stack reconstruction. Attempt to exit from method 0x%1$x while in method 0x%2$x",
-                                c.getMethodId(), methodId);
+                                mCalls.getMethodId(c), methodId);
                 throw new RuntimeException(msg);
             }
 
-            c.setMethodExitTime(threadTime, globalTime);
+            mCalls.setMethodExitTime(c, threadTime, globalTime);
         } else {
             // We are exiting out of a method that was entered into before tracing was started.
             // In such a case, create this method
-            Call.Builder c = new Call.Builder(methodId);
+            int c = mCalls.addCall(methodId);
 
             // All the previous calls at the top level are now assumed to have been called from
             // this method. So mark this method as having called all of those methods, and reset
             // the top level to only include this method
-            for (Call.Builder cb : mTopLevelCalls) {
-                c.addCallee(cb);
+            if (mFirstTopLevelCall != NONE) {
+                mCalls.addCallees(c, mFirstTopLevelCall, mLastTopLevelCall);
             }
-            mTopLevelCalls.clear();
-            mTopLevelCalls.add(c);
+            mFirstTopLevelCall = c;
+            mLastTopLevelCall = c;
 
-            c.setMethodExitTime(threadTime, globalTime);
+            mCalls.setMethodExitTime(c, threadTime, globalTime);
 
             // We don't know this method's entry times, so we try to guess:
             // If it has atleast 1 callee, then we know it must've been atleast before that callee's
@@ -103,12 +123,12 @@ public class CallStackReconstructor {
             int entryThreadTime = threadTime - 1;
             int entryGlobalTime = globalTime - 1;
 
-            if (c.getCallees() != null && !c.getCallees().isEmpty()) {
-                Call.Builder callee = c.getCallees().get(0);
-                entryThreadTime = Math.max(callee.getMethodEntryThreadTime() - 1, 0);
-                entryGlobalTime = Math.max(callee.getMethodEntryGlobalTime() - 1, 0);
+            int callee = mCalls.getFirstCallee(c);
+            if (callee != NONE) {
+                entryThreadTime = Math.max(mCalls.getMethodEntryThreadTime(callee) - 1, 0);
+                entryGlobalTime = Math.max(mCalls.getMethodEntryGlobalTime(callee) - 1, 0);
             }
-            c.setMethodEntryTime(entryThreadTime, entryGlobalTime);
+            mCalls.setMethodEntryTime(c, entryThreadTime, entryGlobalTime);
         }
     }
 
@@ -117,55 +137,59 @@ public class CallStackReconstructor {
      * @param methoId id of the method from which we are exiting
      * @param entryThreadTime method's thread entry time
      * @param entryGlobalTime method's global entry time
-     * @param callees from the method that we are exiting
+     * @param lastCallee the last callee of the method that we are exiting, or -1 if none
      */
     private void exitMethod(long methoId, int entryThreadTime, int entryGlobalTime,
-            @Nullable List<Call.Builder> callees) {
+            int lastCallee) {
         int lastExitThreadTime;
         int lastExitGlobalTime;
 
-        if (callees == null || callees.isEmpty()) {
+        if (lastCallee == NONE) {
             // if the call doesn't have any callees, we assume that it just ran for 1 unit of time
             lastExitThreadTime = entryThreadTime + 1;
             lastExitGlobalTime = entryGlobalTime + 1;
         } else {
             // if it did call other methods, we assume that this call exited 1 unit of time after
             // its last callee exited
-            Call.Builder last = callees.get(callees.size() - 1);
-            lastExitThreadTime = last.getMethodExitThreadTime() + 1;
-            lastExitGlobalTime = last.getMethodExitGlobalTime() + 1;
+            lastExitThreadTime = mCalls.getMethodExitThreadTime(lastCallee) + 1;
+            lastExitGlobalTime = mCalls.getMethodExitGlobalTime(lastCallee) + 1;
         }
 
         exitMethod(methoId, lastExitThreadTime, lastExitGlobalTime);
     }
 
     private void fixupCallStacks() {
-        if (mTopLevelCall != null) {
+        if (mCallTable != null) {
             return;
         }
 
         // If there are any methods still on the call stack, then the trace doesn't have
         // exit trace action for them, so clean those up
-        while (!mCallStack.isEmpty()) {
-            Call.Builder cb = mCallStack.peek();
-            exitMethod(cb.getMethodId(), cb.getMethodEntryThreadTime(),
-                    cb.getMethodEntryGlobalTime(), cb.getCallees());
+        while (mCallStackSize > 0) {
+            int cb = mCallStack[mCallStackSize - 1];
+            exitMethod(mCalls.getMethodId(cb), mCalls.getMethodEntryThreadTime(cb),
+                    mCalls.getMethodEntryGlobalTime(cb), mCalls.getLastCallee(cb));
         }
 
         // Now that we have parsed the entire call stack, let us move all of it under a single
         // top level call.
-        exitMethod(mTopLevelCallId, 0, 0, mTopLevelCalls);
+        exitMethod(mTopLevelCallId, 0, 0, mLastTopLevelCall);
 
         // TODO: use global / thread times to infer context switches
 
-        // Build calls from their respective builders
+        // Lay out the calls into a table
         // Now that we've added the top level call, there should be only 1 top level call
-        assert mTopLevelCalls.size() == 1;
-        mTopLevelCall = mTopLevelCalls.get(0).build(new Stack<Long>());
+        assert mFirstTopLevelCall == mLastTopLevelCall;
+        mCallTable = mCalls.build(mFirstTopLevelCall);
     }
 
-    public Call getTopLevel() {
+    @NonNull
+    public CallTable getCallTable() {
         fixupCallStacks();
-        return mTopLevelCall;
+        return mCallTable;
+    }
+
+    public Call getTopLevel() {
+        return getCallTable().getTopLevelCall();
     }
 }
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.google.common.primitives.UnsignedInts;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores the call hierarchy of a single thread in parallel primitive arrays, indexed by call.
+ * <p>
+ * Calls are laid out in breadth first order starting from the top level call at index 0, so
+ * that the callees of each call occupy a contiguous range of indices. {@link Call} instances
+ * are lightweight views over a single index, and are only created on demand.
+ */
+public class CallTable {
+    private final int mSize;
+
+    private final long[] mMethodIds;
+
+    /**
+     * Note: The thread entry and exit times are stored as unsigned integers in the trace data.
+     * In this model, they are stored as integers, but the getters for all of these time values
+     * convert them into longs.
+     */
+    private final int[] mEntryThreadTimes;
+    private final int[] mEntryGlobalTimes;
+    private final int[] mExitThreadTimes;
+    private final int[] mExitGlobalTimes;
+
+    private final long[] mInclusiveThreadTimesInCallees;
+    private final long[] mInclusiveGlobalTimesInCallees;
+
+    private final int[] mDepths;
+
+    /** Index of the first callee of each call, and the number of callees. */
+    private final int[] mFirstCallees;
+    private final int[] mCalleeCounts;
+
+    /**
+     * Indicates whether each call is recursive. A call is recursive if the same method
+     * is present in its backstack.
+     */
+    private final BitSet mRecursive;
+
+    /**
+     * Index of the first call at each stack depth. Since calls are laid out breadth first, the
+     * calls at each depth are contiguous, and sorted by their entry (and exit) times.
+     */
+    private final int[] mLevelStarts;
+
+    CallTable(int size, long[] methodIds, int[] entryThreadTimes, int[] entryGlobalTimes,
+            int[] exitThreadTimes, int[] exitGlobalTimes, int[] depths, int[] firstCallees,
+            int[] calleeCounts, BitSet recursive) {
+        mSize = size;
+        mMethodIds = methodIds;
+        mEntryThreadTimes = entryThreadTimes;
+        mEntryGlobalTimes = entryGlobalTimes;
+        mExitThreadTimes = exitThreadTimes;
+        mExitGlobalTimes = exitGlobalTimes;
+        mDepths = depths;
+        mFirstCallees = firstCallees;
+        mCalleeCounts = calleeCounts;
+        mRecursive = recursive;
+
+        mInclusiveThreadTimesInCallees = new long[size];
+        mInclusiveGlobalTimesInCallees = new long[size];
+        for (int i = 0; i < size; i++) {
+            long threadTime = 0;
+            long globalTime = 0;
+            for (int c = getFirstCallee(i), end = c + getCalleeCount(i); c < end; c++) {
+                threadTime += UnsignedInts.toLong(mExitThreadTimes[c] - mEntryThreadTimes[c]);
+                globalTime += UnsignedInts.toLong(mExitGlobalTimes[c] - mEntryGlobalTimes[c]);
+            }
+            mInclusiveThreadTimesInCallees[i] = threadTime;
+            mInclusiveGlobalTimesInCallees[i] = globalTime;
+        }
+
+        int levels = size > 0 ? depths[size - 1] + 1 : 0;
+        mLevelStarts = new int[levels + 1];
+        for (int i = size - 1; i >= 0; i--) {
+            mLevelStarts[depths[i]] = i;
+        }
+        mLevelStarts[levels] = size;
+    }
+
+    /** Returns the number of calls in this table. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the call at the given index. */
+    @NonNull
+    public Call getCall(int index) {
+        return new Call(this, index);
+    }
+
+    /** Returns the single top level call under which all other calls are nested. */
+    @NonNull
+    public Call getTopLevelCall() {
+        return getCall(0);
+    }
+
+    public long getMethodId(int index) {
+        return mMethodIds[index];
+    }
+
+    public int getDepth(int index) {
+        return mDepths[index];
+    }
+
+    public boolean isRecursive(int index) {
+        return mRecursive.get(index);
+    }
+
+    /** Returns the number of distinct stack depths, i.e. the maximum depth + 1. */
+    public int getLevelCount() {
+        return mLevelStarts.length - 1;
+    }
+
+    /** Returns the index of the first call at the given stack depth. */
+    public int getLevelStart(int depth) {
+        return mLevelStarts[depth];
+    }
+
+    /** Returns the index after the last call at the given stack depth. */
+    public int getLevelEnd(int depth) {
+        return mLevelStarts[depth + 1];
+    }
+
+    /**
+     * Returns the index of the first call at the given stack depth that exits at or after the
+     * given time, or {@link #getLevelEnd(int)} if there is no such call. Calls at the same depth
+     * never overlap, so all calls that overlap a time range starting at the given time follow
+     * the returned index.
+     */
+    public int findFirstCallEndingAfter(int depth, long time, ClockType clockType,
+            TimeUnit units) {
+        long t = VmTraceData.getDefaultTimeUnits().convert(time, units);
+        int[] exitTimes = clockType == ClockType.THREAD ? mExitThreadTimes : mExitGlobalTimes;
+
+        int low = getLevelStart(depth);
+        int high = getLevelEnd(depth);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (UnsignedInts.toLong(exitTimes[mid]) < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Returns the index of the first callee of the given call. */
+    public int getFirstCallee(int index) {
+        return mFirstCallees[index];
+    }
+
+    public int getCalleeCount(int index) {
+        return mCalleeCounts[index];
+    }
+
+    @NonNull
+    public List<Call> getCallees(final int index) {
+        return new AbstractList<Call>() {
+            @Override
+            public Call get(int i) {
+                if (i < 0 || i >= size()) {
+                    throw new IndexOutOfBoundsException();
+                }
+                return getCall(getFirstCallee(index) + i);
+            }
+
+            @Override
+            public int size() {
+                return getCalleeCount(index);
+            }
+        };
+    }
+
+    public long getEntryTime(int index, ClockType clockType, TimeUnit units) {
+        long entryTime = clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mEntryThreadTimes[index]) :
+                UnsignedInts.toLong(mEntryGlobalTimes[index]);
+        return units.convert(entryTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExitTime(int index, ClockType clockType, TimeUnit units) {
+        long exitTime = clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mExitThreadTimes[index]) :
+                UnsignedInts.toLong(mExitGlobalTimes[index]);
+        return units.convert(exitTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getInclusiveTime(int index, ClockType clockType, TimeUnit units) {
+        long inclusiveTime = clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mExitThreadTimes[index] - mEntryThreadTimes[index]) :
+                UnsignedInts.toLong(mExitGlobalTimes[index] - mEntryGlobalTimes[index]);
+        return units.convert(inclusiveTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExclusiveTime(int index, ClockType clockType, TimeUnit units) {
+        long inclusiveTimeInCallees = clockType == ClockType.THREAD ?
+                mInclusiveThreadTimesInCallees[index] : mInclusiveGlobalTimesInCallees[index];
+        long exclusiveTime = getInclusiveTime(index, clockType,
+                VmTraceData.getDefaultTimeUnits()) - inclusiveTimeInCallees;
+        return units.convert(exclusiveTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    /** Writes this table in the format read by {@link #readFrom(ByteBuffer)}. */
+    void writeTo(@NonNull DataOutput out) throws IOException {
+        out.writeInt(mSize);
+        VmTraceCache.writeLongs(out, mMethodIds, mSize);
+        VmTraceCache.writeInts(out, mEntryThreadTimes, mSize);
+        VmTraceCache.writeInts(out, mEntryGlobalTimes, mSize);
+        VmTraceCache.writeInts(out, mExitThreadTimes, mSize);
+        VmTraceCache.writeInts(out, mExitGlobalTimes, mSize);
+        VmTraceCache.writeInts(out, mDepths, mSize);
+        VmTraceCache.writeInts(out, mFirstCallees, mSize);
+        VmTraceCache.writeInts(out, mCalleeCounts, mSize);
+
+        out.writeInt(mRecursive.cardinality());
+        for (int i = mRecursive.nextSetBit(0); i >= 0; i = mRecursive.nextSetBit(i + 1)) {
+            out.writeInt(i);
+        }
+    }
+
+    /** Reads a table written by {@link #writeTo(DataOutput)}. */
+    @NonNull
+    static CallTable readFrom(@NonNull ByteBuffer buffer) {
+        int size = buffer.getInt();
+        long[] methodIds = VmTraceCache.readLongs(buffer, size);
+        int[] entryThreadTimes = VmTraceCache.readInts(buffer, size);
+        int[] entryGlobalTimes = VmTraceCache.readInts(buffer, size);
+        int[] exitThreadTimes = VmTraceCache.readInts(buffer, size);
+        int[] exitGlobalTimes = VmTraceCache.readInts(buffer, size);
+        int[] depths = VmTraceCache.readInts(buffer, size);
+        int[] firstCallees = VmTraceCache.readInts(buffer, size);
+        int[] calleeCounts = VmTraceCache.readInts(buffer, size);
+
+        BitSet recursive = new BitSet(size);
+        for (int i = buffer.getInt(); i > 0; i--) {
+            recursive.set(buffer.getInt());
+        }
+
+        return new CallTable(size, methodIds, entryThreadTimes, entryGlobalTimes,
+                exitThreadTimes, exitGlobalTimes, depths, firstCallees, calleeCounts, recursive);
+    }
+
+    /**
+     * Accumulates calls in the order in which they are invoked, and lays them out into a
+     * {@link CallTable} once the entire hierarchy is known. Calls are identified by the index
+     * returned from {@link #addCall(long)}, and callees are kept in singly linked lists so that
+     * a list of calls can be moved under a different caller in constant time.
+     */
+    public static class Builder {
+        private static final int NONE = -1;
+
+        private int mSize;
+
+        private long[] mMethodIds = new long[16];
+        private int[] mEntryThreadTimes = new int[16];
+        private int[] mEntryGlobalTimes = new int[16];
+        private int[] mExitThreadTimes = new int[16];
+        private int[] mExitGlobalTimes = new int[16];
+        private int[] mFirstCallees = new int[16];
+        private int[] mLastCallees = new int[16];
+        private int[] mNextSiblings = new int[16];
+
+        /** Adds a new call with no callees and returns its index. */
+        public int addCall(long methodId) {
+            if (mSize == mMethodIds.length) {
+                int capacity = mSize * 2;
+                mMethodIds = Arrays.copyOf(mMethodIds, capacity);
+                mEntryThreadTimes = Arrays.copyOf(mEntryThreadTimes, capacity);
+                mEntryGlobalTimes = Arrays.copyOf(mEntryGlobalTimes, capacity);
+                mExitThreadTimes = Arrays.copyOf(mExitThreadTimes, capacity);
+                mExitGlobalTimes = Arrays.copyOf(mExitGlobalTimes, capacity);
+                mFirstCallees = Arrays.copyOf(mFirstCallees, capacity);
+                mLastCallees = Arrays.copyOf(mLastCallees, capacity);
+                mNextSiblings = Arrays.copyOf(mNextSiblings, capacity);
+            }
+
+            int index = mSize++;
+            mMethodIds[index] = methodId;
+            mFirstCallees[index] = NONE;
+            mLastCallees[index] = NONE;
+            mNextSiblings[index] = NONE;
+            return index;
+        }
+
+        public long getMethodId(int call) {
+            return mMethodIds[call];
+        }
+
+        public void setMethodEntryTime(int call, int threadTime, int globalTime) {
+            mEntryThreadTimes[call] = threadTime;
+            mEntryGlobalTimes[call] = globalTime;
+        }
+
+        public void setMethodExitTime(int call, int threadTime, int globalTime) {
+            mExitThreadTimes[call] = threadTime;
+            mExitGlobalTimes[call] = globalTime;
+        }
+
+        public int getMethodEntryThreadTime(int call) {
+            return mEntryThreadTimes[call];
+        }
+
+        public int getMethodEntryGlobalTime(int call) {
+            return mEntryGlobalTimes[call];
+        }
+
+        public int getMethodExitThreadTime(int call) {
+            return mExitThreadTimes[call];
+        }
+
+        public int getMethodExitGlobalTime(int call) {
+            return mExitGlobalTimes[call];
+        }
+
+        /** Returns the index of the first callee of the given call, or -1 if it has none. */
+        public int getFirstCallee(int call) {
+            return mFirstCallees[call];
+        }
+
+        /** Returns the index of the last callee of the given call, or -1 if it has none. */
+        public int getLastCallee(int call) {
+            return mLastCallees[call];
+        }
+
+        /** Returns the call invoked after the given call by the same caller, or -1. */
+        public int getNextSibling(int call) {
+            return mNextSiblings[call];
+        }
+
+        public void addCallee(int caller, int callee) {
+            addCallees(caller, callee, callee);
+        }
+
+        /**
+         * Appends the list of calls starting at {@code first} and ending at {@code last} (as
+         * linked by {@link #getNextSibling(int)}) to the callees of the given caller.
+         */
+        public void addCallees(int caller, int first, int last) {
+            if (mLastCallees[caller] == NONE) {
+                mFirstCallees[caller] = first;
+            } else {
+                mNextSiblings[mLastCallees[caller]] = first;
+            }
+            mLastCallees[caller] = last;
+        }
+
+        /** Links the given call after {@code previous} in a list of calls. */
+        public void setNextSibling(int previous, int call) {
+            mNextSiblings[previous] = call;
+        }
+
+        /** Lays out the call hierarchy rooted at the given call into a {@link CallTable}. */
+        @NonNull
+        public CallTable build(int topLevelCall) {
+            // Assign breadth first indices, so that the callees of each call are contiguous.
+            int[] order = new int[mSize];
+            int[] parents = new int[mSize];
+            int[] firstCallees = new int[mSize];
+            int[] calleeCounts = new int[mSize];
+
+            order[0] = topLevelCall;
+            parents[0] = NONE;
+            int size = 1;
+            for (int i = 0; i < size; i++) {
+                firstCallees[i] = size;
+                for (int c = mFirstCallees[order[i]]; c != NONE; c = mNextSiblings[c]) {
+                    parents[size] = i;
+                    order[size++] = c;
+                }
+                calleeCounts[i] = size - firstCallees[i];
+            }
+
+            long[] methodIds = new long[size];
+            int[] entryThreadTimes = new int[size];
+            int[] entryGlobalTimes = new int[size];
+            int[] exitThreadTimes = new int[size];
+            int[] exitGlobalTimes = new int[size];
+            int[] depths = new int[size];
+            BitSet recursive = new BitSet(size);
+
+            for (int i = 0; i < size; i++) {
+                int call = order[i];
+                methodIds[i] = mMethodIds[call];
+                entryThreadTimes[i] = mEntryThreadTimes[call];
+                entryGlobalTimes[i] = mEntryGlobalTimes[call];
+                exitThreadTimes[i] = mExitThreadTimes[call];
+                exitGlobalTimes[i] = mExitGlobalTimes[call];
+
+                if (parents[i] != NONE) {
+                    depths[i] = depths[parents[i]] + 1;
+                }
+
+                for (int p = parents[i]; p != NONE; p = parents[p]) {
+                    if (methodIds[p] == methodIds[i]) {
+                        recursive.set(i);
+                        break;
+                    }
+                }
+            }
+
+            return new CallTable(size, methodIds, entryThreadTimes, entryGlobalTimes,
+                    exitThreadTimes, exitGlobalTimes, depths, firstCallees, calleeCounts,
+                    recursive);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The top down and bottom up {@link ProfileTree}s of all the calls made in a single thread.
+ * <p>
+ * The top down tree (the calling context tree) has a node for each distinct call stack, and
+ * the bottom up tree has a node for each distinct call stack suffix, i.e. a method followed by
+ * its callers. The top down tree is built in a single pass over the thread's {@link CallTable}.
+ * The bottom up tree is built from it one level at a time, the first time it is needed, since
+ * it can be much larger than the top down tree for deep call stacks. Both aggregate the
+ * statistics of the entire trace. A {@link Selection} aggregates them over a range of time
+ * instead.
+ */
+public class CallingContextTree {
+    private final CallTable mCalls;
+
+    private final ProfileTree mTopDown;
+    /** The bottom up tree, or null if it hasn't been built yet. */
+    private ProfileTree mBottomUp;
+
+    /** The top down node of each call. */
+    private final int[] mCallNodes;
+
+    /**
+     * For each top down node, the bottom up node for the same call stack in reverse order.
+     * Every suffix of that call stack is an ancestor of that bottom up node, so statistics of
+     * a top down node are added to that node and all its ancestors.
+     */
+    private int[] mBottomUpNodes;
+
+    /**
+     * Top down nodes of recursive calls. Their inclusive time is already accounted for by an
+     * outer call of the same method, so it is not added to the bottom up tree.
+     */
+    private final BitSet mRecursiveNodes = new BitSet();
+
+    public CallingContextTree(@NonNull CallTable calls) {
+        mCalls = calls;
+
+        // Calls are laid out breadth first, so the node of each call is known by the time the
+        // call is visited.
+        mTopDown = new ProfileTree(calls.getMethodId(0));
+        mCallNodes = new int[calls.size()];
+        for (int i = 0; i < calls.size(); i++) {
+            int node = mCallNodes[i];
+            for (int c = calls.getFirstCallee(i), end = c + calls.getCalleeCount(i); c < end;
+                    c++) {
+                mCallNodes[c] = mTopDown.getOrAddChild(node, calls.getMethodId(c));
+            }
+
+            for (ClockType type : ClockType.values()) {
+                mTopDown.addInclusiveTime(node, type,
+                        calls.getInclusiveTime(i, type, VmTraceData.getDefaultTimeUnits()));
+                mTopDown.addExclusiveTime(node, type,
+                        calls.getExclusiveTime(i, type, VmTraceData.getDefaultTimeUnits()));
+            }
+            mTopDown.addInvocationCount(node, 1);
+            if (calls.isRecursive(i)) {
+                mRecursiveNodes.set(node);
+            }
+        }
+    }
+
+    /** Returns the tree of call stacks, rooted at the thread's top level call. */
+    @NonNull
+    public ProfileTree getTopDown() {
+        return mTopDown;
+    }
+
+    /** Returns the tree of reversed call stacks, with one child of the root per method. */
+    @NonNull
+    public synchronized ProfileTree getBottomUp() {
+        if (mBottomUp == null) {
+            buildBottomUp();
+        }
+        return mBottomUp;
+    }
+
+    private void buildBottomUp() {
+        // The bottom up tree shares the root of the top down tree, which stands for the
+        // entire thread.
+        mBottomUp = new ProfileTree(mTopDown.getMethodId(0));
+        mBottomUpNodes = new int[mTopDown.size()];
+        addBottomUpStats(0, 0);
+
+        // The bottom up tree is built breadth first. Each top down node n is aggregated in
+        // one bottom up node per ancestor a, for the call stack from a down to n in reverse
+        // order. The nodes for the callers of a are children of that node, so each level is
+        // built from the previous one, without walking any call stack.
+        int count = mTopDown.size() - 1;
+        int[] nodes = new int[count];
+        int[] ancestors = new int[count];
+        int[] parents = new int[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = i + 1;
+            ancestors[i] = i + 1;
+        }
+        while (count > 0) {
+            int next = 0;
+            for (int i = 0; i < count; i++) {
+                int node = nodes[i];
+                int b = mBottomUp.getOrAddChild(parents[i], mTopDown.getMethodId(ancestors[i]));
+                addBottomUpStats(node, b);
+
+                int caller = mTopDown.getParent(ancestors[i]);
+                if (caller == 0) {
+                    mBottomUpNodes[node] = b;
+                } else {
+                    nodes[next] = node;
+                    ancestors[next] = caller;
+                    parents[next] = b;
+                    next++;
+                }
+            }
+            count = next;
+        }
+    }
+
+    /** Returns the top down node that aggregates the call at the given index. */
+    public int getTopDownNode(int callIndex) {
+        return mCallNodes[callIndex];
+    }
+
+    /**
+     * Returns a new selection over this tree. Selections keep their state between calls to
+     * {@link Selection#select}, so a single selection should be reused as the range changes.
+     */
+    @NonNull
+    public Selection newSelection() {
+        return new Selection();
+    }
+
+    /** Adds the statistics of the given top down node to a single bottom up node. */
+    private void addBottomUpStats(int node, int b) {
+        boolean recursive = mRecursiveNodes.get(node);
+        for (ClockType type : ClockType.values()) {
+            mBottomUp.addExclusiveTime(b, type,
+                    mTopDown.getExclusiveTime(node, type, VmTraceData.getDefaultTimeUnits()));
+            if (!recursive) {
+                mBottomUp.addInclusiveTime(b, type,
+                        mTopDown.getInclusiveTime(node, type, VmTraceData.getDefaultTimeUnits()));
+            }
+        }
+        mBottomUp.addInvocationCount(b, mTopDown.getInvocationCount(node));
+    }
+
+    /**
+     * Adds the statistics of the given top down node to its bottom up nodes, and records the
+     * bottom up nodes that were modified in the given selection.
+     */
+    private void addBottomUpStats(@NonNull ProfileTree topDown, int node,
+            @NonNull ProfileTree bottomUp, @NonNull Selection selection) {
+        boolean recursive = mRecursiveNodes.get(node);
+        int b = mBottomUpNodes[node];
+        do {
+            selection.touchBottomUp(b);
+
+            for (ClockType type : ClockType.values()) {
+                long exclusiveTime = topDown.getExclusiveTime(node, type,
+                        VmTraceData.getDefaultTimeUnits());
+                bottomUp.addExclusiveTime(b, type, exclusiveTime);
+                if (!recursive) {
+                    long inclusiveTime = topDown.getInclusiveTime(node, type,
+                            VmTraceData.getDefaultTimeUnits());
+                    bottomUp.addInclusiveTime(b, type, inclusiveTime);
+                }
+            }
+            bottomUp.addInvocationCount(b, topDown.getInvocationCount(node));
+
+            b = bottomUp.getParent(b);
+        } while (b > 0);
+    }
+
+    /**
+     * The statistics of the top down and bottom up trees, restricted to a range of time.
+     * Selecting a range only visits the calls that overlap that range, and the nodes that were
+     * modified by the previous selection.
+     */
+    public class Selection {
+        private final ProfileTree mTopDownSelection = new ProfileTree(mTopDown);
+        private final ProfileTree mBottomUpSelection = new ProfileTree(
+                CallingContextTree.this.getBottomUp());
+
+        /** Nodes with non zero statistics, which have to be cleared before the next selection. */
+        private final BitSet mTouchedTopDown = new BitSet();
+        private final BitSet mTouchedBottomUp = new BitSet();
+        private int[] mTouchedTopDownNodes = new int[16];
+        private int mTouchedTopDownCount;
+        private int[] mTouchedBottomUpNodes = new int[16];
+        private int mTouchedBottomUpCount;
+
+        private Selection() {
+        }
+
+        /**
+         * Aggregates the calls that overlap the given range of time, for the given clock.
+         * The time of each call is clipped to the range, and each call is counted once if it
+         * overlaps the range at all. Statistics for the other clock are left at zero.
+         */
+        public void select(long start, long end, @NonNull ClockType clockType,
+                @NonNull TimeUnit units) {
+            clear();
+
+            TimeUnit defaultUnits = VmTraceData.getDefaultTimeUnits();
+            long rangeStart = defaultUnits.convert(start, units);
+            long rangeEnd = defaultUnits.convert(end, units);
+
+            // Calls at each depth are sorted by time, and only calls that overlap the range
+            // can have callees that overlap it.
+            for (int depth = 0; depth < mCalls.getLevelCount(); depth++) {
+                int levelEnd = mCalls.getLevelEnd(depth);
+                int i = mCalls.findFirstCallEndingAfter(depth, rangeStart, clockType,
+                        defaultUnits);
+                if (i == levelEnd
+                        || mCalls.getEntryTime(i, clockType, defaultUnits) > rangeEnd) {
+                    break;
+                }
+
+                for (; i < levelEnd; i++) {
+                    long entryTime = mCalls.getEntryTime(i, clockType, defaultUnits);
+                    if (entryTime > rangeEnd) {
+                        break;
+                    }
+
+                    long exitTime = mCalls.getExitTime(i, clockType, defaultUnits);
+                    long time = Math.min(exitTime, rangeEnd) - Math.max(entryTime, rangeStart);
+                    int node = mCallNodes[i];
+                    touchTopDown(node);
+                    mTopDownSelection.addInclusiveTime(node, clockType, time);
+                    mTopDownSelection.addExclusiveTime(node, clockType, time);
+                    mTopDownSelection.addInvocationCount(node, 1);
+
+                    // The caller also overlaps the range, and its exclusive time excludes
+                    // the time spent in this call.
+                    if (depth > 0) {
+                        mTopDownSelection.addExclusiveTime(mTopDown.getParent(node), clockType,
+                                -time);
+                    }
+                }
+            }
+
+            for (int i = 0; i < mTouchedTopDownCount; i++) {
+                addBottomUpStats(mTopDownSelection, mTouchedTopDownNodes[i], mBottomUpSelection,
+                        this);
+            }
+        }
+
+        /** Returns the top down tree with statistics for the selected range. */
+        @NonNull
+        public ProfileTree getTopDown() {
+            return mTopDownSelection;
+        }
+
+        /** Returns the bottom up tree with statistics for the selected range. */
+        @NonNull
+        public ProfileTree getBottomUp() {
+            return mBottomUpSelection;
+        }
+
+        private void clear() {
+            for (int i = 0; i < mTouchedTopDownCount; i++) {
+                mTopDownSelection.clearStats(mTouchedTopDownNodes[i]);
+                mTouchedTopDown.clear(mTouchedTopDownNodes[i]);
+            }
+            for (int i = 0; i < mTouchedBottomUpCount; i++) {
+                mBottomUpSelection.clearStats(mTouchedBottomUpNodes[i]);
+                mTouchedBottomUp.clear(mTouchedBottomUpNodes[i]);
+            }
+            mTouchedTopDownCount = 0;
+            mTouchedBottomUpCount = 0;
+        }
+
+        private void touchTopDown(int node) {
+            if (!mTouchedTopDown.get(node)) {
+                mTouchedTopDown.set(node);
+                if (mTouchedTopDownCount == mTouchedTopDownNodes.length) {
+                    mTouchedTopDownNodes = Arrays.copyOf(mTouchedTopDownNodes,
+                            mTouchedTopDownCount * 2);
+                }
+                mTouchedTopDownNodes[mTouchedTopDownCount++] = node;
+            }
+        }
+
+        private void touchBottomUp(int node) {
+            if (!mTouchedBottomUp.get(node)) {
+                mTouchedBottomUp.set(node);
+                if (mTouchedBottomUpCount == mTouchedBottomUpNodes.length) {
+                    mTouchedBottomUpNodes = Arrays.copyOf(mTouchedBottomUpNodes,
+                            mTouchedBottomUpCount * 2);
+                }
+                mTouchedBottomUpNodes[mTouchedBottomUpCount++] = node;
+            }
+        }
+    }
+}
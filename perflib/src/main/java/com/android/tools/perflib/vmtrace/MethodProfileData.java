@@ -16,6 +16,7 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableMap;
@@ -23,6 +24,9 @@ import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Table;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -125,6 +129,49 @@ public class MethodProfileData {
         return stats != null ? stats.getInvocationCount() : 0;
     }
 
+    /** Writes this profile data in the format read by {@link #readFrom(ByteBuffer)}. */
+    void writeTo(@NonNull DataOutput out) throws IOException {
+        out.writeBoolean(mIsRecursive);
+
+        out.writeInt(mPerThreadCumulativeStats.size());
+        for (Map.Entry<Integer, MethodStats> entry : mPerThreadCumulativeStats.entrySet()) {
+            out.writeInt(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+
+        writeTo(out, mPerThreadStatsByCaller);
+        writeTo(out, mPerThreadStatsByCallee);
+    }
+
+    private static void writeTo(@NonNull DataOutput out,
+            @NonNull Table<Integer, Long, MethodStats> statsTable) throws IOException {
+        out.writeInt(statsTable.size());
+        for (Table.Cell<Integer, Long, MethodStats> cell : statsTable.cellSet()) {
+            out.writeInt(cell.getRowKey());
+            out.writeLong(cell.getColumnKey());
+            cell.getValue().writeTo(out);
+        }
+    }
+
+    /** Reads profile data written by {@link #writeTo(DataOutput)}. */
+    @NonNull
+    static MethodProfileData readFrom(@NonNull ByteBuffer buffer) {
+        Builder b = new Builder();
+        b.mRecursive = buffer.get() != 0;
+
+        for (int i = buffer.getInt(); i > 0; i--) {
+            b.getPerThreadStats(buffer.getInt()).readFrom(buffer);
+        }
+        for (int i = buffer.getInt(); i > 0; i--) {
+            b.getPerCallerStats(buffer.getInt(), buffer.getLong()).readFrom(buffer);
+        }
+        for (int i = buffer.getInt(); i > 0; i--) {
+            b.getPerCalleeStats(buffer.getInt(), buffer.getLong()).readFrom(buffer);
+        }
+
+        return b.build();
+    }
+
     private static class MethodStats {
         private long mInclusiveThreadTime;
         private long mExclusiveThreadTime;
@@ -147,6 +194,30 @@ public class MethodProfileData {
         private long getInvocationCount() {
             return mInvocationCount;
         }
+
+        private void writeTo(DataOutput out) throws IOException {
+            out.writeLong(mInclusiveThreadTime);
+            out.writeLong(mExclusiveThreadTime);
+            out.writeLong(mInclusiveGlobalTime);
+            out.writeLong(mExclusiveGlobalTime);
+            out.writeLong(mInvocationCount);
+        }
+
+        private void readFrom(ByteBuffer buffer) {
+            mInclusiveThreadTime = buffer.getLong();
+            mExclusiveThreadTime = buffer.getLong();
+            mInclusiveGlobalTime = buffer.getLong();
+            mExclusiveGlobalTime = buffer.getLong();
+            mInvocationCount = buffer.getLong();
+        }
+
+        private void add(MethodStats other) {
+            mInclusiveThreadTime += other.mInclusiveThreadTime;
+            mExclusiveThreadTime += other.mExclusiveThreadTime;
+            mInclusiveGlobalTime += other.mInclusiveGlobalTime;
+            mExclusiveGlobalTime += other.mExclusiveGlobalTime;
+            mInvocationCount += other.mInvocationCount;
+        }
     }
 
     public static class Builder {
@@ -171,25 +242,53 @@ public class MethodProfileData {
         private void addExclusiveTime(Call call, Call parent, ThreadInfo thread, ClockType type) {
             long time = call.getExclusiveTime(type, DATA_TIME_UNITS);
 
-            addExclusiveTime(getPerThreadStats(thread), time, type);
+            addExclusiveTime(thread.getId(), type, time);
             if (parent != null) {
-                addExclusiveTime(getPerCallerStats(thread, parent), time, type);
+                addExclusiveTimeByCaller(thread.getId(), parent.getMethodId(), type, time);
             }
         }
 
         private void addInclusiveTime(Call call, Call parent, ThreadInfo thread, ClockType type) {
             long time = call.getInclusiveTime(type, DATA_TIME_UNITS);
 
-            addInclusiveTime(getPerThreadStats(thread), time, type);
+            addInclusiveTime(thread.getId(), type, time);
             if (parent != null) {
-                addInclusiveTime(getPerCallerStats(thread, parent), time, type);
+                addInclusiveTimeByCaller(thread.getId(), parent.getMethodId(), type, time);
             }
             for (Call callee: call.getCallees()) {
-                addInclusiveTime(getPerCalleeStats(thread, callee),
-                        callee.getInclusiveTime(type, DATA_TIME_UNITS), type);
+                addInclusiveTimeByCallee(thread.getId(), callee.getMethodId(), type,
+                        callee.getInclusiveTime(type, DATA_TIME_UNITS));
             }
         }
 
+        /** Adds to the exclusive time (in nanoseconds) of this method in the given thread. */
+        public void addExclusiveTime(int threadId, ClockType type, long time) {
+            addExclusiveTime(getPerThreadStats(threadId), time, type);
+        }
+
+        /** Adds to the exclusive time (in nanoseconds) of this method when called by a caller. */
+        public void addExclusiveTimeByCaller(int threadId, long callerId, ClockType type,
+                long time) {
+            addExclusiveTime(getPerCallerStats(threadId, callerId), time, type);
+        }
+
+        /** Adds to the inclusive time (in nanoseconds) of this method in the given thread. */
+        public void addInclusiveTime(int threadId, ClockType type, long time) {
+            addInclusiveTime(getPerThreadStats(threadId), time, type);
+        }
+
+        /** Adds to the inclusive time (in nanoseconds) of this method when called by a caller. */
+        public void addInclusiveTimeByCaller(int threadId, long callerId, ClockType type,
+                long time) {
+            addInclusiveTime(getPerCallerStats(threadId, callerId), time, type);
+        }
+
+        /** Adds to the inclusive time (in nanoseconds) of a callee when called from this method. */
+        public void addInclusiveTimeByCallee(int threadId, long calleeId, ClockType type,
+                long time) {
+            addInclusiveTime(getPerCalleeStats(threadId, calleeId), time, type);
+        }
+
         private void addInclusiveTime(MethodStats stats, long time, ClockType type) {
             if (type == ClockType.THREAD) {
                 stats.mInclusiveThreadTime += time;
@@ -206,23 +305,21 @@ public class MethodProfileData {
             }
         }
 
-        private MethodStats getPerThreadStats(ThreadInfo thread) {
-            MethodStats stats = mPerThreadCumulativeStats.get(thread.getId());
+        private MethodStats getPerThreadStats(int threadId) {
+            MethodStats stats = mPerThreadCumulativeStats.get(threadId);
             if (stats == null) {
                 stats = new MethodStats();
-                mPerThreadCumulativeStats.put(thread.getId(), stats);
+                mPerThreadCumulativeStats.put(threadId, stats);
             }
             return stats;
         }
 
-        private MethodStats getPerCallerStats(ThreadInfo thread, Call parent) {
-            return getMethodStatsFromTable(thread.getId(), parent.getMethodId(),
-                    mPerThreadStatsByCaller);
+        private MethodStats getPerCallerStats(int threadId, long callerId) {
+            return getMethodStatsFromTable(threadId, callerId, mPerThreadStatsByCaller);
         }
 
-        private MethodStats getPerCalleeStats(ThreadInfo thread, Call callee) {
-            return getMethodStatsFromTable(thread.getId(), callee.getMethodId(),
-                    mPerThreadStatsByCallee);
+        private MethodStats getPerCalleeStats(int threadId, long calleeId) {
+            return getMethodStatsFromTable(threadId, calleeId, mPerThreadStatsByCallee);
         }
 
         private MethodStats getMethodStatsFromTable(Integer threadId, Long methodId,
@@ -236,13 +333,42 @@ public class MethodProfileData {
         }
 
         public void incrementInvocationCount(Call c, Call parent, ThreadInfo thread) {
-            getPerThreadStats(thread).mInvocationCount++;
+            addInvocationCount(thread.getId(), 1);
             if (parent != null) {
-                getPerCallerStats(thread, parent).mInvocationCount++;
+                addInvocationCountByCaller(thread.getId(), parent.getMethodId(), 1);
             }
             for (Call callee: c.getCallees()) {
-                getPerCalleeStats(thread, callee).mInvocationCount++;
+                addInvocationCountByCallee(thread.getId(), callee.getMethodId(), 1);
+            }
+        }
+
+        public void addInvocationCount(int threadId, long count) {
+            getPerThreadStats(threadId).mInvocationCount += count;
+        }
+
+        public void addInvocationCountByCaller(int threadId, long callerId, long count) {
+            getPerCallerStats(threadId, callerId).mInvocationCount += count;
+        }
+
+        public void addInvocationCountByCallee(int threadId, long calleeId, long count) {
+            getPerCalleeStats(threadId, calleeId).mInvocationCount += count;
+        }
+
+        /** Adds all the stats accumulated by the given builder to this builder. */
+        public void merge(Builder other) {
+            for (Map.Entry<Integer, MethodStats> entry :
+                    other.mPerThreadCumulativeStats.entrySet()) {
+                getPerThreadStats(entry.getKey()).add(entry.getValue());
+            }
+            for (Table.Cell<Integer, Long, MethodStats> cell :
+                    other.mPerThreadStatsByCaller.cellSet()) {
+                getPerCallerStats(cell.getRowKey(), cell.getColumnKey()).add(cell.getValue());
+            }
+            for (Table.Cell<Integer, Long, MethodStats> cell :
+                    other.mPerThreadStatsByCallee.cellSet()) {
+                getPerCalleeStats(cell.getRowKey(), cell.getColumnKey()).add(cell.getValue());
             }
+            mRecursive |= other.mRecursive;
         }
 
         public MethodProfileData build() {
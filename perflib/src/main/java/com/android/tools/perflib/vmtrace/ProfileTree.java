@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A tree of methods, where each node aggregates the timing statistics of all the calls
+ * made in a given context. In a top down tree, the path from the root to a node is the call
+ * stack of those calls; in a bottom up tree, it is the call stack in reverse order.
+ * <p>
+ * Nodes are identified by their index, with the root at index 0. All times are stored in
+ * {@link VmTraceData#getDefaultTimeUnits()}.
+ */
+public class ProfileTree {
+    private static final int NONE = -1;
+
+    private int mSize;
+
+    private long[] mMethodIds = new long[16];
+    private int[] mParents = new int[16];
+    private int[] mFirstChildren = new int[16];
+    private int[] mLastChildren = new int[16];
+    private int[] mNextSiblings = new int[16];
+
+    private long[] mInclusiveThreadTimes = new long[16];
+    private long[] mInclusiveGlobalTimes = new long[16];
+    private long[] mExclusiveThreadTimes = new long[16];
+    private long[] mExclusiveGlobalTimes = new long[16];
+    private long[] mInvocationCounts = new long[16];
+
+    /**
+     * Open addressing hash table from (parent node, method id) to the child of the parent for
+     * that method. Method ids read from a trace are 32 bits wide, so both are packed into a
+     * single key. Empty slots have a {@link #NONE} child.
+     */
+    private long[] mChildKeys = new long[32];
+    private int[] mChildNodes = newChildNodes(32);
+
+    ProfileTree(long rootMethodId) {
+        addNode(NONE, rootMethodId);
+    }
+
+    /**
+     * Creates a tree with the same nodes as the given tree, but with no statistics. The nodes
+     * of the given tree must not change anymore.
+     */
+    ProfileTree(@NonNull ProfileTree tree) {
+        mSize = tree.mSize;
+        mMethodIds = tree.mMethodIds;
+        mParents = tree.mParents;
+        mFirstChildren = tree.mFirstChildren;
+        mLastChildren = tree.mLastChildren;
+        mNextSiblings = tree.mNextSiblings;
+        mChildKeys = tree.mChildKeys;
+        mChildNodes = tree.mChildNodes;
+
+        mInclusiveThreadTimes = new long[mSize];
+        mInclusiveGlobalTimes = new long[mSize];
+        mExclusiveThreadTimes = new long[mSize];
+        mExclusiveGlobalTimes = new long[mSize];
+        mInvocationCounts = new long[mSize];
+    }
+
+    /** Returns the number of nodes in this tree. */
+    public int size() {
+        return mSize;
+    }
+
+    public long getMethodId(int node) {
+        return mMethodIds[node];
+    }
+
+    /** Returns the parent of the given node, or -1 for the root. */
+    public int getParent(int node) {
+        return mParents[node];
+    }
+
+    /** Returns the children of the given node, in the order in which they were added. */
+    @NonNull
+    public List<Integer> getChildren(int node) {
+        List<Integer> children = Lists.newArrayList();
+        for (int c = mFirstChildren[node]; c != NONE; c = mNextSiblings[c]) {
+            children.add(c);
+        }
+        return children;
+    }
+
+    public long getInclusiveTime(int node, ClockType clockType, TimeUnit units) {
+        long time = clockType == ClockType.THREAD ?
+                mInclusiveThreadTimes[node] : mInclusiveGlobalTimes[node];
+        return units.convert(time, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExclusiveTime(int node, ClockType clockType, TimeUnit units) {
+        long time = clockType == ClockType.THREAD ?
+                mExclusiveThreadTimes[node] : mExclusiveGlobalTimes[node];
+        return units.convert(time, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getInvocationCount(int node) {
+        return mInvocationCounts[node];
+    }
+
+    /** Returns the child of the given node for the given method, adding it if necessary. */
+    int getOrAddChild(int parent, long methodId) {
+        assert (methodId >>> 32) == 0 : "Unexpected method id " + methodId;
+        long key = ((long) parent << 32) | methodId;
+        int mask = mChildKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mChildNodes[slot] != NONE) {
+            if (mChildKeys[slot] == key) {
+                return mChildNodes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int child = addNode(parent, methodId);
+        mChildKeys[slot] = key;
+        mChildNodes[slot] = child;
+
+        // Every node but the root is a child, so keep the table at most half full.
+        if (mSize * 2 > mChildKeys.length) {
+            rehash(mChildKeys.length * 2);
+        }
+        return child;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mChildKeys;
+        int[] nodes = mChildNodes;
+        mChildKeys = new long[capacity];
+        mChildNodes = newChildNodes(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (nodes[i] != NONE) {
+                int slot = hash(keys[i]) & mask;
+                while (mChildNodes[slot] != NONE) {
+                    slot = (slot + 1) & mask;
+                }
+                mChildKeys[slot] = keys[i];
+                mChildNodes[slot] = nodes[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @NonNull
+    private static int[] newChildNodes(int capacity) {
+        int[] nodes = new int[capacity];
+        Arrays.fill(nodes, NONE);
+        return nodes;
+    }
+
+    private int addNode(int parent, long methodId) {
+        if (mSize == mMethodIds.length) {
+            int capacity = mSize * 2;
+            mMethodIds = Arrays.copyOf(mMethodIds, capacity);
+            mParents = Arrays.copyOf(mParents, capacity);
+            mFirstChildren = Arrays.copyOf(mFirstChildren, capacity);
+            mLastChildren = Arrays.copyOf(mLastChildren, capacity);
+            mNextSiblings = Arrays.copyOf(mNextSiblings, capacity);
+            mInclusiveThreadTimes = Arrays.copyOf(mInclusiveThreadTimes, capacity);
+            mInclusiveGlobalTimes = Arrays.copyOf(mInclusiveGlobalTimes, capacity);
+            mExclusiveThreadTimes = Arrays.copyOf(mExclusiveThreadTimes, capacity);
+            mExclusiveGlobalTimes = Arrays.copyOf(mExclusiveGlobalTimes, capacity);
+            mInvocationCounts = Arrays.copyOf(mInvocationCounts, capacity);
+        }
+
+        int node = mSize++;
+        mMethodIds[node] = methodId;
+        mParents[node] = parent;
+        mFirstChildren[node] = NONE;
+        mLastChildren[node] = NONE;
+        mNextSiblings[node] = NONE;
+
+        if (parent != NONE) {
+            if (mFirstChildren[parent] == NONE) {
+                mFirstChildren[parent] = node;
+            } else {
+                mNextSiblings[mLastChildren[parent]] = node;
+            }
+            mLastChildren[parent] = node;
+        }
+        return node;
+    }
+
+    /** Adds to the inclusive time (in default time units) of the given node. */
+    void addInclusiveTime(int node, ClockType clockType, long time) {
+        if (clockType == ClockType.THREAD) {
+            mInclusiveThreadTimes[node] += time;
+        } else {
+            mInclusiveGlobalTimes[node] += time;
+        }
+    }
+
+    /** Adds to the exclusive time (in default time units) of the given node. */
+    void addExclusiveTime(int node, ClockType clockType, long time) {
+        if (clockType == ClockType.THREAD) {
+            mExclusiveThreadTimes[node] += time;
+        } else {
+            mExclusiveGlobalTimes[node] += time;
+        }
+    }
+
+    void addInvocationCount(int node, long count) {
+        mInvocationCounts[node] += count;
+    }
+
+    /** Resets all the statistics of the given node. */
+    void clearStats(int node) {
+        mInclusiveThreadTimes[node] = 0;
+        mInclusiveGlobalTimes[node] = 0;
+        mExclusiveThreadTimes[node] = 0;
+        mExclusiveGlobalTimes[node] = 0;
+        mInvocationCounts[node] = 0;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.SparseArray;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.UnsignedInts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link VmTraceHandler} that computes the {@link MethodProfileData} of every method directly
+ * from the stream of trace events, without reconstructing the call tree. The memory used is
+ * proportional to the stack depth of each thread and to the number of distinct methods, and
+ * not to the number of calls in the trace.
+ * <p>
+ * The statistics match the ones computed from the full call tree by {@link VmTraceParser},
+ * with one exception: when a method that was entered before tracing started exits, the calls
+ * that already completed are moved under it, but they are not re-examined for recursion.
+ */
+public class StreamingProfileDataBuilder implements VmTraceHandler {
+    /** Map from thread ids to thread names. */
+    private final SparseArray<String> mThreads = new SparseArray<String>(10);
+
+    /** Map from method id to method info. */
+    private final Map<Long, MethodInfo> mMethods = new HashMap<Long, MethodInfo>(100);
+
+    /** Map from thread id to the call stack of that thread. */
+    private final SparseArray<ThreadStack> mThreadStacks = new SparseArray<ThreadStack>(10);
+
+    /** Maps method ids to their corresponding method data builders */
+    private final Map<Long, MethodProfileData.Builder> mBuilderMap = Maps.newHashMap();
+
+    private boolean mDone;
+
+    @Override
+    public void setVersion(int version) {
+    }
+
+    @Override
+    public void setProperty(String key, String value) {
+    }
+
+    @Override
+    public void addThread(int id, String name) {
+        mThreads.put(id, name);
+    }
+
+    @Override
+    public void addMethod(long id, MethodInfo info) {
+        mMethods.put(id, info);
+    }
+
+    @Override
+    public void addMethodAction(int threadId, long methodId, TraceAction methodAction,
+            int threadTime, int globalTime) {
+        if (mDone) {
+            throw new IllegalStateException("Profile data has already been computed");
+        }
+
+        // create thread info if it doesn't exist
+        if (mThreads.get(threadId) == null) {
+            mThreads.put(threadId, String.format("Thread id: %1$d", threadId));
+        }
+
+        // create method info if it doesn't exist
+        if (mMethods.get(methodId) == null) {
+            MethodInfo info = new MethodInfo(methodId, "unknown", "unknown", "unknown",
+                    "unknown", -1);
+            mMethods.put(methodId, info);
+        }
+
+        ThreadStack stack = mThreadStacks.get(threadId);
+        if (stack == null) {
+            stack = new ThreadStack(threadId, createUniqueMethodIdForThread(threadId));
+            mThreadStacks.put(threadId, stack);
+        }
+
+        stack.addTraceAction(methodId, methodAction, threadTime, globalTime);
+    }
+
+    /** Creates the id of the top level call of a thread the same way {@link VmTraceData} does. */
+    private long createUniqueMethodIdForThread(int threadId) {
+        long id = Long.MAX_VALUE - mThreads.indexOfKey(threadId);
+        MethodInfo info = new MethodInfo(id, mThreads.get(threadId), "", "", "", 0);
+        mMethods.put(id, info);
+        return id;
+    }
+
+    /**
+     * Returns all the methods in the trace, with their profile data filled in. This finishes
+     * off all the calls that are still on a thread's call stack, so no further trace actions
+     * can be added once this has been called.
+     */
+    @NonNull
+    public Map<Long, MethodInfo> getMethods() {
+        if (!mDone) {
+            mDone = true;
+            for (int i = 0; i < mThreadStacks.size(); i++) {
+                mThreadStacks.valueAt(i).finish();
+            }
+
+            for (Map.Entry<Long, MethodProfileData.Builder> entry : mBuilderMap.entrySet()) {
+                mMethods.get(entry.getKey()).setProfileData(entry.getValue().build());
+            }
+        }
+
+        return mMethods;
+    }
+
+    /** Returns all the threads in the trace. Call trees are not available in streaming mode. */
+    @NonNull
+    public List<ThreadInfo> getThreads() {
+        List<ThreadInfo> threads = new ArrayList<ThreadInfo>(mThreads.size());
+        for (int i = 0; i < mThreads.size(); i++) {
+            threads.add(new ThreadInfo(mThreads.keyAt(i), mThreads.valueAt(i), null));
+        }
+        return threads;
+    }
+
+    @NonNull
+    private MethodProfileData.Builder getProfileDataBuilder(long methodId) {
+        MethodProfileData.Builder builder = mBuilderMap.get(methodId);
+        if (builder == null) {
+            builder = new MethodProfileData.Builder();
+            mBuilderMap.put(methodId, builder);
+        }
+        return builder;
+    }
+
+    private static long toDataTime(long time) {
+        return TimeUnit.NANOSECONDS.convert(time, VmTraceData.getDefaultTimeUnits());
+    }
+
+    /** A method invocation that is currently on the call stack. */
+    private static class Frame {
+        private long mMethodId;
+        private int mEntryThreadTime;
+        private int mEntryGlobalTime;
+        private boolean mIsRecursive;
+
+        /** Sum of the inclusive times of all completed callees. */
+        private long mCalleeThreadTime;
+        private long mCalleeGlobalTime;
+
+        private boolean mHasCallees;
+        private int mFirstCalleeEntryThreadTime;
+        private int mFirstCalleeEntryGlobalTime;
+        private int mLastCalleeExitThreadTime;
+        private int mLastCalleeExitGlobalTime;
+
+        public void reset(long methodId, int entryThreadTime, int entryGlobalTime,
+                boolean isRecursive) {
+            mMethodId = methodId;
+            mEntryThreadTime = entryThreadTime;
+            mEntryGlobalTime = entryGlobalTime;
+            mIsRecursive = isRecursive;
+            clearCallees();
+        }
+
+        public void clearCallees() {
+            mCalleeThreadTime = 0;
+            mCalleeGlobalTime = 0;
+            mHasCallees = false;
+        }
+
+        public void addCallee(Frame callee, long inclusiveThreadTime, long inclusiveGlobalTime,
+                int exitThreadTime, int exitGlobalTime) {
+            mCalleeThreadTime += inclusiveThreadTime;
+            mCalleeGlobalTime += inclusiveGlobalTime;
+            if (!mHasCallees) {
+                mFirstCalleeEntryThreadTime = callee.mEntryThreadTime;
+                mFirstCalleeEntryGlobalTime = callee.mEntryGlobalTime;
+                mHasCallees = true;
+            }
+            mLastCalleeExitThreadTime = exitThreadTime;
+            mLastCalleeExitGlobalTime = exitGlobalTime;
+        }
+    }
+
+    /** Aggregated stats (in nanoseconds) of completed calls whose caller is not known yet. */
+    private static class TopLevelStats {
+        private long mInclusiveThreadTime;
+        private long mInclusiveGlobalTime;
+        private long mExclusiveThreadTime;
+        private long mExclusiveGlobalTime;
+        private long mInvocationCount;
+    }
+
+    /**
+     * Tracks the call stack of a single thread, following the same rules as
+     * {@link CallStackReconstructor}, and records the stats of each call as soon as it exits.
+     */
+    private class ThreadStack {
+        private final int mThreadId;
+
+        /** Method id corresponding to the top level call under which all calls are nested. */
+        private final long mTopLevelCallId;
+
+        /** Current call stack. Frames are reused as the stack grows and shrinks. */
+        private final List<Frame> mFrames = new ArrayList<Frame>();
+        private int mDepth;
+
+        /**
+         * Summary of the calls at stack depth 0. Their caller only becomes known when either a
+         * method entered before tracing started exits, or the trace ends.
+         */
+        private final Frame mTopLevel = new Frame();
+        private final Map<Long, TopLevelStats> mTopLevelStats = Maps.newHashMap();
+
+        /** Frame for methods that exit without having been entered. */
+        private final Frame mUnmatchedExit = new Frame();
+
+        public ThreadStack(int threadId, long topLevelCallId) {
+            mThreadId = threadId;
+            mTopLevelCallId = topLevelCallId;
+        }
+
+        public void addTraceAction(long methodId, TraceAction action, int threadTime,
+                int globalTime) {
+            if (action == TraceAction.METHOD_ENTER) {
+                enterMethod(methodId, threadTime, globalTime);
+            } else {
+                exitMethod(methodId, threadTime, globalTime);
+            }
+        }
+
+        private void enterMethod(long methodId, int threadTime, int globalTime) {
+            boolean isRecursive = false;
+            for (int i = 0; i < mDepth; i++) {
+                if (mFrames.get(i).mMethodId == methodId) {
+                    isRecursive = true;
+                    break;
+                }
+            }
+
+            if (mDepth == mFrames.size()) {
+                mFrames.add(new Frame());
+            }
+            mFrames.get(mDepth++).reset(methodId, threadTime, globalTime, isRecursive);
+        }
+
+        private void exitMethod(long methodId, int threadTime, int globalTime) {
+            if (mDepth > 0) {
+                Frame f = mFrames.get(mDepth - 1);
+                if (f.mMethodId != methodId) {
+                    String msg = String
+                            .format("Error during call stack reconstruction. Attempt to exit from method 0x%1$x while in method 0x%2$x",
+                                    f.mMethodId, methodId);
+                    throw new RuntimeException(msg);
+                }
+
+                mDepth--;
+                exitFrame(f, threadTime, globalTime);
+            } else {
+                // We are exiting out of a method that was entered into before tracing was
+                // started. All the previous calls at the top level are now assumed to have been
+                // called from this method, and its entry time is guessed from theirs.
+                Frame f = mUnmatchedExit;
+                if (mTopLevel.mHasCallees) {
+                    f.reset(methodId,
+                            Math.max(mTopLevel.mFirstCalleeEntryThreadTime - 1, 0),
+                            Math.max(mTopLevel.mFirstCalleeEntryGlobalTime - 1, 0), false);
+                    f.mCalleeThreadTime = mTopLevel.mCalleeThreadTime;
+                    f.mCalleeGlobalTime = mTopLevel.mCalleeGlobalTime;
+                    f.mHasCallees = true;
+                } else {
+                    f.reset(methodId, threadTime - 1, globalTime - 1, false);
+                }
+
+                flushTopLevelStats(methodId);
+                exitFrame(f, threadTime, globalTime);
+            }
+        }
+
+        private void exitFrame(Frame f, int exitThreadTime, int exitGlobalTime) {
+            long inclusiveThreadTime = UnsignedInts.toLong(exitThreadTime - f.mEntryThreadTime);
+            long inclusiveGlobalTime = UnsignedInts.toLong(exitGlobalTime - f.mEntryGlobalTime);
+            long exclusiveThreadTime = toDataTime(inclusiveThreadTime - f.mCalleeThreadTime);
+            long exclusiveGlobalTime = toDataTime(inclusiveGlobalTime - f.mCalleeGlobalTime);
+
+            MethodProfileData.Builder builder = getProfileDataBuilder(f.mMethodId);
+            builder.addExclusiveTime(mThreadId, ClockType.THREAD, exclusiveThreadTime);
+            builder.addExclusiveTime(mThreadId, ClockType.GLOBAL, exclusiveGlobalTime);
+            if (f.mIsRecursive) {
+                builder.setRecursive();
+            } else {
+                builder.addInclusiveTime(mThreadId, ClockType.THREAD,
+                        toDataTime(inclusiveThreadTime));
+                builder.addInclusiveTime(mThreadId, ClockType.GLOBAL,
+                        toDataTime(inclusiveGlobalTime));
+            }
+            builder.addInvocationCount(mThreadId, 1);
+
+            Frame parent;
+            if (mDepth > 0) {
+                parent = mFrames.get(mDepth - 1);
+
+                builder.addExclusiveTimeByCaller(mThreadId, parent.mMethodId, ClockType.THREAD,
+                        exclusiveThreadTime);
+                builder.addExclusiveTimeByCaller(mThreadId, parent.mMethodId, ClockType.GLOBAL,
+                        exclusiveGlobalTime);
+                if (!f.mIsRecursive) {
+                    builder.addInclusiveTimeByCaller(mThreadId, parent.mMethodId,
+                            ClockType.THREAD, toDataTime(inclusiveThreadTime));
+                    builder.addInclusiveTimeByCaller(mThreadId, parent.mMethodId,
+                            ClockType.GLOBAL, toDataTime(inclusiveGlobalTime));
+                }
+                builder.addInvocationCountByCaller(mThreadId, parent.mMethodId, 1);
+
+                MethodProfileData.Builder parentBuilder = getProfileDataBuilder(parent.mMethodId);
+                if (!parent.mIsRecursive) {
+                    parentBuilder.addInclusiveTimeByCallee(mThreadId, f.mMethodId,
+                            ClockType.THREAD, toDataTime(inclusiveThreadTime));
+                    parentBuilder.addInclusiveTimeByCallee(mThreadId, f.mMethodId,
+                            ClockType.GLOBAL, toDataTime(inclusiveGlobalTime));
+                }
+                parentBuilder.addInvocationCountByCallee(mThreadId, f.mMethodId, 1);
+            } else {
+                parent = mTopLevel;
+
+                TopLevelStats stats = mTopLevelStats.get(f.mMethodId);
+                if (stats == null) {
+                    stats = new TopLevelStats();
+                    mTopLevelStats.put(f.mMethodId, stats);
+                }
+                stats.mExclusiveThreadTime += exclusiveThreadTime;
+                stats.mExclusiveGlobalTime += exclusiveGlobalTime;
+                if (!f.mIsRecursive) {
+                    stats.mInclusiveThreadTime += toDataTime(inclusiveThreadTime);
+                    stats.mInclusiveGlobalTime += toDataTime(inclusiveGlobalTime);
+                }
+                stats.mInvocationCount++;
+            }
+
+            parent.addCallee(f, inclusiveThreadTime, inclusiveGlobalTime, exitThreadTime,
+                    exitGlobalTime);
+        }
+
+        /**
+         * Attributes all the calls currently at the top level to the given caller. If the
+         * caller is null, the calls are at the root of the thread and have no caller.
+         */
+        private void flushTopLevelStats(@Nullable Long callerId) {
+            if (callerId != null) {
+                MethodProfileData.Builder callerBuilder = getProfileDataBuilder(callerId);
+                for (Map.Entry<Long, TopLevelStats> entry : mTopLevelStats.entrySet()) {
+                    long methodId = entry.getKey();
+                    TopLevelStats stats = entry.getValue();
+
+                    MethodProfileData.Builder builder = getProfileDataBuilder(methodId);
+                    builder.addExclusiveTimeByCaller(mThreadId, callerId, ClockType.THREAD,
+                            stats.mExclusiveThreadTime);
+                    builder.addExclusiveTimeByCaller(mThreadId, callerId, ClockType.GLOBAL,
+                            stats.mExclusiveGlobalTime);
+                    builder.addInclusiveTimeByCaller(mThreadId, callerId, ClockType.THREAD,
+                            stats.mInclusiveThreadTime);
+                    builder.addInclusiveTimeByCaller(mThreadId, callerId, ClockType.GLOBAL,
+                            stats.mInclusiveGlobalTime);
+                    builder.addInvocationCountByCaller(mThreadId, callerId,
+                            stats.mInvocationCount);
+
+                    callerBuilder.addInclusiveTimeByCallee(mThreadId, methodId, ClockType.THREAD,
+                            stats.mInclusiveThreadTime);
+                    callerBuilder.addInclusiveTimeByCallee(mThreadId, methodId, ClockType.GLOBAL,
+                            stats.mInclusiveGlobalTime);
+                    callerBuilder.addInvocationCountByCallee(mThreadId, methodId,
+                            stats.mInvocationCount);
+                }
+            }
+
+            mTopLevelStats.clear();
+            mTopLevel.clearCallees();
+        }
+
+        /** Exits all the methods still on the stack, and nests everything under the top level. */
+        public void finish() {
+            // If there are any methods still on the call stack, then the trace doesn't have
+            // exit trace action for them. Assume that they exited 1 unit of time after their
+            // last callee exited, or after they were entered if they have no callees.
+            while (mDepth > 0) {
+                Frame f = mFrames.get(mDepth - 1);
+                if (f.mHasCallees) {
+                    exitMethod(f.mMethodId, f.mLastCalleeExitThreadTime + 1,
+                            f.mLastCalleeExitGlobalTime + 1);
+                } else {
+                    exitMethod(f.mMethodId, f.mEntryThreadTime + 1, f.mEntryGlobalTime + 1);
+                }
+            }
+
+            // Now move everything under a single top level call.
+            if (mTopLevel.mHasCallees) {
+                exitMethod(mTopLevelCallId, mTopLevel.mLastCalleeExitThreadTime + 1,
+                        mTopLevel.mLastCalleeExitGlobalTime + 1);
+            } else {
+                exitMethod(mTopLevelCallId, 1, 1);
+            }
+
+            flushTopLevelStats(null);
+        }
+    }
+}
@@ -26,13 +26,16 @@ public class ThreadInfo {
     /** Thread name */
     private final String mName;
 
-    /** Top level call in this thread */
-    private final Call mTopLevelCall;
+    /** All the calls made in this thread */
+    private final CallTable mCallTable;
 
-    public ThreadInfo(int threadId, @NonNull String name, @Nullable Call topLevelCall) {
+    /** Aggregated views of the calls made in this thread, built on demand. */
+    private CallingContextTree mCallingContextTree;
+
+    public ThreadInfo(int threadId, @NonNull String name, @Nullable CallTable callTable) {
         mId = threadId;
         mName = name;
-        mTopLevelCall = topLevelCall;
+        mCallTable = callTable;
     }
 
     public int getId() {
@@ -46,6 +49,21 @@ public class ThreadInfo {
 
     @Nullable
     public Call getTopLevelCall() {
-        return mTopLevelCall;
+        return mCallTable != null ? mCallTable.getTopLevelCall() : null;
+    }
+
+    /** Returns the table holding all the calls made in this thread. */
+    @Nullable
+    public CallTable getCallTable() {
+        return mCallTable;
+    }
+
+    /** Returns the top down and bottom up trees of the calls made in this thread. */
+    @Nullable
+    public synchronized CallingContextTree getCallingContextTree() {
+        if (mCallingContextTree == null && mCallTable != null) {
+            mCallingContextTree = new CallingContextTree(mCallTable);
+        }
+        return mCallingContextTree;
     }
 }
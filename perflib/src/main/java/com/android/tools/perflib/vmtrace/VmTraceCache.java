@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * A binary file stored next to a trace file, holding the {@link VmTraceData} computed from
+ * that trace: the thread and method tables, the call table of each thread, and the profile
+ * data of each method. Loading the cache avoids parsing the trace and recomputing the timing
+ * statistics each time the same trace is opened.
+ * <p>
+ * The cache records the length and modification time of the trace it was computed from, and
+ * is ignored if either of them has changed, or if it was written in a different format.
+ */
+class VmTraceCache {
+    private static final int CACHE_MAGIC = 0x56544d43; // 'VTMC'
+
+    /** Version of the cache format. This must be incremented whenever the format changes. */
+    private static final int CACHE_VERSION = 1;
+
+    private static final String CACHE_FILE_SUFFIX = ".cache";
+
+    private final File mCacheFile;
+
+    private final long mTraceLength;
+    private final long mTraceLastModified;
+
+    /**
+     * Creates a cache for the given trace. The state of the trace is recorded at this point,
+     * so that the cache is invalidated if the trace changes while it is being parsed.
+     */
+    VmTraceCache(@NonNull File traceFile) {
+        mCacheFile = getCacheFile(traceFile);
+        mTraceLength = traceFile.length();
+        mTraceLastModified = traceFile.lastModified();
+    }
+
+    @NonNull
+    static File getCacheFile(@NonNull File traceFile) {
+        return new File(traceFile.getPath() + CACHE_FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the trace data stored in the cache, or null if there is no cache or if it is not
+     * up to date with the trace.
+     */
+    @Nullable
+    VmTraceData read() {
+        if (!mCacheFile.isFile()) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer;
+            FileInputStream in = new FileInputStream(mCacheFile);
+            try {
+                FileChannel fc = in.getChannel();
+                buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            } finally {
+                in.close();
+            }
+            return read(buffer);
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // The cache is truncated or corrupt, it will be rewritten once the trace is parsed.
+            return null;
+        }
+    }
+
+    @Nullable
+    private VmTraceData read(@NonNull ByteBuffer buffer) {
+        if (buffer.getInt() != CACHE_MAGIC
+                || buffer.getInt() != CACHE_VERSION
+                || buffer.getLong() != mTraceLength
+                || buffer.getLong() != mTraceLastModified) {
+            return null;
+        }
+
+        VmTraceData.Builder builder = new VmTraceData.Builder();
+        builder.setVersion(buffer.getInt());
+        builder.setDataFileOverflow(buffer.get() != 0);
+        builder.setVmClockType(VmTraceData.VmClockType.values()[buffer.getInt()]);
+        builder.setVm(readString(buffer));
+        for (int i = buffer.getInt(); i > 0; i--) {
+            builder.setProperty(readString(buffer), readString(buffer));
+        }
+
+        for (int i = buffer.getInt(); i > 0; i--) {
+            int id = buffer.getInt();
+            builder.addThread(id, readString(buffer));
+            if (buffer.get() != 0) {
+                builder.setCallTable(id, CallTable.readFrom(buffer));
+            }
+        }
+
+        for (int i = buffer.getInt(); i > 0; i--) {
+            long id = buffer.getLong();
+            MethodInfo info = new MethodInfo(id, readString(buffer), readString(buffer),
+                    readString(buffer), readString(buffer), buffer.getInt());
+            if (buffer.get() != 0) {
+                info.setProfileData(MethodProfileData.readFrom(buffer));
+            }
+            builder.addMethod(id, info);
+        }
+
+        return builder.build();
+    }
+
+    /** Stores the given trace data, which must have been computed from this cache's trace. */
+    void write(@NonNull VmTraceData data) throws IOException {
+        // Write to a temporary file first, so that a partially written cache is never read.
+        File tmpFile = new File(mCacheFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        boolean threw = true;
+        try {
+            write(out, data);
+            threw = false;
+        } finally {
+            Closeables.close(out, threw);
+        }
+
+        if (mCacheFile.exists() && !mCacheFile.delete() || !tmpFile.renameTo(mCacheFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to write " + mCacheFile.getPath());
+        }
+    }
+
+    private void write(@NonNull DataOutput out, @NonNull VmTraceData data) throws IOException {
+        out.writeInt(CACHE_MAGIC);
+        out.writeInt(CACHE_VERSION);
+        out.writeLong(mTraceLength);
+        out.writeLong(mTraceLastModified);
+
+        out.writeInt(data.getVersion());
+        out.writeBoolean(data.isDataFileOverflow());
+        out.writeInt(data.getVmClockType().ordinal());
+        writeString(out, data.getVm());
+        Map<String, String> properties = data.getTraceProperties();
+        out.writeInt(properties.size());
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+
+        out.writeInt(data.getThreads().size());
+        for (ThreadInfo thread : data.getThreads()) {
+            out.writeInt(thread.getId());
+            writeString(out, thread.getName());
+            CallTable callTable = thread.getCallTable();
+            out.writeBoolean(callTable != null);
+            if (callTable != null) {
+                callTable.writeTo(out);
+            }
+        }
+
+        Map<Long, MethodInfo> methods = data.getMethods();
+        out.writeInt(methods.size());
+        for (MethodInfo info : methods.values()) {
+            out.writeLong(info.id);
+            writeString(out, info.className);
+            writeString(out, info.methodName);
+            writeString(out, info.signature);
+            writeString(out, info.srcPath);
+            out.writeInt(info.srcLineNumber);
+            MethodProfileData profileData = info.getProfileData();
+            out.writeBoolean(profileData != null);
+            if (profileData != null) {
+                profileData.writeTo(out);
+            }
+        }
+    }
+
+    private static void writeString(@NonNull DataOutput out, @Nullable String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    static void writeInts(@NonNull DataOutput out, @NonNull int[] values, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    static void writeLongs(@NonNull DataOutput out, @NonNull long[] values, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    @NonNull
+    static int[] readInts(@NonNull ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    @NonNull
+    static long[] readLongs(@NonNull ByteBuffer buffer, int count) {
+        long[] values = new long[count];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + count * 8);
+        return values;
+    }
+}
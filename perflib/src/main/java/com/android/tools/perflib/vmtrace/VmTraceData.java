@@ -16,22 +16,29 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.android.annotations.NonNull;
 import com.android.utils.SparseArray;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -77,7 +84,7 @@ public class VmTraceData {
                 name = String.format("%1$s-%2$d", name, id);
             }
 
-            info = new ThreadInfo(id, name, b.mTopLevelCalls.get(id));
+            info = new ThreadInfo(id, name, b.mCallTables.get(id));
             mThreadInfo.put(name, info);
         }
     }
@@ -173,8 +180,8 @@ public class VmTraceData {
         Set<MethodInfo> methods = new HashSet<MethodInfo>();
         Set<Call> calls = new HashSet<Call>();
 
-        Call topLevelCall = getThread(thread.getName()).getTopLevelCall();
-        if (topLevelCall == null) {
+        CallTable callTable = getThread(thread.getName()).getCallTable();
+        if (callTable == null) {
             // no matches
             return new SearchResult(methods, calls);
         }
@@ -193,19 +200,17 @@ public class VmTraceData {
         }
 
         // Find all invocations of the matched methods
-        Iterator<Call> iterator = topLevelCall.getCallHierarchyIterator();
-        while (iterator.hasNext()) {
-            Call c = iterator.next();
-            MethodInfo method = getMethod(c.getMethodId());
+        for (int i = 0; i < callTable.size(); i++) {
+            MethodInfo method = getMethod(callTable.getMethodId(i));
             if (methods.contains(method)) {
-                calls.add(c);
+                calls.add(callTable.getCall(i));
             }
         }
 
         return new SearchResult(methods, calls);
     }
 
-    public static class Builder {
+    public static class Builder implements VmTraceHandler {
         private static final boolean DEBUG = false;
 
         private int mVersion;
@@ -220,13 +225,18 @@ public class VmTraceData {
         /** Map from method id to method info. */
         private final Map<Long,MethodInfo> mMethods = new HashMap<Long, MethodInfo>(100);
 
-        /** Map from thread id to per thread stack call reconstructor. */
-        private final SparseArray<CallStackReconstructor> mStackReconstructors
-                = new SparseArray<CallStackReconstructor>(10);
+        /**
+         * Map from thread id to the trace actions of that thread. Call stacks are only
+         * reconstructed once all the actions are known, so that threads can be processed
+         * in parallel.
+         */
+        private final SparseArray<ThreadTraceActions> mTraceActions
+                = new SparseArray<ThreadTraceActions>(10);
 
-        /** Map from thread id to the top level call for that thread. */
-        private final SparseArray<Call> mTopLevelCalls = new SparseArray<Call>(10);
+        /** Map from thread id to the table of calls made in that thread. */
+        private final SparseArray<CallTable> mCallTables = new SparseArray<CallTable>(10);
 
+        @Override
         public void setVersion(int version) {
             mVersion = version;
         }
@@ -247,22 +257,47 @@ public class VmTraceData {
             return mVmClockType;
         }
 
+        @Override
         public void setProperty(String key, String value) {
-            mProperties.put(key, value);
+            if (key.equals(VmTraceParser.KEY_CLOCK)) {
+                VmClockType clockType = VmTraceParser.parseClockType(value);
+                if (clockType != null) {
+                    mVmClockType = clockType;
+                }
+            } else if (key.equals(VmTraceParser.KEY_DATA_OVERFLOW)) {
+                mDataFileOverflow = Boolean.parseBoolean(value);
+            } else if (key.equals(VmTraceParser.KEY_VM)) {
+                mVm = value;
+            } else {
+                mProperties.put(key, value);
+            }
         }
 
         public void setVm(String vm) {
             mVm = vm;
         }
 
+        @Override
         public void addThread(int id, String name) {
             mThreads.put(id, name);
         }
 
+        /** Sets the table of calls made in the given thread, e.g. when read from a cache. */
+        void setCallTable(int threadId, @NonNull CallTable callTable) {
+            mCallTables.put(threadId, callTable);
+        }
+
+        /** Returns the number of threads with at least one trace action. */
+        public int getThreadCount() {
+            return mTraceActions.size();
+        }
+
+        @Override
         public void addMethod(long id, MethodInfo info) {
             mMethods.put(id, info);
         }
 
+        @Override
         public void addMethodAction(int threadId, long methodId, TraceAction methodAction,
                 int threadTime, int globalTime) {
             // create thread info if it doesn't exist
@@ -283,14 +318,14 @@ public class VmTraceData {
                         mThreads.get(threadId), methodId, methodInfo.getShortName(), methodAction);
             }
 
-            CallStackReconstructor reconstructor = mStackReconstructors.get(threadId);
-            if (reconstructor == null) {
+            ThreadTraceActions actions = mTraceActions.get(threadId);
+            if (actions == null) {
                 long topLevelCallId = createUniqueMethodIdForThread(threadId);
-                reconstructor = new CallStackReconstructor(topLevelCallId);
-                mStackReconstructors.put(threadId, reconstructor);
+                actions = new ThreadTraceActions(topLevelCallId);
+                mTraceActions.put(threadId, actions);
             }
 
-            reconstructor.addTraceAction(methodId, methodAction, threadTime, globalTime);
+            actions.add(methodId, methodAction, threadTime, globalTime);
         }
 
         private long createUniqueMethodIdForThread(int threadId) {
@@ -302,14 +337,89 @@ public class VmTraceData {
             return id;
         }
 
+        /** Builds the trace data, reconstructing the call stack of each thread in turn. */
         public VmTraceData build() {
-            for (int i = 0; i < mStackReconstructors.size(); i++) {
-                int threadId = mStackReconstructors.keyAt(i);
-                CallStackReconstructor reconstructor = mStackReconstructors.valueAt(i);
-                mTopLevelCalls.put(threadId, reconstructor.getTopLevel());
+            return build(MoreExecutors.sameThreadExecutor());
+        }
+
+        /**
+         * Builds the trace data, reconstructing the call stacks of different threads in
+         * parallel on the given executor.
+         */
+        public VmTraceData build(@NonNull ExecutorService executor) {
+            List<Future<CallTable>> callTables =
+                    Lists.newArrayListWithCapacity(mTraceActions.size());
+            for (int i = 0; i < mTraceActions.size(); i++) {
+                final ThreadTraceActions actions = mTraceActions.valueAt(i);
+                callTables.add(executor.submit(new Callable<CallTable>() {
+                    @Override
+                    public CallTable call() {
+                        return actions.reconstruct();
+                    }
+                }));
+            }
+
+            for (int i = 0; i < mTraceActions.size(); i++) {
+                mCallTables.put(mTraceActions.keyAt(i), getResult(callTables.get(i)));
             }
+            mTraceActions.clear();
 
             return new VmTraceData(this);
         }
     }
+
+    /** Waits for the given task and returns its result, rethrowing any runtime exception. */
+    static <T> T getResult(@NonNull Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** The trace actions of a single thread, in the order in which they occurred. */
+    private static class ThreadTraceActions {
+        private final long mTopLevelCallId;
+
+        private int mSize;
+        private long[] mMethodIds = new long[64];
+        private byte[] mActions = new byte[64];
+        private int[] mThreadTimes = new int[64];
+        private int[] mGlobalTimes = new int[64];
+
+        public ThreadTraceActions(long topLevelCallId) {
+            mTopLevelCallId = topLevelCallId;
+        }
+
+        public void add(long methodId, TraceAction action, int threadTime, int globalTime) {
+            if (mSize == mMethodIds.length) {
+                int capacity = mSize * 2;
+                mMethodIds = Arrays.copyOf(mMethodIds, capacity);
+                mActions = Arrays.copyOf(mActions, capacity);
+                mThreadTimes = Arrays.copyOf(mThreadTimes, capacity);
+                mGlobalTimes = Arrays.copyOf(mGlobalTimes, capacity);
+            }
+
+            mMethodIds[mSize] = methodId;
+            mActions[mSize] = (byte) action.ordinal();
+            mThreadTimes[mSize] = threadTime;
+            mGlobalTimes[mSize] = globalTime;
+            mSize++;
+        }
+
+        @NonNull
+        public CallTable reconstruct() {
+            TraceAction[] actions = TraceAction.values();
+            CallStackReconstructor reconstructor = new CallStackReconstructor(mTopLevelCallId);
+            for (int i = 0; i < mSize; i++) {
+                reconstructor.addTraceAction(mMethodIds[i], actions[mActions[i]],
+                        mThreadTimes[i], mGlobalTimes[i]);
+            }
+            return reconstructor.getCallTable();
+        }
+    }
 }
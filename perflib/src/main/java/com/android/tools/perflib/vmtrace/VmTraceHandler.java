@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+/**
+ * Callback interface for {@link VmTraceParser}. The parser reports the contents of the trace
+ * header first, followed by every trace record in the order in which they appear in the file.
+ * Implementations decide how much of the trace they retain: {@link VmTraceData.Builder}
+ * reconstructs the full call tree, while {@link StreamingProfileDataBuilder} only keeps
+ * state proportional to the stack depth of each thread.
+ */
+public interface VmTraceHandler {
+    void setVersion(int version);
+
+    /** Sets an option from the trace header, such as the clock or the vm. */
+    void setProperty(String key, String value);
+
+    void addThread(int id, String name);
+
+    void addMethod(long id, MethodInfo info);
+
+    void addMethodAction(int threadId, long methodId, TraceAction methodAction,
+            int threadTime, int globalTime);
+}
@@ -17,11 +17,14 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
 import com.google.common.primitives.UnsignedInts;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -32,8 +35,13 @@ import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 public class VmTraceParser {
@@ -44,32 +52,105 @@ public class VmTraceParser {
     private static final String HEADER_SECTION_METHODS = "*methods";
     private static final String HEADER_END = "*end";
 
-    private static final String KEY_CLOCK = "clock";
-    private static final String KEY_DATA_OVERFLOW = "data-file-overflow";
-    private static final String KEY_VM = "vm";
+    static final String KEY_CLOCK = "clock";
+    static final String KEY_DATA_OVERFLOW = "data-file-overflow";
+    static final String KEY_VM = "vm";
+
+    /**
+     * Maximum number of bytes of the data section that are mapped into memory at a time.
+     * A single mapping cannot exceed 2GB, so larger traces are walked in windows of this size.
+     */
+    private static final long MAX_DATA_WINDOW_SIZE = 256 * 1024 * 1024;
 
     private final File mTraceFile;
 
+    private final VmTraceHandler mTraceDataHandler;
+
+    /** Builder for the trace data, or null if the trace is being parsed in streaming mode. */
     private final VmTraceData.Builder mTraceDataBuilder;
     private VmTraceData mTraceData;
 
+    private boolean mCacheEnabled;
+
+    private int mVersion;
+    private VmTraceData.VmClockType mVmClockType = VmTraceData.VmClockType.THREAD_CPU;
+
+    /** Constructs a parser that builds the complete {@link VmTraceData} for the given trace. */
     public VmTraceParser(File traceFile) {
+        this(traceFile, new VmTraceData.Builder());
+    }
+
+    /**
+     * Constructs a parser that streams the contents of the given trace to the given handler.
+     * Unless the handler is a {@link VmTraceData.Builder}, nothing but the header is retained
+     * by the parser, and {@link #getTraceData()} is not available.
+     */
+    public VmTraceParser(File traceFile, @NonNull VmTraceHandler handler) {
         if (!traceFile.exists()) {
             throw new IllegalArgumentException(
                     "Trace file " + traceFile.getAbsolutePath() + " does not exist.");
         }
         mTraceFile = traceFile;
-        mTraceDataBuilder = new VmTraceData.Builder();
+        mTraceDataHandler = handler;
+        mTraceDataBuilder = handler instanceof VmTraceData.Builder ?
+                (VmTraceData.Builder) handler : null;
+    }
+
+    /**
+     * Sets whether the trace data should be cached in a binary file next to the trace file.
+     * When enabled, {@link #parse()} loads the trace data from the cache if it is up to date
+     * with the trace, and otherwise parses the trace and then rewrites the cache. Caching only
+     * applies when building a {@link VmTraceData}, and is disabled by default.
+     */
+    public void setCacheEnabled(boolean cacheEnabled) {
+        mCacheEnabled = cacheEnabled;
     }
 
     public void parse() throws IOException {
+        if (mTraceDataBuilder == null || !mCacheEnabled) {
+            parseTrace();
+            return;
+        }
+
+        VmTraceCache cache = new VmTraceCache(mTraceFile);
+        mTraceData = cache.read();
+        if (mTraceData != null) {
+            return;
+        }
+
+        parseTrace();
+        try {
+            cache.write(mTraceData);
+        } catch (IOException ignored) {
+            // the cache is only an optimization, the trace data is available regardless
+        }
+    }
+
+    private void parseTrace() throws IOException {
         long headerLength = parseHeader(mTraceFile);
-        MappedByteBuffer buffer = mapFile(mTraceFile, headerLength);
-        parseData(buffer);
-        computeTimingStatistics();
+        parseData(headerLength);
+        if (mTraceDataBuilder != null) {
+            // Call stacks and timing statistics are independent across threads, so compute
+            // them for all threads in parallel.
+            int nThreads = Math.min(Runtime.getRuntime().availableProcessors(),
+                    mTraceDataBuilder.getThreadCount());
+            ExecutorService executor = nThreads > 1 ?
+                    Executors.newFixedThreadPool(nThreads) : MoreExecutors.sameThreadExecutor();
+            try {
+                mTraceData = mTraceDataBuilder.build(executor);
+                computeTimingStatistics(executor);
+            } finally {
+                executor.shutdown();
+            }
+        }
     }
 
     public VmTraceData getTraceData() {
+        if (mTraceDataBuilder == null) {
+            throw new IllegalStateException(
+                    "Trace data is not available when parsing to a custom handler");
+        }
+
         if (mTraceData == null) {
             mTraceData = mTraceDataBuilder.build();
         }
@@ -122,7 +203,8 @@ public class VmTraceParser {
 
                 switch (mode) {
                     case PARSE_VERSION:
-                        mTraceDataBuilder.setVersion(Integer.decode(line));
+                        mVersion = Integer.decode(line);
+                        mTraceDataHandler.setVersion(mVersion);
                         mode = PARSE_OPTIONS;
                         break;
                     case PARSE_THREADS:
@@ -153,23 +235,28 @@ public class VmTraceParser {
             String value = tokens[1];
 
             if (key.equals(KEY_CLOCK)) {
-                if (value.equals("thread-cpu")) {
-                    mTraceDataBuilder.setVmClockType(VmTraceData.VmClockType.THREAD_CPU);
-                } else if (value.equals("wall")) {
-                    mTraceDataBuilder.setVmClockType(VmTraceData.VmClockType.WALL);
-                } else if (value.equals("dual")) {
-                    mTraceDataBuilder.setVmClockType(VmTraceData.VmClockType.DUAL);
+                VmTraceData.VmClockType clockType = parseClockType(value);
+                if (clockType != null) {
+                    mVmClockType = clockType;
                 }
-            } else if (key.equals(KEY_DATA_OVERFLOW)) {
-                mTraceDataBuilder.setDataFileOverflow(Boolean.parseBoolean(value));
-            } else if (key.equals(KEY_VM)) {
-                mTraceDataBuilder.setVm(value);
-            } else {
-                mTraceDataBuilder.setProperty(key, value);
             }
+
+            mTraceDataHandler.setProperty(key, value);
         }
     }
 
+    @Nullable
+    static VmTraceData.VmClockType parseClockType(String value) {
+        if (value.equals("thread-cpu")) {
+            return VmTraceData.VmClockType.THREAD_CPU;
+        } else if (value.equals("wall")) {
+            return VmTraceData.VmClockType.WALL;
+        } else if (value.equals("dual")) {
+            return VmTraceData.VmClockType.DUAL;
+        }
+        return null;
+    }
+
     /** Parses thread information comprising an integer id and the thread name */
     private void parseThread(String line) {
         int index = line.indexOf('\t');
@@ -180,7 +267,7 @@ public class VmTraceParser {
         try {
             int id = Integer.decode(line.substring(0, index));
             String name = line.substring(index).trim();
-            mTraceDataBuilder.addThread(id, name);
+            mTraceDataHandler.addThread(id, name);
         } catch (NumberFormatException ignored) {
         }
     }
@@ -215,7 +302,7 @@ public class VmTraceParser {
             }
         }
 
-        mTraceDataBuilder.addMethod(id, new MethodInfo(id, className, methodName, signature,
+        mTraceDataHandler.addMethod(id, new MethodInfo(id, className, methodName, signature,
                 pathname, lineNumber));
     }
 
@@ -232,10 +319,31 @@ public class VmTraceParser {
      * by a list of records.
      *
      * All values are stored in little-endian order.
+     *
+     * The records are mapped into memory one window at a time, so only the handler decides
+     * how much of the trace is retained.
      */
-    private void parseData(MappedByteBuffer buffer) {
-        int recordSize = readDataFileHeader(buffer);
-        parseMethodTraceData(buffer, recordSize);
+    private void parseData(long dataOffset) throws IOException {
+        FileInputStream dataFile = new FileInputStream(mTraceFile);
+        try {
+            FileChannel fc = dataFile.getChannel();
+            long size = fc.size();
+
+            MappedByteBuffer buffer = mapFile(fc, dataOffset,
+                    Math.min(size - dataOffset, MAX_DATA_WINDOW_SIZE));
+            int recordSize = readDataFileHeader(buffer);
+
+            // Align each window on a record boundary so that no record straddles two windows.
+            long windowSize = (MAX_DATA_WINDOW_SIZE / recordSize) * recordSize;
+            long offset = dataOffset + buffer.position();
+            while (offset < size) {
+                long length = Math.min(size - offset, windowSize);
+                parseMethodTraceData(mapFile(fc, offset, length), recordSize);
+                offset += length;
+            }
+        } finally {
+            dataFile.close(); // this *also* closes the associated channel, fc
+        }
     }
 
     /**
@@ -261,8 +369,8 @@ public class VmTraceParser {
     private void parseMethodTraceData(MappedByteBuffer buffer, int recordSize) {
         int methodId;
         int threadId;
-        int version = mTraceDataBuilder.getVersion();
-        VmTraceData.VmClockType vmClockType = mTraceDataBuilder.getVmClockType();
+        int version = mVersion;
+        VmTraceData.VmClockType vmClockType = mVmClockType;
         while (buffer.hasRemaining()) {
             int threadTime;
             int globalTime;
@@ -312,8 +420,8 @@ public class VmTraceParser {
             }
             methodId = methodId & ~0x03;
 
-            mTraceDataBuilder.addMethodAction(threadId, UnsignedInts.toLong(methodId), methodAction,
-                    threadTime, globalTime);
+            mTraceDataHandler.addMethodAction(threadId, UnsignedInts.toLong(methodId),
+                    methodAction, threadTime, globalTime);
         }
     }
 
@@ -339,10 +447,10 @@ public class VmTraceParser {
 
         // read version
         int version = buffer.getShort();
-        if (version != mTraceDataBuilder.getVersion()) {
+        if (version != mVersion) {
             String msg = String.format(
                     "Error: version number mismatch; got %d in data header but %d in options\n",
-                    version, mTraceData.getVersion());
+                    version, mVersion);
             throw new RuntimeException(msg);
         }
         if (version < 1 || version > 3) {
@@ -382,30 +490,36 @@ public class VmTraceParser {
         return recordSize;
     }
 
-    private MappedByteBuffer mapFile(File f, long offset) throws IOException {
-        FileInputStream dataFile = new FileInputStream(f);
-        try {
-            FileChannel fc = dataFile.getChannel();
-            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, offset,
-                    f.length() - offset);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
-            return buffer;
-        } finally {
-            dataFile.close(); // this *also* closes the associated channel, fc
-        }
+    private static MappedByteBuffer mapFile(FileChannel fc, long offset, long length)
+            throws IOException {
+        MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
     }
 
-    private void computeTimingStatistics() {
+    private void computeTimingStatistics(@NonNull ExecutorService executor) {
         VmTraceData data = getTraceData();
 
-        ProfileDataBuilder builder = new ProfileDataBuilder();
-        for (ThreadInfo thread : data.getThreads()) {
-            Call c = thread.getTopLevelCall();
-            if (c == null) {
+        List<Future<ProfileDataBuilder>> threadStats = Lists.newArrayList();
+        for (final ThreadInfo thread : data.getThreads()) {
+            final CallTable calls = thread.getCallTable();
+            if (calls == null) {
                 continue;
             }
 
-            builder.computeCallStats(c, null, thread);
+            threadStats.add(executor.submit(new Callable<ProfileDataBuilder>() {
+                @Override
+                public ProfileDataBuilder call() {
+                    ProfileDataBuilder builder = new ProfileDataBuilder();
+                    builder.computeCallStats(calls, thread.getId());
+                    return builder;
+                }
+            }));
+        }
+
+        ProfileDataBuilder builder = new ProfileDataBuilder();
+        for (Future<ProfileDataBuilder> stats : threadStats) {
+            builder.merge(VmTraceData.getResult(stats));
         }
 
         for (Long methodId : builder.getMethodsWithProfileData()) {
@@ -418,17 +532,67 @@ public class VmTraceParser {
         /** Maps method ids to their corresponding method data builders */
         private final Map<Long, MethodProfileData.Builder> mBuilderMap = Maps.newHashMap();
 
-        public void computeCallStats(Call c, Call parent, ThreadInfo thread) {
-            long methodId = c.getMethodId();
+        public void computeCallStats(CallTable calls, int threadId) {
+            if (calls.size() == 0) {
+                return;
+            }
+
+            // The callees of each call are contiguous, so visiting every call's callees
+            // visits every call other than the top level exactly once.
+            computeCallStats(calls, 0, -1, threadId);
+            for (int i = 0; i < calls.size(); i++) {
+                for (int c = calls.getFirstCallee(i), end = c + calls.getCalleeCount(i);
+                        c < end; c++) {
+                    computeCallStats(calls, c, i, threadId);
+                }
+            }
+        }
+
+        private void computeCallStats(CallTable calls, int c, int parent, int threadId) {
+            long methodId = calls.getMethodId(c);
+            long parentId = parent >= 0 ? calls.getMethodId(parent) : 0;
+            int firstCallee = calls.getFirstCallee(c);
+            int lastCallee = firstCallee + calls.getCalleeCount(c);
+            boolean recursive = calls.isRecursive(c);
+
             MethodProfileData.Builder builder = getProfileDataBuilder(methodId);
-            builder.addCallTime(c, parent, thread);
-            builder.incrementInvocationCount(c, parent, thread);
-            if (c.isRecursive()) {
+            for (ClockType type : ClockType.values()) {
+                long exclusiveTime = calls.getExclusiveTime(c, type, TimeUnit.NANOSECONDS);
+                builder.addExclusiveTime(threadId, type, exclusiveTime);
+                if (parent >= 0) {
+                    builder.addExclusiveTimeByCaller(threadId, parentId, type, exclusiveTime);
+                }
+
+                if (!recursive) {
+                    long inclusiveTime = calls.getInclusiveTime(c, type, TimeUnit.NANOSECONDS);
+                    builder.addInclusiveTime(threadId, type, inclusiveTime);
+                    if (parent >= 0) {
+                        builder.addInclusiveTimeByCaller(threadId, parentId, type, inclusiveTime);
+                    }
+                    for (int callee = firstCallee; callee < lastCallee; callee++) {
+                        builder.addInclusiveTimeByCallee(threadId, calls.getMethodId(callee),
+                                type, calls.getInclusiveTime(callee, type, TimeUnit.NANOSECONDS));
+                    }
+                }
+            }
+
+            builder.addInvocationCount(threadId, 1);
+            if (parent >= 0) {
+                builder.addInvocationCountByCaller(threadId, parentId, 1);
+            }
+            for (int callee = firstCallee; callee < lastCallee; callee++) {
+                builder.addInvocationCountByCallee(threadId, calls.getMethodId(callee), 1);
+            }
+
+            if (recursive) {
                 builder.setRecursive();
             }
+        }
 
-            for (Call callee: c.getCallees()) {
-                computeCallStats(callee, c, thread);
+        /** Adds the stats computed by another builder (typically for other threads). */
+        public void merge(@NonNull ProfileDataBuilder other) {
+            for (Map.Entry<Long, MethodProfileData.Builder> entry : other.mBuilderMap.entrySet()) {
+                getProfileDataBuilder(entry.getKey()).merge(entry.getValue());
             }
         }
 
@@ -18,19 +18,19 @@ package com.android.tools.perflib.vmtrace.viz;
 
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.vmtrace.Call;
+import com.android.tools.perflib.vmtrace.CallTable;
 import com.android.tools.perflib.vmtrace.ClockType;
 import com.android.tools.perflib.vmtrace.MethodInfo;
 import com.android.tools.perflib.vmtrace.ThreadInfo;
-import com.android.tools.perflib.vmtrace.TimeSelector;
 import com.android.tools.perflib.vmtrace.VmTraceData;
 import com.android.utils.HtmlBuilder;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
-import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 
 import static com.android.tools.perflib.vmtrace.ClockType.THREAD;
@@ -42,17 +42,21 @@ public class CallHierarchyRenderer {
     private static final int PER_LEVEL_HEIGHT_PX = 10;
     private static final int PADDING = 1;
 
+    /** Fill color for blocks of adjacent calls that are each narrower than a pixel. */
+    private static final Color MERGED_CALLS_COLOR = new Color(0xA0A0A0);
+
     private static final int TEXT_HEIGHT = 6;
     private static final int TEXT_LEFT_PADDING = 5;
 
     private final VmTraceData mTraceData;
     private final ThreadInfo mThread;
-    private final Call mTopCall;
+    private final CallTable mCalls;
     private final int mYOffset;
     private final TimeUnit mLayoutTimeUnits;
     private final RenderContext mRenderContext;
 
     private final Rectangle2D mLayout = new Rectangle2D.Double();
+    private final Rectangle2D mMergedLayout = new Rectangle2D.Double();
     private final Point2D mTmpPoint1 = new Point2D.Double();
     private final Point2D mTmpPoint2 = new Point2D.Double();
 
@@ -62,7 +66,7 @@ public class CallHierarchyRenderer {
             int yOffset, TimeUnit defaultTimeUnits, RenderContext renderContext) {
         mTraceData = vmTraceData;
         mThread = thread;
-        mTopCall = thread.getTopLevelCall();
+        mCalls = thread.getCallTable();
         mYOffset = yOffset;
         mLayoutTimeUnits = defaultTimeUnits;
         mRenderContext = renderContext;
@@ -70,41 +74,111 @@ public class CallHierarchyRenderer {
 
     /**
      * Renders the call hierarchy on a given graphics context.
-     * This essentially iterates through every single call in the hierarchy and renders it if it is
-     * visible in the current viewport.
+     * For each stack depth, this looks up the first call that is visible in the current viewport
+     * and renders calls from there on until it reaches the end of the viewport. Adjacent calls
+     * that are narrower than a pixel are merged and rendered as a single block.
      */
     public void render(Graphics2D g, AffineTransform viewPortTransform) {
         Rectangle clip = g.getClipBounds();
 
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
-
-            // obtain layout in item space
-            fillLayoutBounds(c, mLayout);
-
-            // transform based on the current viewport (scale + translate)
-            transformRect(viewPortTransform, mLayout);
+        AffineTransform inverseTransform;
+        try {
+            inverseTransform = viewPortTransform.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            return;
+        }
 
-            // no need to render if it is is not in the current viewport.
-            if (!clip.intersects(mLayout)) {
-                continue;
+        ClockType renderClock = mRenderContext.getRenderClock();
+        long startTime = getTimeAt(inverseTransform, clip.getMinX());
+
+        for (int depth = 0; depth < mCalls.getLevelCount(); depth++) {
+            boolean hasMergedCalls = false;
+
+            int end = mCalls.getLevelEnd(depth);
+            int i = mCalls.findFirstCallEndingAfter(depth, startTime, renderClock,
+                    mLayoutTimeUnits);
+            while (i < end) {
+                // obtain layout in item space
+                fillLayoutBounds(i, mLayout);
+
+                // transform based on the current viewport (scale + translate)
+                transformRect(viewPortTransform, mLayout);
+
+                // all calls at this depth are either vertically out of the viewport, or start
+                // after the viewport ends.
+                if (mLayout.getMinY() > clip.getMaxY() || mLayout.getMaxY() < clip.getMinY()
+                        || mLayout.getMinX() > clip.getMaxX()) {
+                    break;
+                }
+
+                if (mLayout.getWidth() >= 1) {
+                    if (hasMergedCalls) {
+                        renderMergedCalls(g);
+                        hasMergedCalls = false;
+                    }
+                    renderCall(g, i);
+                    i++;
+                    continue;
+                }
+
+                // The call is narrower than a pixel, so merge it with the adjacent calls.
+                double maxX = Math.max(mLayout.getMaxX(), mLayout.getMinX() + 1);
+                if (hasMergedCalls && mLayout.getMinX() <= mMergedLayout.getMaxX() + 1) {
+                    mMergedLayout.add(maxX, mLayout.getMaxY());
+                } else {
+                    if (hasMergedCalls) {
+                        renderMergedCalls(g);
+                    }
+                    mMergedLayout.setRect(mLayout.getMinX(), mLayout.getMinY(),
+                            maxX - mLayout.getMinX(), mLayout.getHeight());
+                    hasMergedCalls = true;
+                }
+
+                // Every call that ends within the next pixel is also narrower than a pixel,
+                // so skip over all of them and extend the merged block instead.
+                long nextTime = getTimeAt(inverseTransform, mMergedLayout.getMaxX() + 1);
+                int next = mCalls.findFirstCallEndingAfter(depth, nextTime, renderClock,
+                        mLayoutTimeUnits);
+                if (next > i + 1) {
+                    mMergedLayout.add(mMergedLayout.getMaxX() + 1, mMergedLayout.getMaxY());
+                    i = next;
+                } else {
+                    i++;
+                }
             }
 
-            // no need to render if it is too small (arbitrarily assumed to be < 1 px wide)
-            if (mLayout.getWidth() < 1) {
-                continue;
+            if (hasMergedCalls) {
+                renderMergedCalls(g);
             }
+        }
+    }
 
-            // obtain the fill color based on its importance
-            Color fillColor = mRenderContext.getFillColor(c, mThread);
-            g.setColor(fillColor);
-            g.fill(mLayout);
+    private void renderCall(Graphics2D g, int index) {
+        // obtain the fill color based on its importance
+        Call c = mCalls.getCall(index);
+        Color fillColor = mRenderContext.getFillColor(c, mThread);
+        g.setColor(fillColor);
+        g.fill(mLayout);
 
-            // paint its name within the rectangle if possible
-            String name = getName(c);
-            drawString(g, name, mLayout, mRenderContext.getFontColor(c, mThread));
-        }
+        // paint its name within the rectangle if possible
+        String name = getName(c);
+        drawString(g, name, mLayout, mRenderContext.getFontColor(c, mThread));
+    }
+
+    private void renderMergedCalls(Graphics2D g) {
+        g.setColor(MERGED_CALLS_COLOR);
+        g.fill(mMergedLayout);
+    }
+
+    /**
+     * Returns the time (in layout units) that corresponds to the right edge of a call at the
+     * given x coordinate in the viewport. This is the inverse of {@link #fillLayoutBounds}.
+     */
+    private long getTimeAt(AffineTransform inverseTransform, double x) {
+        mTmpPoint1.setLocation(x, 0);
+        inverseTransform.transform(mTmpPoint1, mTmpPoint1);
+        return (long) Math.floor(mTmpPoint1.getX()) + PADDING
+                + mCalls.getEntryTime(0, mRenderContext.getRenderClock(), mLayoutTimeUnits);
     }
 
     private Rectangle2D transformRect(AffineTransform viewPortTransform, Rectangle2D rect) {
@@ -148,26 +222,34 @@ public class CallHierarchyRenderer {
     }
 
     /** Fills the layout bounds corresponding to a given call in the given Rectangle object. */
-    private void fillLayoutBounds(Call c, Rectangle2D layoutBounds) {
+    private void fillLayoutBounds(int call, Rectangle2D layoutBounds) {
         ClockType renderClock = mRenderContext.getRenderClock();
-        double x = c.getEntryTime(renderClock, mLayoutTimeUnits)
-                - mTopCall.getEntryTime(renderClock, mLayoutTimeUnits)
+        double x = mCalls.getEntryTime(call, renderClock, mLayoutTimeUnits)
+                - mCalls.getEntryTime(0, renderClock, mLayoutTimeUnits)
                 + PADDING;
-        double y = c.getDepth() * PER_LEVEL_HEIGHT_PX + mYOffset + PADDING;
-        double width  = c.getInclusiveTime(renderClock, mLayoutTimeUnits) - 2 * PADDING;
+        double y = mCalls.getDepth(call) * PER_LEVEL_HEIGHT_PX + mYOffset + PADDING;
+        double width  = mCalls.getInclusiveTime(call, renderClock, mLayoutTimeUnits)
+                - 2 * PADDING;
         double height = PER_LEVEL_HEIGHT_PX - 2 * PADDING;
         layoutBounds.setRect(x, y, width, height);
     }
 
     /** Get the tooltip corresponding to given location (in item coordinates). */
     public String getToolTipFor(double x, double y) {
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
+        int depth = (int) Math.floor((y - mYOffset) / PER_LEVEL_HEIGHT_PX);
+        if (depth < 0 || depth >= mCalls.getLevelCount()) {
+            return null;
+        }
 
-            fillLayoutBounds(c, mLayout);
+        // The only call at this depth that can contain x is the first one that ends after x.
+        ClockType renderClock = mRenderContext.getRenderClock();
+        long time = (long) Math.floor(x) + PADDING
+                + mCalls.getEntryTime(0, renderClock, mLayoutTimeUnits);
+        int i = mCalls.findFirstCallEndingAfter(depth, time, renderClock, mLayoutTimeUnits);
+        if (i < mCalls.getLevelEnd(depth)) {
+            fillLayoutBounds(i, mLayout);
             if (mLayout.contains(x, y)) {
-                return formatToolTip(c);
+                return formatToolTip(mCalls.getCall(i));
             }
         }
 
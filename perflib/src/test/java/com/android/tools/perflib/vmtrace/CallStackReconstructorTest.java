@@ -77,6 +77,44 @@ public class CallStackReconstructorTest extends TestCase {
         }
     }
 
+    public void testCallTable() {
+        CallTable calls = reconstructSampleCallStack().getCallTable();
+        assertEquals(7, calls.size());
+
+        // the top level call is at index 0, and callees of each call are contiguous
+        assertEquals(0xff, calls.getMethodId(0));
+        assertEquals(2, calls.getCalleeCount(0));
+        int first = calls.getFirstCallee(0);
+        assertEquals(0x1, calls.getMethodId(first));
+        assertEquals(0x6, calls.getMethodId(first + 1));
+        assertEquals(1, calls.getDepth(first));
+
+        // call views over the same index are equal
+        assertEquals(calls.getCall(first), calls.getTopLevelCall().getCallees().get(0));
+        assertEquals(calls.getCall(first).hashCode(),
+                calls.getTopLevelCall().getCallees().get(0).hashCode());
+        assertFalse(calls.getCall(first).equals(calls.getCall(first + 1)));
+    }
+
+    public void testCallTableLevels() {
+        CallTable calls = reconstructSampleCallStack().getCallTable();
+        assertEquals(4, calls.getLevelCount());
+        assertEquals(1, calls.getLevelStart(1));
+        assertEquals(3, calls.getLevelEnd(1));
+        assertEquals(5, calls.getLevelStart(3));
+        assertEquals(7, calls.getLevelEnd(3));
+
+        // calls at depth 3 exit at 13 and 15, calls at depth 2 exit at 16 and 18
+        assertEquals(5, calls.findFirstCallEndingAfter(3, 13, ClockType.GLOBAL,
+                TimeUnit.MICROSECONDS));
+        assertEquals(6, calls.findFirstCallEndingAfter(3, 14, ClockType.GLOBAL,
+                TimeUnit.MICROSECONDS));
+        assertEquals(4, calls.findFirstCallEndingAfter(2, 17, ClockType.THREAD,
+                TimeUnit.MICROSECONDS));
+        assertEquals(calls.getLevelEnd(1), calls.findFirstCallEndingAfter(1, 23,
+                ClockType.GLOBAL, TimeUnit.MICROSECONDS));
+    }
+
     public void testInvalidTrace() {
         CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
 
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class CallingContextTreeTest extends TestCase {
+    private CallingContextTree createSampleTree() {
+        CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
+
+        reconstructor.addTraceAction(0x1, TraceAction.METHOD_ENTER, 10, 10);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_ENTER, 11, 11);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, 12, 12);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_EXIT, 13, 13);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, 14, 14);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_EXIT, 15, 15);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_EXIT, 16, 16);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, 17, 17);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_EXIT, 19, 19);
+        reconstructor.addTraceAction(0x1, TraceAction.METHOD_EXIT, 20, 20);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_ENTER, 21, 21);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_EXIT, 22, 22);
+
+        return new CallingContextTree(reconstructor.getCallTable());
+    }
+
+    public void testTopDown() {
+        ProfileTree tree = createSampleTree().getTopDown();
+
+        // 0xff -> 1 -> 2 -> 3
+        //           -> 3
+        //      -> 2
+        assertEquals(6, tree.size());
+        int n1 = findChild(tree, 0, 0x1);
+        int n12 = findChild(tree, n1, 0x2);
+        int n123 = findChild(tree, n12, 0x3);
+        int n13 = findChild(tree, n1, 0x3);
+        int n2 = findChild(tree, 0, 0x2);
+
+        // both calls to 3 from 1 -> 2 are merged into a single node
+        assertEquals(2, tree.getInvocationCount(n123));
+        assertEquals(2, getInclusiveTime(tree, n123));
+        assertEquals(5, getInclusiveTime(tree, n12));
+        assertEquals(3, getExclusiveTime(tree, n12));
+        assertEquals(10, getInclusiveTime(tree, n1));
+        assertEquals(3, getExclusiveTime(tree, n1));
+        assertEquals(2, getInclusiveTime(tree, n13));
+        assertEquals(1, getInclusiveTime(tree, n2));
+    }
+
+    public void testBottomUp() {
+        ProfileTree tree = createSampleTree().getBottomUp();
+
+        // 3 <- 2 <- 1
+        //   <- 1
+        // 2 <- 1
+        // 1
+        int n3 = findChild(tree, 0, 0x3);
+        int n32 = findChild(tree, n3, 0x2);
+        int n321 = findChild(tree, n32, 0x1);
+        int n31 = findChild(tree, n3, 0x1);
+        int n2 = findChild(tree, 0, 0x2);
+        int n1 = findChild(tree, 0, 0x1);
+
+        assertEquals(3, tree.getInvocationCount(n3));
+        assertEquals(4, getExclusiveTime(tree, n3));
+        assertEquals(2, getExclusiveTime(tree, n32));
+        assertEquals(2, getExclusiveTime(tree, n321));
+        assertEquals(2, getExclusiveTime(tree, n31));
+
+        // calls to 2 from 1 and from the top level
+        assertEquals(2, tree.getInvocationCount(n2));
+        assertEquals(6, getInclusiveTime(tree, n2));
+        assertEquals(4, getExclusiveTime(tree, n2));
+        assertEquals(1, tree.getInvocationCount(n1));
+        assertEquals(10, getInclusiveTime(tree, n1));
+    }
+
+    public void testSelection() {
+        CallingContextTree cct = createSampleTree();
+        CallingContextTree.Selection selection = cct.newSelection();
+
+        // calls overlapping [13, 17]: 1 (10-20), 2 (11-16), 3 (12-13), 3 (14-15), 3 (17-19)
+        selection.select(13, 17, ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+        ProfileTree tree = selection.getTopDown();
+        int n1 = findChild(tree, 0, 0x1);
+        int n12 = findChild(tree, n1, 0x2);
+        int n123 = findChild(tree, n12, 0x3);
+        int n13 = findChild(tree, n1, 0x3);
+        int n2 = findChild(tree, 0, 0x2);
+
+        assertEquals(4, getInclusiveTime(tree, 0));
+        assertEquals(4, getInclusiveTime(tree, n1));
+        assertEquals(1, getExclusiveTime(tree, n1));
+        assertEquals(3, getInclusiveTime(tree, n12));
+        assertEquals(2, getExclusiveTime(tree, n12));
+        assertEquals(2, tree.getInvocationCount(n123));
+        assertEquals(1, getInclusiveTime(tree, n123));
+        assertEquals(1, tree.getInvocationCount(n13));
+        assertEquals(0, getInclusiveTime(tree, n13));
+        assertEquals(0, tree.getInvocationCount(n2));
+        assertEquals(0, tree.getInclusiveTime(n1, ClockType.THREAD, TimeUnit.MICROSECONDS));
+
+        ProfileTree bottomUp = selection.getBottomUp();
+        int b3 = findChild(bottomUp, 0, 0x3);
+        assertEquals(3, bottomUp.getInvocationCount(b3));
+        assertEquals(1, getExclusiveTime(bottomUp, b3));
+
+        // statistics from the previous selection are cleared
+        selection.select(21, 22, ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+        assertEquals(0, tree.getInvocationCount(n1));
+        assertEquals(0, getInclusiveTime(tree, n12));
+        assertEquals(0, bottomUp.getInvocationCount(b3));
+        assertEquals(1, tree.getInvocationCount(n2));
+        assertEquals(1, getInclusiveTime(tree, n2));
+
+        // selecting the entire trace gives the same statistics as the full tree
+        selection.select(0, 100, ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+        ProfileTree full = cct.getTopDown();
+        for (int n = 0; n < full.size(); n++) {
+            assertEquals(full.getInvocationCount(n), tree.getInvocationCount(n));
+            assertEquals(getInclusiveTime(full, n), getInclusiveTime(tree, n));
+            assertEquals(getExclusiveTime(full, n), getExclusiveTime(tree, n));
+        }
+    }
+
+    public void testBottomUpOfDeepStacks() {
+        // Random call stacks, deep enough for bottom up nodes to be reached from many
+        // top down nodes at different depths.
+        CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
+        Random random = new Random(42);
+        int[] stack = new int[20];
+        int depth = 0;
+        int time = 0;
+        for (int i = 0; i < 2000; i++) {
+            time++;
+            if (depth == 0 || depth < stack.length && random.nextBoolean()) {
+                stack[depth] = 1 + random.nextInt(5);
+                reconstructor.addTraceAction(stack[depth++], TraceAction.METHOD_ENTER, time,
+                        time);
+            } else {
+                reconstructor.addTraceAction(stack[--depth], TraceAction.METHOD_EXIT, time,
+                        time);
+            }
+        }
+        while (depth > 0) {
+            time++;
+            reconstructor.addTraceAction(stack[--depth], TraceAction.METHOD_EXIT, time, time);
+        }
+
+        CallingContextTree cct = new CallingContextTree(reconstructor.getCallTable());
+        ProfileTree topDown = cct.getTopDown();
+        ProfileTree bottomUp = cct.getBottomUp();
+
+        // Each top down node adds its exclusive time and invocation count to the bottom up
+        // node of every suffix of its call stack, reversed.
+        Map<List<Long>, long[]> expected = new HashMap<List<Long>, long[]>();
+        for (int n = 1; n < topDown.size(); n++) {
+            List<Long> path = new ArrayList<Long>();
+            for (int a = n; a != 0; a = topDown.getParent(a)) {
+                path.add(topDown.getMethodId(a));
+                long[] stats = expected.get(path);
+                if (stats == null) {
+                    stats = new long[2];
+                    expected.put(new ArrayList<Long>(path), stats);
+                }
+                stats[0] += getExclusiveTime(topDown, n);
+                stats[1] += topDown.getInvocationCount(n);
+            }
+        }
+
+        assertEquals(expected.size() + 1, bottomUp.size());
+        for (int b = 1; b < bottomUp.size(); b++) {
+            LinkedList<Long> path = new LinkedList<Long>();
+            for (int a = b; a != 0; a = bottomUp.getParent(a)) {
+                path.addFirst(bottomUp.getMethodId(a));
+            }
+            long[] stats = expected.get(path);
+            assertNotNull(path.toString(), stats);
+            assertEquals(stats[0], getExclusiveTime(bottomUp, b));
+            assertEquals(stats[1], bottomUp.getInvocationCount(b));
+        }
+    }
+
+    private static int findChild(ProfileTree tree, int node, long methodId) {
+        List<Integer> children = tree.getChildren(node);
+        for (Integer child : children) {
+            if (tree.getMethodId(child) == methodId) {
+                return child;
+            }
+        }
+        fail("No child for method " + methodId);
+        return -1;
+    }
+
+    private static long getInclusiveTime(ProfileTree tree, int node) {
+        return tree.getInclusiveTime(node, ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+    }
+
+    private static long getExclusiveTime(ProfileTree tree, int node) {
+        return tree.getExclusiveTime(node, ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.google.common.io.Files;
 import com.google.common.primitives.Ints;
 
 import junit.framework.TestCase;
@@ -24,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -31,6 +33,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class VmTraceParserTest extends TestCase {
@@ -335,6 +339,156 @@ public class VmTraceParserTest extends TestCase {
         }
     }
 
+    public void testParallelCallStackReconstruction() {
+        VmTraceData.Builder sequential = new VmTraceData.Builder();
+        VmTraceData.Builder parallel = new VmTraceData.Builder();
+        for (VmTraceData.Builder builder : Arrays.asList(sequential, parallel)) {
+            for (int thread = 1; thread <= 8; thread++) {
+                builder.addThread(thread, "Thread " + thread);
+                for (int i = 0; i < thread; i++) {
+                    builder.addMethodAction(thread, 0x10, TraceAction.METHOD_ENTER, 2 * i, 2 * i);
+                    builder.addMethodAction(thread, 0x20 + i, TraceAction.METHOD_ENTER, 2 * i,
+                            2 * i);
+                    builder.addMethodAction(thread, 0x20 + i, TraceAction.METHOD_EXIT,
+                            2 * i + 1, 2 * i + 1);
+                    builder.addMethodAction(thread, 0x10, TraceAction.METHOD_EXIT, 2 * i + 1,
+                            2 * i + 1);
+                }
+            }
+        }
+
+        VmTraceData expected = sequential.build();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            VmTraceData actual = parallel.build(executor);
+            assertEquals(8, actual.getThreads().size());
+            for (ThreadInfo thread : expected.getThreads()) {
+                Call expectedCall = thread.getTopLevelCall();
+                Call actualCall = actual.getThread(thread.getName()).getTopLevelCall();
+                assertNotNull(expectedCall);
+                assertNotNull(actualCall);
+                assertEquals(expectedCall.toString(), actualCall.toString());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testStreamingProfileData() throws IOException {
+        validateStreamingProfileData("/basic.trace");
+        validateStreamingProfileData("/mismatched.trace");
+        validateStreamingProfileData("/exception.trace");
+    }
+
+    // Validate that computing the profile data from the stream of trace events gives the same
+    // results as computing it from the reconstructed call trees.
+    private void validateStreamingProfileData(String traceFilePath) throws IOException {
+        VmTraceData traceData = getVmTraceData(traceFilePath);
+
+        StreamingProfileDataBuilder builder = new StreamingProfileDataBuilder();
+        new VmTraceParser(getFile(traceFilePath), builder).parse();
+        assertProfileDataEquals(traceData, builder.getMethods());
+    }
+
+    private void assertProfileDataEquals(VmTraceData traceData, Map<Long, MethodInfo> methods) {
+        assertEquals(traceData.getMethods().keySet(), methods.keySet());
+        for (ThreadInfo thread : traceData.getThreads()) {
+            for (MethodInfo expectedMethod : traceData.getMethods().values()) {
+                MethodProfileData expected = expectedMethod.getProfileData();
+                MethodProfileData actual = methods.get(expectedMethod.id).getProfileData();
+                if (expected == null) {
+                    assertNull(actual);
+                    continue;
+                }
+
+                assertEquals(expected.isRecursive(), actual.isRecursive());
+                assertEquals(expected.getInvocationCount(thread),
+                        actual.getInvocationCount(thread));
+                assertEquals(expected.getCallers(thread), actual.getCallers(thread));
+                assertEquals(expected.getCallees(thread), actual.getCallees(thread));
+
+                for (ClockType type : ClockType.values()) {
+                    assertEquals(
+                            expected.getInclusiveTime(thread, type, TimeUnit.NANOSECONDS),
+                            actual.getInclusiveTime(thread, type, TimeUnit.NANOSECONDS));
+                    assertEquals(
+                            expected.getExclusiveTime(thread, type, TimeUnit.NANOSECONDS),
+                            actual.getExclusiveTime(thread, type, TimeUnit.NANOSECONDS));
+
+                    for (Long caller : expected.getCallers(thread)) {
+                        assertEquals(
+                                expected.getInclusiveTimeByCaller(thread, caller, type,
+                                        TimeUnit.NANOSECONDS),
+                                actual.getInclusiveTimeByCaller(thread, caller, type,
+                                        TimeUnit.NANOSECONDS));
+                        assertEquals(
+                                expected.getExclusiveTimeByCaller(thread, caller, type,
+                                        TimeUnit.NANOSECONDS),
+                                actual.getExclusiveTimeByCaller(thread, caller, type,
+                                        TimeUnit.NANOSECONDS));
+                        assertEquals(expected.getInvocationCountFromCaller(thread, caller),
+                                actual.getInvocationCountFromCaller(thread, caller));
+                    }
+
+                    for (Long callee : expected.getCallees(thread)) {
+                        assertEquals(
+                                expected.getInclusiveTimeByCallee(thread, callee, type,
+                                        TimeUnit.NANOSECONDS),
+                                actual.getInclusiveTimeByCallee(thread, callee, type,
+                                        TimeUnit.NANOSECONDS));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testCachedTraceData() throws IOException {
+        File dir = Files.createTempDir();
+        try {
+            File traceFile = new File(dir, "exception.trace");
+            Files.copy(getFile("/exception.trace"), traceFile);
+            VmTraceData expected = getVmTraceData("/exception.trace");
+
+            // the first parse writes the cache, the second one reads from it
+            VmTraceParser parser = new VmTraceParser(traceFile);
+            parser.setCacheEnabled(true);
+            parser.parse();
+            assertTrue(VmTraceCache.getCacheFile(traceFile).exists());
+            VmTraceData cached = new VmTraceCache(traceFile).read();
+            assertNotNull(cached);
+
+            assertEquals(expected.getVersion(), cached.getVersion());
+            assertEquals(expected.getVmClockType(), cached.getVmClockType());
+            assertEquals(expected.getVm(), cached.getVm());
+            assertEquals(expected.getTraceProperties(), cached.getTraceProperties());
+            for (ThreadInfo thread : expected.getThreads()) {
+                ThreadInfo cachedThread = cached.getThread(thread.getName());
+                assertEquals(thread.getId(), cachedThread.getId());
+                if (thread.getTopLevelCall() == null) {
+                    assertNull(cachedThread.getTopLevelCall());
+                    continue;
+                }
+                assertEquals(thread.getTopLevelCall().format(
+                                new CallFormatter(expected.getMethods())),
+                        cachedThread.getTopLevelCall().format(
+                                new CallFormatter(cached.getMethods())));
+            }
+            assertProfileDataEquals(expected, cached.getMethods());
+
+            // the cache is stale once the trace is modified
+            assertTrue(traceFile.setLastModified(traceFile.lastModified() - 10000));
+            assertNull(new VmTraceCache(traceFile).read());
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
     private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
         VmTraceParser parser = new VmTraceParser(getFile(traceFilePath));
         parser.parse();